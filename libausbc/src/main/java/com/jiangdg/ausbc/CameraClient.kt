@@ -33,8 +33,10 @@ import com.jiangdg.ausbc.camera.bean.CameraRequest
 import com.jiangdg.ausbc.camera.bean.CameraStatus
 import com.jiangdg.ausbc.camera.bean.PreviewSize
 import com.jiangdg.ausbc.encode.AACEncodeProcessor
+import com.jiangdg.ausbc.encode.EncoderCapabilities
 import com.jiangdg.ausbc.encode.AbstractProcessor
 import com.jiangdg.ausbc.encode.H264EncodeProcessor
+import com.jiangdg.ausbc.encode.H265EncodeProcessor
 import com.jiangdg.ausbc.encode.audio.AudioStrategySystem
 import com.jiangdg.ausbc.encode.bean.RawData
 import com.jiangdg.ausbc.encode.muxer.Mp4Muxer
@@ -424,7 +426,7 @@ class CameraClient internal constructor(builder: Builder) : IPreviewDataCallBack
                         Logger.e(TAG, "Input surface can't be null.")
                         return
                     }
-                    mRenderManager?.startRenderCodec(surface, width, height)
+                    mRenderManager?.startRenderCodec(surface, width, height, this@apply)
                 }
             })
         }
@@ -524,6 +526,7 @@ class CameraClient internal constructor(builder: Builder) : IPreviewDataCallBack
 
     private fun initEncodeProcessor() {
         releaseEncodeProcessor()
+        mCtx?.let { EncoderCapabilities.init(it) }
         val  encodeWidth = if (isEnableGLEs) {
             mRequest!!.previewHeight
         } else {
@@ -535,7 +538,11 @@ class CameraClient internal constructor(builder: Builder) : IPreviewDataCallBack
             mRequest!!.previewHeight
         }
         mAudioProcess = AACEncodeProcessor(AudioStrategySystem())
-        mVideoProcess = H264EncodeProcessor(encodeWidth, encodeHeight, isEnableGLEs)
+        mVideoProcess = if (mRequest!!.videoCodec == CameraRequest.VideoCodec.H265) {
+            H265EncodeProcessor(encodeWidth, encodeHeight, isEnableGLEs)
+        } else {
+            H264EncodeProcessor(encodeWidth, encodeHeight, isEnableGLEs)
+        }
     }
 
     private fun releaseEncodeProcessor() {
@@ -7,11 +7,14 @@ import android.hardware.usb.UsbDevice
 import android.os.*
 import android.view.Surface
 import com.jiangdg.ausbc.callback.*
+import com.jiangdg.ausbc.camera.bean.AnalysisOutput
 import com.jiangdg.ausbc.camera.bean.CameraRequest
 import com.jiangdg.ausbc.camera.bean.PreviewSize
 import com.jiangdg.ausbc.encode.AACEncodeProcessor
+import com.jiangdg.ausbc.encode.EncoderCapabilities
 import com.jiangdg.ausbc.encode.AbstractProcessor
 import com.jiangdg.ausbc.encode.H264EncodeProcessor
+import com.jiangdg.ausbc.encode.H265EncodeProcessor
 import com.jiangdg.ausbc.encode.audio.AudioStrategySystem
 import com.jiangdg.ausbc.encode.audio.AudioStrategyUAC
 import com.jiangdg.ausbc.encode.audio.IAudioStrategy
@@ -31,6 +34,8 @@ import com.jiangdg.ausbc.widget.IAspectRatio
 import com.jiangdg.usb.*
 import com.jiangdg.usb.DeviceFilter
 import com.jiangdg.uvc.UVCCamera
+import com.jiangdg.uvc.UVCPipelineStats
+import java.nio.ByteBuffer
 import java.text.SimpleDateFormat
 import java.util.*
 import java.util.concurrent.CopyOnWriteArrayList
@@ -272,6 +277,7 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
         protected var isNeedGLESRender: Boolean = false
         protected var mCtrlBlock: USBMonitor.UsbControlBlock? = null
         protected var mPreviewDataCbList = CopyOnWriteArrayList<IPreviewDataCallBack>()
+        private val mAnalysisOutputList = CopyOnWriteArrayList<AnalysisOutput>()
         private val mCacheEffectList by lazy {
             arrayListOf<AbstractEffect>()
         }
@@ -334,7 +340,8 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                         } else {
                             mPreviewDataCbList
                         }
-                        mRenderManager = RenderManager(ctx, previewWidth, previewHeight, previewCb)
+                        mRenderManager = RenderManager(ctx, previewWidth, previewHeight, previewCb,
+                            previewDataFormat = mCameraRequest!!.previewDataFormat)
                         mRenderManager?.startRenderScreen(screenWidth, screenHeight, surface, object : RenderManager.CameraSurfaceTextureListener {
                             override fun onSurfaceTextureAvailable(surfaceTexture: SurfaceTexture?) {
                                 if (surfaceTexture == null) {
@@ -346,6 +353,9 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                             }
                         })
                         mRenderManager?.setRotateType(mCameraRequest!!.defaultRotateType)
+                        mAnalysisOutputList.forEach { output ->
+                            mRenderManager?.addAnalysisOutput(output)
+                        }
                         if (mCacheEffectList.isNotEmpty()) {
                             mCacheEffectList.forEach { effect ->
                                 mRenderManager?.addRenderEffect(effect)
@@ -462,6 +472,7 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
          */
         protected fun initEncodeProcessor(previewWidth: Int, previewHeight: Int) {
             releaseEncodeProcessor()
+            EncoderCapabilities.init(mContext)
             // create audio process
             getAudioStrategy()?.let { audio->
                 AACEncodeProcessor(audio)
@@ -472,7 +483,11 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
             mContext.resources.configuration.orientation.let { orientation ->
                 orientation == Configuration.ORIENTATION_PORTRAIT
             }.also { isPortrait ->
-                mVideoProcess = H264EncodeProcessor(previewWidth, previewHeight, isNeedGLESRender, isPortrait)
+                mVideoProcess = if (mCameraRequest?.videoCodec == CameraRequest.VideoCodec.H265) {
+                    H265EncodeProcessor(previewWidth, previewHeight, isNeedGLESRender, isPortrait)
+                } else {
+                    H264EncodeProcessor(previewWidth, previewHeight, isNeedGLESRender, isPortrait)
+                }
             }
         }
 
@@ -498,9 +513,20 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
          * Put video data
          *
          * @param data NV21 raw data
+         * @param timestampNs capture time in the time base of System.nanoTime
+         */
+        protected fun putVideoData(data: ByteArray, timestampNs: Long = System.nanoTime()) {
+            mVideoProcess?.putRawData(RawData(data, data.size, timestampNs))
+        }
+
+        /**
+         * Put video data without a heap copy of the frame
+         *
+         * @param buffer NV21 raw data, copied into the encoder queue
+         * @param timestampNs capture time in the time base of System.nanoTime
          */
-        protected fun putVideoData(data: ByteArray) {
-            mVideoProcess?.putRawData(RawData(data, data.size))
+        protected fun putVideoData(buffer: ByteBuffer, timestampNs: Long = System.nanoTime()) {
+            mVideoProcess?.putRawData(buffer, timestampNs)
         }
 
         /**
@@ -714,6 +740,14 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
          */
         fun getCameraRequest() = mCameraRequest
 
+        /**
+         * Get the latency of each frame stage of this device, from the USB payload to the preview callback
+         *
+         * @param reset clear the statistics after reading
+         * @return see [UVCPipelineStats], null if the camera does not record them or is closed
+         */
+        open fun getPipelineStats(reset: Boolean = false): UVCPipelineStats? = null
+
         /**
          * Capture image
          *
@@ -832,6 +866,47 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
             mPreviewDataCbList.remove(callBack)
         }
 
+        /**
+         * Add downscaled analysis data call back, only for the OPENGL render mode
+         *
+         * The frames are shrunk on the GPU and only the analysis size is read back,
+         * callbacks of the same size share one pass. See [AnalysisOutput].
+         *
+         * @param callBack analysis data call back
+         * @param width analysis width, e.g. 320
+         * @param height analysis height, e.g. 240
+         * @param format RGBA, NV21, NV12 or I420
+         * @param frameDivisor deliver every Nth frame, default is each frame
+         */
+        @JvmOverloads
+        fun addAnalysisDataCallBack(
+            callBack: IPreviewDataCallBack,
+            width: Int,
+            height: Int,
+            format: IPreviewDataCallBack.DataFormat = IPreviewDataCallBack.DataFormat.RGBA,
+            frameDivisor: Int = 1
+        ) {
+            if (mAnalysisOutputList.any { it.callBack == callBack }) {
+                return
+            }
+            AnalysisOutput(callBack, width, height, format, frameDivisor.coerceAtLeast(1)).let { output ->
+                mAnalysisOutputList.add(output)
+                mRenderManager?.addAnalysisOutput(output)
+            }
+        }
+
+        /**
+         * Remove analysis data call back
+         *
+         * @param callBack analysis data call back
+         */
+        fun removeAnalysisDataCallBack(callBack: IPreviewDataCallBack) {
+            mAnalysisOutputList.find { it.callBack == callBack }?.let { output ->
+                mAnalysisOutputList.remove(output)
+                mRenderManager?.removeAnalysisOutput(callBack)
+            }
+        }
+
         fun getSuitableSize(maxWidth: Int, maxHeight: Int): PreviewSize {
             val sizeList = getAllPreviewSizes()
             if (sizeList.isNullOrEmpty()) {
@@ -892,7 +967,7 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
          */
         fun isStreaming(): Boolean = isEncoding() && isCaptureStream
 
-        private fun isEncoding(): Boolean = mVideoProcess?.isEncoding() == true
+        protected fun isEncoding(): Boolean = mVideoProcess?.isEncoding() == true
 
         private fun captureVideoStartInternal(path: String?, durationInSec: Long, callBack: ICaptureCallBack) {
             if (! isCameraOpened()) {
@@ -981,7 +1056,7 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                 return
             }
             mCameraRequest?.apply {
-                mRenderManager?.startRenderCodec(surface, previewWidth, previewHeight)
+                mRenderManager?.startRenderCodec(surface, previewWidth, previewHeight, mVideoProcess as? H264EncodeProcessor)
             }
         }
 
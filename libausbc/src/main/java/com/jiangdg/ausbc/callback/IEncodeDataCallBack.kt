@@ -28,6 +28,9 @@ interface IEncodeDataCallBack {
                    // if want adding adts, should call MediaUtils.addADTStoPacket() method
         H264_KEY,  // H.264, key frame
         H264_SPS,  // H.264, sps & pps
-        H264       // H.264 not key frame
+        H264,      // H.264 not key frame
+        H265_KEY,  // H.265, key frame
+        H265_VPS,  // H.265, vps & sps & pps
+        H265       // H.265 not key frame
     }
 }
\ No newline at end of file
@@ -15,6 +15,8 @@
  */
 package com.jiangdg.ausbc.callback
 
+import com.jiangdg.ausbc.camera.bean.FrameBuffer
+
 /** Camera preview data callback
  *
  * @author Created by jiangdg on 2022/1/29
@@ -22,7 +24,29 @@ package com.jiangdg.ausbc.callback
 interface IPreviewDataCallBack {
     fun onPreviewData(data: ByteArray?, width: Int, height: Int, format: DataFormat)
 
+    /**
+     * Zero-copy preview data, called instead of [onPreviewData] when [isFrameBufferMode] is true.
+     * Only supported by [com.jiangdg.ausbc.camera.CameraUVC], others always call [onPreviewData].
+     *
+     * @param frame frame lent from the native frame pool, only valid in this method.
+     *              Call [FrameBuffer.retain] to keep it and [FrameBuffer.release] when finished,
+     *              or [FrameBuffer.copyTo] if a heap copy is really needed.
+     */
+    fun onPreviewFrame(frame: FrameBuffer, width: Int, height: Int, format: DataFormat) {}
+
+    /**
+     * Receive preview data by [onPreviewFrame]
+     *
+     * @return default is false
+     */
+    fun isFrameBufferMode(): Boolean = false
+
+    /**
+     * Preview data format
+     *
+     * NV12 and I420 only come from the OPENGL render mode, see [com.jiangdg.ausbc.camera.bean.CameraRequest.previewDataFormat]
+     */
     enum class DataFormat {
-        NV21, RGBA
+        NV21, RGBA, NV12, I420
     }
-}
\ No newline at end of file
+}
@@ -19,6 +19,7 @@ import android.content.ContentValues
 import android.content.Context
 import android.graphics.SurfaceTexture
 import android.hardware.usb.UsbDevice
+import android.os.ParcelFileDescriptor
 import android.provider.MediaStore
 import android.view.Surface
 import android.view.SurfaceView
@@ -30,15 +31,18 @@ import com.jiangdg.ausbc.callback.ICameraStateCallBack
 import com.jiangdg.ausbc.callback.ICaptureCallBack
 import com.jiangdg.ausbc.callback.IPreviewDataCallBack
 import com.jiangdg.ausbc.camera.bean.CameraRequest
+import com.jiangdg.ausbc.camera.bean.FrameBuffer
 import com.jiangdg.ausbc.camera.bean.PreviewSize
 import com.jiangdg.ausbc.utils.CameraUtils
 import com.jiangdg.ausbc.utils.Logger
 import com.jiangdg.ausbc.utils.MediaUtils
 import com.jiangdg.ausbc.utils.Utils
-import com.jiangdg.uvc.IFrameCallback
+import com.jiangdg.uvc.IFrameBufferCallback
 import com.jiangdg.uvc.UVCCamera
+import com.jiangdg.uvc.UVCPipelineStats
 import java.io.File
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 /** UVC Camera
  *
@@ -50,27 +54,63 @@ class CameraUVC(ctx: Context, device: UsbDevice) : MultiCameraClient.ICamera(ctx
         arrayListOf<PreviewSize>()
     }
 
-    private val frameCallBack = IFrameCallback { frame ->
-        frame?.apply {
-            frame.position(0)
-            val data = ByteArray(capacity())
-            get(data)
-            mCameraRequest?.apply {
-                if (data.size != previewWidth * previewHeight * 3 / 2) {
-                    return@IFrameCallback
-                }
-                // for preview callback
-                mPreviewDataCbList.forEach { cb ->
-                    cb?.onPreviewData(data, previewWidth, previewHeight, IPreviewDataCallBack.DataFormat.NV21)
+    private val mPendingCaptureCount = AtomicInteger(0)
+
+    // frames are lent from the native frame pool,
+    // only the consumers who need a heap copy will pay for it
+    private val frameCallBack = IFrameBufferCallback { buffer, frameId ->
+        val camera = mUvcCamera ?: return@IFrameBufferCallback
+        if (buffer == null) {
+            camera.releaseFrameBuffer(frameId)
+            return@IFrameBufferCallback
+        }
+        // stamped when the first USB payload of the frame arrived, falls back to now
+        val timestampNs = camera.getFrameTimestamp(frameId).takeIf { it > 0L } ?: System.nanoTime()
+        val frame = FrameBuffer(buffer, timestampNs) {
+            camera.releaseFrameBuffer(frameId)
+        }
+        try {
+            dispatchPreviewFrame(frame)
+        } finally {
+            frame.release()
+        }
+    }
+
+    private fun dispatchPreviewFrame(frame: FrameBuffer) {
+        mCameraRequest?.apply {
+            if (frame.size() != previewWidth * previewHeight * 3 / 2) {
+                return
+            }
+            // shared by all consumers who need a heap copy
+            var data: ByteArray? = null
+            // for preview callback
+            for (cb in mPreviewDataCbList) {
+                if (cb.isFrameBufferMode()) {
+                    cb.onPreviewFrame(frame, previewWidth, previewHeight, IPreviewDataCallBack.DataFormat.NV21)
+                    continue
                 }
-                // for image
+                val copy = data ?: frame.copyTo()
+                data = copy
+                cb.onPreviewData(copy, previewWidth, previewHeight, IPreviewDataCallBack.DataFormat.NV21)
+            }
+            // for image
+            if (mPendingCaptureCount.get() > 0) {
+                val copy = data ?: frame.copyTo()
+                data = copy
                 if (mNV21DataQueue.size >= MAX_NV21_DATA) {
                     mNV21DataQueue.removeLast()
                 }
-                mNV21DataQueue.offerFirst(data)
-                // for video
-                // avoid preview size changed
-                putVideoData(data)
+                mNV21DataQueue.offerFirst(copy)
+            }
+            // for video
+            // avoid preview size changed
+            if (isEncoding()) {
+                // the encoder copies into its own buffers, no need of a heap copy
+                if (data != null) {
+                    putVideoData(data, frame.timestampNs)
+                } else {
+                    putVideoData(frame.buffer, frame.timestampNs)
+                }
             }
         }
     }
@@ -194,7 +234,7 @@ class CameraUVC(ctx: Context, device: UsbDevice) : MultiCameraClient.ICamera(ctx
         // if not opengl render or opengl render with preview callback
         // there should opened
         if (! isNeedGLESRender || mCameraRequest!!.isRawPreviewData || mCameraRequest!!.isCaptureRawImage) {
-            mUvcCamera?.setFrameCallback(frameCallBack, UVCCamera.PIXEL_FORMAT_YUV420SP)
+            mUvcCamera?.setFrameBufferCallback(frameCallBack, UVCCamera.PIXEL_FORMAT_YUV420SP)
         }
         // 3. start preview
         when(cameraView) {
@@ -252,25 +292,44 @@ class CameraUVC(ctx: Context, device: UsbDevice) : MultiCameraClient.ICamera(ctx
                 Logger.i(TAG, "captureImageInternal failed, camera not previewing")
                 return@submit
             }
-            val data = mNV21DataQueue.pollFirst(CAPTURE_TIMES_OUT_SEC, TimeUnit.SECONDS)
-            if (data == null) {
-                mMainHandler.post {
-                    callback.onError("Times out")
-                }
-                Logger.i(TAG, "captureImageInternal failed, times out.")
-                return@submit
-            }
-            mMainHandler.post {
-                callback.onBegin()
-            }
+            val request = mCameraRequest!!
             val date = mDateFormat.format(System.currentTimeMillis())
             val title = savePath ?: "IMG_AUSBC_$date"
             val displayName = savePath ?: "$title.jpg"
             val path = savePath ?: "$mCameraDir/$displayName"
             val location = Utils.getGpsLocation(ctx)
-            val width = mCameraRequest!!.previewWidth
-            val height = mCameraRequest!!.previewHeight
-            val ret = MediaUtils.saveYuv2Jpeg(path, data, width, height)
+            // mjpeg frames are saved as the camera sent them, no decoding and encoding again
+            var ret = false
+            if (request.previewFormat == CameraRequest.PreviewFormat.FORMAT_MJPEG) {
+                mMainHandler.post {
+                    callback.onBegin()
+                }
+                ret = saveMjpegImage(path)
+            }
+            if (! ret) {
+                // frames are only copied to mNV21DataQueue while a capture is pending
+                val data = try {
+                    if (mPendingCaptureCount.getAndIncrement() == 0) {
+                        mNV21DataQueue.clear()
+                    }
+                    mNV21DataQueue.pollFirst(CAPTURE_TIMES_OUT_SEC, TimeUnit.SECONDS)
+                } finally {
+                    mPendingCaptureCount.decrementAndGet()
+                }
+                if (data == null) {
+                    mMainHandler.post {
+                        callback.onError("Times out")
+                    }
+                    Logger.i(TAG, "captureImageInternal failed, times out.")
+                    return@submit
+                }
+                if (request.previewFormat != CameraRequest.PreviewFormat.FORMAT_MJPEG) {
+                    mMainHandler.post {
+                        callback.onBegin()
+                    }
+                }
+                ret = saveNv21Image(path, data, request)
+            }
             if (! ret) {
                 val file = File(path)
                 if (file.exists()) {
@@ -297,6 +356,51 @@ class CameraUVC(ctx: Context, device: UsbDevice) : MultiCameraClient.ICamera(ctx
         }
     }
 
+    private fun saveMjpegImage(path: String): Boolean {
+        val camera = mUvcCamera ?: return false
+        var pfd: ParcelFileDescriptor? = null
+        return try {
+            pfd = openForWrite(path)
+            // negative when the camera fell back to yuyv
+            camera.captureStill(pfd.fd, CAPTURE_STILL_TIMEOUT_MS) > 0
+        } catch (e: Exception) {
+            Logger.e(TAG, "save mjpeg image failed", e)
+            false
+        } finally {
+            pfd?.close()
+        }
+    }
+
+    private fun saveNv21Image(path: String, data: ByteArray, request: CameraRequest): Boolean {
+        val width = request.previewWidth
+        val height = request.previewHeight
+        val quality = request.captureQuality
+        // compressed by libjpeg-turbo into a native buffer, then written to the file
+        mUvcCamera?.let { camera ->
+            var pfd: ParcelFileDescriptor? = null
+            try {
+                pfd = openForWrite(path)
+                val subsampling = when (request.captureSubsampling) {
+                    CameraRequest.JpegSubsampling.YUV444 -> UVCCamera.JPEG_SUBSAMPLING_444
+                    CameraRequest.JpegSubsampling.YUV422 -> UVCCamera.JPEG_SUBSAMPLING_422
+                    CameraRequest.JpegSubsampling.YUV420 -> UVCCamera.JPEG_SUBSAMPLING_420
+                    CameraRequest.JpegSubsampling.GRAY -> UVCCamera.JPEG_SUBSAMPLING_GRAY
+                }
+                if (camera.compressToJpeg(data, width, height, quality, subsampling, pfd.fd) > 0) {
+                    return true
+                }
+            } catch (e: Exception) {
+                Logger.e(TAG, "compress nv21 to jpeg failed", e)
+            } finally {
+                pfd?.close()
+            }
+        }
+        return MediaUtils.saveYuv2Jpeg(path, data, width, height, quality)
+    }
+
+    private fun openForWrite(path: String) = ParcelFileDescriptor.open(File(path),
+        ParcelFileDescriptor.MODE_WRITE_ONLY or ParcelFileDescriptor.MODE_CREATE or ParcelFileDescriptor.MODE_TRUNCATE)
+
     /**
      * Is mic supported
      *
@@ -526,9 +630,12 @@ class CameraUVC(ctx: Context, device: UsbDevice) : MultiCameraClient.ICamera(ctx
         mUvcCamera?.resetHue()
     }
 
+    override fun getPipelineStats(reset: Boolean): UVCPipelineStats? = mUvcCamera?.getPipelineStats(reset)
+
     companion object {
         private const val TAG = "CameraUVC"
         private const val MIN_FS = 1
         private const val MAX_FPS = 61
+        private const val CAPTURE_STILL_TIMEOUT_MS = 1000
     }
 }
\ No newline at end of file
@@ -0,0 +1,38 @@
+
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+package com.jiangdg.ausbc.camera.bean
+
+import com.jiangdg.ausbc.callback.IPreviewDataCallBack
+
+/** Downscaled analysis stream of the OPENGL render mode
+ *
+ * Frames come from the final texture of the effect chain, shrunk on the GPU and read back at
+ * the analysis size only. Outputs with the same size share one pass.
+ *
+ * @property callBack receives the frames by [IPreviewDataCallBack.onPreviewData]
+ * @property width analysis width
+ * @property height analysis height
+ * @property format RGBA, or NV21, NV12, I420 when width is a multiple of 8 and height of 4,
+ *          RGBA is delivered otherwise
+ * @property frameDivisor deliver every Nth rendered frame, 1 means each frame
+ */
+data class AnalysisOutput(
+    val callBack: IPreviewDataCallBack,
+    val width: Int,
+    val height: Int,
+    val format: IPreviewDataCallBack.DataFormat = IPreviewDataCallBack.DataFormat.RGBA,
+    val frameDivisor: Int = 1
+)
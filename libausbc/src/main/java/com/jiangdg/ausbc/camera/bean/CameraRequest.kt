@@ -16,6 +16,7 @@
 package com.jiangdg.ausbc.camera.bean
 
 import androidx.annotation.Keep
+import com.jiangdg.ausbc.callback.IPreviewDataCallBack
 import com.jiangdg.ausbc.render.effect.AbstractEffect
 import com.jiangdg.ausbc.render.env.RotateType
 
@@ -36,6 +37,10 @@ class CameraRequest private constructor() {
     var defaultRotateType: RotateType = RotateType.ANGLE_0
     var audioSource: AudioSource = AudioSource.SOURCE_AUTO
     var previewFormat: PreviewFormat = PreviewFormat.FORMAT_MJPEG
+    var videoCodec: VideoCodec = VideoCodec.H264
+    var captureQuality: Int = DEFAULT_CAPTURE_QUALITY
+    var captureSubsampling: JpegSubsampling = JpegSubsampling.YUV420
+    var previewDataFormat: IPreviewDataCallBack.DataFormat = IPreviewDataCallBack.DataFormat.RGBA
 
     @kotlin.Deprecated("Deprecated since version 3.3.0")
     var cameraId: String = ""
@@ -188,6 +193,54 @@ class CameraRequest private constructor() {
             return this
         }
 
+        /**
+         * Set video codec for recording and capturing stream
+         *
+         * @param codec default is [VideoCodec.H264], [VideoCodec.H265] falls back to h264
+         *              when the device has no hevc encoder
+         * @return see [Builder]
+         */
+        fun setVideoCodec(codec: VideoCodec): Builder {
+            mRequest.videoCodec = codec
+            return this
+        }
+
+        /**
+         * Set jpeg quality of captured images, images of a mjpeg preview are saved
+         * as the camera sent them and ignore it
+         *
+         * @param quality [1, 100], default is 95
+         * @return see [Builder]
+         */
+        fun setCaptureQuality(quality: Int): Builder {
+            mRequest.captureQuality = quality
+            return this
+        }
+
+        /**
+         * Set jpeg chroma subsampling of captured images
+         *
+         * @param subsampling default is [JpegSubsampling.YUV420], the subsampling of the preview frames
+         * @return see [Builder]
+         */
+        fun setCaptureSubsampling(subsampling: JpegSubsampling): Builder {
+            mRequest.captureSubsampling = subsampling
+            return this
+        }
+
+        /**
+         * Set the format of preview data when OpenGL ES render opened
+         *  NV21, NV12 and I420 are packed on the GPU, so less than half of the rgba data is read back.
+         *  Falls back to rgba when the width is not a multiple of 8 or the height of 4.
+         *
+         * @param format default is [IPreviewDataCallBack.DataFormat.RGBA]
+         * @return see [Builder]
+         */
+        fun setPreviewDataFormat(format: IPreviewDataCallBack.DataFormat): Builder {
+            mRequest.previewDataFormat = format
+            return this
+        }
+
         /**
          * Create a CameraRequest
          *
@@ -236,7 +289,34 @@ class CameraRequest private constructor() {
         FORMAT_YUYV
     }
 
+    /**
+     * Video codec
+     *
+     * H264: h.264(avc), default codec
+     * H265: h.265(hevc), about 40% smaller files for the same quality
+     */
+    enum class VideoCodec {
+        H264,
+        H265
+    }
+
+    /**
+     * Jpeg chroma subsampling
+     *
+     * YUV444: full color resolution, largest files
+     * YUV422: half horizontal color resolution
+     * YUV420: half horizontal and vertical color resolution, default
+     * GRAY: luminance only
+     */
+    enum class JpegSubsampling {
+        YUV444,
+        YUV422,
+        YUV420,
+        GRAY
+    }
+
     companion object {
+        private const val DEFAULT_CAPTURE_QUALITY = 95
         private const val DEFAULT_WIDTH = 640
         private const val DEFAULT_HEIGHT = 480
     }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.camera.bean
+
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+
+/** Reference counted frame buffer
+ *
+ * The buffer is usually a direct buffer lent from the native frame pool, it is given back
+ * by [onRecycle] when the last reference is released. The creator holds the first reference.
+ * A retained frame stays valid after the camera is closed, until it is released.
+ *
+ * @property buffer frame data, read only, don't access it after released
+ * @property timestampNs capture time in the time base of System.nanoTime
+ */
+class FrameBuffer(
+    buffer: ByteBuffer,
+    val timestampNs: Long = System.nanoTime(),
+    private val onRecycle: () -> Unit
+) {
+    private val mRefCount = AtomicInteger(1)
+    val buffer: ByteBuffer = buffer.asReadOnlyBuffer()
+
+    /**
+     * Frame data size
+     */
+    fun size() = buffer.capacity()
+
+    /**
+     * Retain the frame, needed when using it after the callback returned
+     *
+     * @return this frame
+     */
+    fun retain(): FrameBuffer {
+        while (true) {
+            val count = mRefCount.get()
+            if (count <= 0) {
+                throw IllegalStateException("frame buffer already recycled")
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return this
+            }
+        }
+    }
+
+    /**
+     * Release the frame, recycled when nobody retains it
+     */
+    fun release() {
+        val count = mRefCount.decrementAndGet()
+        if (count == 0) {
+            onRecycle()
+        } else if (count < 0) {
+            mRefCount.set(0)
+            throw IllegalStateException("frame buffer released too many times")
+        }
+    }
+
+    /**
+     * Copy the frame data to heap
+     *
+     * @param dst destination array, a new one will be created if null or too small
+     * @return dst or the new array
+     */
+    fun copyTo(dst: ByteArray? = null): ByteArray {
+        val data = if (dst != null && dst.size >= size()) dst else ByteArray(size())
+        buffer.duplicate().apply {
+            position(0)
+            get(data, 0, size())
+        }
+        return data
+    }
+}
@@ -16,25 +16,28 @@
 package com.jiangdg.ausbc.encode
 
 import android.media.*
+import android.os.ParcelFileDescriptor
 import android.os.Process
 import com.jiangdg.ausbc.callback.ICaptureCallBack
 import com.jiangdg.ausbc.callback.IEncodeDataCallBack
 import com.jiangdg.ausbc.callback.IPlayCallBack
+import com.jiangdg.ausbc.encode.audio.AudioBroadcastRing
 import com.jiangdg.ausbc.encode.audio.AudioStrategySystem
 import com.jiangdg.ausbc.encode.audio.IAudioStrategy
 import com.jiangdg.ausbc.encode.bean.RawData
 import com.jiangdg.ausbc.utils.Logger
-import com.jiangdg.ausbc.utils.MediaUtils
 import com.jiangdg.ausbc.utils.Utils
 import com.jiangdg.natives.LameMp3
 import java.io.File
-import java.io.FileOutputStream
 import java.nio.ByteBuffer
 import java.util.concurrent.*
 import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.Exception
 
 /** AAC encode by MediaCodec
+ *
+ * The captured pcm is written once into an [AudioBroadcastRing], the aac encoder,
+ * the playback and the mp3 recording each read it with their own reader.
  *
  * @author Created by jiangdg on 2022/2/10
  */
@@ -42,12 +45,10 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
     private var mAudioTrack: AudioTrack? = null
     private var mPresentationTimeUs: Long = 0L
     private var mCountDownLatch: CountDownLatch? = null
-    private val mPlayQueue: ConcurrentLinkedQueue<RawData> by lazy {
-        ConcurrentLinkedQueue()
-    }
-    private val mRecordMp3Queue: ConcurrentLinkedQueue<RawData> by lazy {
-        ConcurrentLinkedQueue()
-    }
+    private val mAudioRing = AudioBroadcastRing(RING_CAPACITY)
+    @Volatile
+    private var mEncodeReader: AudioBroadcastRing.Reader? = null
+    private var mEncodeRawData: RawData? = null
     private val mAudioThreadPool: ExecutorService by lazy {
         Executors.newFixedThreadPool(3)
     }
@@ -61,12 +62,15 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
         AtomicBoolean(false)
     }
     private var mAudioRecord: IAudioStrategy = strategy ?: AudioStrategySystem()
+    @Volatile
+    private var mMp3Threads = 1
 
     private var mSamplingRateIndex: Int = -1
 
     override fun getThreadName(): String = TAG
 
     override fun handleStartEncode() {
+        mEncodeReader = mAudioRing.attach("aac")
         initAudioRecord()
         try {
             val sampleRate = mAudioRecord.getSampleRate()
@@ -80,7 +84,7 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
                 setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, MAX_INPUT_SIZE)
             }.also { format ->
                 mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE)
-                mMediaCodec?.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+                mMediaCodec?.let { configureEncoder(it, format) }
                 mMediaCodec?.start()
                 mEncodeState.set(true)
                 if (Utils.debugCamera) {
@@ -104,13 +108,38 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
         } catch (e: Exception) {
             Logger.e(TAG, "release aac media codec failed, err = ${e.localizedMessage}", e)
         } finally {
+            mEncodeReader?.let { reader ->
+                reader.close()
+                Logger.i(TAG, "audio ring $reader")
+            }
+            mEncodeReader = null
             releaseAudioRecord()
             mRawDataQueue.clear()
             mMediaCodec = null
         }
     }
 
-    override fun getPTSUs(bufferSize: Int): Long {
+    override fun pollRawData(): RawData? {
+        val reader = mEncodeReader ?: return super.pollRawData()
+        if (! reader.read(0L)) {
+            return super.pollRawData()
+        }
+        // the encoders expect data.size to be the frame size
+        val rawData = mEncodeRawData?.takeIf { it.data.size == reader.size }
+            ?: RawData(ByteArray(reader.size), reader.size).also { mEncodeRawData = it }
+        System.arraycopy(reader.data, 0, rawData.data, 0, reader.size)
+        rawData.timestampNs = reader.timestampNs
+        return rawData
+    }
+
+    override fun recycleRawData(rawData: RawData) {
+        // reused for the next chunk
+        if (rawData !== mEncodeRawData) {
+            super.recycleRawData(rawData)
+        }
+    }
+
+    override fun getPTSUs(bufferSize: Int, timestampNs: Long): Long {
         //A frame of audio frame size int size = sampling rate * bit width * sampling time * number of channels
         // 1s timestamp calculation formula presentationTimeUs = 1000000L * (totalBytes / sampleRate/ audioFormat / channelCount / 8 )
         //totalBytes : total size of incoming encoder
@@ -146,6 +175,7 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
      */
     fun playAudioStart(callBack: IPlayCallBack?) {
         mAudioThreadPool.submit {
+            val reader = mAudioRing.attach("play")
             try {
                 mCountDownLatch = CountDownLatch(1)
                 initAudioRecord()
@@ -160,16 +190,17 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
                 if (Utils.debugCamera) {
                     Logger.i(TAG, "start play mic success.")
                 }
+                mAudioTrack?.play()
                 while (mAudioPlayState.get()) {
                     val state = mAudioTrack?.state
                     if (state != AudioTrack.STATE_INITIALIZED) {
                         break
                     }
-                    mPlayQueue.poll()?.apply {
-                        mAudioTrack?.play()
-                        mAudioTrack?.write(data, 0, size)
+                    if (reader.read(READ_TIMEOUT_MS)) {
+                        mAudioTrack?.write(reader.data, 0, reader.size)
                     }
                 }
+                reader.close()
                 releaseAudioTrack()
                 releaseAudioRecord()
                 mMainHandler.post {
@@ -183,6 +214,9 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
                     callBack?.onError(e.localizedMessage?: "unknown exception")
                 }
                 Logger.e(TAG, "start/stop play mic failed, err = ${e.localizedMessage}", e)
+            } finally {
+                reader.close()
+                Logger.i(TAG, "audio ring $reader")
             }
         }
     }
@@ -194,6 +228,18 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
         mAudioPlayState.set(false)
     }
 
+    /**
+     * Set the threads encoding mp3, see [LameMp3.lameCreate]
+     *
+     * Takes effect on the next [recordMp3Start]. More than 1 suits long recordings,
+     * the file is written a few seconds late.
+     *
+     * @param threads threads, 1 by default
+     */
+    fun setMp3EncodeThreads(threads: Int) {
+        mMp3Threads = threads.coerceAtLeast(1)
+    }
+
     /**
      * Record mp3start
      *
@@ -202,7 +248,9 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
      */
     fun recordMp3Start(audioPath: String?, callBack: ICaptureCallBack) {
         mAudioThreadPool.submit {
-            var fos: FileOutputStream? = null
+            var pfd: ParcelFileDescriptor? = null
+            var lame = 0L
+            val reader = mAudioRing.attach("mp3")
             try {
                 if (audioPath.isNullOrEmpty()) {
                     mMainHandler.post {
@@ -220,42 +268,53 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
                 if (file.exists()) {
                     file.delete()
                 }
-                fos = FileOutputStream(file)
-                val mp3Buf = ByteArray(2048)
+                pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_WRITE_ONLY or
+                        ParcelFileDescriptor.MODE_CREATE or ParcelFileDescriptor.MODE_TRUNCATE)
+                val fd = pfd.fd
+                // pcm goes to lame as it is and the mp3 frames are written to the file natively
+                var pcmBuf = ByteBuffer.allocateDirect(PCM_BUFFER_SIZE)
                 val sampleRate = mAudioRecord.getSampleRate()
                 val channelCount = mAudioRecord.getChannelCount()
                 if (Utils.debugCamera) {
                     Logger.i(TAG, "start record mp3 success, $sampleRate, $channelCount, $audioPath")
                 }
-                LameMp3.lameInit(sampleRate, channelCount, sampleRate, BIT_RATE, DEGREE_RECORD_MP3)
+                lame = LameMp3.lameCreate(sampleRate, channelCount, sampleRate, BIT_RATE, DEGREE_RECORD_MP3, mMp3Threads)
+                if (lame == 0L) {
+                    throw IllegalStateException("init lame failed")
+                }
                 mMainHandler.post {
                     callBack.onBegin()
                 }
                 mRecordMp3State.set(true)
                 while (mRecordMp3State.get()) {
-                    mRecordMp3Queue.poll()?.apply {
-                        val tmpData = MediaUtils.transferByte2Short(data, size)
-                        val encodeSize = LameMp3.lameEncode(tmpData, null, tmpData.size, mp3Buf)
-                        Logger.i(TAG, "encode, $size, $encodeSize")
-                        if (encodeSize > 0) {
-                            fos?.write(mp3Buf, 0, encodeSize)
-                        }
+                    if (! reader.read(READ_TIMEOUT_MS)) {
+                        continue
+                    }
+                    if (pcmBuf.capacity() < reader.size) {
+                        pcmBuf = ByteBuffer.allocateDirect(reader.size)
+                    }
+                    pcmBuf.clear()
+                    pcmBuf.put(reader.data, 0, reader.size)
+                    pcmBuf.flip()
+                    if (LameMp3.lameEncode(lame, pcmBuf, fd) < 0) {
+                        Logger.w(TAG, "encode mp3 failed, size = ${reader.size}")
                     }
                 }
-                val flushSize = LameMp3.lameFlush(mp3Buf)
-                if (flushSize > 0) {
-                    fos.write(mp3Buf, 0, flushSize)
-                }
+                LameMp3.lameFlushToFd(lame, fd)
             } catch (e: Exception) {
                 mMainHandler.post {
                     callBack.onError(e.localizedMessage?: "unknown exception")
                 }
                 Logger.e(TAG, "start/stop record mp3 failed, err = ${e.localizedMessage}", e)
             } finally {
+                reader.close()
+                Logger.i(TAG, "audio ring $reader")
                 try {
-                    fos?.close()
-                    fos = null
-                    LameMp3.lameClose()
+                    pfd?.close()
+                    pfd = null
+                    if (lame != 0L) {
+                        LameMp3.lameClose(lame)
+                    }
                     releaseAudioRecord()
                     mMainHandler.post {
                         callBack.onComplete(audioPath)
@@ -289,25 +348,18 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
             mCountDownLatch?.countDown()
             while (mAudioRecordState.get()) {
                 val data = mAudioRecord.read()
-                data ?: continue
-                // pcm encode queue
-                putRawData(data)
-                // pcm play queue
-                if (mPlayQueue.size >= MAX_QUEUE_SIZE) {
-                    mPlayQueue.poll()
+                if (data == null || data.size <= 0) {
+                    continue
                 }
-                mPlayQueue.offer(data)
-                // pcm to mp3 queue
-                if (mRecordMp3Queue.size >= MAX_QUEUE_SIZE) {
-                    mRecordMp3Queue.poll()
+                // one copy for the encoder, the playback and the mp3 recording
+                mAudioRing.write(data.data, data.size, System.nanoTime())
+                if (mEncodeReader != null) {
+                    notifyFrameAvailable()
                 }
-                mRecordMp3Queue.offer(data)
             }
             mAudioRecord.stopRecording()
             mAudioRecord.releaseAudioRecord()
             mAudioRecordState.set(false)
-            mPlayQueue.clear()
-            mRecordMp3Queue.clear()
             mRawDataQueue.clear()
         }
     }
@@ -375,5 +427,8 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
         private const val AUDIO_TRACK_MODE = AudioTrack.MODE_STREAM
         private const val CODEC_AAC_PROFILE = MediaCodecInfo.CodecProfileLevel.AACObjectLC
         private const val DEGREE_RECORD_MP3 = 7
+        private const val RING_CAPACITY = 16
+        private const val READ_TIMEOUT_MS = 100L
+        private const val PCM_BUFFER_SIZE = 4096
     }
 }
\ No newline at end of file
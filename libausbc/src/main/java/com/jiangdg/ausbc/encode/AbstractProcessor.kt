@@ -16,7 +16,9 @@
 package com.jiangdg.ausbc.encode
 
 import android.media.MediaCodec
+import android.media.MediaFormat
 import android.os.Build
+import android.os.Bundle
 import android.os.Handler
 import android.os.HandlerThread
 import android.os.Looper
@@ -41,9 +43,16 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
     protected var mMediaCodec: MediaCodec? = null
     private var mMp4Muxer: Mp4Muxer? = null
     private var mEncodeDataCb: IEncodeDataCallBack? = null
-    protected val mRawDataQueue: ConcurrentLinkedQueue<RawData> = ConcurrentLinkedQueue()
+    protected val mRawDataQueue: RawDataRing = RawDataRing(MAX_QUEUE_SIZE)
+    @Volatile
     protected var mBitRate: Int? = null
     private var isExit = true
+    private var mAsyncEncode = true
+    private var isAsyncMode = false
+    private var mLastPtsUs = 0L
+    private var mInFlightFrames = 0
+    // pts in us of the frames drawn to the input surface and not out of the codec yet
+    private val mSurfaceFrames = ConcurrentLinkedQueue<Long>()
     protected val mMainHandler: Handler by lazy {
         Handler(Looper.getMainLooper())
     }
@@ -56,6 +65,56 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
         MediaCodec.BufferInfo()
     }
 
+    private val mInputScheduler: AsyncInputScheduler<RawData> by lazy {
+        AsyncInputScheduler(::pollRawData) { index, rawData ->
+            try {
+                val codec = mMediaCodec ?: return@AsyncInputScheduler false
+                queueFrame(codec, index, rawData)
+            } catch (e: Exception) {
+                Logger.e(TAG, "queue frame failed, video = ${isVideo}， err = ${e.localizedMessage}", e)
+                // the index was not queued, keep it for the next frame
+                false
+            } finally {
+                recycleRawData(rawData)
+            }
+        }
+    }
+
+    private val mCodecCallback by lazy {
+        object : MediaCodec.Callback() {
+            override fun onInputBufferAvailable(codec: MediaCodec, index: Int) {
+                // callbacks of a released codec may still be in the queue
+                if (codec !== mMediaCodec || !isEncoding()) {
+                    return
+                }
+                mInputScheduler.onInputBufferAvailable(index)
+            }
+
+            override fun onOutputBufferAvailable(
+                codec: MediaCodec,
+                index: Int,
+                info: MediaCodec.BufferInfo
+            ) {
+                if (codec !== mMediaCodec) {
+                    return
+                }
+                drainOutputBuffer(codec, index, info)
+            }
+
+            override fun onOutputFormatChanged(codec: MediaCodec, format: MediaFormat) {
+                if (codec !== mMediaCodec) {
+                    return
+                }
+                Logger.i(TAG, "addTracker is video = $isVideo")
+                mMp4Muxer?.addTracker(format, isVideo)
+            }
+
+            override fun onError(codec: MediaCodec, e: MediaCodec.CodecException) {
+                Logger.e(TAG, "encode failed, video = ${isVideo}， err = ${e.localizedMessage}", e)
+            }
+        }
+    }
+
     /**
      * Start encode
      *
@@ -72,6 +131,11 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
                 MSG_STOP -> {
                     handleStopEncode()
                 }
+                MSG_FRAME -> {
+                    if (isAsyncMode && isEncoding()) {
+                        mInputScheduler.onFrameAvailable()
+                    }
+                }
             }
             true
         }
@@ -84,6 +148,8 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
      */
     fun stopEncode() {
         isExit = true
+        Logger.i(TAG, "stop encode, video = $isVideo, frames = ${mRawDataQueue.getOfferedCount()}, " +
+                "dropped = ${mRawDataQueue.getDroppedCount()}")
         mEncodeHandler?.obtainMessage(MSG_STOP)?.sendToTarget()
         mEncodeThread?.quitSafely()
         mEncodeThread = null
@@ -93,14 +159,48 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
     /**
      * Update bit rate for encode audio or video
      *
+     * A running video encoder takes the new bit rate at once, otherwise the encoder is restarted.
+     *
      * @param bitRate bps
      */
     fun updateBitRate(bitRate: Int) {
         this.mBitRate = bitRate
+        if (isEncoding() && setEncodeBitRate(bitRate)) {
+            return
+        }
         mEncodeHandler?.obtainMessage(MSG_STOP)?.sendToTarget()
         mEncodeHandler?.obtainMessage(MSG_START)?.sendToTarget()
     }
 
+    /**
+     * Request a sync frame from the running video encoder
+     *
+     * @return false if not encoding video or the codec rejected it
+     */
+    fun requestKeyFrame(): Boolean {
+        if (! isVideo || ! isEncoding()) {
+            return false
+        }
+        return setCodecParameter(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0)
+    }
+
+    /**
+     * Set async encode, it takes effect on the next start
+     *
+     * Use MediaCodec callbacks on the encode thread instead of polling the codec.
+     * Falls back to the polling loop below Android 6.0 or when the codec rejects it.
+     *
+     * @param enable default is true
+     */
+    fun setAsyncEncode(enable: Boolean) {
+        this.mAsyncEncode = enable
+    }
+
+    /**
+     * Is async mode, true if the running codec is driven by callbacks
+     */
+    fun isAsyncMode() = isAsyncMode
+
     /**
      * se encode data call back
      *
@@ -128,21 +228,72 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
         } catch (e: Exception) {
             e.printStackTrace()
         }
+        // so the record starts with a key frame soon
+        requestKeyFrame()
+    }
+
+    /**
+     * Set what to do with frames put while the queue is full
+     *
+     * @param policy default is [RawDataRing.DropPolicy.DROP_OLDEST]
+     * @param blockTimeoutMs max wait time of [RawDataRing.DropPolicy.BLOCK]
+     */
+    fun setDropPolicy(
+        policy: RawDataRing.DropPolicy,
+        blockTimeoutMs: Long = RawDataRing.DEFAULT_BLOCK_TIMEOUT_MS
+    ) {
+        mRawDataQueue.setDropPolicy(policy, blockTimeoutMs)
     }
 
     /**
-     * Put raw data
+     * Get dropped frame count
      *
-     * @param data media data, pcm or yuv
+     * @return frames dropped by the drop policy since created
+     */
+    fun getDroppedFrameCount() = mRawDataQueue.getDroppedCount()
+
+    /**
+     * Put raw data, the data is copied so the array can be reused after it returns
+     *
+     * @param data media data, pcm or yuv. Without [RawData.timestampNs] it is stamped now.
      */
     fun putRawData(data: RawData) {
         if (! mEncodeState.get()) {
             return
         }
-        if (mRawDataQueue.size >= MAX_QUEUE_SIZE) {
-            mRawDataQueue.poll()
+        val timestampNs = if (data.timestampNs > 0L) data.timestampNs else System.nanoTime()
+        if (mRawDataQueue.offer(data.data, data.size, timestampNs)) {
+            notifyFrameAvailable()
+        }
+    }
+
+    /**
+     * Put raw data, copied from position to limit of the buffer
+     *
+     * @param buffer media data, pcm or yuv
+     * @param timestampNs capture time in the time base of System.nanoTime
+     */
+    fun putRawData(buffer: ByteBuffer, timestampNs: Long = System.nanoTime()) {
+        if (! mEncodeState.get()) {
+            return
+        }
+        if (mRawDataQueue.offer(buffer, timestampNs)) {
+            notifyFrameAvailable()
+        }
+    }
+
+    /**
+     * Wake the encode thread up for new frames, needed only if [pollRawData] is overridden
+     */
+    protected fun notifyFrameAvailable() {
+        if (isAsyncMode) {
+            // one pending message is enough, it queues all frames an input buffer is free for
+            mEncodeHandler?.let { handler ->
+                if (! handler.hasMessages(MSG_FRAME)) {
+                    handler.sendEmptyMessage(MSG_FRAME)
+                }
+            }
         }
-        mRawDataQueue.offer(data)
     }
 
     /**
@@ -171,19 +322,147 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
      * Get presentation time
      *
      * @param bufferSize buffer size
+     * @param timestampNs capture time of the data in the time base of System.nanoTime
      * @return presentation time in us
      */
-    protected abstract fun getPTSUs(bufferSize: Int): Long
+    protected abstract fun getPTSUs(bufferSize: Int, timestampNs: Long): Long
+
+    /**
+     * Set the bit rate of the running video encoder, without restarting it
+     *
+     * @param bitRate bps
+     * @return false if not video or the codec rejected it
+     */
+    protected fun setEncodeBitRate(bitRate: Int): Boolean {
+        if (! isVideo) {
+            return false
+        }
+        return setCodecParameter(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate)
+    }
+
+    private fun setCodecParameter(key: String, value: Int): Boolean {
+        val codec = mMediaCodec ?: return false
+        return try {
+            codec.setParameters(Bundle().apply {
+                putInt(key, value)
+            })
+            true
+        } catch (e: Exception) {
+            Logger.w(TAG, "set codec parameter $key failed, video = $isVideo", e)
+            false
+        }
+    }
+
+    /**
+     * Count a frame drawn to the input surface of the codec, see [getBacklog]
+     *
+     * Surface input doesn't go through the processor, the render calls this on its thread
+     * after each frame it draws.
+     *
+     * @param timestampNs presentation time given to the input surface
+     */
+    fun onSurfaceFrameDrawn(timestampNs: Long) {
+        if (! isEncoding()) {
+            return
+        }
+        mSurfaceFrames.offer(timestampNs / 1000L)
+    }
+
+    /**
+     * Frames waiting in the raw data queue plus the frames queued to the codec and not encoded yet
+     *
+     * With surface input, the frames drawn to the surface, see [onSurfaceFrameDrawn], and not
+     * out of the codec yet.
+     */
+    protected fun getBacklog() = mRawDataQueue.size() + mInFlightFrames + mSurfaceFrames.size
+
+    /**
+     * Called on the encode thread each time a frame is queued to the codec or comes out encoded
+     *
+     * @param backlog see [getBacklog]
+     */
+    protected open fun onBacklogChanged(backlog: Int) {}
+
+    /**
+     * Poll the next frame to encode, on the encode thread
+     *
+     * @return null if none, give it back by [recycleRawData]
+     */
+    protected open fun pollRawData(): RawData? = mRawDataQueue.poll()
+
+    /**
+     * Give back a frame got by [pollRawData]
+     */
+    protected open fun recycleRawData(rawData: RawData) {
+        mRawDataQueue.recycle(rawData)
+    }
+
+    /**
+     * Called on the encode thread before a frame is queued to the codec
+     *
+     * @param rawData frame polled from the raw data queue
+     * @return true to drop the frame
+     */
+    protected open fun shouldSkipFrame(rawData: RawData) = false
 
     /**
      * Is lower lollipop
      */
     private fun isLowerLollipop() = Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
 
+    /**
+     * MediaCodec.setCallback with a handler is available from Android 6.0
+     */
+    private fun isSupportAsyncMode() = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+
+    /**
+     * Configure encoder, replaces MediaCodec.configure in [handleStartEncode]
+     *
+     * Sets the codec callback first when async encode is enabled and supported,
+     * see [setAsyncEncode].
+     *
+     * @param codec created encoder
+     * @param format media format
+     */
+    protected fun configureEncoder(codec: MediaCodec, format: MediaFormat) {
+        isAsyncMode = false
+        mInputScheduler.reset()
+        mLastPtsUs = 0L
+        mInFlightFrames = 0
+        mSurfaceFrames.clear()
+        if (mAsyncEncode && isSupportAsyncMode()) {
+            try {
+                codec.setCallback(mCodecCallback, mEncodeHandler)
+                isAsyncMode = true
+            } catch (e: Exception) {
+                Logger.w(TAG, "set codec callback failed, use sync mode, video = $isVideo", e)
+            }
+        }
+        try {
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+        } catch (e: Exception) {
+            if (! isAsyncMode) {
+                throw e
+            }
+            Logger.w(TAG, "configure async codec failed, use sync mode, video = $isVideo", e)
+            isAsyncMode = false
+            codec.reset()
+            codec.setCallback(null)
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+        }
+        Logger.i(TAG, "configure encoder, video = $isVideo, async = $isAsyncMode")
+    }
+
     /**
      * Do encode data
+     *
+     * In async mode it returns at once, frames and encoded data are handled
+     * by the codec callbacks on the encode thread.
      */
     protected fun doEncodeData() {
+        if (isAsyncMode) {
+            return
+        }
         while (isEncoding()) {
             try {
                 queueFrameIfNeed()
@@ -200,32 +479,7 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
                                 if (outputIndex < 0) {
                                     return@let
                                 }
-                                if (mStartTimeStamps == 0L) {
-                                    mStartTimeStamps = mBufferInfo.presentationTimeUs / 1000L
-                                }
-                                try {
-                                    val outputBuffer = if (isLowerLollipop()) {
-                                        codec.outputBuffers[outputIndex]
-                                    } else {
-                                        codec.getOutputBuffer(outputIndex)
-                                    }
-                                    outputBuffer ?: return@let
-                                    processOutputData(outputBuffer, mBufferInfo)?.apply {
-                                        mEncodeDataCb?.onEncodeData(
-                                            first,
-                                            outputBuffer,
-                                            mBufferInfo.offset,
-                                            mBufferInfo.size,
-                                            mBufferInfo.presentationTimeUs / 1000L - mStartTimeStamps
-                                        )
-                                    }
-                                    // muxer data
-                                    mMp4Muxer?.pumpStream(outputBuffer, mBufferInfo, isVideo)
-                                } catch (e: Exception) {
-                                    e.printStackTrace()
-                                } finally {
-                                    codec.releaseOutputBuffer(outputIndex, false)
-                                }
+                                drainOutputBuffer(codec, outputIndex, mBufferInfo)
                             }
                         }
                     }
@@ -236,31 +490,114 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
         }
     }
 
-    private fun queueFrameIfNeed() {
-        mMediaCodec?.let { codec ->
-            if (mRawDataQueue.isEmpty()) {
-                return@let
-            }
-            val rawData = mRawDataQueue.poll() ?: return@let
-            val data: ByteArray = rawData.data
-            if (processInputData(data) == null) {
-                return@let
+    private fun drainOutputBuffer(codec: MediaCodec, outputIndex: Int, bufferInfo: MediaCodec.BufferInfo) {
+        // the muxer rebases it
+        val ptsUs = bufferInfo.presentationTimeUs
+        if (mStartTimeStamps == 0L) {
+            mStartTimeStamps = bufferInfo.presentationTimeUs / 1000L
+        }
+        try {
+            val outputBuffer = if (isLowerLollipop()) {
+                codec.outputBuffers[outputIndex]
+            } else {
+                codec.getOutputBuffer(outputIndex)
             }
-            val inputIndex = codec.dequeueInputBuffer(TIMES_OUT_US)
-            if (inputIndex < 0) {
-                return@let
+            outputBuffer ?: return
+            processOutputData(outputBuffer, bufferInfo)?.apply {
+                mEncodeDataCb?.onEncodeData(
+                    first,
+                    outputBuffer,
+                    bufferInfo.offset,
+                    bufferInfo.size,
+                    bufferInfo.presentationTimeUs / 1000L - mStartTimeStamps
+                )
             }
-            val inputBuffer = if (isLowerLollipop()) {
-                codec.inputBuffers[inputIndex]
-            } else {
-                codec.getInputBuffer(inputIndex)
+            // muxer data
+            mMp4Muxer?.pumpStream(outputBuffer, bufferInfo, isVideo)
+        } catch (e: Exception) {
+            e.printStackTrace()
+        } finally {
+            codec.releaseOutputBuffer(outputIndex, false)
+        }
+        if (bufferInfo.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0) {
+            return
+        }
+        if (mInFlightFrames > 0) {
+            mInFlightFrames--
+        }
+        // frames the codec dropped from the surface leave with the next one out
+        var surfaceFrame = mSurfaceFrames.peek()
+        while (surfaceFrame != null && surfaceFrame <= ptsUs) {
+            mSurfaceFrames.poll()
+            surfaceFrame = mSurfaceFrames.peek()
+        }
+        onBacklogChanged(getBacklog())
+    }
+
+    private fun queueFrameIfNeed() {
+        mMediaCodec?.let { codec ->
+            val rawData = pollRawData() ?: return@let
+            try {
+                if (shouldSkipFrame(rawData) || processInputData(rawData.data) == null) {
+                    return@let
+                }
+                val inputIndex = codec.dequeueInputBuffer(TIMES_OUT_US)
+                if (inputIndex < 0) {
+                    return@let
+                }
+                fillAndQueueInput(codec, inputIndex, rawData)
+            } finally {
+                recycleRawData(rawData)
             }
-            inputBuffer?.clear()
-            inputBuffer?.put(data)
-            codec.queueInputBuffer(inputIndex, 0, data.size, getPTSUs(data.size), 0)
         }
     }
 
+    /**
+     * Queue frame into the input buffer handed out in async mode
+     *
+     * @return false if the frame was skipped or rejected by [processInputData]
+     */
+    private fun queueFrame(codec: MediaCodec, inputIndex: Int, rawData: RawData): Boolean {
+        if (shouldSkipFrame(rawData) || processInputData(rawData.data) == null) {
+            return false
+        }
+        fillAndQueueInput(codec, inputIndex, rawData)
+        return true
+    }
+
+    private fun fillAndQueueInput(codec: MediaCodec, inputIndex: Int, rawData: RawData) {
+        val data = rawData.data
+        val inputBuffer = if (isLowerLollipop()) {
+            codec.inputBuffers[inputIndex]
+        } else {
+            codec.getInputBuffer(inputIndex)
+        }
+        inputBuffer?.clear()
+        val size = inputBuffer?.let { fillInputBuffer(data, it) } ?: 0
+        var ptsUs = getPTSUs(size, rawData.timestampNs)
+        // MediaMuxer needs increasing timestamps, e.g. a frame captured before the previous one
+        if (ptsUs <= mLastPtsUs) {
+            ptsUs = mLastPtsUs + 1
+        }
+        mLastPtsUs = ptsUs
+        codec.queueInputBuffer(inputIndex, 0, size, ptsUs, 0)
+        mInFlightFrames++
+        onBacklogChanged(getBacklog())
+    }
+
+    /**
+     * Copy the data returned by [processInputData] into the codec input buffer,
+     * override it to convert straight into the input buffer instead
+     *
+     * @param data raw data accepted by [processInputData]
+     * @param inputBuffer cleared codec input buffer
+     * @return bytes written
+     */
+    protected open fun fillInputBuffer(data: ByteArray, inputBuffer: ByteBuffer): Int {
+        inputBuffer.put(data)
+        return data.size
+    }
+
     protected abstract fun processOutputData(
         encodeData: ByteBuffer,
         bufferInfo: MediaCodec.BufferInfo
@@ -272,6 +609,7 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
         private const val TAG = "AbstractProcessor"
         private const val MSG_START = 1
         private const val MSG_STOP = 2
+        private const val MSG_FRAME = 3
         private const val TIMES_OUT_US = 10000L
 
         const val MAX_QUEUE_SIZE = 5
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode
+
+import java.util.*
+
+/**
+ * Pairs the input buffers handed out by MediaCodec in asynchronous mode with pending raw frames
+ *
+ * Input buffer indexes that arrive while no frame is pending are kept until the next frame,
+ * frames that arrive while no input buffer is free stay in the raw data queue. So a frame
+ * is queued to the codec as soon as both are there, without polling.
+ *
+ * Not thread safe, all calls must be made on the encode thread. Only the raw data queue
+ * is shared with the producer.
+ *
+ * @param T raw frame type
+ * @property poll poll the oldest frame waiting for an input buffer, null if none
+ * @property feed fill the input buffer with the frame and queue it,
+ * return false if the frame was rejected and the buffer is still free
+ */
+class AsyncInputScheduler<T>(
+    private val poll: () -> T?,
+    private val feed: (index: Int, frame: T) -> Boolean
+) {
+    private val mFreeInputs: ArrayDeque<Int> = ArrayDeque()
+
+    /**
+     * Input buffer available
+     *
+     * @param index input buffer index of the codec
+     */
+    fun onInputBufferAvailable(index: Int) {
+        mFreeInputs.offer(index)
+        drain()
+    }
+
+    /**
+     * Frame available, called after the frame was added to the raw data queue
+     */
+    fun onFrameAvailable() {
+        drain()
+    }
+
+    /**
+     * Forget the free input buffers, must be called when the codec is stopped or replaced
+     */
+    fun reset() {
+        mFreeInputs.clear()
+    }
+
+    /**
+     * Free input count
+     */
+    fun freeInputCount() = mFreeInputs.size
+
+    private fun drain() {
+        while (mFreeInputs.isNotEmpty()) {
+            val frame = poll() ?: return
+            if (feed(mFreeInputs.peek()!!, frame)) {
+                mFreeInputs.poll()
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode
+
+import android.content.Context
+import android.media.MediaCodecInfo
+import android.media.MediaCodecList
+import android.os.Build
+import com.jiangdg.ausbc.encode.bean.EncoderInfo
+import com.jiangdg.ausbc.utils.Logger
+import java.io.File
+
+/**
+ * Encoder capabilities of the device
+ *
+ * Walking the codec list is slow, so it is probed once and kept in an [EncoderRegistry],
+ * persisted to the cache dir after [init].
+ */
+object EncoderCapabilities {
+    private const val TAG = "EncoderCapabilities"
+    private const val CACHE_FILE = "encoder_capabilities"
+
+    const val MIME_AVC = "video/avc"
+    const val MIME_HEVC = "video/hevc"
+
+    @Volatile
+    private var mRegistry = EncoderRegistry(::probeCodecList)
+    @Volatile
+    private var isInit = false
+
+    /**
+     * Persist the capabilities to the cache dir of the app
+     *
+     * @param context context
+     */
+    fun init(context: Context) {
+        if (isInit) {
+            return
+        }
+        isInit = true
+        mRegistry = EncoderRegistry(::probeCodecList, File(context.cacheDir, CACHE_FILE), Build.FINGERPRINT)
+    }
+
+    /**
+     * Is there an encoder for the mime type
+     *
+     * @param mime e.g. [MIME_HEVC]
+     * @return true if supported
+     */
+    fun isEncoderSupported(mime: String) = mRegistry.getEncoders(mime).isNotEmpty()
+
+    /**
+     * Get encoders for the mime type
+     *
+     * @param mime e.g. [MIME_HEVC]
+     * @return encoders in the order of the codec list
+     */
+    fun getEncoders(mime: String) = mRegistry.getEncoders(mime)
+
+    /**
+     * Select the fastest encoder for the request, see [EncoderRegistry.select]
+     *
+     * @param mime mime type
+     * @param width frame width
+     * @param height frame height
+     * @param frameRate target frame rate
+     * @param colorFormats accepted input color formats in order of preference, empty for surface input
+     * @return null if no encoder supports it
+     */
+    fun selectEncoder(
+        mime: String,
+        width: Int,
+        height: Int,
+        frameRate: Int,
+        colorFormats: List<Int>
+    ): EncoderInfo? {
+        return mRegistry.select(mime, width, height, frameRate, colorFormats).also { info ->
+            Logger.i(TAG, "select encoder, mime = $mime, ${width}x$height@$frameRate, info = $info")
+        }
+    }
+
+    private fun probeCodecList(): List<EncoderInfo> {
+        val start = System.currentTimeMillis()
+        val encoders = ArrayList<EncoderInfo>()
+        try {
+            getCodecInfos().filter { it.isEncoder }.forEach { info ->
+                info.supportedTypes.filter { it.startsWith("video/") }.forEach { mime ->
+                    probeEncoder(info, mime)?.let {
+                        encoders.add(it)
+                    }
+                }
+            }
+        } catch (e: Exception) {
+            Logger.e(TAG, "probe codec list failed", e)
+        }
+        Logger.i(TAG, "probe codec list, ${encoders.size} video encoders, cost ${System.currentTimeMillis() - start}ms")
+        return encoders
+    }
+
+    private fun probeEncoder(info: MediaCodecInfo, mime: String): EncoderInfo? {
+        return try {
+            val caps = info.getCapabilitiesForType(mime)
+            var maxWidth = 0
+            var maxHeight = 0
+            var maxFrameRate = 0
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                caps.videoCapabilities?.let { video ->
+                    maxWidth = video.supportedWidths.upper
+                    maxHeight = video.supportedHeights.upper
+                    maxFrameRate = video.supportedFrameRates.upper
+                }
+            }
+            EncoderInfo(
+                info.name,
+                mime.lowercase(),
+                isHardware(info),
+                caps.colorFormats.toList(),
+                caps.profileLevels.map { it.profile }.distinct(),
+                maxWidth,
+                maxHeight,
+                maxFrameRate
+            )
+        } catch (e: Exception) {
+            Logger.w(TAG, "probe encoder ${info.name} failed, mime = $mime", e)
+            null
+        }
+    }
+
+    private fun isHardware(info: MediaCodecInfo): Boolean {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated
+        }
+        val name = info.name.lowercase()
+        return !(name.startsWith("omx.google.") || name.startsWith("c2.android.") || name.contains(".sw."))
+    }
+
+    private fun getCodecInfos(): List<MediaCodecInfo> {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return MediaCodecList(MediaCodecList.REGULAR_CODECS).codecInfos.toList()
+        }
+        return (0 until MediaCodecList.getCodecCount()).map { MediaCodecList.getCodecInfoAt(it) }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode
+
+import com.jiangdg.ausbc.encode.bean.EncoderInfo
+import java.io.File
+
+/**
+ * Encoder capability registry
+ *
+ * The codec list is probed once and written to [cacheFile], later processes read it back
+ * instead of walking MediaCodecList again. The file is dropped when [fingerprint] changes,
+ * e.g. after a system update.
+ *
+ * Thread safe.
+ *
+ * @property source probe the encoders of the device, a fake list in tests
+ * @property cacheFile capability cache, null to keep it in memory only
+ * @property fingerprint build fingerprint the cache belongs to
+ */
+class EncoderRegistry(
+    private val source: () -> List<EncoderInfo>,
+    private val cacheFile: File? = null,
+    private val fingerprint: String = ""
+) {
+    @Volatile
+    private var mEncoders: List<EncoderInfo>? = null
+    private var mProbeCount = 0
+
+    /**
+     * Get all encoders, in the order of the codec list
+     */
+    fun getEncoders(): List<EncoderInfo> {
+        mEncoders?.let {
+            return it
+        }
+        return synchronized(this) {
+            mEncoders ?: (load() ?: probe()).also {
+                mEncoders = it
+            }
+        }
+    }
+
+    /**
+     * Get encoders of the mime type
+     */
+    fun getEncoders(mime: String) = getEncoders().filter { it.mime.equals(mime, true) }
+
+    /**
+     * Select the fastest encoder for the request
+     *
+     * Hardware encoders come first, then encoders that reach the frame rate, then the
+     * preferred color format, then the highest max frame rate. Ties keep the codec list
+     * order, which is the vendor's preference.
+     *
+     * @param mime mime type
+     * @param width frame width
+     * @param height frame height
+     * @param frameRate target frame rate
+     * @param colorFormats accepted input color formats in order of preference, empty for surface input
+     * @return null if no encoder supports the request
+     */
+    fun select(mime: String, width: Int, height: Int, frameRate: Int, colorFormats: List<Int>): EncoderInfo? {
+        return getEncoders(mime).filter { info ->
+            info.isSizeSupported(width, height) && (colorFormats.isEmpty() || info.pickColorFormat(colorFormats) != null)
+        }.sortedWith(compareBy(
+            { !it.isHardware },
+            { !it.isFrameRateSupported(frameRate) },
+            { info -> colorFormats.indexOfFirst { it in info.colorFormats } },
+            { -it.maxFrameRate }
+        )).firstOrNull()
+    }
+
+    /**
+     * Times the source was probed, 0 if served from the cache file
+     */
+    fun getProbeCount() = mProbeCount
+
+    private fun probe(): List<EncoderInfo> {
+        mProbeCount++
+        return source().also {
+            save(it)
+        }
+    }
+
+    private fun load(): List<EncoderInfo>? {
+        val file = cacheFile ?: return null
+        return try {
+            if (! file.exists()) {
+                return null
+            }
+            val lines = file.readLines()
+            if (lines.firstOrNull() != header()) {
+                return null
+            }
+            lines.drop(1).filter { it.isNotEmpty() }.map { line ->
+                EncoderInfo.fromLine(line) ?: return null
+            }
+        } catch (e: Exception) {
+            null
+        }
+    }
+
+    private fun save(encoders: List<EncoderInfo>) {
+        val file = cacheFile ?: return
+        // probe failed, try again next time
+        if (encoders.isEmpty()) {
+            return
+        }
+        try {
+            // write aside and rename, a reader never sees half a file
+            val tmp = File(file.path + ".tmp")
+            tmp.writeText((listOf(header()) + encoders.map { it.toLine() }).joinToString("\n"))
+            if (! tmp.renameTo(file)) {
+                tmp.delete()
+            }
+        } catch (e: Exception) {
+            // cache only
+        }
+    }
+
+    private fun header() = "$VERSION\t$fingerprint"
+
+    companion object {
+        private const val VERSION = "encoders-v1"
+    }
+}
@@ -18,9 +18,16 @@ package com.jiangdg.ausbc.encode
 import android.media.MediaCodec
 import android.media.MediaCodecInfo
 import android.media.MediaFormat
+import android.os.SystemClock
 import android.view.Surface
+import androidx.lifecycle.Observer
 import com.jiangdg.ausbc.callback.IEncodeDataCallBack
+import com.jiangdg.ausbc.encode.bean.EncoderInfo
+import com.jiangdg.ausbc.encode.bean.RawData
+import com.jiangdg.ausbc.render.RenderManager
 import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.bus.BusKey
+import com.jiangdg.ausbc.utils.bus.EventBus
 import com.jiangdg.natives.YUVUtils
 import java.lang.Exception
 import java.nio.ByteBuffer
@@ -28,41 +35,58 @@ import java.nio.ByteBuffer
 /**
  * Encode h264 by MediaCodec
  *
+ * The bit rate and frame rate adapt to the encoder backlog while encoding, see [RateController]
+ * and [setAdaptiveRate]. The frame rate never exceeds the camera frame rate measured by the render.
+ *
  * @property width yuv width
  * @property height yuv height
  * @property gLESRender rendered by opengl flag
  * @property isPortrait phone direction capture
  * @author Created by jiangdg on 2022/2/10
  */
-class H264EncodeProcessor(
+open class H264EncodeProcessor(
     val width: Int,
     val height: Int,
     private val gLESRender: Boolean = false,
     private val isPortrait: Boolean = true
 ) : AbstractProcessor(true) {
     private var mReadyListener: OnEncodeReadyListener? = null
+    private var mKeyFrameInterval = KEY_FRAME_INTERVAL
+    private var mColorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar
+    @Volatile
+    private var mAdaptiveRate = true
+    private val mRateController = RateController(0, FRAME_RATE)
+    private val mFrameRateObserver = Observer<Int> { fps ->
+        mRateController.onCameraFrameRate(fps)
+    }
 
     override fun getThreadName(): String = TAG
 
     override fun handleStartEncode() {
         try {
-            val mediaFormat = MediaFormat.createVideoFormat(MIME, width, height)
-            mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE)
-            mediaFormat.setInteger(
-                MediaFormat.KEY_BIT_RATE,
-                mBitRate ?: getEncodeBitrate(width, height)
-            )
-            mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEY_FRAME_INTERVAL)
-            mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, getSupportColorFormat())
-            mMediaCodec = MediaCodec.createEncoderByType(MIME)
-            mMediaCodec?.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+            val bitRate = mBitRate ?: getEncodeBitrate(width, height)
+            mRateController.setMaxBitRate(bitRate)
+            mRateController.reset()
+            mMainHandler.post {
+                EventBus.with<Int>(BusKey.KEY_FRAME_RATE).observeForever(mFrameRateObserver)
+            }
+            val encoder = EncoderCapabilities.selectEncoder(getMimeType(), width, height,
+                mRateController.frameRate, getInputColorFormats())
+            mColorFormat = getSupportColorFormat(encoder)
+            val mediaFormat = MediaFormat.createVideoFormat(getMimeType(), width, height)
+            mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mRateController.frameRate)
+            mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate)
+            mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mKeyFrameInterval)
+            mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, mColorFormat)
+            mMediaCodec = encoder?.let { createEncoderByName(it.name) } ?: MediaCodec.createEncoderByType(getMimeType())
+            mMediaCodec?.let { configureEncoder(it, mediaFormat) }
             if (gLESRender) {
                 mReadyListener?.onReady(mMediaCodec?.createInputSurface())
             }
             mMediaCodec?.start()
             mEncodeState.set(true)
             doEncodeData()
-            Logger.i(TAG, "init h264 media codec success, bit = ")
+            Logger.i(TAG, "init ${getMimeType()} media codec success, bit = $bitRate, fps = ${mRateController.frameRate}")
 
         } catch (e: Exception) {
             Logger.e(TAG, "start h264 media codec failed, err = ${e.localizedMessage}", e)
@@ -72,9 +96,12 @@ class H264EncodeProcessor(
     override fun handleStopEncode() {
         try {
             mEncodeState.set(false)
+            mMainHandler.post {
+                EventBus.with<Int>(BusKey.KEY_FRAME_RATE).removeObserver(mFrameRateObserver)
+            }
             mMediaCodec?.stop()
             mMediaCodec?.release()
-            Logger.i(TAG, "release h264 media codec success.")
+            Logger.i(TAG, "release h264 media codec success, rate: $mRateController")
         } catch (e: Exception) {
             Logger.e(TAG, "Stop mediaCodec failed, err = ${e.localizedMessage}", e)
         } finally {
@@ -83,7 +110,44 @@ class H264EncodeProcessor(
         }
     }
 
-    override fun getPTSUs(bufferSize: Int): Long = System.nanoTime() / 1000L
+    override fun getPTSUs(bufferSize: Int, timestampNs: Long): Long = timestampNs / 1000L
+
+    /**
+     * Get mime type of the encoder
+     */
+    protected open fun getMimeType(): String = MIME
+
+    override fun onBacklogChanged(backlog: Int) {
+        if (! mAdaptiveRate) {
+            return
+        }
+        // updateBitRate changed the max bit rate
+        val maxBitRate = mBitRate ?: getEncodeBitrate(width, height)
+        if (maxBitRate != mRateController.getMaxBitRate()) {
+            mRateController.setMaxBitRate(maxBitRate)
+        }
+        if (mRateController.update(SystemClock.elapsedRealtime(), backlog)) {
+            setEncodeBitRate(mRateController.bitRate)
+            Logger.i(TAG, "encoder backlog = $backlog, $mRateController")
+        }
+    }
+
+    override fun shouldSkipFrame(rawData: RawData): Boolean {
+        return ! gLESRender && mAdaptiveRate && mRateController.shouldSkipFrame(rawData.timestampNs)
+    }
+
+    /**
+     * Should the render draw the frame to the input surface
+     *
+     * Frames drawn to the surface can't be skipped by the processor, so with surface input the
+     * render asks before each draw, see [RenderManager.startRenderCodec]. Called on the render thread.
+     *
+     * @param timestampNs presentation time of the frame
+     * @return false to leave the frame out to lower the frame rate
+     */
+    fun shouldDrawSurfaceFrame(timestampNs: Long): Boolean {
+        return ! (gLESRender && mAdaptiveRate && isEncoding() && mRateController.shouldSkipFrame(timestampNs))
+    }
 
     override fun processOutputData(
         encodeData: ByteBuffer,
@@ -111,14 +175,32 @@ class H264EncodeProcessor(
                 if (size != width * height * 3 /2) {
                     return null
                 }
-                if (isPortrait) {
-                    YUVUtils.nativeRotateNV21(data,width, height, 90)
-                }
-                YUVUtils.nv21ToYuv420sp(data, width, height)
             }
         }
     }
 
+    override fun fillInputBuffer(data: ByteArray, inputBuffer: ByteBuffer): Int {
+        // rotate and convert to the color format of the encoder straight into the codec buffer
+        val degree = if (isPortrait) 90 else 0
+        val isPlanar = mColorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar
+        if (inputBuffer.isDirect) {
+            val format = if (isPlanar) YUVUtils.FORMAT_I420 else YUVUtils.FORMAT_NV12
+            val size = YUVUtils.nativeTransformNV21(data, inputBuffer, width, height, degree, false, format)
+            if (size > 0) {
+                return size
+            }
+        }
+        if (isPortrait) {
+            YUVUtils.nativeRotateNV21(data, width, height, degree)
+        }
+        if (isPlanar) {
+            YUVUtils.nv21ToYuv420p(data, width, height)
+        } else {
+            YUVUtils.nv21ToYuv420sp(data, width, height)
+        }
+        return super.fillInputBuffer(data, inputBuffer)
+    }
+
     /**
      * Set on encode ready listener
      *
@@ -128,14 +210,60 @@ class H264EncodeProcessor(
         this.mReadyListener = listener
     }
 
-    private fun getSupportColorFormat(): Int {
+    /**
+     * Set adaptive rate
+     *
+     * Lower the bit rate and then the frame rate while the encoder can't keep up,
+     * and step back up once it does.
+     *
+     * @param enable default is true
+     */
+    fun setAdaptiveRate(enable: Boolean) {
+        this.mAdaptiveRate = enable
+    }
+
+    /**
+     * Set key frame interval, it takes effect on the next start
+     *
+     * Use [requestKeyFrame] to get one at once.
+     *
+     * @param seconds default is 1s
+     */
+    fun setKeyFrameInterval(seconds: Int) {
+        this.mKeyFrameInterval = seconds
+    }
+
+    /**
+     * Color formats accepted for buffer input in order of preference, empty for surface input
+     */
+    protected fun getInputColorFormats(): List<Int> {
+        if (gLESRender) {
+            return emptyList()
+        }
+        return listOf(
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar
+        )
+    }
+
+    private fun createEncoderByName(name: String): MediaCodec? {
+        return try {
+            MediaCodec.createByCodecName(name)
+        } catch (e: Exception) {
+            Logger.w(TAG, "create encoder $name failed, use the default one", e)
+            null
+        }
+    }
+
+    private fun getSupportColorFormat(encoder: EncoderInfo?): Int {
         if (gLESRender) {
             return MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface
         }
-        return MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar
+        return encoder?.pickColorFormat(getInputColorFormats())
+            ?: MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar
     }
 
-    private fun getEncodeBitrate(width: Int, height: Int): Int {
+    protected open fun getEncodeBitrate(width: Int, height: Int): Int {
         var bitRate = width * height * 20 * 3 * 0.07F
         if (width >= 1920 || height >= 1920) {
             bitRate *= 0.75F
@@ -172,7 +300,7 @@ class H264EncodeProcessor(
 
     companion object {
         private const val TAG = "H264EncodeProcessor"
-        private const val MIME = "video/avc"
+        private const val MIME = EncoderCapabilities.MIME_AVC
         private const val FRAME_RATE = 30
         private const val KEY_FRAME_INTERVAL = 1
     }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode
+
+import android.media.MediaCodec
+import android.os.Build
+import com.jiangdg.ausbc.callback.IEncodeDataCallBack
+import java.nio.ByteBuffer
+
+/**
+ * Encode h265 by MediaCodec
+ *
+ * Same input paths as [H264EncodeProcessor], surface or yuv buffers. Falls back to h264
+ * when the device has no hevc encoder for the size and input, or MediaMuxer can't mux
+ * hevc(below Android 7.0), see [isHevc].
+ *
+ * @param width yuv width
+ * @param height yuv height
+ * @param gLESRender rendered by opengl flag
+ * @param isPortrait phone direction capture
+ */
+class H265EncodeProcessor(
+    width: Int,
+    height: Int,
+    gLESRender: Boolean = false,
+    isPortrait: Boolean = true
+) : H264EncodeProcessor(width, height, gLESRender, isPortrait) {
+    private val isHevcSupported by lazy {
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.N &&
+                EncoderCapabilities.selectEncoder(MIME, width, height, FRAME_RATE, getInputColorFormats()) != null
+    }
+
+    override fun getThreadName(): String = TAG
+
+    override fun getMimeType(): String = if (isHevcSupported) MIME else super.getMimeType()
+
+    override fun getEncodeBitrate(width: Int, height: Int): Int {
+        val bitRate = super.getEncodeBitrate(width, height)
+        // about the same quality as h264 with less data
+        return if (isHevcSupported) (bitRate * HEVC_BIT_RATE_RATIO).toInt() else bitRate
+    }
+
+    override fun processOutputData(
+        encodeData: ByteBuffer,
+        bufferInfo: MediaCodec.BufferInfo
+    ): Pair<IEncodeDataCallBack.DataType, ByteBuffer> {
+        if (! isHevcSupported) {
+            return super.processOutputData(encodeData, bufferInfo)
+        }
+        val type = when {
+            bufferInfo.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0 -> {
+                IEncodeDataCallBack.DataType.H265_VPS
+            }
+            bufferInfo.flags and MediaCodec.BUFFER_FLAG_KEY_FRAME != 0 -> {
+                IEncodeDataCallBack.DataType.H265_KEY
+            }
+            else -> {
+                IEncodeDataCallBack.DataType.H265
+            }
+        }
+        return Pair(type, encodeData)
+    }
+
+    /**
+     * Is hevc, false if fell back to h264
+     */
+    fun isHevc() = isHevcSupported
+
+    companion object {
+        private const val TAG = "H265EncodeProcessor"
+        private const val MIME = EncoderCapabilities.MIME_HEVC
+        private const val HEVC_BIT_RATE_RATIO = 0.6F
+        private const val FRAME_RATE = 30
+    }
+}
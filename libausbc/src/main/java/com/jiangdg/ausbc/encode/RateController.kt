@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode
+
+/**
+ * Video rate control driven by the encoder backlog
+ *
+ * The backlog is the number of frames queued to the codec, or drawn to its input surface, but not
+ * encoded yet plus the frames waiting in the raw data queue. It grows when the encoder can't keep up, e.g. when the SoC
+ * is throttled. Every [CONTROL_INTERVAL_MS] the largest backlog seen is checked:
+ * - at or above [HIGH_BACKLOG] the bit rate is cut by a quarter, down to a quarter of
+ *   the max bit rate. When it stays high, the frame rate is lowered too by skipping frames.
+ * - at or below [LOW_BACKLOG] for [RECOVER_INTERVALS] intervals in a row, bit rate and
+ *   frame rate step back up to their max.
+ *
+ * The frame rate never exceeds the camera frame rate, see [onCameraFrameRate].
+ *
+ * Not thread safe, used on the encode thread except [onCameraFrameRate], and [shouldSkipFrame]
+ * which the render thread calls instead with surface input.
+ *
+ * @property maxBitRate configured bit rate in bps
+ * @property maxFrameRate configured frame rate
+ */
+class RateController(private var maxBitRate: Int, private val maxFrameRate: Int) {
+    private var mWindowStartMs = -1L
+    private var mWindowMaxBacklog = 0
+    private var mHighIntervals = 0
+    private var mLowIntervals = 0
+    private var mLastKeptNs = 0L
+    @Volatile
+    private var mCameraFrameRate = 0
+    @Volatile
+    private var mReducedFrameRate = maxFrameRate
+
+    /**
+     * Current target bit rate in bps
+     */
+    var bitRate: Int = maxBitRate
+        private set
+
+    /**
+     * Current target frame rate
+     */
+    val frameRate: Int
+        get() {
+            val camera = mCameraFrameRate
+            return if (camera in 1 until mReducedFrameRate) camera else mReducedFrameRate
+        }
+
+    /**
+     * Frames skipped to lower the frame rate
+     */
+    var skippedFrames = 0L
+        private set
+
+    /**
+     * Camera frame rate measured by the render, 0 if unknown
+     *
+     * @param fps frames per second
+     */
+    fun onCameraFrameRate(fps: Int) {
+        mCameraFrameRate = fps
+    }
+
+    /**
+     * Get camera frame rate
+     *
+     * @return last reported camera frame rate, 0 if unknown
+     */
+    fun getCameraFrameRate() = mCameraFrameRate
+
+    fun getMaxBitRate() = maxBitRate
+
+    /**
+     * Set max bit rate, the target bit rate restarts from it
+     *
+     * @param bitRate bps
+     */
+    fun setMaxBitRate(bitRate: Int) {
+        this.maxBitRate = bitRate
+        this.bitRate = bitRate
+        mHighIntervals = 0
+        mLowIntervals = 0
+    }
+
+    /**
+     * Sample the backlog, called for each encoded frame
+     *
+     * @param nowMs monotonic time in ms
+     * @param backlog frames queued but not encoded yet
+     * @return true if [bitRate] changed
+     */
+    fun update(nowMs: Long, backlog: Int): Boolean {
+        if (mWindowStartMs < 0L) {
+            mWindowStartMs = nowMs
+        }
+        if (backlog > mWindowMaxBacklog) {
+            mWindowMaxBacklog = backlog
+        }
+        if (nowMs - mWindowStartMs < CONTROL_INTERVAL_MS) {
+            return false
+        }
+        val lastBitRate = bitRate
+        when {
+            mWindowMaxBacklog >= HIGH_BACKLOG -> {
+                mLowIntervals = 0
+                bitRate = maxOf(maxBitRate / 4, bitRate * 3 / 4)
+                // lowering the bit rate alone did not help
+                if (++mHighIntervals >= 2) {
+                    mReducedFrameRate = maxOf(MIN_FRAME_RATE, frameRate * 3 / 4)
+                }
+            }
+            mWindowMaxBacklog <= LOW_BACKLOG -> {
+                mHighIntervals = 0
+                if (++mLowIntervals >= RECOVER_INTERVALS) {
+                    mLowIntervals = 0
+                    bitRate = minOf(maxBitRate, bitRate + maxBitRate / 8)
+                    mReducedFrameRate = minOf(maxFrameRate, mReducedFrameRate + 5)
+                }
+            }
+            else -> {
+                mHighIntervals = 0
+                mLowIntervals = 0
+            }
+        }
+        mWindowStartMs = nowMs
+        mWindowMaxBacklog = 0
+        return bitRate != lastBitRate
+    }
+
+    /**
+     * Skip frames to keep [frameRate], frames closer than 90% of the frame interval
+     * to the last kept one are skipped
+     *
+     * @param timestampNs capture time of the frame
+     * @return true if the frame should not be encoded
+     */
+    fun shouldSkipFrame(timestampNs: Long): Boolean {
+        val fps = frameRate
+        val inputFps = mCameraFrameRate.takeIf { it > 0 } ?: maxFrameRate
+        if (fps >= inputFps) {
+            mLastKeptNs = timestampNs
+            return false
+        }
+        val minIntervalNs = 900000000L / fps
+        if (mLastKeptNs != 0L && timestampNs - mLastKeptNs in 0 until minIntervalNs) {
+            skippedFrames++
+            return true
+        }
+        mLastKeptNs = timestampNs
+        return false
+    }
+
+    fun reset() {
+        mWindowStartMs = -1L
+        mWindowMaxBacklog = 0
+        mHighIntervals = 0
+        mLowIntervals = 0
+        mLastKeptNs = 0L
+        mReducedFrameRate = maxFrameRate
+        bitRate = maxBitRate
+    }
+
+    override fun toString(): String {
+        return "bitRate = $bitRate/$maxBitRate, frameRate = $frameRate/$maxFrameRate, " +
+                "camera = $mCameraFrameRate, skipped = $skippedFrames"
+    }
+
+    companion object {
+        const val CONTROL_INTERVAL_MS = 500L
+        // hardware encoders keep a frame or two in flight even when they keep up
+        const val HIGH_BACKLOG = 4
+        const val LOW_BACKLOG = 2
+        const val RECOVER_INTERVALS = 2
+        const val MIN_FRAME_RATE = 10
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode
+
+import com.jiangdg.ausbc.encode.bean.RawData
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Bounded raw data queue of the encoder with pooled buffers
+ *
+ * Frames are copied into buffers owned by the ring, so the producer can reuse its array
+ * right after [offer]. The consumer gets a frame by [poll] and must give it back by [recycle]
+ * once the data was queued into the codec. At most [capacity] frames are queued, what
+ * happens to a frame offered to a full ring is decided by [dropPolicy].
+ *
+ * @property capacity max queued frames
+ */
+class RawDataRing(private val capacity: Int) {
+    private val mLock = ReentrantLock()
+    private val mNotFull = mLock.newCondition()
+    private val mQueue = arrayOfNulls<RawData>(capacity)
+    private var mHead = 0
+    private var mCount = 0
+    // queued frames plus the one the encoder is working on
+    private val mFree = arrayOfNulls<RawData>(capacity + 1)
+    private var mFreeCount = 0
+    @Volatile
+    private var mOfferedCount = 0L
+    @Volatile
+    private var mDroppedCount = 0L
+
+    @Volatile
+    var dropPolicy: DropPolicy = DropPolicy.DROP_OLDEST
+        private set
+    @Volatile
+    var blockTimeoutMs: Long = DEFAULT_BLOCK_TIMEOUT_MS
+        private set
+
+    /**
+     * Set drop policy
+     *
+     * @param policy see [DropPolicy]
+     * @param blockTimeoutMs max wait time of [DropPolicy.BLOCK], the frame is dropped after it
+     */
+    fun setDropPolicy(policy: DropPolicy, blockTimeoutMs: Long = DEFAULT_BLOCK_TIMEOUT_MS) {
+        this.dropPolicy = policy
+        this.blockTimeoutMs = blockTimeoutMs
+    }
+
+    /**
+     * Copy frame into the ring
+     *
+     * @param data frame data
+     * @param size data size
+     * @param timestampNs capture time
+     * @return false if the frame was dropped
+     */
+    fun offer(data: ByteArray, size: Int, timestampNs: Long = 0L): Boolean {
+        if (! waitForSpace()) {
+            return false
+        }
+        val rawData = obtain(size)
+        System.arraycopy(data, 0, rawData.data, 0, size)
+        rawData.timestampNs = timestampNs
+        enqueue(rawData)
+        return true
+    }
+
+    /**
+     * Copy frame into the ring, from position to limit of the buffer
+     *
+     * @param buffer frame data, the position is not changed
+     * @param timestampNs capture time
+     * @return false if the frame was dropped
+     */
+    fun offer(buffer: ByteBuffer, timestampNs: Long = 0L): Boolean {
+        if (! waitForSpace()) {
+            return false
+        }
+        val rawData = obtain(buffer.remaining())
+        buffer.duplicate().get(rawData.data)
+        rawData.timestampNs = timestampNs
+        enqueue(rawData)
+        return true
+    }
+
+    /**
+     * Poll the oldest frame, give it back by [recycle]
+     *
+     * @return null if empty
+     */
+    fun poll(): RawData? = mLock.withLock {
+        if (mCount == 0) {
+            return null
+        }
+        val rawData = mQueue[mHead]
+        mQueue[mHead] = null
+        mHead = (mHead + 1) % capacity
+        mCount--
+        mNotFull.signal()
+        rawData
+    }
+
+    /**
+     * Recycle a frame got by [poll]
+     *
+     * @param rawData frame, don't use it after recycled
+     */
+    fun recycle(rawData: RawData) {
+        mLock.withLock {
+            recycleLocked(rawData)
+        }
+    }
+
+    /**
+     * Drop all queued frames, the buffers are kept for reuse
+     */
+    fun clear() {
+        mLock.withLock {
+            while (mCount > 0) {
+                recycleLocked(mQueue[mHead]!!)
+                mQueue[mHead] = null
+                mHead = (mHead + 1) % capacity
+                mCount--
+            }
+            mNotFull.signalAll()
+        }
+    }
+
+    fun isEmpty() = mLock.withLock { mCount == 0 }
+
+    fun size() = mLock.withLock { mCount }
+
+    /**
+     * Frames offered since created
+     */
+    fun getOfferedCount() = mOfferedCount
+
+    /**
+     * Frames dropped by the drop policy since created
+     */
+    fun getDroppedCount() = mDroppedCount
+
+    /**
+     * Wait until the frame may be queued
+     *
+     * @return false if it should be dropped
+     */
+    private fun waitForSpace(): Boolean = mLock.withLock {
+        mOfferedCount++
+        if (mCount < capacity) {
+            return true
+        }
+        when (dropPolicy) {
+            DropPolicy.DROP_OLDEST -> true
+            DropPolicy.DROP_NEWEST -> {
+                mDroppedCount++
+                false
+            }
+            DropPolicy.BLOCK -> {
+                var nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs)
+                while (mCount >= capacity && nanos > 0L) {
+                    nanos = mNotFull.awaitNanos(nanos)
+                }
+                if (mCount >= capacity) {
+                    mDroppedCount++
+                    false
+                } else {
+                    true
+                }
+            }
+        }
+    }
+
+    private fun enqueue(rawData: RawData) {
+        mLock.withLock {
+            // still full when dropping the oldest or another producer took the slot
+            if (mCount == capacity) {
+                recycleLocked(mQueue[mHead]!!)
+                mQueue[mHead] = null
+                mHead = (mHead + 1) % capacity
+                mCount--
+                mDroppedCount++
+            }
+            mQueue[(mHead + mCount) % capacity] = rawData
+            mCount++
+        }
+    }
+
+    /**
+     * Obtain a free buffer of exactly size bytes, the encoders expect data.size to be the frame size
+     */
+    private fun obtain(size: Int): RawData {
+        mLock.withLock {
+            while (mFreeCount > 0) {
+                val rawData = mFree[--mFreeCount]!!
+                mFree[mFreeCount] = null
+                if (rawData.data.size == size) {
+                    return rawData
+                }
+            }
+        }
+        return RawData(ByteArray(size), size)
+    }
+
+    private fun recycleLocked(rawData: RawData) {
+        if (mFreeCount < mFree.size) {
+            mFree[mFreeCount++] = rawData
+        }
+    }
+
+    /**
+     * What to do with a frame offered to a full ring
+     */
+    enum class DropPolicy {
+        /**
+         * Drop the oldest queued frame, the default. Lowest latency.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Drop the offered frame, keeps the queued frames continuous
+         */
+        DROP_NEWEST,
+
+        /**
+         * Block the producer until a frame was polled or the timeout elapsed,
+         * the offered frame is dropped on timeout. Don't use it on the camera thread.
+         */
+        BLOCK
+    }
+
+    companion object {
+        const val DEFAULT_BLOCK_TIMEOUT_MS = 40L
+    }
+}
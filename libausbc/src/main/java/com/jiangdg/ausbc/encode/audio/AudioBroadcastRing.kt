@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.audio
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Single producer, many consumers ring of captured pcm
+ *
+ * The capture thread writes each chunk once, every attached [Reader] reads it at its own
+ * cursor. The writer never waits for readers: a reader more than [capacity] chunks behind
+ * has lost the oldest ones, they are counted as overruns and it goes on from the oldest
+ * chunk still in the ring. Readers attach and detach while capturing, a new reader starts
+ * at the next chunk written.
+ *
+ * @property capacity chunks kept in the ring
+ */
+class AudioBroadcastRing(private val capacity: Int) {
+    private val mLock = ReentrantLock()
+    private val mWritten = mLock.newCondition()
+    private val mSlots = Array(capacity) { ByteArray(0) }
+    private val mSizes = IntArray(capacity)
+    private val mTimestamps = LongArray(capacity)
+    private val mReaders = ArrayList<Reader>()
+    // sequence of the next chunk written
+    private var mWriteSeq = 0L
+
+    /**
+     * Write a chunk, copied into the ring
+     *
+     * @param data pcm
+     * @param size valid bytes of data
+     * @param timestampNs capture time in the time base of System.nanoTime
+     */
+    fun write(data: ByteArray, size: Int, timestampNs: Long) {
+        mLock.withLock {
+            val slot = (mWriteSeq % capacity).toInt()
+            if (mSlots[slot].size < size) {
+                mSlots[slot] = ByteArray(size)
+            }
+            System.arraycopy(data, 0, mSlots[slot], 0, size)
+            mSizes[slot] = size
+            mTimestamps[slot] = timestampNs
+            mWriteSeq++
+            mWritten.signalAll()
+        }
+    }
+
+    /**
+     * Attach a reader, it reads the chunks written from now on
+     *
+     * @param name for logs
+     * @return reader, [Reader.close] it when done
+     */
+    fun attach(name: String): Reader = mLock.withLock {
+        Reader(name, mWriteSeq).also {
+            mReaders.add(it)
+        }
+    }
+
+    /**
+     * Attached reader count
+     */
+    fun getReaderCount() = mLock.withLock { mReaders.size }
+
+    /**
+     * Chunks written since created
+     */
+    fun getWrittenCount() = mLock.withLock { mWriteSeq }
+
+    /**
+     * One consumer of the ring
+     *
+     * Not thread safe, use it from one thread.
+     *
+     * @property name for logs
+     */
+    inner class Reader internal constructor(val name: String, private var mCursor: Long) {
+        private var isClosed = false
+        private var mOverrunCount = 0L
+        private var mReadCount = 0L
+
+        /**
+         * Chunk got by the last successful [read], valid until the next read
+         */
+        var data: ByteArray = ByteArray(0)
+            private set
+        var size: Int = 0
+            private set
+        var timestampNs: Long = 0L
+            private set
+
+        /**
+         * Read the next chunk into [data]
+         *
+         * @param timeoutMs max wait time for a chunk, 0 to return at once
+         * @return false if nothing was written in time or the reader is closed
+         */
+        fun read(timeoutMs: Long): Boolean {
+            mLock.withLock {
+                var nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+                while (! isClosed && mCursor == mWriteSeq) {
+                    if (nanos <= 0L) {
+                        return false
+                    }
+                    nanos = mWritten.awaitNanos(nanos)
+                }
+                if (isClosed) {
+                    return false
+                }
+                // lapped by the writer, skip to the oldest chunk still in the ring
+                val lag = mWriteSeq - mCursor
+                if (lag > capacity) {
+                    mOverrunCount += lag - capacity
+                    mCursor = mWriteSeq - capacity
+                }
+                val slot = (mCursor % capacity).toInt()
+                val chunkSize = mSizes[slot]
+                if (data.size < chunkSize) {
+                    data = ByteArray(chunkSize)
+                }
+                System.arraycopy(mSlots[slot], 0, data, 0, chunkSize)
+                size = chunkSize
+                timestampNs = mTimestamps[slot]
+                mCursor++
+                mReadCount++
+                return true
+            }
+        }
+
+        /**
+         * Chunks written but not read yet, more than the ring capacity means chunks were lost
+         */
+        fun getLag() = mLock.withLock { mWriteSeq - mCursor }
+
+        /**
+         * Is lagging, the next write overruns this reader
+         */
+        fun isLagging() = getLag() >= capacity
+
+        /**
+         * Chunks lost because the reader was too slow
+         */
+        fun getOverrunCount() = mLock.withLock { mOverrunCount }
+
+        fun getReadCount() = mLock.withLock { mReadCount }
+
+        /**
+         * Detach from the ring, a blocked [read] returns false
+         */
+        fun close() {
+            mLock.withLock {
+                isClosed = true
+                mReaders.remove(this)
+                mWritten.signalAll()
+            }
+        }
+
+        override fun toString(): String {
+            return "$name: read = $mReadCount, overrun = $mOverrunCount, lag = ${getLag()}"
+        }
+    }
+}
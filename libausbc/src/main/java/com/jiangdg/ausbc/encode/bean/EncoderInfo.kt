@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.bean
+
+import androidx.annotation.Keep
+
+/**
+ * Capabilities of one encoder for one mime type
+ *
+ * @property name codec name, for MediaCodec.createByCodecName
+ * @property mime mime type, e.g. video/avc
+ * @property isHardware hardware accelerated
+ * @property colorFormats supported MediaCodecInfo.CodecCapabilities color formats
+ * @property profiles supported profiles
+ * @property maxWidth max width, 0 if unknown
+ * @property maxHeight max height, 0 if unknown
+ * @property maxFrameRate max frame rate, 0 if unknown
+ */
+@Keep
+data class EncoderInfo(
+    val name: String,
+    val mime: String,
+    val isHardware: Boolean,
+    val colorFormats: List<Int>,
+    val profiles: List<Int>,
+    val maxWidth: Int = 0,
+    val maxHeight: Int = 0,
+    val maxFrameRate: Int = 0
+) {
+
+    /**
+     * Is size supported, in either orientation
+     */
+    fun isSizeSupported(width: Int, height: Int): Boolean {
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            return true
+        }
+        return (width <= maxWidth && height <= maxHeight) || (height <= maxWidth && width <= maxHeight)
+    }
+
+    fun isFrameRateSupported(frameRate: Int) = maxFrameRate <= 0 || frameRate <= maxFrameRate
+
+    /**
+     * Pick a color format
+     *
+     * @param preferred color formats in order of preference
+     * @return first preferred format supported, null if none
+     */
+    fun pickColorFormat(preferred: List<Int>) = preferred.firstOrNull { it in colorFormats }
+
+    /**
+     * One line of the capability cache file
+     */
+    fun toLine(): String {
+        return listOf(name, mime, if (isHardware) "1" else "0", colorFormats.joinToString(","),
+            profiles.joinToString(","), maxWidth, maxHeight, maxFrameRate).joinToString(SEPARATOR)
+    }
+
+    companion object {
+        private const val SEPARATOR = "\t"
+
+        /**
+         * Parse a line written by [toLine]
+         *
+         * @return null if malformed
+         */
+        fun fromLine(line: String): EncoderInfo? {
+            val fields = line.split(SEPARATOR)
+            if (fields.size != 8) {
+                return null
+            }
+            return try {
+                EncoderInfo(fields[0], fields[1], fields[2] == "1", parseInts(fields[3]),
+                    parseInts(fields[4]), fields[5].toInt(), fields[6].toInt(), fields[7].toInt())
+            } catch (e: NumberFormatException) {
+                null
+            }
+        }
+
+        private fun parseInts(field: String) = if (field.isEmpty()) emptyList() else field.split(",").map { it.toInt() }
+    }
+}
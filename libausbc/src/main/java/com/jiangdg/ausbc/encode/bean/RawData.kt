@@ -22,12 +22,13 @@ import androidx.annotation.Keep
  *
  * @property data media data, pcm or yuv
  * @property size media data size
+ * @property timestampNs capture time in the time base of System.nanoTime, 0 if unknown
  * @constructor Create empty Raw data
  *
  * @author Created by jiangdg on 2022/2/10
  */
 @Keep
-data class RawData(val data: ByteArray, val size: Int) {
+data class RawData(val data: ByteArray, val size: Int, var timestampNs: Long = 0L) {
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
         if (javaClass != other?.javaClass) return false
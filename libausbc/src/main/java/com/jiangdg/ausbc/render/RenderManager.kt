@@ -25,6 +25,8 @@ import android.provider.MediaStore
 import android.view.Surface
 import com.jiangdg.ausbc.callback.ICaptureCallBack
 import com.jiangdg.ausbc.callback.IPreviewDataCallBack
+import com.jiangdg.ausbc.camera.bean.AnalysisOutput
+import com.jiangdg.ausbc.encode.H264EncodeProcessor
 import com.jiangdg.ausbc.render.env.RotateType
 import com.jiangdg.ausbc.render.effect.AbstractEffect
 import com.jiangdg.ausbc.render.internal.*
@@ -34,8 +36,6 @@ import com.jiangdg.ausbc.utils.bus.EventBus
 import java.io.File
 import java.io.FileOutputStream
 import java.io.IOException
-import java.nio.ByteBuffer
-import java.nio.ByteOrder
 import java.text.SimpleDateFormat
 import java.util.*
 import java.util.concurrent.CopyOnWriteArrayList
@@ -49,6 +49,11 @@ import java.util.concurrent.atomic.AtomicBoolean
  * @property surfaceHeight camera preview height
  *
  * @param context context
+ * @param previewReadbackBuffers pixel buffer objects for reading back rgba preview data on GLES3,
+ *          callbacks get the previous frame without stalling the GL thread. Less than 2 reads
+ *          each frame synchronously, see [PixelReader]
+ * @param previewDataFormat format of the preview data, yuv formats are packed on the GPU
+ *          before reading back, see [YuvPackRender]
  *
  * @author Created by jiangdg on 2021/12/28
  */
@@ -56,9 +61,12 @@ class RenderManager(
     context: Context,
     private val surfaceWidth: Int,         // render surface width
     private val surfaceHeight: Int,        // render surface height
-    private val mPreviewDataCbList: CopyOnWriteArrayList<IPreviewDataCallBack>?=null
+    private val mPreviewDataCbList: CopyOnWriteArrayList<IPreviewDataCallBack>?=null,
+    previewReadbackBuffers: Int = PixelReader.DEFAULT_BUFFER_COUNT,
+    private val previewDataFormat: IPreviewDataCallBack.DataFormat = IPreviewDataCallBack.DataFormat.RGBA
 ) : SurfaceTexture.OnFrameAvailableListener, Handler.Callback {
-    private var mPreviewByteBuffer: ByteBuffer? = null
+    private val mPixelReader = PixelReader(previewReadbackBuffers)
+    private var mYuvPackRender: YuvPackRender? = null
     private var mEOSTextureId: Int? = null
     private var mRenderThread: HandlerThread? = null
     private var mRenderHandler: Handler? = null
@@ -67,6 +75,7 @@ class RenderManager(
     private var mCameraRender: CameraRender? = null
     private var mScreenRender: ScreenRender? = null
     private var mEncodeRender: EncodeRender? = null
+    private var mCodecProcessor: H264EncodeProcessor? = null
     private var mCaptureRender: CaptureRender? = null
     private var mCameraSurfaceTexture: SurfaceTexture? = null
     private var mTransformMatrix: FloatArray = FloatArray(16)
@@ -75,8 +84,18 @@ class RenderManager(
     private var mFBOBufferId: Int = 0
     private var mContext: Context = context
     private var mEffectList = arrayListOf<AbstractEffect>()
+    private val mEffectCompiler = EffectChainCompiler(context)
     private var mCacheEffectList = arrayListOf<AbstractEffect>()
     private var mCaptureDataCb: ICaptureCallBack? = null
+    // analysis passes by size, outputs of the same size share one
+    private val mAnalysisPassList = arrayListOf<AnalysisPass>()
+    private var mFrameIndex = 0L
+    // open to first frame report, see ProgramCache
+    private var mRenderStartTime = 0L
+    private var mGLInitTime = 0L
+    private var mCompiledCountAtStart = 0
+    private var mBinaryCountAtStart = 0
+    private var isFirstFrameDrawn = false
     private var mFrameRate = 0
     private var mEndTime: Long = 0L
     private var mStartTime = System.currentTimeMillis()
@@ -100,6 +119,11 @@ class RenderManager(
         this.mCameraRender = CameraRender(context)
         this.mScreenRender = ScreenRender(context)
         this.mCaptureRender = CaptureRender(context)
+        if (YuvPackRender.isYuvFormat(previewDataFormat)) {
+            this.mYuvPackRender = YuvPackRender(context).apply {
+                setFormat(previewDataFormat)
+            }
+        }
         Logger.i(TAG, "create RenderManager, Open ES version is ${Utils.getGLESVersion(context)}")
     }
 
@@ -115,11 +139,15 @@ class RenderManager(
                     val w = first as Int
                     val h = second as Int
                     val surface = third as? Surface
+                    val initStartTime = SystemClock.elapsedRealtime()
                     mScreenRender?.initEGLEvn()
                     mScreenRender?.setupSurface(surface, w, h)
                     mScreenRender?.initGLES()
                     mCameraRender?.initGLES()
                     mCaptureRender?.initGLES()
+                    mYuvPackRender?.initGLES()
+                    mPixelReader.initGLES()
+                    mGLInitTime = SystemClock.elapsedRealtime() - initStartTime
                     mEOSTextureId = mCameraRender?.getCameraTextureId()?.apply {
                         mStFuture.set(SurfaceTexture(this))
                     }
@@ -133,6 +161,7 @@ class RenderManager(
                     mCameraRender?.setSize(mWidth, mHeight)
                     mScreenRender?.setSize(mWidth, mHeight)
                     mCaptureRender?.setSize(mWidth, mHeight)
+                    mEffectCompiler.setSize(mWidth, mHeight)
                     mCameraSurfaceTexture?.setDefaultBufferSize(mWidth, mHeight)
                 }
             }
@@ -140,11 +169,12 @@ class RenderManager(
                 saveImageInternal(msg.obj as? String)
             }
             MSG_GL_START_RENDER_CODEC -> {
-                (msg.obj as Triple<*, *, *>).apply {
-                    val surface = first as Surface
-                    val width = second as Int
-                    val height = third as Int
-                    startRenderCodecInternal(surface, width, height)
+                (msg.obj as Pair<*, *>).apply {
+                    val size = first as Triple<*, *, *>
+                    val surface = size.first as Surface
+                    val width = size.second as Int
+                    val height = size.third as Int
+                    startRenderCodecInternal(surface, width, height, second as? H264EncodeProcessor)
                 }
             }
             MSG_GL_STOP_RENDER_CODEC -> {
@@ -163,29 +193,30 @@ class RenderManager(
                 mCameraRender?.setTransformMatrix(mTransformMatrix)
                 val textureId = mEOSTextureId?.let { mCameraRender?.drawFrame(it) }
                 //Filter FBO and rendering
+                //per pixel effects next to each other are fused into one pass
                 textureId?.let { fboId ->
-                    var effectId = fboId
-                    mEffectList.forEach { effectRender ->
-                        effectId = effectRender.drawFrame(effectId)
-                    }
-                    effectId
+                    mEffectCompiler.drawFrame(fboId)
                 }?.also { id ->
                     mScreenRender?.drawFrame(id)
                     drawFrame2Capture(id)
+                    drawFrame2Analysis(id)
                     drawFrame2Codec(id, mCameraSurfaceTexture?.timestamp ?: 0)
                 }
                 mScreenRender?.swapBuffers(mCameraSurfaceTexture?.timestamp ?: 0)
+                if (! isFirstFrameDrawn) {
+                    isFirstFrameDrawn = true
+                    reportFirstFrame()
+                }
             }
             MSG_GL_ADD_EFFECT -> {
                 (msg.obj as? AbstractEffect)?.let { effect->
                     if (mEffectList.contains(effect)) {
                         return@let
                     }
-                    effect.initGLES()
-                    effect.setSize(mWidth, mHeight)
                     mEffectList.add(effect)
                     mCacheEffectList.add(effect)
-                    Logger.i(TAG, "add effect, name = ${effect.javaClass.simpleName}, size = ${mEffectList.size}")
+                    mEffectCompiler.compile(mEffectList)
+                    Logger.i(TAG, "add effect, name = ${effect.javaClass.simpleName}, size = ${mEffectList.size}, passes = ${mEffectCompiler.getPassCount()}")
                 }
             }
             MSG_GL_REMOVE_EFFECT -> {
@@ -193,21 +224,46 @@ class RenderManager(
                     if (! mEffectList.contains(it)) {
                         return@let
                     }
-                    it.releaseGLES()
                     mEffectList.remove(it)
                     mCacheEffectList.remove(it)
-                    Logger.i(TAG, "remove effect, name = ${it.javaClass.simpleName}, size = ${mEffectList.size}")
+                    mEffectCompiler.compile(mEffectList)
+                    Logger.i(TAG, "remove effect, name = ${it.javaClass.simpleName}, size = ${mEffectList.size}, passes = ${mEffectCompiler.getPassCount()}")
+                }
+            }
+            MSG_GL_ADD_ANALYSIS -> {
+                (msg.obj as? AnalysisOutput)?.let { output ->
+                    val pass = mAnalysisPassList.find {
+                        it.width == output.width && it.height == output.height
+                    } ?: AnalysisPass(mContext, output.width, output.height).apply {
+                        initGLES()
+                        mAnalysisPassList.add(this)
+                    }
+                    pass.addOutput(output)
+                }
+            }
+            MSG_GL_REMOVE_ANALYSIS -> {
+                (msg.obj as? IPreviewDataCallBack)?.let { callBack ->
+                    mAnalysisPassList.find { it.removeOutput(callBack) }?.let { pass ->
+                        if (pass.isEmpty()) {
+                            pass.releaseGLES()
+                            mAnalysisPassList.remove(pass)
+                        }
+                    }
                 }
             }
             MSG_GL_RELEASE -> {
                 EventBus.with<Boolean>(BusKey.KEY_RENDER_READY).postMessage(false)
-                mEffectList.forEach { effect ->
-                    effect.releaseGLES()
-                }
+                mEffectCompiler.releaseGLES()
                 mEffectList.clear()
                 mCameraRender?.releaseGLES()
                 mScreenRender?.releaseGLES()
                 mCaptureRender?.releaseGLES()
+                mYuvPackRender?.releaseGLES()
+                mPixelReader.releaseGLES()
+                mAnalysisPassList.forEach { pass ->
+                    pass.releaseGLES()
+                }
+                mAnalysisPassList.clear()
                 mCameraSurfaceTexture?.setOnFrameAvailableListener(null)
                 mCameraSurfaceTexture = null
             }
@@ -216,28 +272,48 @@ class RenderManager(
     }
 
     private fun drawFrame2Capture(fboId: Int) {
-        mCaptureRender?.drawFrame(fboId)?.let {
-            mCaptureRender!!.getFrameBufferId()
-        }?.also { id ->
-            mFBOBufferId = id
-            // opengl preview data, format is rgba
-            val renderWidth = mCaptureRender?.getRenderWidth() ?: mWidth
-            val renderHeight = mCaptureRender?.getRenderHeight() ?: mHeight
-            val rgbaLen = renderWidth * renderHeight * 4
-            mPreviewDataCbList?.forEach { callback ->
-                if (mPreviewByteBuffer==null || mPreviewByteBuffer?.remaining() != rgbaLen) {
-                    mPreviewByteBuffer = ByteBuffer.allocateDirect(rgbaLen)
-                    mPreviewByteBuffer?.order(ByteOrder.LITTLE_ENDIAN)
-                }
-                mPreviewByteBuffer?.let {
-                    it.clear()
-                    GLBitmapUtils.readPixelToByteBuffer(id,renderWidth, renderHeight, mPreviewByteBuffer)
-                    callback.onPreviewData(it.array(),renderWidth, renderHeight, IPreviewDataCallBack.DataFormat.RGBA)
-                }
+        val captureTextureId = mCaptureRender?.drawFrame(fboId) ?: return
+        val id = mCaptureRender!!.getFrameBufferId()
+        mFBOBufferId = id
+        if (mPreviewDataCbList.isNullOrEmpty()) {
+            mPixelReader.reset()
+            return
+        }
+        // opengl preview data, format is rgba
+        // read once for all callbacks, the previous frame on GLES3
+        val renderWidth = mCaptureRender?.getRenderWidth() ?: mWidth
+        val renderHeight = mCaptureRender?.getRenderHeight() ?: mHeight
+        val yuvRender = mYuvPackRender
+        val data: ByteArray?
+        val format: IPreviewDataCallBack.DataFormat
+        if (yuvRender != null && YuvPackRender.isSupported(renderWidth, renderHeight)) {
+            // packed to yuv on the GPU, 1.5 bytes per pixel are read back
+            if (yuvRender.getSrcWidth() != renderWidth || yuvRender.getSrcHeight() != renderHeight) {
+                yuvRender.setSize(renderWidth, renderHeight)
             }
+            yuvRender.drawFrame(captureTextureId)
+            data = mPixelReader.read(yuvRender.getFrameBufferId(), yuvRender.getRenderWidth(), yuvRender.getRenderHeight())
+            format = yuvRender.getFormat()
+        } else {
+            data = mPixelReader.read(id, renderWidth, renderHeight)
+            format = IPreviewDataCallBack.DataFormat.RGBA
+        }
+        data ?: return
+        mPreviewDataCbList.forEach { callback ->
+            callback.onPreviewData(data, renderWidth, renderHeight, format)
         }
     }
 
+    private fun drawFrame2Analysis(textureId: Int) {
+        if (mAnalysisPassList.isEmpty()) {
+            return
+        }
+        mAnalysisPassList.forEach { pass ->
+            pass.drawFrame(textureId, mFrameIndex)
+        }
+        mFrameIndex++
+    }
+
     /**
      * Start render screen
      *
@@ -247,6 +323,10 @@ class RenderManager(
      * @param listener acquire camera surface texture, see [CameraSurfaceTextureListener]
      */
     fun startRenderScreen(w: Int, h: Int, outSurface: Surface?, listener: CameraSurfaceTextureListener? = null) {
+        mRenderStartTime = SystemClock.elapsedRealtime()
+        mCompiledCountAtStart = ProgramCache.getCompiledCount()
+        mBinaryCountAtStart = ProgramCache.getBinaryCount()
+        isFirstFrameDrawn = false
         mRenderThread = HandlerThread(RENDER_THREAD)
         mRenderThread?.start()
         mRenderHandler = Handler(mRenderThread!!.looper, this@RenderManager)
@@ -286,9 +366,12 @@ class RenderManager(
      * @param inputSurface mediacodec input surface, see [android.media.MediaCodec]
      * @param width camera preview width
      * @param height camera preview height
+     * @param encodeProcessor encoder of the surface, given the frames drawn to it and asked
+     *          before each draw so that its rate control works, see [H264EncodeProcessor.shouldDrawSurfaceFrame]
      */
-    fun startRenderCodec(inputSurface: Surface, width: Int, height: Int) {
-        Triple(inputSurface, width, height).apply {
+    @JvmOverloads
+    fun startRenderCodec(inputSurface: Surface, width: Int, height: Int, encodeProcessor: H264EncodeProcessor? = null) {
+        Pair(Triple(inputSurface, width, height), encodeProcessor).apply {
             mRenderHandler?.obtainMessage(MSG_GL_START_RENDER_CODEC, this)?.sendToTarget()
         }
     }
@@ -328,6 +411,27 @@ class RenderManager(
         mRenderHandler?.obtainMessage(MSG_GL_REMOVE_EFFECT, effect)?.sendToTarget()
     }
 
+    /**
+     * Add a downscaled analysis output
+     *
+     * Shrunk from the final effect texture into an fbo of its size and only that is read back,
+     * outputs of the same size share one pass, see [AnalysisPass]
+     *
+     * @param output analysis output, see [AnalysisOutput]
+     */
+    fun addAnalysisOutput(output: AnalysisOutput) {
+        mRenderHandler?.obtainMessage(MSG_GL_ADD_ANALYSIS, output)?.sendToTarget()
+    }
+
+    /**
+     * Remove the analysis output of a callback
+     *
+     * @param callBack callback of the output
+     */
+    fun removeAnalysisOutput(callBack: IPreviewDataCallBack) {
+        mRenderHandler?.obtainMessage(MSG_GL_REMOVE_ANALYSIS, callBack)?.sendToTarget()
+    }
+
     /**
      * Rotate camera render angle
      *
@@ -360,8 +464,9 @@ class RenderManager(
         mRenderHandler?.obtainMessage(MSG_GL_DRAW)?.sendToTarget()
     }
 
-    private fun startRenderCodecInternal(surface: Surface, w: Int, h: Int) {
+    private fun startRenderCodecInternal(surface: Surface, w: Int, h: Int, processor: H264EncodeProcessor?) {
         stopRenderCodecInternal()
+        mCodecProcessor = processor
         mRenderCodecThread = HandlerThread(RENDER_CODEC_THREAD)
         mRenderCodecThread?.start()
         mRenderCodecHandler = Handler(mRenderCodecThread!!.looper) { message ->
@@ -389,6 +494,7 @@ class RenderManager(
                         val timeStamps = second as Long
                         mEncodeRender?.drawFrame(textureId)
                         mEncodeRender?.swapBuffers(timeStamps)
+                        processor?.onSurfaceFrameDrawn(timeStamps)
                     }
                 }
                 MSG_GL_RENDER_CODEC_RELEASE -> {
@@ -408,12 +514,17 @@ class RenderManager(
     }
 
     private fun drawFrame2Codec(textureId: Int, timeStamps: Long) {
+        // the encoder lowers its frame rate by leaving frames out of its surface
+        if (mCodecProcessor?.shouldDrawSurfaceFrame(timeStamps) == false) {
+            return
+        }
         Pair(textureId, timeStamps).apply {
             mRenderCodecHandler?.obtainMessage(MSG_GL_RENDER_CODEC_DRAW, this)?.sendToTarget()
         }
     }
 
     private fun stopRenderCodecInternal() {
+        mCodecProcessor = null
         mRenderCodecHandler?.obtainMessage(MSG_GL_RENDER_CODEC_RELEASE)?.sendToTarget()
         mRenderCodecThread?.quitSafely()
         mRenderCodecThread = null
@@ -482,6 +593,16 @@ class RenderManager(
         }
     }
 
+    // programs made since startRenderScreen, with and without the cache
+    // compare by ProgramCache.setEnabled(false) before opening the camera
+    private fun reportFirstFrame() {
+        val compiled = ProgramCache.getCompiledCount() - mCompiledCountAtStart
+        val fromBinary = ProgramCache.getBinaryCount() - mBinaryCountAtStart
+        Logger.i(TAG, "first frame ${SystemClock.elapsedRealtime() - mRenderStartTime}ms after open, " +
+                "gl init ${mGLInitTime}ms, program cache = ${ProgramCache.isEnabled()}, " +
+                "compiled $compiled, from binary $fromBinary")
+    }
+
     private fun emitFrameRate() {
         mFrameRate++
         mEndTime = System.currentTimeMillis()
@@ -524,6 +645,8 @@ class RenderManager(
         private const val MSG_GL_REMOVE_EFFECT = 0x07
         private const val MSG_GL_SAVE_IMAGE = 0x08
         private const val MSG_GL_ROUTE_ANGLE = 0x09
+        private const val MSG_GL_ADD_ANALYSIS = 0x0A
+        private const val MSG_GL_REMOVE_ANALYSIS = 0x0B
 
         // codec
         private const val MSG_GL_RENDER_CODEC_INIT = 0x11
@@ -17,12 +17,15 @@ package com.jiangdg.ausbc.render.effect
 
 import android.content.Context
 import com.jiangdg.ausbc.render.internal.AbstractFboRender
+import com.jiangdg.ausbc.render.internal.EffectChainPlanner
+import com.jiangdg.ausbc.render.internal.ProgramCache
 
 /** abstract effect class, extended from AbstractFboRender
  *
  * @author Created by jiangdg on 2022/1/26
  */
 abstract class AbstractEffect(ctx: Context) : AbstractFboRender(ctx) {
+    private val mContext = ctx
 
     /**
      * Get effect id
@@ -37,4 +40,59 @@ abstract class AbstractEffect(ctx: Context) : AbstractFboRender(ctx) {
      * @return effect classify id
      */
     abstract fun getClassifyId(): Int
-}
\ No newline at end of file
+
+    /**
+     * Per pixel part of the effect, fused with the neighbouring per pixel effects into one
+     * pass instead of a pass and a full size fbo each, see [com.jiangdg.ausbc.render.internal.EffectChainCompiler]
+     *
+     * A res/raw glsl snippet defining `vec4 effectColor(vec4 color)`, mapping the color of a
+     * pixel without sampling other texels or changing vertices. Its uniforms are named
+     * `effectColor_xxx`, both names get a suffix per effect when fused. The shader of the
+     * effect drawn as a separate pass is generated from the snippet too.
+     *
+     * @return snippet resource id, 0 means the effect is a separate pass
+     */
+    open fun getColorSourceId(): Int = 0
+
+    /**
+     * Look up the uniforms of the color snippet in the program drawing it
+     *
+     * @param program fused program, or the own program of the effect
+     * @param functionName name of the color function in it, the uniforms are `${functionName}_xxx`
+     */
+    open fun initColorUniforms(program: Int, functionName: String) {}
+
+    /**
+     * Set the uniforms of the color snippet before the pass draws
+     */
+    open fun beforeColorDraw() {}
+
+    override fun getFragmentSource(): String {
+        val colorSourceId = getColorSourceId()
+        if (colorSourceId == 0) {
+            return super.getFragmentSource()
+        }
+        val snippet = ProgramCache.readSource(mContext, colorSourceId)
+        return EffectChainPlanner.buildFragmentSource(listOf(snippet))
+    }
+
+    /**
+     * Look up the uniforms of the color snippet in the own program again,
+     * after the effect was drawn by a fused pass
+     */
+    fun bindOwnColorUniforms() {
+        if (getColorSourceId() != 0 && mProgram != 0) {
+            initColorUniforms(mProgram, EffectChainPlanner.functionName(0))
+        }
+    }
+
+    override fun init() {
+        bindOwnColorUniforms()
+    }
+
+    override fun beforeDraw() {
+        if (getColorSourceId() != 0) {
+            beforeColorDraw()
+        }
+    }
+}
@@ -31,8 +31,12 @@ class EffectBlackWhite(ctx: Context) : AbstractEffect(ctx) {
 
     override fun getVertexSourceId(): Int = R.raw.base_vertex
 
+    // kept for apps reading the resource, the effect draws the same shader generated
+    // from effect_blackw_color, see AbstractEffect.getFragmentSource
     override fun getFragmentSourceId(): Int = R.raw.effect_blackw_fragment
 
+    override fun getColorSourceId(): Int = R.raw.effect_blackw_color
+
     companion object {
         const val ID = 100
     }
@@ -61,6 +61,11 @@ abstract class AbstractFboRender(context: Context) : AbstractRender(context) {
 
     protected open fun afterDrawFBO() {}
 
+    // free the fbo memory with the program
+    override fun clear() {
+        destroyFrameBuffers()
+    }
+
     private fun loadFBO(width: Int, height: Int) {
         destroyFrameBuffers()
         //Create FrameBuffer
@@ -93,6 +98,8 @@ abstract class AbstractFboRender(context: Context) : AbstractRender(context) {
     private fun destroyFrameBuffers() {
         GLES20.glDeleteTextures(1, mFBOTextures, 0)
         GLES20.glDeleteFramebuffers(1, mFrameBuffers, 0)
+        mFBOTextures[0] = 0
+        mFrameBuffers[0] = 0
     }
 
     companion object {
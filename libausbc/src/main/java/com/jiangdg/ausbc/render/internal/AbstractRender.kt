@@ -18,9 +18,7 @@ package com.jiangdg.ausbc.render.internal
 import android.content.Context
 import android.opengl.GLES11Ext
 import android.opengl.GLES20
-import android.util.Log
 import com.jiangdg.ausbc.utils.Logger
-import com.jiangdg.ausbc.utils.MediaUtils
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.nio.FloatBuffer
@@ -31,8 +29,6 @@ import java.nio.FloatBuffer
  * @author Created by jiangdg on 2021/12/27
  */
 abstract class AbstractRender(context: Context) {
-    private var mFragmentShader: Int = 0
-    private var mVertexShader: Int = 0
     private var mContext: Context? = null
     private var mStMatrixHandle = 0
     private var mMVPMatrixHandle = 0
@@ -93,10 +89,16 @@ abstract class AbstractRender(context: Context) {
     protected abstract fun getVertexSourceId(): Int
     protected abstract fun getFragmentSourceId(): Int
 
+    /**
+     * Shader sources, read from res/raw once per process by default. Override to generate them.
+     */
+    protected open fun getVertexSource(): String = ProgramCache.readSource(mContext!!, getVertexSourceId())
+    protected open fun getFragmentSource(): String = ProgramCache.readSource(mContext!!, getFragmentSourceId())
+
     fun initGLES() {
-        val vertexShaderSource = MediaUtils.readRawTextFile(mContext!!, getVertexSourceId())
-        val fragmentShaderSource = MediaUtils.readRawTextFile(mContext!!, getFragmentSourceId())
-        mProgram = createProgram(vertexShaderSource, fragmentShaderSource)
+        val vertexShaderSource = getVertexSource()
+        val fragmentShaderSource = getFragmentSource()
+        mProgram = ProgramCache.createProgram(mContext!!, vertexShaderSource, fragmentShaderSource)
         if (mProgram == 0) {
             Logger.e(TAG, "create program failed, err = ${GLES20.glGetError()}")
             return
@@ -113,14 +115,9 @@ abstract class AbstractRender(context: Context) {
     }
 
     fun releaseGLES() {
-        if (mVertexShader != 0) {
-            GLES20.glDeleteShader(mVertexShader)
-        }
-        if (mFragmentShader != 0) {
-            GLES20.glDeleteShader(mFragmentShader)
-        }
         if (mProgram != 0) {
             GLES20.glDeleteProgram(mProgram)
+            mProgram = 0
         }
         clear()
         Logger.i(TAG, "release surface texture render success!")
@@ -130,47 +127,6 @@ abstract class AbstractRender(context: Context) {
 
     fun getRenderHeight() = mHeight
 
-    private fun loadShader(shaderType: Int, source: String): Int {
-        val shader = GLES20.glCreateShader(shaderType)
-        GLES20.glShaderSource(shader, source)
-        GLES20.glCompileShader(shader)
-        val compiled = IntArray(1)
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0)
-        if (compiled[0] == 0) {
-            Log.e(TAG, "Could not compile shader, info = ${GLES20.glGetShaderInfoLog(shader)}, T = ${Thread.currentThread().name}")
-            GLES20.glDeleteShader(shader)
-            return 0
-        }
-        return shader
-    }
-
-    private fun createProgram(vertexSource: String, fragmentSource: String): Int {
-        // 创建顶点、片段着色器
-        mVertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource)
-        if (mVertexShader == 0) {
-            Logger.i(TAG, "vertexSource err = ${GLES20.glGetError()}: \n $vertexSource")
-            return 0
-        }
-        mFragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource)
-        if (mFragmentShader == 0) {
-            Logger.i(TAG, "fragmentSource err = ${GLES20.glGetError()}: \n $fragmentSource")
-            return 0
-        }
-        // 创建链接程序，并将着色器依附到程序
-        val program = GLES20.glCreateProgram()
-        GLES20.glAttachShader(program, mVertexShader)
-        GLES20.glAttachShader(program, mFragmentShader)
-        GLES20.glLinkProgram(program)
-        val linkStatus = IntArray(1)
-        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0)
-        if (linkStatus[0] != GLES20.GL_TRUE) {
-            Logger.e(TAG, "create program failed.")
-            GLES20.glDeleteProgram(program)
-            return 0
-        }
-        return program
-    }
-
     private fun isGLESStatusError() = GLES20.glGetError() != GLES20.GL_NO_ERROR
 
     protected fun createTexture(textures: IntArray) {
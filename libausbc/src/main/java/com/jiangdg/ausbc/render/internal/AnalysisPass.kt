@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.internal
+
+import android.content.Context
+import com.jiangdg.ausbc.callback.IPreviewDataCallBack
+import com.jiangdg.ausbc.camera.bean.AnalysisOutput
+import com.jiangdg.ausbc.utils.Logger
+
+/**
+ * Analysis outputs of one size
+ *
+ * The effect texture is shrunk once by [AnalysisScaleRender] on the frames any output is due,
+ * then packed by a [YuvPackRender] per yuv format and read back by a [PixelReader] per format.
+ * Reads are issued on a due frame and collected on the next draw, so on GLES3 the GL thread
+ * doesn't wait for the GPU and the outputs get the frame one draw late.
+ *
+ * Must be used on the GL thread.
+ *
+ * @property width analysis width
+ * @property height analysis height
+ */
+class AnalysisPass(context: Context, val width: Int, val height: Int) {
+    private val mContext = context
+    private val mScaleRender = AnalysisScaleRender(context)
+    private val mOutputList = arrayListOf<AnalysisOutput>()
+    private val mFormatReaders = linkedMapOf<IPreviewDataCallBack.DataFormat, FormatReader>()
+
+    /**
+     * Readback of one requested format
+     *
+     * @property format format delivered to the outputs, RGBA when the size can't be packed
+     * @property packRender null for RGBA
+     * @property pendingList outputs waiting for the issued read
+     */
+    private class FormatReader(
+        val format: IPreviewDataCallBack.DataFormat,
+        val packRender: YuvPackRender?,
+        val reader: PixelReader,
+        val pendingList: ArrayList<AnalysisOutput> = arrayListOf()
+    )
+
+    fun initGLES() {
+        mScaleRender.initGLES()
+        mScaleRender.setSize(width, height)
+    }
+
+    /**
+     * Add an output of this size
+     */
+    fun addOutput(output: AnalysisOutput) {
+        if (mOutputList.any { it.callBack == output.callBack }) {
+            return
+        }
+        if (! mFormatReaders.containsKey(output.format)) {
+            mFormatReaders[output.format] = createFormatReader(output.format)
+        }
+        mOutputList.add(output)
+        Logger.i(TAG, "add analysis output, ${width}x${height} ${output.format} every ${output.frameDivisor} frames")
+    }
+
+    /**
+     * Remove the output of the callback, the readers of formats no one wants are released
+     *
+     * @return true if it was an output of this size
+     */
+    fun removeOutput(callBack: IPreviewDataCallBack): Boolean {
+        val output = mOutputList.find { it.callBack == callBack } ?: return false
+        mOutputList.remove(output)
+        mFormatReaders.values.forEach { it.pendingList.remove(output) }
+        if (mOutputList.none { it.format == output.format }) {
+            mFormatReaders.remove(output.format)?.let { releaseFormatReader(it) }
+        }
+        return true
+    }
+
+    fun isEmpty() = mOutputList.isEmpty()
+
+    /**
+     * Deliver the frame read on the last due draw, then shrink and read this one if due
+     *
+     * @param textureId final texture of the effect chain
+     * @param frameIndex rendered frame count, an output is due when it is a multiple of its divisor
+     */
+    fun drawFrame(textureId: Int, frameIndex: Long) {
+        mFormatReaders.values.forEach { deliver(it) }
+        val dueList = mOutputList.filter { frameIndex % it.frameDivisor.coerceAtLeast(1) == 0L }
+        if (dueList.isEmpty()) {
+            return
+        }
+        val scaleTextureId = mScaleRender.drawFrame(textureId)
+        dueList.groupBy { it.format }.forEach { (format, outputs) ->
+            val formatReader = mFormatReaders[format] ?: return@forEach
+            val packRender = formatReader.packRender
+            if (packRender != null) {
+                packRender.drawFrame(scaleTextureId)
+                formatReader.reader.issue(packRender.getFrameBufferId(), packRender.getRenderWidth(), packRender.getRenderHeight())
+            } else {
+                formatReader.reader.issue(mScaleRender.getFrameBufferId(), width, height)
+            }
+            formatReader.pendingList.clear()
+            formatReader.pendingList.addAll(outputs)
+            // nothing to wait for when read synchronously
+            if (! formatReader.reader.isAsync()) {
+                deliver(formatReader)
+            }
+        }
+    }
+
+    fun releaseGLES() {
+        mFormatReaders.values.forEach { releaseFormatReader(it) }
+        mFormatReaders.clear()
+        mOutputList.clear()
+        mScaleRender.releaseGLES()
+    }
+
+    private fun deliver(formatReader: FormatReader) {
+        val data = formatReader.reader.collect() ?: return
+        formatReader.pendingList.forEach { output ->
+            output.callBack.onPreviewData(data, width, height, formatReader.format)
+        }
+        formatReader.pendingList.clear()
+    }
+
+    private fun createFormatReader(format: IPreviewDataCallBack.DataFormat): FormatReader {
+        var packRender: YuvPackRender? = null
+        var deliveredFormat = IPreviewDataCallBack.DataFormat.RGBA
+        if (YuvPackRender.isYuvFormat(format)) {
+            if (YuvPackRender.isSupported(width, height)) {
+                packRender = YuvPackRender(mContext).apply {
+                    setFormat(format)
+                    initGLES()
+                    setSize(width, height)
+                }
+                deliveredFormat = format
+            } else {
+                Logger.w(TAG, "can't pack ${width}x${height} to $format, deliver rgba")
+            }
+        }
+        val reader = PixelReader().apply {
+            initGLES()
+        }
+        return FormatReader(deliveredFormat, packRender, reader)
+    }
+
+    private fun releaseFormatReader(formatReader: FormatReader) {
+        formatReader.packRender?.releaseGLES()
+        formatReader.reader.releaseGLES()
+    }
+
+    companion object {
+        private const val TAG = "AnalysisPass"
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.internal
+
+import android.content.Context
+import android.opengl.GLES20
+import android.opengl.Matrix
+import com.jiangdg.ausbc.R
+
+/** Inherit from AbstractFboRender
+ *      shrink the effect texture into a small fbo with capture_vertex.glsl and analysis_scale_fragment.glsl
+ *
+ * Flipped upside down like [CaptureRender], so row 0 of the readback is the top of the image.
+ * The fbo textures of the effects minify with GL_NEAREST, the source is switched to GL_LINEAR
+ * while drawing and restored afterwards.
+ */
+class AnalysisScaleRender(context: Context) : AbstractFboRender(context) {
+    private var mMVPMatrixHandle: Int = -1
+    private var mTapOffsetHandle: Int = -1
+    private var mMVPMatrix = FloatArray(16)
+
+    override fun init() {
+        Matrix.setIdentityM(mMVPMatrix, 0)
+        Matrix.scaleM(mMVPMatrix, 0, 1f, -1f, 1f)
+        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix")
+        mTapOffsetHandle = GLES20.glGetUniformLocation(mProgram, "uTapOffset")
+    }
+
+    override fun drawFrame(textureId: Int): Int {
+        setSourceFilter(textureId, GLES20.GL_LINEAR)
+        val fboTextureId = super.drawFrame(textureId)
+        setSourceFilter(textureId, GLES20.GL_NEAREST)
+        return fboTextureId
+    }
+
+    override fun beforeDraw() {
+        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0)
+        GLES20.glUniform2f(mTapOffsetHandle, 0.25f / mWidth, 0.25f / mHeight)
+    }
+
+    override fun getVertexSourceId(): Int = R.raw.capture_vertex
+
+    override fun getFragmentSourceId(): Int = R.raw.analysis_scale_fragment
+
+    private fun setSourceFilter(textureId: Int, filter: Int) {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId)
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, filter)
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0)
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.internal
+
+import android.content.Context
+import com.jiangdg.ausbc.render.effect.AbstractEffect
+import com.jiangdg.ausbc.utils.Logger
+
+/**
+ * Turn the effect list into render passes
+ *
+ * Consecutive per pixel effects, see [AbstractEffect.getColorSourceId], become one
+ * [FusedEffectRender], effects sampling neighbours or changing vertices, like EffectZoom and
+ * EffectSoul, stay separate passes with their own program and fbo. The split is made by
+ * [EffectChainPlanner]. Fused renders are cached by the signature of their snippets, so
+ * switching effects back and forth doesn't recompile. Separate effects are only initialized
+ * while they are in the chain.
+ *
+ * Must be used on the GL thread.
+ */
+class EffectChainCompiler(context: Context) {
+    private val mContext = context
+    private val mPlanner = EffectChainPlanner<AbstractEffect> { it.getColorSourceId() }
+    private var mPassList = listOf<AbstractFboRender>()
+    // signature -> fused renders, least recently used first
+    private val mFusedCache = LinkedHashMap<String, ArrayList<FusedEffectRender>>(16, 0.75f, true)
+    private var mWidth = 0
+    private var mHeight = 0
+
+    /**
+     * Rebuild the passes of the effect list, call after it changed
+     *
+     * @param effects effects in drawing order
+     */
+    fun compile(effects: List<AbstractEffect>) {
+        val plan = mPlanner.plan(effects, ::canFuse)
+        plan.removedList.forEach { effect ->
+            effect.releaseGLES()
+        }
+        plan.addedList.forEach { effect ->
+            effect.initGLES()
+        }
+        val usedList = arrayListOf<FusedEffectRender>()
+        val passList = plan.passList.map { pass ->
+            when (pass) {
+                is EffectChainPlanner.Pass.Fused -> obtainFused(pass, usedList)
+                is EffectChainPlanner.Pass.Separate -> pass.effect.apply {
+                    bindOwnColorUniforms()
+                }
+            }
+        }
+        passList.forEach { pass ->
+            fitSize(pass)
+        }
+        trimCache(usedList)
+        mPassList = passList
+        Logger.i(TAG, "compile ${effects.size} effects to ${passList.size} passes")
+    }
+
+    /**
+     * Size of the passes, fbo of the cached ones are resized when used again
+     */
+    fun setSize(width: Int, height: Int) {
+        mWidth = width
+        mHeight = height
+        mPassList.forEach { pass ->
+            fitSize(pass)
+        }
+    }
+
+    /**
+     * Draw the passes
+     *
+     * @param textureId input texture
+     * @return texture of the last pass, the input when there is no effect
+     */
+    fun drawFrame(textureId: Int): Int {
+        var effectId = textureId
+        mPassList.forEach { pass ->
+            effectId = pass.drawFrame(effectId)
+        }
+        return effectId
+    }
+
+    fun getPassCount() = mPassList.size
+
+    fun releaseGLES() {
+        mPlanner.clear().forEach { effect ->
+            effect.releaseGLES()
+        }
+        mFusedCache.values.forEach { renders ->
+            renders.forEach { it.releaseGLES() }
+        }
+        mFusedCache.clear()
+        mPassList = listOf()
+    }
+
+    // the program only depends on the snippets, a run that failed to compile fails again
+    private fun canFuse(colorSourceIds: List<Int>): Boolean {
+        val renders = mFusedCache.getOrPut(EffectChainPlanner.signatureOf(colorSourceIds)) { arrayListOf() }
+        if (renders.isEmpty()) {
+            renders.add(createFused(colorSourceIds))
+        }
+        return renders.first().isCompiled()
+    }
+
+    private fun obtainFused(pass: EffectChainPlanner.Pass.Fused<AbstractEffect>,
+                            usedList: MutableList<FusedEffectRender>): FusedEffectRender {
+        val renders = mFusedCache.getOrPut(pass.signature) { arrayListOf() }
+        // the same run twice in a chain needs two fbo
+        val fused = renders.find { ! usedList.contains(it) } ?: createFused(pass.colorSourceIds).apply {
+            renders.add(this)
+        }
+        fused.setEffects(pass.effects)
+        usedList.add(fused)
+        return fused
+    }
+
+    private fun createFused(colorSourceIds: List<Int>) = FusedEffectRender(mContext, colorSourceIds).apply {
+        initGLES()
+        Logger.i(TAG, "compile fused program, signature = ${EffectChainPlanner.signatureOf(colorSourceIds)}, compiled = ${isCompiled()}")
+    }
+
+    // keep at most MAX_CACHED_RENDERS idle fused renders, each holds a full size fbo
+    private fun trimCache(usedList: List<FusedEffectRender>) {
+        var idle = mFusedCache.values.sumOf { renders -> renders.count { ! usedList.contains(it) } }
+        val iterator = mFusedCache.entries.iterator()
+        while (idle > MAX_CACHED_RENDERS && iterator.hasNext()) {
+            val renders = iterator.next().value
+            renders.filter { ! usedList.contains(it) }.forEach { render ->
+                if (idle > MAX_CACHED_RENDERS) {
+                    render.releaseGLES()
+                    renders.remove(render)
+                    idle--
+                }
+            }
+            if (renders.isEmpty()) {
+                iterator.remove()
+            }
+        }
+    }
+
+    private fun fitSize(pass: AbstractFboRender) {
+        if (mWidth <= 0 || mHeight <= 0) {
+            return
+        }
+        if (pass.getRenderWidth() != mWidth || pass.getRenderHeight() != mHeight) {
+            pass.setSize(mWidth, mHeight)
+        }
+    }
+
+    companion object {
+        private const val TAG = "EffectChainCompiler"
+        private const val MAX_CACHED_RENDERS = 4
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.internal
+
+/**
+ * Split an effect list into render passes, the GL free part of [EffectChainCompiler]
+ *
+ * Consecutive effects with a color snippet become one fused pass, the others stay separate
+ * passes. Remembers the separate effects of the last plan, so the compiler knows which ones
+ * to initialize and which ones to release.
+ *
+ * @param E effect type
+ * @property colorSourceIdOf color snippet of an effect, 0 if it is a separate pass
+ */
+class EffectChainPlanner<E>(private val colorSourceIdOf: (E) -> Int) {
+    private val mSeparateEffects = arrayListOf<E>()
+
+    /**
+     * Plan the passes of the effect list
+     *
+     * @param effects effects in drawing order
+     * @param canFuse false if the run with these color snippets can't be fused,
+     * e.g. its generated shader failed to compile. Its effects are drawn one by one then.
+     */
+    fun plan(effects: List<E>, canFuse: (List<Int>) -> Boolean = { true }): Plan<E> {
+        val passList = arrayListOf<Pass<E>>()
+        val run = arrayListOf<E>()
+        fun flushRun() {
+            if (run.isEmpty()) {
+                return
+            }
+            val colorSourceIds = run.map(colorSourceIdOf)
+            if (canFuse(colorSourceIds)) {
+                passList.add(Pass.Fused(run.toList(), colorSourceIds))
+            } else {
+                run.forEach { effect ->
+                    passList.add(Pass.Separate(effect))
+                }
+            }
+            run.clear()
+        }
+        effects.forEach { effect ->
+            if (colorSourceIdOf(effect) != 0) {
+                run.add(effect)
+            } else {
+                flushRun()
+                passList.add(Pass.Separate(effect))
+            }
+        }
+        flushRun()
+        val separateEffects = passList.filterIsInstance<Pass.Separate<E>>().map { it.effect }.distinct()
+        val addedList = separateEffects.filter { ! mSeparateEffects.contains(it) }
+        val removedList = mSeparateEffects.filter { ! separateEffects.contains(it) }
+        mSeparateEffects.clear()
+        mSeparateEffects.addAll(separateEffects)
+        return Plan(passList, addedList, removedList)
+    }
+
+    /**
+     * Forget the separate effects
+     *
+     * @return the separate effects of the last plan, to be released
+     */
+    fun clear(): List<E> {
+        val removedList = mSeparateEffects.toList()
+        mSeparateEffects.clear()
+        return removedList
+    }
+
+    /**
+     * One render pass
+     */
+    sealed class Pass<E> {
+        /**
+         * Effects drawn by one generated program, see [FusedEffectRender]
+         */
+        data class Fused<E>(val effects: List<E>, val colorSourceIds: List<Int>) : Pass<E>() {
+            val signature get() = signatureOf(colorSourceIds)
+        }
+
+        /**
+         * Effect drawn by its own program and fbo
+         */
+        data class Separate<E>(val effect: E) : Pass<E>()
+    }
+
+    /**
+     * @property passList passes in drawing order
+     * @property addedList separate effects not in the last plan, to be initialized
+     * @property removedList separate effects of the last plan not drawn separately anymore, to be released
+     */
+    class Plan<E>(val passList: List<Pass<E>>, val addedList: List<E>, val removedList: List<E>)
+
+    companion object {
+        private const val FUNCTION_NAME = "effectColor"
+
+        /**
+         * Name of the color function of the index-th snippet in a generated shader,
+         * its uniforms are renamed with the same prefix
+         */
+        fun functionName(index: Int) = "$FUNCTION_NAME$index"
+
+        /**
+         * Signature of a run of effects, runs with the same one share a program
+         */
+        fun signatureOf(colorSourceIds: List<Int>) = colorSourceIds.joinToString(",")
+
+        /**
+         * Fragment shader calling the color snippets in order, also the shader of a color
+         * effect drawn as a separate pass
+         */
+        fun buildFragmentSource(snippets: List<String>): String {
+            val sb = StringBuilder()
+            sb.append("precision mediump float;\n")
+            sb.append("uniform sampler2D uTextureSampler;\n")
+            sb.append("varying vec2 vTextureCoord;\n")
+            snippets.forEachIndexed { index, snippet ->
+                sb.append(snippet.replace(Regex("\\b$FUNCTION_NAME"), functionName(index)))
+                sb.append("\n")
+            }
+            sb.append("void main()\n{\n")
+            sb.append("    vec4 color = texture2D(uTextureSampler, vTextureCoord);\n")
+            snippets.indices.forEach { index ->
+                sb.append("    color = ${functionName(index)}(color);\n")
+            }
+            sb.append("    gl_FragColor = color;\n}\n")
+            return sb.toString()
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.internal
+
+import android.content.Context
+import com.jiangdg.ausbc.R
+import com.jiangdg.ausbc.render.effect.AbstractEffect
+
+/** Inherit from AbstractFboRender
+ *      run a run of per pixel effects in one pass, with base_vertex.glsl and a generated fragment shader
+ *
+ * The color snippets of the effects, see [AbstractEffect.getColorSourceId], are renamed to
+ * effectColor0, effectColor1... and called one after another on the sampled color, so the
+ * chain costs one full size pass and one fbo instead of one per effect, see
+ * [EffectChainPlanner.buildFragmentSource]. The program only depends on the snippets, effects
+ * of the same kinds can take turns with [setEffects].
+ *
+ * @param colorSourceIds color snippets, in chain order
+ */
+class FusedEffectRender(context: Context, private val colorSourceIds: List<Int>) : AbstractFboRender(context) {
+    private val mContext = context
+    private var mEffects = listOf<AbstractEffect>()
+
+    /**
+     * Set the effects drawn, their color snippets must match the ones compiled
+     *
+     * The uniforms are looked up again even for the same effects, they may have been drawn
+     * by another pass since and still point into its program.
+     */
+    fun setEffects(effects: List<AbstractEffect>) {
+        mEffects = effects.toList()
+        mEffects.forEachIndexed { index, effect ->
+            effect.initColorUniforms(mProgram, EffectChainPlanner.functionName(index))
+        }
+    }
+
+    fun getEffects() = mEffects
+
+    fun isCompiled() = mProgram != 0
+
+    override fun beforeDraw() {
+        mEffects.forEach { effect ->
+            effect.beforeColorDraw()
+        }
+    }
+
+    override fun clear() {
+        super.clear()
+        mEffects = listOf()
+    }
+
+    override fun getVertexSourceId(): Int = R.raw.base_vertex
+
+    // generated, see getFragmentSource
+    override fun getFragmentSourceId(): Int = 0
+
+    override fun getFragmentSource(): String {
+        val snippets = colorSourceIds.map { id ->
+            ProgramCache.readSource(mContext, id)
+        }
+        return EffectChainPlanner.buildFragmentSource(snippets)
+    }
+}
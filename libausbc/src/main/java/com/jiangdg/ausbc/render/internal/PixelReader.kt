@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.internal
+
+import android.opengl.GLES20
+import android.opengl.GLES30
+import com.jiangdg.ausbc.utils.Logger
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Rgba readback of a frame buffer for preview callbacks
+ *
+ * On GLES3 glReadPixels goes into a ring of pixel buffer objects and returns at once, the
+ * pbo filled [bufferCount] - 1 frames ago is mapped instead, so with 2 buffers the callbacks
+ * get frame N-1 while N renders and the GL thread doesn't wait for the GPU. On GLES2, with
+ * less than 2 buffers or when mapping fails, the pixels of the current frame are read
+ * synchronously like before.
+ *
+ * Must be used on the GL thread.
+ *
+ * @property bufferCount pbo count, 2 or 3
+ */
+class PixelReader(private val bufferCount: Int = DEFAULT_BUFFER_COUNT) {
+    private var mPboIds: IntArray? = null
+    private var mSyncBuffer: ByteBuffer? = null
+    private var mPixels: ByteArray? = null
+    private var mWidth = 0
+    private var mHeight = 0
+    // frames read into the ring since the size changed
+    private var mReadCount = 0L
+    // pbo of the last issue, -1 when synchronous or nothing is pending
+    private var mIssuedIndex = -1
+    private var isIssued = false
+    private var isAsync = false
+
+    /**
+     * Choose the readback mode of the current GL context
+     */
+    fun initGLES() {
+        val version = GLES20.glGetString(GLES20.GL_VERSION) ?: ""
+        isAsync = bufferCount >= 2 && isGLES3(version)
+        Logger.i(TAG, "init pixel reader, GL_VERSION = $version, async = $isAsync, buffers = $bufferCount")
+    }
+
+    /**
+     * Is reading through pixel buffer objects
+     */
+    fun isAsync() = isAsync
+
+    /**
+     * Read the rgba pixels of a frame buffer
+     *
+     * @param fboId frame buffer to read
+     * @param width frame width
+     * @param height frame height
+     * @return pixels of the current frame when synchronous, of an earlier frame when async,
+     *          null while the ring is still filling. Reused by the next call.
+     */
+    fun read(fboId: Int, width: Int, height: Int): ByteArray? {
+        val size = width * height * 4
+        if (mPixels?.size != size) {
+            mPixels = ByteArray(size)
+        }
+        if (isAsync) {
+            try {
+                return readAsync(fboId, width, height)
+            } catch (e: Exception) {
+                Logger.e(TAG, "read pixels to pbo failed, fall back to glReadPixels", e)
+                releasePbo()
+                isAsync = false
+            }
+        }
+        return readSync(fboId, width, height)
+    }
+
+    /**
+     * Start reading the rgba pixels of a frame buffer, take them with [collect]
+     *
+     * On GLES3 the read only lands in a pbo, collecting a frame later finds the GPU done with
+     * it. Read at once when synchronous. Not to be mixed with [read] on the same reader.
+     *
+     * @param fboId frame buffer to read
+     * @param width frame width
+     * @param height frame height
+     */
+    fun issue(fboId: Int, width: Int, height: Int) {
+        val size = width * height * 4
+        if (mPixels?.size != size) {
+            mPixels = ByteArray(size)
+        }
+        if (isAsync) {
+            try {
+                mIssuedIndex = issueAsync(fboId, width, height)
+                isIssued = true
+                return
+            } catch (e: Exception) {
+                Logger.e(TAG, "read pixels to pbo failed, fall back to glReadPixels", e)
+                releasePbo()
+                isAsync = false
+            }
+        }
+        mIssuedIndex = -1
+        isIssued = readSync(fboId, width, height) != null
+    }
+
+    /**
+     * Pixels of the last [issue]
+     *
+     * @return null if nothing was issued since the last collect. Reused by the next call.
+     */
+    fun collect(): ByteArray? {
+        if (! isIssued) {
+            return null
+        }
+        isIssued = false
+        val pixels = mPixels ?: return null
+        val pboIds = mPboIds
+        if (mIssuedIndex < 0 || pboIds == null) {
+            return pixels
+        }
+        return try {
+            mapPbo(pboIds[mIssuedIndex], pixels)
+            pixels
+        } catch (e: Exception) {
+            Logger.e(TAG, "map pbo failed, fall back to glReadPixels", e)
+            releasePbo()
+            isAsync = false
+            null
+        }
+    }
+
+    /**
+     * Drop the frames in flight, e.g. before the size changes
+     */
+    fun reset() {
+        mReadCount = 0L
+        isIssued = false
+    }
+
+    fun releaseGLES() {
+        releasePbo()
+        mSyncBuffer = null
+        mPixels = null
+    }
+
+    private fun readSync(fboId: Int, width: Int, height: Int): ByteArray? {
+        val pixels = mPixels ?: return null
+        if (mSyncBuffer?.capacity() != pixels.size) {
+            mSyncBuffer = ByteBuffer.allocateDirect(pixels.size).order(ByteOrder.LITTLE_ENDIAN)
+        }
+        val buffer = mSyncBuffer!!
+        buffer.clear()
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fboId)
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer)
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0)
+        buffer.get(pixels)
+        return pixels
+    }
+
+    private fun readAsync(fboId: Int, width: Int, height: Int): ByteArray? {
+        val pixels = mPixels ?: return null
+        val writeIndex = issueAsync(fboId, width, height)
+        if (mReadCount < bufferCount) {
+            return null
+        }
+        // the oldest pbo, read bufferCount - 1 frames ago
+        mapPbo(mPboIds!![(writeIndex + 1) % bufferCount], pixels)
+        return pixels
+    }
+
+    private fun issueAsync(fboId: Int, width: Int, height: Int): Int {
+        if (mPboIds == null || width != mWidth || height != mHeight) {
+            createPbo(width, height)
+        }
+        val pboIds = mPboIds!!
+        val writeIndex = (mReadCount % bufferCount).toInt()
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fboId)
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pboIds[writeIndex])
+        GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0)
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0)
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0)
+        mReadCount++
+        return writeIndex
+    }
+
+    private fun mapPbo(pboId: Int, pixels: ByteArray) {
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pboId)
+        val mapped = GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, pixels.size, GLES30.GL_MAP_READ_BIT) as? ByteBuffer
+        if (mapped == null) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0)
+            throw IllegalStateException("glMapBufferRange failed, err = ${GLES20.glGetError()}")
+        }
+        mapped.order(ByteOrder.LITTLE_ENDIAN).get(pixels)
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER)
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0)
+    }
+
+    private fun createPbo(width: Int, height: Int) {
+        releasePbo()
+        val pboIds = IntArray(bufferCount)
+        GLES30.glGenBuffers(bufferCount, pboIds, 0)
+        pboIds.forEach { id ->
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, id)
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, width * height * 4, null, GLES30.GL_STREAM_READ)
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0)
+        mPboIds = pboIds
+        mWidth = width
+        mHeight = height
+        mReadCount = 0L
+    }
+
+    private fun releasePbo() {
+        mPboIds?.let {
+            GLES30.glDeleteBuffers(it.size, it, 0)
+        }
+        mPboIds = null
+        mReadCount = 0L
+        mIssuedIndex = -1
+        isIssued = false
+    }
+
+    companion object {
+        private const val TAG = "PixelReader"
+        const val DEFAULT_BUFFER_COUNT = 2
+
+        /**
+         * Is GL_VERSION of an OpenGL ES 3.0 or later context, e.g. "OpenGL ES 3.2 V@415.0"
+         */
+        fun isGLES3(version: String): Boolean {
+            val major = Regex("OpenGL ES (\\d+)\\.").find(version)?.groupValues?.get(1)?.toIntOrNull()
+            return major != null && major >= 3
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.internal
+
+import android.content.Context
+import android.opengl.GLES20
+import android.opengl.GLES30
+import android.os.Build
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.MediaUtils
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.security.MessageDigest
+
+/**
+ * Process wide cache of shader sources and linked programs
+ *
+ * Program ids belong to an EGL context and every preview creates a new one, so what is kept
+ * is what outlives it: the res/raw sources by id, read once per process, and on GLES3 the
+ * glGetProgramBinary output keyed by a hash of the sources and the driver. The binaries stay
+ * in memory and in the code cache dir, so reopening a camera, also after a restart of the
+ * app, loads programs with glProgramBinary instead of compiling and linking. A binary the
+ * driver rejects, e.g. after an update, is dropped and the program compiled again.
+ *
+ * GL calls must be made on a thread with a current context.
+ */
+object ProgramCache {
+    private const val TAG = "ProgramCache"
+    private const val CACHE_DIR = "gl_programs"
+    private const val MAX_MEMORY_BINARIES = 32
+    private const val FILE_MAGIC = 0x50524f47 // PROG
+
+    private val mSourceMap = HashMap<Int, String>()
+    // least recently used first
+    private val mBinaryMap = LinkedHashMap<String, ProgramBinary>(16, 0.75f, true)
+    private var mCompiledCount = 0
+    private var mBinaryCount = 0
+    @Volatile
+    private var isEnabled = true
+
+    private class ProgramBinary(val format: Int, val data: ByteArray)
+
+    /**
+     * Enable the cache, default is true. When disabled every program is compiled from a
+     * freshly read source like before, e.g. to compare the camera open time.
+     */
+    fun setEnabled(enable: Boolean) {
+        isEnabled = enable
+    }
+
+    fun isEnabled() = isEnabled
+
+    /**
+     * Programs compiled from source since the process started
+     */
+    @Synchronized
+    fun getCompiledCount() = mCompiledCount
+
+    /**
+     * Programs loaded from a binary since the process started
+     */
+    @Synchronized
+    fun getBinaryCount() = mBinaryCount
+
+    /**
+     * Read a shader source from res/raw, once per process
+     *
+     * @param context context
+     * @param rawId raw resource id
+     */
+    fun readSource(context: Context, rawId: Int): String {
+        if (! isEnabled) {
+            return MediaUtils.readRawTextFile(context, rawId)
+        }
+        synchronized(this) {
+            mSourceMap[rawId]?.let {
+                return it
+            }
+        }
+        val source = MediaUtils.readRawTextFile(context, rawId)
+        synchronized(this) {
+            mSourceMap[rawId] = source
+        }
+        return source
+    }
+
+    /**
+     * Create a linked program of the current context
+     *
+     * @param context context, for the binary files
+     * @param vertexSource vertex shader source
+     * @param fragmentSource fragment shader source
+     * @return program id, 0 if failed
+     */
+    fun createProgram(context: Context, vertexSource: String, fragmentSource: String): Int {
+        if (! isEnabled || ! isBinarySupported()) {
+            return linkProgram(vertexSource, fragmentSource, false)
+        }
+        val key = keyOf(vertexSource, fragmentSource)
+        loadBinary(context, key)?.let { binary ->
+            val program = createProgramFromBinary(binary)
+            if (program != 0) {
+                synchronized(this) {
+                    mBinaryCount++
+                }
+                return program
+            }
+            Logger.w(TAG, "program binary $key rejected, compile it again")
+            dropBinary(context, key)
+        }
+        val program = linkProgram(vertexSource, fragmentSource, true)
+        if (program != 0) {
+            saveBinary(context, key, program)
+        }
+        return program
+    }
+
+    /**
+     * Delete the binaries in memory and on disk
+     */
+    fun clear(context: Context) {
+        synchronized(this) {
+            mBinaryMap.clear()
+        }
+        getCacheDir(context).listFiles()?.forEach { file ->
+            file.delete()
+        }
+    }
+
+    private fun isBinarySupported(): Boolean {
+        if (! PixelReader.isGLES3(GLES20.glGetString(GLES20.GL_VERSION) ?: "")) {
+            return false
+        }
+        val formats = IntArray(1)
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0)
+        return formats[0] > 0
+    }
+
+    private fun linkProgram(vertexSource: String, fragmentSource: String, retrievable: Boolean): Int {
+        val vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource)
+        if (vertexShader == 0) {
+            Logger.i(TAG, "vertexSource err = ${GLES20.glGetError()}: \n $vertexSource")
+            return 0
+        }
+        val fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource)
+        if (fragmentShader == 0) {
+            Logger.i(TAG, "fragmentSource err = ${GLES20.glGetError()}: \n $fragmentSource")
+            GLES20.glDeleteShader(vertexShader)
+            return 0
+        }
+        val program = GLES20.glCreateProgram()
+        GLES20.glAttachShader(program, vertexShader)
+        GLES20.glAttachShader(program, fragmentShader)
+        if (retrievable) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE)
+        }
+        GLES20.glLinkProgram(program)
+        // the program keeps the code, the shaders aren't needed any more
+        GLES20.glDetachShader(program, vertexShader)
+        GLES20.glDetachShader(program, fragmentShader)
+        GLES20.glDeleteShader(vertexShader)
+        GLES20.glDeleteShader(fragmentShader)
+        val linkStatus = IntArray(1)
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0)
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            Logger.e(TAG, "create program failed, info = ${GLES20.glGetProgramInfoLog(program)}")
+            GLES20.glDeleteProgram(program)
+            return 0
+        }
+        synchronized(this) {
+            mCompiledCount++
+        }
+        return program
+    }
+
+    private fun loadShader(shaderType: Int, source: String): Int {
+        val shader = GLES20.glCreateShader(shaderType)
+        GLES20.glShaderSource(shader, source)
+        GLES20.glCompileShader(shader)
+        val compiled = IntArray(1)
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0)
+        if (compiled[0] == 0) {
+            Logger.e(TAG, "Could not compile shader, info = ${GLES20.glGetShaderInfoLog(shader)}, T = ${Thread.currentThread().name}")
+            GLES20.glDeleteShader(shader)
+            return 0
+        }
+        return shader
+    }
+
+    private fun createProgramFromBinary(binary: ProgramBinary): Int {
+        val program = GLES20.glCreateProgram()
+        val buffer = ByteBuffer.allocateDirect(binary.data.size).order(ByteOrder.nativeOrder())
+        buffer.put(binary.data).position(0)
+        GLES30.glProgramBinary(program, binary.format, buffer, binary.data.size)
+        val linkStatus = IntArray(1)
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0)
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            // clear the GL_INVALID_ENUM of an unknown format
+            GLES20.glGetError()
+            GLES20.glDeleteProgram(program)
+            return 0
+        }
+        return program
+    }
+
+    private fun saveBinary(context: Context, key: String, program: Int) {
+        val length = IntArray(1)
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0)
+        if (length[0] <= 0) {
+            return
+        }
+        val buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder())
+        val format = IntArray(1)
+        GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, buffer)
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || length[0] <= 0) {
+            Logger.w(TAG, "get program binary failed")
+            return
+        }
+        val data = ByteArray(length[0])
+        buffer.get(data)
+        val binary = ProgramBinary(format[0], data)
+        putMemory(key, binary)
+        // written to a temp file first, a crash midway doesn't leave half a binary
+        val file = File(getCacheDir(context), "$key.bin")
+        val tmpFile = File(file.path + ".tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmpFile))).use { out ->
+                out.writeInt(FILE_MAGIC)
+                out.writeInt(binary.format)
+                out.writeInt(data.size)
+                out.write(data)
+            }
+            if (! tmpFile.renameTo(file)) {
+                tmpFile.delete()
+            }
+        } catch (e: IOException) {
+            Logger.e(TAG, "save program binary failed, err = ${e.localizedMessage}", e)
+            tmpFile.delete()
+        }
+    }
+
+    private fun loadBinary(context: Context, key: String): ProgramBinary? {
+        synchronized(this) {
+            mBinaryMap[key]?.let {
+                return it
+            }
+        }
+        val file = File(getCacheDir(context), "$key.bin")
+        if (! file.exists()) {
+            return null
+        }
+        return try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                if (input.readInt() != FILE_MAGIC) {
+                    throw IOException("bad magic")
+                }
+                val format = input.readInt()
+                val data = ByteArray(input.readInt())
+                input.readFully(data)
+                ProgramBinary(format, data)
+            }.also {
+                putMemory(key, it)
+            }
+        } catch (e: Exception) {
+            Logger.e(TAG, "load program binary failed, err = ${e.localizedMessage}", e)
+            file.delete()
+            null
+        }
+    }
+
+    private fun dropBinary(context: Context, key: String) {
+        synchronized(this) {
+            mBinaryMap.remove(key)
+        }
+        File(getCacheDir(context), "$key.bin").delete()
+    }
+
+    @Synchronized
+    private fun putMemory(key: String, binary: ProgramBinary) {
+        mBinaryMap[key] = binary
+        val iterator = mBinaryMap.keys.iterator()
+        while (mBinaryMap.size > MAX_MEMORY_BINARIES && iterator.hasNext()) {
+            iterator.next()
+            iterator.remove()
+        }
+    }
+
+    // cleared by the system when the app is updated
+    private fun getCacheDir(context: Context): File {
+        val parent = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            context.codeCacheDir
+        } else {
+            context.cacheDir
+        }
+        return File(parent, CACHE_DIR).apply {
+            if (! exists()) {
+                mkdirs()
+            }
+        }
+    }
+
+    // binaries only load on the driver that made them
+    private fun keyOf(vertexSource: String, fragmentSource: String): String {
+        val digest = MessageDigest.getInstance("SHA-1")
+        listOf(
+            vertexSource,
+            fragmentSource,
+            GLES20.glGetString(GLES20.GL_RENDERER) ?: "",
+            GLES20.glGetString(GLES20.GL_VERSION) ?: "",
+            Build.FINGERPRINT
+        ).forEach { part ->
+            digest.update(part.toByteArray())
+            digest.update(0)
+        }
+        return digest.digest().joinToString("") { String.format("%02x", it) }
+    }
+}
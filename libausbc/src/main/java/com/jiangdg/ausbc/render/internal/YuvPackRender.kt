@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.internal
+
+import android.content.Context
+import android.opengl.GLES20
+import com.jiangdg.ausbc.R
+import com.jiangdg.ausbc.callback.IPreviewDataCallBack
+
+/** Inherit from AbstractFboRender
+ *      pack the rgba capture texture into yuv 4:2:0 with yuv_pack_fragment.glsl
+ *
+ * The fbo is width/4 x height*3/2 rgba, every pixel holds 4 bytes of the yuv buffer, so
+ * reading it back gives NV21, NV12 or I420 as it is and 1.5 bytes per pixel instead of 4.
+ * Needs the width to be a multiple of 8 and the height a multiple of 4, see [isSupported].
+ */
+class YuvPackRender(context: Context) : AbstractFboRender(context) {
+    private var mSizeLocation = -1
+    private var mFormatLocation = -1
+    private var mSrcWidth = 0
+    private var mSrcHeight = 0
+    private var mFormat = IPreviewDataCallBack.DataFormat.NV21
+
+    override fun init() {
+        mSizeLocation = GLES20.glGetUniformLocation(mProgram, "uSize")
+        mFormatLocation = GLES20.glGetUniformLocation(mProgram, "uFormat")
+    }
+
+    /**
+     * Set the packed format
+     *
+     * @param format [IPreviewDataCallBack.DataFormat.NV21], NV12 or I420
+     */
+    fun setFormat(format: IPreviewDataCallBack.DataFormat) {
+        mFormat = format
+    }
+
+    fun getFormat() = mFormat
+
+    /**
+     * Set the size of the rgba source, the fbo is width/4 x height*3/2
+     */
+    override fun setSize(width: Int, height: Int) {
+        mSrcWidth = width
+        mSrcHeight = height
+        super.setSize(width / 4, height * 3 / 2)
+    }
+
+    fun getSrcWidth() = mSrcWidth
+
+    fun getSrcHeight() = mSrcHeight
+
+    override fun beforeDraw() {
+        GLES20.glUniform2f(mSizeLocation, mSrcWidth.toFloat(), mSrcHeight.toFloat())
+        GLES20.glUniform1f(mFormatLocation, when (mFormat) {
+            IPreviewDataCallBack.DataFormat.NV12 -> 1f
+            IPreviewDataCallBack.DataFormat.I420 -> 2f
+            else -> 0f
+        })
+    }
+
+    override fun getVertexSourceId(): Int = R.raw.base_vertex
+
+    override fun getFragmentSourceId(): Int = R.raw.yuv_pack_fragment
+
+    companion object {
+        /**
+         * Can a frame of the size be packed
+         */
+        fun isSupported(width: Int, height: Int) = width > 0 && height > 0 && width % 8 == 0 && height % 4 == 0
+
+        /**
+         * Is a yuv format the render packs
+         */
+        fun isYuvFormat(format: IPreviewDataCallBack.DataFormat) = format == IPreviewDataCallBack.DataFormat.NV21
+                || format == IPreviewDataCallBack.DataFormat.NV12 || format == IPreviewDataCallBack.DataFormat.I420
+    }
+}
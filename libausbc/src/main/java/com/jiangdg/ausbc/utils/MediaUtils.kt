@@ -144,44 +144,27 @@ object MediaUtils {
         return null
     }
 
-    fun saveYuv2Jpeg(path: String, data: ByteArray, width: Int, height: Int): Boolean {
+    /**
+     * Save NV21 to a jpeg file, compressed straight into the file without a copy in memory
+     *
+     * @param quality jpeg quality, [0, 100]
+     */
+    @JvmOverloads
+    fun saveYuv2Jpeg(path: String, data: ByteArray, width: Int, height: Int, quality: Int = 100): Boolean {
         val yuvImage = try {
             YuvImage(data, ImageFormat.NV21, width, height, null)
         } catch (e: Exception) {
             Logger.e(TAG, "create YuvImage failed.", e)
             null
         } ?: return false
-        val bos = ByteArrayOutputStream(data.size)
-        var result = try {
-            yuvImage.compressToJpeg(Rect(0, 0, width, height), 100, bos)
+        return try {
+            BufferedOutputStream(FileOutputStream(File(path))).use { bos ->
+                yuvImage.compressToJpeg(Rect(0, 0, width, height), quality, bos)
+            }
         } catch (e: Exception) {
-            Logger.e(TAG, "compressToJpeg failed.", e)
-            false
-        }
-        if (! result) {
-            return false
-        }
-        val buffer = bos.toByteArray()
-        val file = File(path)
-        val fos: FileOutputStream?
-        try {
-            fos = FileOutputStream(file)
-            fos.write(buffer)
-            fos.close()
-        } catch (e: IOException) {
             Logger.e(TAG, "saveYuv2Jpeg failed.", e)
-            result = false
-            e.printStackTrace()
-        } finally {
-            try {
-                bos.close()
-            } catch (e: IOException) {
-                result = false
-                Logger.e(TAG, "saveYuv2Jpeg failed.", e)
-                e.printStackTrace()
-            }
+            false
         }
-        return result
     }
 
     fun transformYuv2Jpeg(data: ByteArray, width: Int, height: Int): ByteArray? {
@@ -0,0 +1,15 @@
+precision highp float;
+uniform sampler2D uTextureSampler;
+// a quarter of an output pixel in texture coordinates, 0.25 / output size
+uniform vec2 uTapOffset;
+varying vec2 vTextureCoord;
+void main()
+{
+    // four bilinear taps average the 4x4 source texels under an output pixel when
+    // shrinking by 4, plain bilinear would skip most of them and alias
+    vec4 color = texture2D(uTextureSampler, vTextureCoord + vec2(-uTapOffset.x, -uTapOffset.y));
+    color += texture2D(uTextureSampler, vTextureCoord + vec2(uTapOffset.x, -uTapOffset.y));
+    color += texture2D(uTextureSampler, vTextureCoord + vec2(-uTapOffset.x, uTapOffset.y));
+    color += texture2D(uTextureSampler, vTextureCoord + vec2(uTapOffset.x, uTapOffset.y));
+    gl_FragColor = color * 0.25;
+}
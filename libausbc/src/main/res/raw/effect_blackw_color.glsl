@@ -0,0 +1,7 @@
+// black white effect, per pixel so that it can be fused with other color effects
+vec4 effectColor(vec4 color)
+{
+    // Get the grayscale value of each pixel
+    float luminance = color.r * 0.299 + color.g * 0.584 + color.b * 0.114;
+    return vec4(vec3(luminance), color.a);
+}
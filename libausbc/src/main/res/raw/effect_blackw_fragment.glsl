@@ -1,10 +1,17 @@
 precision mediump float;
 uniform sampler2D uTextureSampler;
 varying vec2 vTextureCoord;
-void main()
+// black white effect, per pixel so that it can be fused with other color effects
+vec4 effectColor0(vec4 color)
 {
-    vec4 tempColor = texture2D(uTextureSampler, vTextureCoord);
     // Get the grayscale value of each pixel
-    float luminance = tempColor.r * 0.299 + tempColor.g * 0.584 + tempColor.b * 0.114;
-    gl_FragColor = vec4(vec3(luminance), tempColor.a);
-}
\ No newline at end of file
+    float luminance = color.r * 0.299 + color.g * 0.584 + color.b * 0.114;
+    return vec4(vec3(luminance), color.a);
+}
+
+void main()
+{
+    vec4 color = texture2D(uTextureSampler, vTextureCoord);
+    color = effectColor0(color);
+    gl_FragColor = color;
+}
@@ -0,0 +1,56 @@
+precision highp float;
+uniform sampler2D uTextureSampler;
+// source width and height
+uniform vec2 uSize;
+// 0: NV21, 1: NV12, 2: I420
+uniform float uFormat;
+varying vec2 vTextureCoord;
+
+// BT.601 limited range, as camera NV21
+const vec3 COEF_Y = vec3(0.257, 0.504, 0.098);
+const vec3 COEF_U = vec3(-0.148, -0.291, 0.439);
+const vec3 COEF_V = vec3(0.439, -0.368, -0.071);
+
+// the source pixel (x, y), y is the row of the readback
+vec3 pixel(float x, float y)
+{
+    return texture2D(uTextureSampler, vec2((x + 0.5) / uSize.x, (y + 0.5) / uSize.y)).rgb;
+}
+
+// 2x2 block average at chroma sample (x, y)
+vec2 chroma(float x, float y)
+{
+    vec3 rgb = (pixel(x * 2.0, y * 2.0) + pixel(x * 2.0 + 1.0, y * 2.0)
+        + pixel(x * 2.0, y * 2.0 + 1.0) + pixel(x * 2.0 + 1.0, y * 2.0 + 1.0)) * 0.25;
+    return vec2(dot(rgb, COEF_U), dot(rgb, COEF_V)) + 128.0 / 255.0;
+}
+
+// Every rgba pixel of the width/4 output holds 4 bytes of the yuv buffer. Rows [0, height) are the Y plane,
+// the next height/2 rows the interleaved VU/UV plane, or the U plane and then the V plane, two chroma rows each
+void main()
+{
+    float x = floor(gl_FragCoord.x) * 4.0;
+    float y = floor(gl_FragCoord.y);
+    if (y < uSize.y) {
+        gl_FragColor = vec4(dot(pixel(x, y), COEF_Y), dot(pixel(x + 1.0, y), COEF_Y),
+            dot(pixel(x + 2.0, y), COEF_Y), dot(pixel(x + 3.0, y), COEF_Y)) + 16.0 / 255.0;
+    } else if (uFormat < 1.5) {
+        float cy = y - uSize.y;
+        vec2 uv0 = chroma(x * 0.5, cy);
+        vec2 uv1 = chroma(x * 0.5 + 1.0, cy);
+        gl_FragColor = uFormat < 0.5 ? vec4(uv0.y, uv0.x, uv1.y, uv1.x) : vec4(uv0, uv1);
+    } else {
+        float row = y - uSize.y;
+        float quarter = uSize.y * 0.25;
+        bool isV = row >= quarter;
+        row = isV ? row - quarter : row;
+        float halfWidth = uSize.x * 0.5;
+        float cy = row * 2.0 + (x >= halfWidth ? 1.0 : 0.0);
+        float cx = x >= halfWidth ? x - halfWidth : x;
+        vec2 c0 = chroma(cx, cy);
+        vec2 c1 = chroma(cx + 1.0, cy);
+        vec2 c2 = chroma(cx + 2.0, cy);
+        vec2 c3 = chroma(cx + 3.0, cy);
+        gl_FragColor = isV ? vec4(c0.y, c1.y, c2.y, c3.y) : vec4(c0.x, c1.x, c2.x, c3.x);
+    }
+}
@@ -0,0 +1,537 @@
+/**
+ * host frame time comparison of the preview readback of RenderManager
+ *
+ * renders frames of the capture size into a frame buffer object with a fragment shader doing
+ * some per pixel work, like the effects do, and reads them back the way PixelReader does:
+ * a synchronous glReadPixels each frame, or glReadPixels into a ring of 2 or 3 pixel buffer
+ * objects and mapping the oldest one. Prints the GL thread time per frame of each mode, and
+ * checks that the async readback delivers frame N-(buffers-1) with the right pixels.
+ * Then packs the frames to NV21/NV12/I420 with yuv_pack_fragment.glsl of YuvPackRender before
+ * reading back, and checks the bytes against a conversion of the rgba pixels on the cpu.
+ * Last shrinks the frames to the analysis size with analysis_scale_fragment.glsl of
+ * AnalysisScaleRender, reads back only that, and checks it against the same four bilinear
+ * taps done on the cpu.
+ *
+ * needs EGL and GLES3 headers/libraries, runs from the project root(for the shader sources)
+ * on a software GL on Linux, e.g. Mesa llvmpipe:
+ *
+ *   g++ -O2 libausbc/src/test/cpp/bench_pbo_readback.cpp -lEGL -lGLESv2 -o /tmp/bench_pbo_readback
+ *   EGL_PLATFORM=surfaceless LIBGL_ALWAYS_SOFTWARE=1 /tmp/bench_pbo_readback
+ *
+ * or SwiftShader, with its libEGL.so and libGLESv2.so first in LD_LIBRARY_PATH.
+ *
+ * usage: bench_pbo_readback [width height [frames [analysis_width analysis_height]]]
+ */
+
+#include <EGL/egl.h>
+#include <EGL/eglext.h>
+#include <GLES3/gl3.h>
+#include <algorithm>
+#include <cmath>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <ctime>
+#include <fstream>
+#include <sstream>
+#include <string>
+#include <vector>
+
+#define RAW_DIR "libausbc/src/main/res/raw/"
+
+static const char *VERTEX_SHADER =
+    "#version 300 es\n"
+    "in vec4 aPosition;\n"
+    "out vec2 vCoord;\n"
+    "void main() {\n"
+    "    gl_Position = aPosition;\n"
+    "    vCoord = aPosition.xy * 0.5 + 0.5;\n"
+    "}\n";
+
+// a 9 tap blur of a procedural pattern, see drawFrame for the frame index in the corner
+static const char *FRAGMENT_SHADER =
+    "#version 300 es\n"
+    "precision mediump float;\n"
+    "in vec2 vCoord;\n"
+    "uniform float uFrame;\n"
+    "out vec4 fragColor;\n"
+    "vec3 pattern(vec2 p) {\n"
+    "    return vec3(fract(p.x * 7.0 + uFrame * 0.01), fract(p.y * 5.0), fract((p.x + p.y) * 3.0));\n"
+    "}\n"
+    "void main() {\n"
+    "    vec3 color = vec3(0.0);\n"
+    "    for (int y = -1; y <= 1; y++) {\n"
+    "        for (int x = -1; x <= 1; x++) {\n"
+    "            color += pattern(vCoord + vec2(float(x), float(y)) * 0.002);\n"
+    "        }\n"
+    "    }\n"
+    "    fragColor = vec4(color / 9.0, 1.0);\n"
+    "}\n";
+
+static int failed = 0;
+
+static double nowMs() {
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000.0 + t.tv_nsec / 1000000.0;
+}
+
+static void expect(const char *name, bool ok, const char *detail) {
+    printf("%-40s %-36s %s\n", name, detail, ok ? "ok" : "FAILED");
+    if (!ok) failed++;
+}
+
+static bool initEGL() {
+    EGLDisplay display = eglGetDisplay(EGL_DEFAULT_DISPLAY);
+    if (display == EGL_NO_DISPLAY || !eglInitialize(display, NULL, NULL)) {
+        fprintf(stderr, "eglInitialize failed, 0x%x\n", eglGetError());
+        return false;
+    }
+    const EGLint configAttribs[] = {
+        EGL_RED_SIZE, 8, EGL_GREEN_SIZE, 8, EGL_BLUE_SIZE, 8, EGL_ALPHA_SIZE, 8,
+        EGL_SURFACE_TYPE, EGL_PBUFFER_BIT,
+        EGL_RENDERABLE_TYPE, EGL_OPENGL_ES3_BIT_KHR,
+        EGL_NONE
+    };
+    EGLConfig config;
+    EGLint count = 0;
+    eglBindAPI(EGL_OPENGL_ES_API);
+    if (!eglChooseConfig(display, configAttribs, &config, 1, &count) || count == 0) {
+        fprintf(stderr, "no GLES3 config\n");
+        return false;
+    }
+    // RenderManager asks for a version 2 context, drivers give the highest compatible one
+    const EGLint contextAttribs[] = { EGL_CONTEXT_CLIENT_VERSION, 3, EGL_NONE };
+    EGLContext context = eglCreateContext(display, config, EGL_NO_CONTEXT, contextAttribs);
+    const EGLint surfaceAttribs[] = { EGL_WIDTH, 16, EGL_HEIGHT, 16, EGL_NONE };
+    EGLSurface surface = eglCreatePbufferSurface(display, config, surfaceAttribs);
+    if (context == EGL_NO_CONTEXT || !eglMakeCurrent(display, surface, surface, context)) {
+        fprintf(stderr, "eglMakeCurrent failed, 0x%x\n", eglGetError());
+        return false;
+    }
+    printf("%s, %s\n", glGetString(GL_RENDERER), glGetString(GL_VERSION));
+    return true;
+}
+
+static std::string readFile(const char *path) {
+    std::ifstream in(path);
+    std::stringstream ss;
+    ss << in.rdbuf();
+    return ss.str();
+}
+
+static GLuint loadShader(GLenum type, const char *source) {
+    GLuint shader = glCreateShader(type);
+    glShaderSource(shader, 1, &source, NULL);
+    glCompileShader(shader);
+    GLint ok = 0;
+    glGetShaderiv(shader, GL_COMPILE_STATUS, &ok);
+    if (!ok) {
+        char log[512];
+        glGetShaderInfoLog(shader, sizeof(log), NULL, log);
+        fprintf(stderr, "compile shader failed, %s\n", log);
+    }
+    return shader;
+}
+
+struct Scene {
+    GLuint program;
+    GLint frameLoc;
+    GLuint fbo;
+    GLuint texture;
+    int width;
+    int height;
+};
+
+static void initScene(Scene &scene, int width, int height) {
+    scene.width = width;
+    scene.height = height;
+    scene.program = glCreateProgram();
+    glAttachShader(scene.program, loadShader(GL_VERTEX_SHADER, VERTEX_SHADER));
+    glAttachShader(scene.program, loadShader(GL_FRAGMENT_SHADER, FRAGMENT_SHADER));
+    glBindAttribLocation(scene.program, 0, "aPosition");
+    glLinkProgram(scene.program);
+    scene.frameLoc = glGetUniformLocation(scene.program, "uFrame");
+    glGenTextures(1, &scene.texture);
+    glBindTexture(GL_TEXTURE_2D, scene.texture);
+    glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, NULL);
+    glGenFramebuffers(1, &scene.fbo);
+    glBindFramebuffer(GL_FRAMEBUFFER, scene.fbo);
+    glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, scene.texture, 0);
+    glBindFramebuffer(GL_FRAMEBUFFER, 0);
+}
+
+// the frame index is written to the first pixel, to check which frame a readback got
+static void drawFrame(Scene &scene, int frame) {
+    static const GLfloat quad[] = { -1, -1, 1, -1, -1, 1, 1, 1 };
+    glBindFramebuffer(GL_FRAMEBUFFER, scene.fbo);
+    glViewport(0, 0, scene.width, scene.height);
+    glUseProgram(scene.program);
+    glUniform1f(scene.frameLoc, (float)frame);
+    glVertexAttribPointer(0, 2, GL_FLOAT, GL_FALSE, 0, quad);
+    glEnableVertexAttribArray(0);
+    glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+    glEnable(GL_SCISSOR_TEST);
+    glScissor(0, 0, 1, 1);
+    glClearColor((frame & 0xff) / 255.0f, ((frame >> 8) & 0xff) / 255.0f, 0, 1);
+    glClear(GL_COLOR_BUFFER_BIT);
+    glDisable(GL_SCISSOR_TEST);
+    glBindFramebuffer(GL_FRAMEBUFFER, 0);
+}
+
+static int frameOf(const unsigned char *pixels) {
+    return pixels[0] | (pixels[1] << 8);
+}
+
+// the former path of RenderManager.drawFrame2Capture
+static double runSync(Scene &scene, int frames, int &mismatch) {
+    std::vector<unsigned char> pixels(scene.width * scene.height * 4);
+    mismatch = 0;
+    const double start = nowMs();
+    for (int i = 0; i < frames; i++) {
+        drawFrame(scene, i);
+        glBindFramebuffer(GL_FRAMEBUFFER, scene.fbo);
+        glReadPixels(0, 0, scene.width, scene.height, GL_RGBA, GL_UNSIGNED_BYTE, pixels.data());
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        if (frameOf(pixels.data()) != (i & 0xffff)) mismatch++;
+    }
+    return (nowMs() - start) / frames;
+}
+
+// same steps as PixelReader.readAsync
+static double runPbo(Scene &scene, int frames, int bufferCount, int &mismatch, int &delivered) {
+    const int size = scene.width * scene.height * 4;
+    std::vector<unsigned char> pixels(size);
+    std::vector<GLuint> pboIds(bufferCount);
+    glGenBuffers(bufferCount, pboIds.data());
+    for (int i = 0; i < bufferCount; i++) {
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, pboIds[i]);
+        glBufferData(GL_PIXEL_PACK_BUFFER, size, NULL, GL_STREAM_READ);
+    }
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    mismatch = 0;
+    delivered = 0;
+    long readCount = 0;
+    const double start = nowMs();
+    for (int i = 0; i < frames; i++) {
+        drawFrame(scene, i);
+        const int writeIndex = (int)(readCount % bufferCount);
+        const int readyIndex = (int)((readCount + 1) % bufferCount);
+        glBindFramebuffer(GL_FRAMEBUFFER, scene.fbo);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, pboIds[writeIndex]);
+        glReadPixels(0, 0, scene.width, scene.height, GL_RGBA, GL_UNSIGNED_BYTE, 0);
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        readCount++;
+        if (readCount >= bufferCount) {
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, pboIds[readyIndex]);
+            void *mapped = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, size, GL_MAP_READ_BIT);
+            if (mapped) {
+                memcpy(pixels.data(), mapped, size);
+                glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+                delivered++;
+                if (frameOf(pixels.data()) != ((i - (bufferCount - 1)) & 0xffff)) mismatch++;
+            } else {
+                mismatch++;
+            }
+        }
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    }
+    const double ms = (nowMs() - start) / frames;
+    glDeleteBuffers(bufferCount, pboIds.data());
+    return ms;
+}
+
+struct YuvPack {
+    GLuint program;
+    GLint sizeLoc;
+    GLint formatLoc;
+    GLuint fbo;
+    GLuint texture;
+};
+
+// same setup as YuvPackRender, a width/4 x height*3/2 rgba fbo
+static bool initYuvPack(YuvPack &pack, const Scene &scene) {
+    const std::string vertex = readFile(RAW_DIR "base_vertex.glsl");
+    const std::string fragment = readFile(RAW_DIR "yuv_pack_fragment.glsl");
+    if (vertex.empty() || fragment.empty()) {
+        fprintf(stderr, "shader sources not found, run from the project root\n");
+        return false;
+    }
+    pack.program = glCreateProgram();
+    glAttachShader(pack.program, loadShader(GL_VERTEX_SHADER, vertex.c_str()));
+    glAttachShader(pack.program, loadShader(GL_FRAGMENT_SHADER, fragment.c_str()));
+    glBindAttribLocation(pack.program, 0, "aPosition");
+    glBindAttribLocation(pack.program, 1, "aTextureCoordinate");
+    glLinkProgram(pack.program);
+    pack.sizeLoc = glGetUniformLocation(pack.program, "uSize");
+    pack.formatLoc = glGetUniformLocation(pack.program, "uFormat");
+    glGenTextures(1, &pack.texture);
+    glBindTexture(GL_TEXTURE_2D, pack.texture);
+    glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, scene.width / 4, scene.height * 3 / 2, 0, GL_RGBA, GL_UNSIGNED_BYTE, NULL);
+    glGenFramebuffers(1, &pack.fbo);
+    glBindFramebuffer(GL_FRAMEBUFFER, pack.fbo);
+    glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, pack.texture, 0);
+    glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    // the capture texture is sampled at texel centers, nearest like the fbo textures of AbstractRender
+    glBindTexture(GL_TEXTURE_2D, scene.texture);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+    glBindTexture(GL_TEXTURE_2D, 0);
+    return true;
+}
+
+static void drawYuvPack(const YuvPack &pack, const Scene &scene, int format) {
+    static const GLfloat quad[] = { -1, -1, 0, 0, 1, -1, 1, 0, -1, 1, 0, 1, 1, 1, 1, 1 };
+    glBindFramebuffer(GL_FRAMEBUFFER, pack.fbo);
+    glViewport(0, 0, scene.width / 4, scene.height * 3 / 2);
+    glUseProgram(pack.program);
+    glUniform2f(pack.sizeLoc, (float)scene.width, (float)scene.height);
+    glUniform1f(pack.formatLoc, (float)format);
+    glVertexAttribPointer(0, 2, GL_FLOAT, GL_FALSE, 4 * sizeof(GLfloat), quad);
+    glVertexAttribPointer(1, 2, GL_FLOAT, GL_FALSE, 4 * sizeof(GLfloat), quad + 2);
+    glEnableVertexAttribArray(0);
+    glEnableVertexAttribArray(1);
+    glActiveTexture(GL_TEXTURE0);
+    glBindTexture(GL_TEXTURE_2D, scene.texture);
+    glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+    glBindTexture(GL_TEXTURE_2D, 0);
+    glDisableVertexAttribArray(1);
+    glBindFramebuffer(GL_FRAMEBUFFER, 0);
+}
+
+static unsigned char clampByte(float v) {
+    const int i = (int)(v * 255.0f + 0.5f);
+    return (unsigned char)(i < 0 ? 0 : (i > 255 ? 255 : i));
+}
+
+// cpu reference of the pack shader, format 0: NV21, 1: NV12, 2: I420
+static void rgbaToYuv(const unsigned char *rgba, int width, int height, int format, unsigned char *yuv) {
+    for (int i = 0; i < width * height; i++) {
+        const float r = rgba[i * 4] / 255.0f, g = rgba[i * 4 + 1] / 255.0f, b = rgba[i * 4 + 2] / 255.0f;
+        yuv[i] = clampByte(0.257f * r + 0.504f * g + 0.098f * b + 16.0f / 255.0f);
+    }
+    unsigned char *chroma = yuv + width * height;
+    const int cw = width / 2, ch = height / 2;
+    for (int y = 0; y < ch; y++) {
+        for (int x = 0; x < cw; x++) {
+            float r = 0, g = 0, b = 0;
+            for (int k = 0; k < 4; k++) {
+                const unsigned char *p = rgba + ((y * 2 + k / 2) * width + x * 2 + k % 2) * 4;
+                r += p[0] / 1020.0f;
+                g += p[1] / 1020.0f;
+                b += p[2] / 1020.0f;
+            }
+            const unsigned char u = clampByte(-0.148f * r - 0.291f * g + 0.439f * b + 128.0f / 255.0f);
+            const unsigned char v = clampByte(0.439f * r - 0.368f * g - 0.071f * b + 128.0f / 255.0f);
+            const int i = y * cw + x;
+            if (format == 2) {
+                chroma[i] = u;
+                chroma[cw * ch + i] = v;
+            } else {
+                chroma[i * 2] = format == 0 ? v : u;
+                chroma[i * 2 + 1] = format == 0 ? u : v;
+            }
+        }
+    }
+}
+
+static void runYuvPack(Scene &scene, int frames, double rgbaMs) {
+    YuvPack pack;
+    if (!initYuvPack(pack, scene)) {
+        failed++;
+        return;
+    }
+    static const char *NAMES[] = { "NV21", "NV12", "I420" };
+    const int size = scene.width * scene.height;
+    std::vector<unsigned char> rgba(size * 4);
+    std::vector<unsigned char> yuv(size * 3 / 2);
+    std::vector<unsigned char> expected(size * 3 / 2);
+    char name[64], detail[64];
+    for (int format = 0; format < 3; format++) {
+        const double start = nowMs();
+        for (int i = 0; i < frames; i++) {
+            drawFrame(scene, i);
+            drawYuvPack(pack, scene, format);
+            glBindFramebuffer(GL_FRAMEBUFFER, pack.fbo);
+            glReadPixels(0, 0, scene.width / 4, scene.height * 3 / 2, GL_RGBA, GL_UNSIGNED_BYTE, yuv.data());
+            glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        }
+        const double ms = (nowMs() - start) / frames;
+        printf("pack %s + read  %7.3f ms/frame, x%.2f, %d bytes instead of %d\n",
+            NAMES[format], ms, rgbaMs / ms, size * 3 / 2, size * 4);
+        // the last frame against the cpu conversion of its rgba pixels
+        glBindFramebuffer(GL_FRAMEBUFFER, scene.fbo);
+        glReadPixels(0, 0, scene.width, scene.height, GL_RGBA, GL_UNSIGNED_BYTE, rgba.data());
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        rgbaToYuv(rgba.data(), scene.width, scene.height, format, expected.data());
+        int maxDiff = 0;
+        for (int i = 0; i < size * 3 / 2; i++) {
+            const int diff = abs((int)yuv[i] - (int)expected[i]);
+            if (diff > maxDiff) maxDiff = diff;
+        }
+        snprintf(name, sizeof(name), "%s matches the cpu conversion", NAMES[format]);
+        snprintf(detail, sizeof(detail), "max diff %d", maxDiff);
+        expect(name, maxDiff <= 2, detail);
+    }
+}
+
+struct Analysis {
+    GLuint program;
+    GLint mvpLoc;
+    GLint tapLoc;
+    GLuint fbo;
+    GLuint texture;
+    int width;
+    int height;
+};
+
+// same setup as AnalysisScaleRender, flipped like CaptureRender
+static bool initAnalysis(Analysis &analysis, int width, int height) {
+    const std::string vertex = readFile(RAW_DIR "capture_vertex.glsl");
+    const std::string fragment = readFile(RAW_DIR "analysis_scale_fragment.glsl");
+    if (vertex.empty() || fragment.empty()) {
+        fprintf(stderr, "shader sources not found, run from the project root\n");
+        return false;
+    }
+    analysis.width = width;
+    analysis.height = height;
+    analysis.program = glCreateProgram();
+    glAttachShader(analysis.program, loadShader(GL_VERTEX_SHADER, vertex.c_str()));
+    glAttachShader(analysis.program, loadShader(GL_FRAGMENT_SHADER, fragment.c_str()));
+    glBindAttribLocation(analysis.program, 0, "aPosition");
+    glBindAttribLocation(analysis.program, 1, "aTextureCoordinate");
+    glLinkProgram(analysis.program);
+    analysis.mvpLoc = glGetUniformLocation(analysis.program, "uMVPMatrix");
+    analysis.tapLoc = glGetUniformLocation(analysis.program, "uTapOffset");
+    glGenTextures(1, &analysis.texture);
+    glBindTexture(GL_TEXTURE_2D, analysis.texture);
+    glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, NULL);
+    glBindTexture(GL_TEXTURE_2D, 0);
+    glGenFramebuffers(1, &analysis.fbo);
+    glBindFramebuffer(GL_FRAMEBUFFER, analysis.fbo);
+    glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, analysis.texture, 0);
+    glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    return true;
+}
+
+static void drawAnalysis(const Analysis &analysis, const Scene &scene) {
+    static const GLfloat quad[] = { -1, -1, 0, 0, 1, -1, 1, 0, -1, 1, 0, 1, 1, 1, 1, 1 };
+    static const GLfloat flip[] = { 1, 0, 0, 0, 0, -1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1 };
+    glBindFramebuffer(GL_FRAMEBUFFER, analysis.fbo);
+    glViewport(0, 0, analysis.width, analysis.height);
+    glUseProgram(analysis.program);
+    glUniformMatrix4fv(analysis.mvpLoc, 1, GL_FALSE, flip);
+    glUniform2f(analysis.tapLoc, 0.25f / analysis.width, 0.25f / analysis.height);
+    glVertexAttribPointer(0, 2, GL_FLOAT, GL_FALSE, 4 * sizeof(GLfloat), quad);
+    glVertexAttribPointer(1, 2, GL_FLOAT, GL_FALSE, 4 * sizeof(GLfloat), quad + 2);
+    glEnableVertexAttribArray(0);
+    glEnableVertexAttribArray(1);
+    glActiveTexture(GL_TEXTURE0);
+    glBindTexture(GL_TEXTURE_2D, scene.texture);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+    glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+    glBindTexture(GL_TEXTURE_2D, 0);
+    glDisableVertexAttribArray(1);
+    glBindFramebuffer(GL_FRAMEBUFFER, 0);
+}
+
+// GL_LINEAR with GL_CLAMP_TO_EDGE of one channel, rgba rows bottom up as read back
+static float bilinear(const unsigned char *rgba, int width, int height, float u, float v, int channel) {
+    const float x = u * width - 0.5f;
+    const float y = v * height - 0.5f;
+    const int x0 = (int)floorf(x);
+    const int y0 = (int)floorf(y);
+    const float fx = x - x0;
+    const float fy = y - y0;
+    float value = 0.0f;
+    for (int j = 0; j <= 1; j++) {
+        for (int i = 0; i <= 1; i++) {
+            const int px = std::min(std::max(x0 + i, 0), width - 1);
+            const int py = std::min(std::max(y0 + j, 0), height - 1);
+            const float weight = (i ? fx : 1.0f - fx) * (j ? fy : 1.0f - fy);
+            value += weight * rgba[(py * width + px) * 4 + channel];
+        }
+    }
+    return value;
+}
+
+static void runAnalysis(Scene &scene, int frames, double rgbaMs, int width, int height) {
+    Analysis analysis;
+    if (!initAnalysis(analysis, width, height)) {
+        failed++;
+        return;
+    }
+    std::vector<unsigned char> small(width * height * 4);
+    std::vector<unsigned char> rgba(scene.width * scene.height * 4);
+    const double start = nowMs();
+    for (int i = 0; i < frames; i++) {
+        drawFrame(scene, i);
+        drawAnalysis(analysis, scene);
+        glBindFramebuffer(GL_FRAMEBUFFER, analysis.fbo);
+        glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, small.data());
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+    const double ms = (nowMs() - start) / frames;
+    printf("scale %dx%d + read %7.3f ms/frame, x%.2f, %d bytes instead of %d\n",
+        width, height, ms, rgbaMs / ms, width * height * 4, scene.width * scene.height * 4);
+    // the last frame against the cpu taps, the output is upside down
+    glBindFramebuffer(GL_FRAMEBUFFER, scene.fbo);
+    glReadPixels(0, 0, scene.width, scene.height, GL_RGBA, GL_UNSIGNED_BYTE, rgba.data());
+    glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    const float tapX = 0.25f / width;
+    const float tapY = 0.25f / height;
+    int maxDiff = 0;
+    for (int y = 0; y < height; y++) {
+        const float v = 1.0f - (y + 0.5f) / height;
+        for (int x = 0; x < width; x++) {
+            const float u = (x + 0.5f) / width;
+            for (int c = 0; c < 4; c++) {
+                const float value = (bilinear(rgba.data(), scene.width, scene.height, u - tapX, v - tapY, c)
+                    + bilinear(rgba.data(), scene.width, scene.height, u + tapX, v - tapY, c)
+                    + bilinear(rgba.data(), scene.width, scene.height, u - tapX, v + tapY, c)
+                    + bilinear(rgba.data(), scene.width, scene.height, u + tapX, v + tapY, c)) * 0.25f;
+                const int diff = abs((int)small[(y * width + x) * 4 + c] - (int)(value + 0.5f));
+                if (diff > maxDiff) maxDiff = diff;
+            }
+        }
+    }
+    char detail[64];
+    snprintf(detail, sizeof(detail), "max diff %d", maxDiff);
+    expect("analysis matches the cpu taps", maxDiff <= 2, detail);
+}
+
+int main(int argc, char *argv[]) {
+    const int width = argc > 2 ? atoi(argv[1]) : 1280;
+    const int height = argc > 2 ? atoi(argv[2]) : 720;
+    const int frames = argc > 3 ? atoi(argv[3]) : 300;
+    const int analysisWidth = argc > 5 ? atoi(argv[4]) : 320;
+    const int analysisHeight = argc > 5 ? atoi(argv[5]) : 240;
+    if (!initEGL()) {
+        return 1;
+    }
+    Scene scene;
+    initScene(scene, width, height);
+    printf("%dx%d, %d frames\n", width, height, frames);
+    char detail[64];
+    int mismatch = 0;
+    int delivered = 0;
+    runSync(scene, 10, mismatch);    // warm up
+    const double syncMs = runSync(scene, frames, mismatch);
+    printf("glReadPixels     %7.3f ms/frame\n", syncMs);
+    snprintf(detail, sizeof(detail), "%d wrong frames", mismatch);
+    expect("sync readback gets frame N", mismatch == 0, detail);
+    for (int buffers = 2; buffers <= 3; buffers++) {
+        const double ms = runPbo(scene, frames, buffers, mismatch, delivered);
+        printf("pbo x%d           %7.3f ms/frame, x%.2f\n", buffers, ms, syncMs / ms);
+        snprintf(detail, sizeof(detail), "%d delivered, %d wrong frames", delivered, mismatch);
+        char name[64];
+        snprintf(name, sizeof(name), "pbo x%d readback gets frame N-%d", buffers, buffers - 1);
+        expect(name, mismatch == 0 && delivered == frames - (buffers - 1), detail);
+    }
+    if (width % 8 == 0 && height % 4 == 0) {
+        runYuvPack(scene, frames, syncMs);
+    }
+    runAnalysis(scene, frames, syncMs, analysisWidth, analysisHeight);
+    return failed;
+}
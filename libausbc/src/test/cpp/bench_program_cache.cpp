@@ -0,0 +1,234 @@
+/**
+ * host time comparison of the programs made when RenderManager opens a camera
+ *
+ * compiles and links the shader pairs of the renders from libausbc/src/main/res/raw the way
+ * AbstractRender.initGLES did on every open, then gets their glGetProgramBinary output and
+ * loads them again with glProgramBinary the way ProgramCache does on a warm start. Prints the
+ * time of each pair and of the whole set a camera open needs, and checks that the programs
+ * from binaries link and have the same attributes and uniforms.
+ *
+ * needs EGL and GLES3 headers/libraries, runs from the project root(for the shader sources)
+ * on a software GL on Linux, e.g. Mesa llvmpipe, with its own shader cache off so that the
+ * cold numbers are cold:
+ *
+ *   g++ -O2 libausbc/src/test/cpp/bench_program_cache.cpp -lEGL -lGLESv2 -o /tmp/bench_program_cache
+ *   MESA_SHADER_CACHE_DISABLE=true EGL_PLATFORM=surfaceless /tmp/bench_program_cache
+ *
+ * usage: bench_program_cache [rounds]
+ */
+
+#include <EGL/egl.h>
+#include <EGL/eglext.h>
+#include <GLES3/gl3.h>
+#include <cstdio>
+#include <cstdlib>
+#include <ctime>
+#include <fstream>
+#include <string>
+#include <vector>
+
+#define RAW_DIR "libausbc/src/main/res/raw/"
+
+struct ShaderPair {
+    const char *render;
+    const char *vertex;
+    const char *fragment;
+    bool onOpen;    // made by every camera open, before the first frame
+};
+
+static const ShaderPair PAIRS[] = {
+    { "ScreenRender",        "base_vertex.glsl",    "base_fragment.glsl",             true },
+    { "CameraRender",        "camera_vertex.glsl",  "camera_fragment.glsl",           true },
+    { "CaptureRender",       "capture_vertex.glsl", "base_fragment.glsl",             true },
+    { "YuvPackRender",       "base_vertex.glsl",    "yuv_pack_fragment.glsl",         false },
+    { "AnalysisScaleRender", "capture_vertex.glsl", "analysis_scale_fragment.glsl",   false },
+    { "EffectBlackWhite",    "base_vertex.glsl",    "effect_blackw_fragment.glsl",    false },
+    { "EffectSoul",          "base_vertex.glsl",    "effect_soul_fragment.glsl",      false },
+    { "EffectZoom",          "effect_zoom_vertex.glsl", "base_fragment.glsl",         false },
+};
+
+static int failed = 0;
+
+static double nowMs() {
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000.0 + t.tv_nsec / 1000000.0;
+}
+
+static void expect(const char *name, bool ok, const char *detail) {
+    printf("%-40s %-36s %s\n", name, detail, ok ? "ok" : "FAILED");
+    if (!ok) failed++;
+}
+
+static bool initEGL() {
+    EGLDisplay display = eglGetDisplay(EGL_DEFAULT_DISPLAY);
+    if (display == EGL_NO_DISPLAY || !eglInitialize(display, NULL, NULL)) {
+        fprintf(stderr, "eglInitialize failed, 0x%x\n", eglGetError());
+        return false;
+    }
+    const EGLint configAttribs[] = {
+        EGL_RED_SIZE, 8, EGL_GREEN_SIZE, 8, EGL_BLUE_SIZE, 8, EGL_ALPHA_SIZE, 8,
+        EGL_SURFACE_TYPE, EGL_PBUFFER_BIT,
+        EGL_RENDERABLE_TYPE, EGL_OPENGL_ES3_BIT_KHR,
+        EGL_NONE
+    };
+    EGLConfig config;
+    EGLint count = 0;
+    eglBindAPI(EGL_OPENGL_ES_API);
+    if (!eglChooseConfig(display, configAttribs, &config, 1, &count) || count == 0) {
+        fprintf(stderr, "no GLES3 config\n");
+        return false;
+    }
+    const EGLint contextAttribs[] = { EGL_CONTEXT_CLIENT_VERSION, 3, EGL_NONE };
+    EGLContext context = eglCreateContext(display, config, EGL_NO_CONTEXT, contextAttribs);
+    const EGLint surfaceAttribs[] = { EGL_WIDTH, 16, EGL_HEIGHT, 16, EGL_NONE };
+    EGLSurface surface = eglCreatePbufferSurface(display, config, surfaceAttribs);
+    if (context == EGL_NO_CONTEXT || !eglMakeCurrent(display, surface, surface, context)) {
+        fprintf(stderr, "eglMakeCurrent failed, 0x%x\n", eglGetError());
+        return false;
+    }
+    printf("%s, %s\n", glGetString(GL_RENDERER), glGetString(GL_VERSION));
+    return true;
+}
+
+// line by line like MediaUtils.readRawTextFile
+static std::string readSource(const char *name) {
+    std::ifstream in(std::string(RAW_DIR) + name);
+    std::string source, line;
+    while (std::getline(in, line)) {
+        source += line;
+        source += "\n";
+    }
+    return source;
+}
+
+static GLuint loadShader(GLenum type, const std::string &source) {
+    const char *text = source.c_str();
+    GLuint shader = glCreateShader(type);
+    glShaderSource(shader, 1, &text, NULL);
+    glCompileShader(shader);
+    GLint ok = 0;
+    glGetShaderiv(shader, GL_COMPILE_STATUS, &ok);
+    if (!ok) {
+        glDeleteShader(shader);
+        return 0;
+    }
+    return shader;
+}
+
+static bool isLinked(GLuint program) {
+    GLint ok = 0;
+    glGetProgramiv(program, GL_LINK_STATUS, &ok);
+    return ok == GL_TRUE;
+}
+
+// same steps as ProgramCache.linkProgram
+static GLuint linkProgram(const std::string &vertex, const std::string &fragment) {
+    GLuint vertexShader = loadShader(GL_VERTEX_SHADER, vertex);
+    GLuint fragmentShader = loadShader(GL_FRAGMENT_SHADER, fragment);
+    if (vertexShader == 0 || fragmentShader == 0) {
+        if (vertexShader) glDeleteShader(vertexShader);
+        if (fragmentShader) glDeleteShader(fragmentShader);
+        return 0;
+    }
+    GLuint program = glCreateProgram();
+    glAttachShader(program, vertexShader);
+    glAttachShader(program, fragmentShader);
+    glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+    glLinkProgram(program);
+    glDetachShader(program, vertexShader);
+    glDetachShader(program, fragmentShader);
+    glDeleteShader(vertexShader);
+    glDeleteShader(fragmentShader);
+    if (!isLinked(program)) {
+        glDeleteProgram(program);
+        return 0;
+    }
+    return program;
+}
+
+static GLuint loadBinary(GLenum format, const std::vector<unsigned char> &binary) {
+    GLuint program = glCreateProgram();
+    glProgramBinary(program, format, binary.data(), (GLsizei)binary.size());
+    if (!isLinked(program)) {
+        glGetError();
+        glDeleteProgram(program);
+        return 0;
+    }
+    return program;
+}
+
+static GLint programInt(GLuint program, GLenum name) {
+    GLint value = 0;
+    glGetProgramiv(program, name, &value);
+    return value;
+}
+
+int main(int argc, char *argv[]) {
+    const int rounds = argc > 1 ? atoi(argv[1]) : 20;
+    if (!initEGL()) {
+        return 1;
+    }
+    GLint formats = 0;
+    glGetIntegerv(GL_NUM_PROGRAM_BINARY_FORMATS, &formats);
+    if (formats == 0) {
+        fprintf(stderr, "no program binary formats, ProgramCache only keeps the sources here\n");
+        return 1;
+    }
+    printf("%d rounds\n", rounds);
+    printf("%-20s %12s %12s %12s\n", "render", "compile ms", "binary ms", "binary bytes");
+    double openCompileMs = 0;
+    double openBinaryMs = 0;
+    char name[64], detail[64];
+    for (const ShaderPair &pair : PAIRS) {
+        const std::string vertex = readSource(pair.vertex);
+        const std::string fragment = readSource(pair.fragment);
+        if (vertex.empty() || fragment.empty()) {
+            fprintf(stderr, "shader sources not found, run from the project root\n");
+            return 1;
+        }
+        GLuint program = linkProgram(vertex, fragment);
+        if (program == 0) {
+            // e.g. samplerExternalOES of CameraRender on a desktop driver
+            printf("%-20s %12s\n", pair.render, "skipped, not supported by this driver");
+            continue;
+        }
+        GLint length = programInt(program, GL_PROGRAM_BINARY_LENGTH);
+        std::vector<unsigned char> binary(length);
+        GLenum format = 0;
+        glGetProgramBinary(program, length, &length, &format, binary.data());
+        binary.resize(length);
+
+        double start = nowMs();
+        for (int i = 0; i < rounds; i++) {
+            glDeleteProgram(linkProgram(readSource(pair.vertex), readSource(pair.fragment)));
+        }
+        const double compileMs = (nowMs() - start) / rounds;
+        bool loaded = true;
+        start = nowMs();
+        for (int i = 0; i < rounds; i++) {
+            GLuint fromBinary = loadBinary(format, binary);
+            loaded = loaded && fromBinary != 0;
+            glDeleteProgram(fromBinary);
+        }
+        const double binaryMs = (nowMs() - start) / rounds;
+        printf("%-20s %12.3f %12.3f %12d\n", pair.render, compileMs, binaryMs, length);
+        if (pair.onOpen) {
+            openCompileMs += compileMs;
+            openBinaryMs += binaryMs;
+        }
+
+        GLuint fromBinary = loadBinary(format, binary);
+        const bool same = fromBinary != 0
+            && programInt(fromBinary, GL_ACTIVE_ATTRIBUTES) == programInt(program, GL_ACTIVE_ATTRIBUTES)
+            && programInt(fromBinary, GL_ACTIVE_UNIFORMS) == programInt(program, GL_ACTIVE_UNIFORMS);
+        snprintf(name, sizeof(name), "%s loads from its binary", pair.render);
+        snprintf(detail, sizeof(detail), "%s, %d bytes", loaded ? "linked" : "rejected", length);
+        expect(name, loaded && same, detail);
+        glDeleteProgram(fromBinary);
+        glDeleteProgram(program);
+    }
+    printf("camera open programs: compile %.3f ms, from binary %.3f ms, x%.2f\n",
+        openCompileMs, openBinaryMs, openBinaryMs > 0 ? openCompileMs / openBinaryMs : 0.0);
+    return failed;
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+/**
+ * Checks [AsyncInputScheduler], also on a simulated stream with a codec of a few input buffers
+ * and a fixed encode time, on a virtual clock so that the results don't depend on the machine.
+ */
+class AsyncInputSchedulerTest {
+
+    @Test
+    fun frame_waitsForInputBuffer() {
+        val frames = ArrayDeque<Int>()
+        val fed = ArrayList<Pair<Int, Int>>()
+        val scheduler = AsyncInputScheduler(frames::poll) { index, frame ->
+            fed.add(index to frame)
+            true
+        }
+        frames.offer(100)
+        scheduler.onFrameAvailable()
+        assertTrue(fed.isEmpty())
+        scheduler.onInputBufferAvailable(0)
+        assertEquals(listOf(0 to 100), fed)
+        assertEquals(0, scheduler.freeInputCount())
+    }
+
+    @Test
+    fun inputBuffers_waitForFrames() {
+        val frames = ArrayDeque<Int>()
+        val fed = ArrayList<Pair<Int, Int>>()
+        val scheduler = AsyncInputScheduler(frames::poll) { index, frame ->
+            fed.add(index to frame)
+            true
+        }
+        scheduler.onInputBufferAvailable(0)
+        scheduler.onInputBufferAvailable(1)
+        assertEquals(2, scheduler.freeInputCount())
+        frames.offer(100)
+        frames.offer(101)
+        frames.offer(102)
+        scheduler.onFrameAvailable()
+        assertEquals(listOf(0 to 100, 1 to 101), fed)
+        assertEquals(listOf(102), frames.toList())
+    }
+
+    @Test
+    fun rejectedFrame_keepsInputBuffer() {
+        val frames = ArrayDeque(listOf(100, 101))
+        val fed = ArrayList<Pair<Int, Int>>()
+        val scheduler = AsyncInputScheduler(frames::poll) { index, frame ->
+            // e.g. a frame of the wrong size
+            if (frame == 100) {
+                return@AsyncInputScheduler false
+            }
+            fed.add(index to frame)
+            true
+        }
+        scheduler.onInputBufferAvailable(3)
+        assertEquals(listOf(3 to 101), fed)
+        assertEquals(0, scheduler.freeInputCount())
+    }
+
+    @Test
+    fun reset_forgetsInputBuffers() {
+        val frames = ArrayDeque<Int>()
+        val fed = ArrayList<Pair<Int, Int>>()
+        val scheduler = AsyncInputScheduler(frames::poll) { index, frame ->
+            fed.add(index to frame)
+            true
+        }
+        scheduler.onInputBufferAvailable(0)
+        scheduler.reset()
+        assertEquals(0, scheduler.freeInputCount())
+        frames.offer(100)
+        scheduler.onFrameAvailable()
+        assertTrue(fed.isEmpty())
+    }
+
+    @Test
+    fun stream_pollsOnlyOnEvents() {
+        val sim = Simulation(FRAME_INTERVAL_MS, ENCODE_MS)
+        sim.run(FRAMES)
+        assertEquals(FRAMES, sim.fed.size)
+        // the codec is faster than the camera, every frame goes in when it arrives
+        assertEquals(0L, sim.maxWaitMs)
+        // codec start, one frame message and one input buffer back per frame
+        assertEquals(INPUT_BUFFERS + 2 * FRAMES, sim.events)
+        // a polling loop polls per timeout, the scheduler at most twice per event
+        assertTrue("${sim.polls} polls for ${sim.events} events", sim.polls <= 2 * sim.events)
+        assertEquals(0, sim.freeInputWhileFrameWaits)
+    }
+
+    @Test
+    fun stream_queuesBackloggedFramesInOrder() {
+        // frames come twice as fast as the codec encodes them
+        val sim = Simulation(ENCODE_MS / 2, ENCODE_MS)
+        sim.run(FRAMES)
+        assertEquals((0 until FRAMES).map { it * ENCODE_MS / 2 }, sim.fed)
+        assertTrue(sim.maxWaitMs > 0)
+        // an input buffer never waits while a frame is pending
+        assertEquals(0, sim.freeInputWhileFrameWaits)
+    }
+
+    /**
+     * Discrete time model of the encode thread in callback mode, time jumps from event to event
+     *
+     * A frame, stamped with its capture time, arrives every frameIntervalMs. The codec
+     * encodes the queued inputs one after the other and hands each input buffer back
+     * encodeMs after it started encoding it.
+     */
+    private class Simulation(private val frameIntervalMs: Long, private val encodeMs: Long) {
+        private val mEvents = PriorityQueue<Event>(compareBy<Event>({ it.timeMs }, { it.seq }))
+        private val mFrames = ArrayDeque<Long>()
+        private val mScheduler = AsyncInputScheduler(::pollFrame, ::queueInput)
+        private var mNowMs = 0L
+        private var mSeq = 0
+        private var mCodecBusyUntilMs = 0L
+        val fed = ArrayList<Long>()
+        var polls = 0
+        var events = 0
+        var maxWaitMs = 0L
+        var freeInputWhileFrameWaits = 0
+
+        fun run(frames: Int) {
+            for (index in 0 until INPUT_BUFFERS) {
+                post(0) { mScheduler.onInputBufferAvailable(index) }
+            }
+            for (i in 0 until frames) {
+                post(i * frameIntervalMs) {
+                    mFrames.offer(mNowMs)
+                    mScheduler.onFrameAvailable()
+                }
+            }
+            while (mEvents.isNotEmpty()) {
+                val event = mEvents.poll()!!
+                mNowMs = event.timeMs
+                events++
+                event.action()
+                if (mScheduler.freeInputCount() > 0 && mFrames.isNotEmpty()) {
+                    freeInputWhileFrameWaits++
+                }
+            }
+        }
+
+        private fun pollFrame(): Long? {
+            polls++
+            return mFrames.poll()
+        }
+
+        private fun queueInput(index: Int, captureMs: Long): Boolean {
+            fed.add(captureMs)
+            maxWaitMs = maxOf(maxWaitMs, mNowMs - captureMs)
+            mCodecBusyUntilMs = maxOf(mNowMs, mCodecBusyUntilMs) + encodeMs
+            post(mCodecBusyUntilMs) { mScheduler.onInputBufferAvailable(index) }
+            return true
+        }
+
+        private fun post(timeMs: Long, action: () -> Unit) {
+            mEvents.offer(Event(timeMs, mSeq++, action))
+        }
+
+        private class Event(val timeMs: Long, val seq: Int, val action: () -> Unit)
+    }
+
+    companion object {
+        private const val INPUT_BUFFERS = 4
+        private const val ENCODE_MS = 4L
+        private const val FRAME_INTERVAL_MS = 33L
+        private const val FRAMES = 30
+    }
+}
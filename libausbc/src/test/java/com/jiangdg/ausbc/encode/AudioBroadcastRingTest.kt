@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode
+
+import com.jiangdg.ausbc.encode.audio.AudioBroadcastRing
+import org.junit.Assert.*
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
+
+/**
+ * Runs [AudioBroadcastRing] with a capture thread writing a numbered chunk every [CHUNK_MS]
+ * and readers that keep up, fall behind, attach late and detach midway.
+ */
+class AudioBroadcastRingTest {
+    private val mRunning = AtomicBoolean(true)
+
+    @Test
+    fun fastReader_getsEveryChunk() {
+        val ring = AudioBroadcastRing(CAPACITY)
+        val seqs = ArrayList<Int>()
+        var overrun = -1L
+        val reader = startReader(ring, "fast") { reader, running ->
+            while (running.get()) {
+                if (reader.read(100L)) {
+                    seqs.add(seqOf(reader))
+                }
+            }
+            overrun = reader.getOverrunCount()
+        }
+        writeChunks(ring)
+        reader.join()
+        assertEquals((0 until CHUNKS).toList(), seqs)
+        assertEquals(0L, overrun)
+        assertEquals(0, ring.getReaderCount())
+    }
+
+    @Test
+    fun slowReader_countsLostChunks() {
+        val ring = AudioBroadcastRing(CAPACITY)
+        val seqs = ArrayList<Int>()
+        var overrun = 0L
+        var left = 0L
+        // slower than the capture, e.g. a blocked file write
+        val reader = startReader(ring, "slow") { reader, running ->
+            while (running.get()) {
+                if (reader.read(100L)) {
+                    seqs.add(seqOf(reader))
+                    Thread.sleep(CHUNK_MS * 3)
+                }
+            }
+            overrun = reader.getOverrunCount()
+            left = reader.getLag()
+        }
+        writeChunks(ring)
+        reader.join()
+        assertTrue("overrun $overrun", overrun > 0)
+        assertEquals(CHUNKS.toLong(), seqs.size + overrun + left)
+        assertTrue(seqs.zipWithNext().all { (a, b) -> b > a })
+    }
+
+    @Test
+    fun lateReader_startsAtAttach() {
+        val ring = AudioBroadcastRing(CAPACITY)
+        val seqs = ArrayList<Int>()
+        var late: Thread? = null
+        writeChunks(ring) { i ->
+            if (i == CHUNKS / 2) {
+                late = thread {
+                    val reader = ring.attach("late")
+                    while (reader.read(100L)) {
+                        seqs.add(seqOf(reader))
+                        // detaches midway
+                        if (seqs.size == CHUNKS / 4) {
+                            reader.close()
+                        }
+                    }
+                }
+            }
+        }
+        late?.join()
+        assertEquals(CHUNKS / 4, seqs.size)
+        assertTrue("first ${seqs.first()}", seqs.first() >= CHUNKS / 2 - 1)
+        assertTrue(seqs.zipWithNext().all { (a, b) -> b == a + 1 })
+        assertEquals(0, ring.getReaderCount())
+    }
+
+    @Test
+    fun close_wakesBlockedRead() {
+        val ring = AudioBroadcastRing(CAPACITY)
+        val blocked = ring.attach("blocked")
+        var result = true
+        val waiter = thread { result = blocked.read(10000L) }
+        Thread.sleep(50L)
+        val closeStart = System.nanoTime()
+        blocked.close()
+        waiter.join()
+        assertFalse(result)
+        assertTrue(System.nanoTime() - closeStart < 1000000000L)
+    }
+
+    @Test
+    fun blockingRead_usesLessCpuThanSpinningPoll() {
+        val ring = AudioBroadcastRing(CAPACITY)
+        var readerCpu = 0L
+        val reader = startReader(ring, "fast") { reader, running ->
+            while (running.get()) {
+                reader.read(100L)
+            }
+            readerCpu = cpuMs()
+        }
+        // a consumer of the former per-consumer ConcurrentLinkedQueue
+        val queue = ConcurrentLinkedQueue<ByteArray>()
+        val spinning = AtomicBoolean(true)
+        var spinCpu = 0L
+        val spin = thread {
+            while (spinning.get()) {
+                queue.poll()
+            }
+            spinCpu = cpuMs()
+        }
+        writeChunks(ring) { queue.offer(ByteArray(CHUNK_SIZE)) }
+        spinning.set(false)
+        reader.join()
+        spin.join()
+        assertTrue("cpu ${readerCpu}ms, spinning poll ${spinCpu}ms", readerCpu * 10 < spinCpu)
+    }
+
+    /**
+     * Attach a reader and run it on its own thread until [writeChunks] is done, the reader is closed after
+     */
+    private fun startReader(ring: AudioBroadcastRing, name: String,
+                            loop: (AudioBroadcastRing.Reader, AtomicBoolean) -> Unit): Thread {
+        val ready = CountDownLatch(1)
+        val worker = thread {
+            val reader = ring.attach(name)
+            ready.countDown()
+            loop(reader, mRunning)
+            reader.close()
+        }
+        ready.await()
+        return worker
+    }
+
+    /**
+     * Write [CHUNKS] chunks numbered from 0 like the capture thread, then stop the readers
+     */
+    private fun writeChunks(ring: AudioBroadcastRing, onChunk: (Int) -> Unit = {}) {
+        val chunk = ByteArray(CHUNK_SIZE)
+        for (i in 0 until CHUNKS) {
+            onChunk(i)
+            ByteBuffer.wrap(chunk).putInt(i)
+            ring.write(chunk, CHUNK_SIZE, System.nanoTime())
+            Thread.sleep(CHUNK_MS)
+        }
+        Thread.sleep(200L)
+        mRunning.set(false)
+    }
+
+    private fun seqOf(reader: AudioBroadcastRing.Reader) = ByteBuffer.wrap(reader.data, 0, reader.size).int
+
+    private fun cpuMs() = ManagementFactory.getThreadMXBean().getThreadCpuTime(Thread.currentThread().id) / 1000000L
+
+    companion object {
+        private const val CHUNK_MS = 10L
+        private const val CHUNKS = 100
+        private const val CHUNK_SIZE = 640
+        private const val CAPACITY = 16
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode
+
+import com.jiangdg.ausbc.encode.bean.EncoderInfo
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.File
+
+/**
+ * Checks [EncoderRegistry] against a fake codec list: encoder selection, the cache file
+ * and its invalidation.
+ */
+class EncoderRegistryTest {
+    private val mFile = File.createTempFile("encoder_capabilities", null).apply { delete() }
+    private var mSourceCalls = 0
+    private val mSource = {
+        mSourceCalls++
+        FAKE_CODECS
+    }
+
+    @After
+    fun tearDown() {
+        mFile.delete()
+    }
+
+    @Test
+    fun select_skipsSoftwareEncoders() {
+        val registry = EncoderRegistry(mSource)
+        assertEquals("c2.vendor.avc.encoder", registry.select(AVC, 1280, 720, 30, BUFFER)?.name)
+        assertEquals("c2.vendor.avc.encoder", registry.select(AVC, 720, 1280, 30, emptyList())?.name)
+        assertEquals("OMX.vendor.avc.planar", registry.select(AVC, 1280, 720, 30, listOf(PLANAR))?.name)
+        assertEquals("c2.vendor.hevc.encoder", registry.select(HEVC, 1920, 1080, 30, BUFFER)?.name)
+        assertEquals(1, registry.getProbeCount())
+    }
+
+    @Test
+    fun select_returnsNullWhenUnsupported() {
+        val registry = EncoderRegistry(mSource)
+        assertNull(registry.select(AVC, 7680, 4320, 30, BUFFER))
+        assertNull(registry.select(HEVC, 3840, 2160, 30, BUFFER))
+        assertNull(registry.select("video/x-vnd.on2.vp8", 640, 480, 30, BUFFER))
+    }
+
+    @Test
+    fun pickColorFormat_prefersCallerOrder() {
+        val encoder = EncoderRegistry(mSource).select(AVC, 1280, 720, 30, BUFFER)
+        assertEquals(SEMI_PLANAR, encoder?.pickColorFormat(BUFFER))
+    }
+
+    @Test
+    fun cache_isUsedOnNextOpen() {
+        EncoderRegistry(mSource, mFile, "fingerprint-a").select(AVC, 1280, 720, 30, BUFFER)
+        assertTrue(mFile.exists())
+        val cached = EncoderRegistry(mSource, mFile, "fingerprint-a")
+        assertEquals("c2.vendor.avc.encoder", cached.select(AVC, 1280, 720, 30, BUFFER)?.name)
+        assertEquals(FAKE_CODECS, cached.getEncoders())
+        assertEquals(0, cached.getProbeCount())
+        assertEquals(1, mSourceCalls)
+    }
+
+    @Test
+    fun cache_isProbedAgainOnNewFingerprint() {
+        EncoderRegistry(mSource, mFile, "fingerprint-a").getEncoders()
+        val registry = EncoderRegistry(mSource, mFile, "fingerprint-b")
+        registry.getEncoders()
+        assertEquals(1, registry.getProbeCount())
+    }
+
+    @Test
+    fun cache_isProbedAgainWhenCorrupt() {
+        mFile.writeText("encoders-v1\tfingerprint-b\nbroken line")
+        val registry = EncoderRegistry(mSource, mFile, "fingerprint-b")
+        assertEquals(FAKE_CODECS, registry.getEncoders())
+        assertEquals(1, registry.getProbeCount())
+    }
+
+    @Test
+    fun cache_isNotWrittenForEmptyProbe() {
+        EncoderRegistry({ emptyList() }, mFile, "fingerprint-c").getEncoders()
+        assertFalse(mFile.exists())
+    }
+
+    companion object {
+        private const val AVC = "video/avc"
+        private const val HEVC = "video/hevc"
+        private const val PLANAR = 19
+        private const val SEMI_PLANAR = 21
+        private const val SURFACE = 0x7F000789
+        private val BUFFER = listOf(SEMI_PLANAR, PLANAR)
+
+        // software first like on many devices, the registry must not pick it
+        private val FAKE_CODECS = listOf(
+            EncoderInfo("OMX.google.h264.encoder", AVC, false, listOf(PLANAR, SEMI_PLANAR, SURFACE), listOf(1, 2), 2048, 2048, 60),
+            EncoderInfo("OMX.vendor.avc.planar", AVC, true, listOf(PLANAR, SURFACE), listOf(1), 1920, 1088, 30),
+            EncoderInfo("c2.vendor.avc.encoder", AVC, true, listOf(SEMI_PLANAR, SURFACE), listOf(1, 2, 8), 4096, 2176, 240),
+            EncoderInfo("c2.vendor.hevc.encoder", HEVC, true, listOf(SEMI_PLANAR, SURFACE), listOf(1, 2), 1920, 1088, 60)
+        )
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+/**
+ * Feeds [RateController] with synthetic load curves and compares it with a fixed rate encoder.
+ */
+class RateControllerTest {
+
+    private class Result(
+        val encoded: Int,
+        val skipped: Long,
+        val meanLatencyMs: Double,
+        val minBitRate: Int,
+        val endBitRate: Int,
+        val endFrameRate: Int
+    )
+
+    @Test
+    fun steadyLoad_keepsMaxRate() {
+        val adaptive = simulate(STEADY, true)
+        assertEquals(MAX_BIT_RATE, adaptive.minBitRate)
+        assertEquals(0L, adaptive.skipped)
+    }
+
+    @Test
+    fun overload_lowersLatency() {
+        for ((name, curve) in OVERLOADS) {
+            val fixed = simulate(curve, false)
+            val adaptive = simulate(curve, true)
+            assertTrue("$name: ${adaptive.meanLatencyMs}ms, fixed ${fixed.meanLatencyMs}ms",
+                adaptive.meanLatencyMs < fixed.meanLatencyMs)
+            assertTrue(name, adaptive.encoded > 0)
+        }
+    }
+
+    @Test
+    fun afterLoad_recoversMaxRate() {
+        for ((name, curve) in OVERLOADS + ("steady" to STEADY)) {
+            val adaptive = simulate(curve, true)
+            assertEquals(name, MAX_BIT_RATE, adaptive.endBitRate)
+            assertEquals(name, CAMERA_FPS, adaptive.endFrameRate)
+        }
+    }
+
+    /**
+     * 1ms steps: the camera puts a frame every 33ms into a queue of [QUEUE_SIZE] frames that
+     * drops the oldest, the encoder takes one at a time and holds [PIPELINE_DEPTH] more. A lower
+     * bit rate makes a frame up to 40% cheaper to encode.
+     *
+     * @param encodeMs encode time of one frame at max bit rate, ms at the simulated time
+     */
+    private fun simulate(encodeMs: (Long) -> Double, controlled: Boolean): Result {
+        val controller = RateController(MAX_BIT_RATE, CAMERA_FPS)
+        controller.onCameraFrameRate(CAMERA_FPS)
+        val queue = ArrayDeque<Long>()
+        var encodingCapture = -1L
+        var encodeDoneMs = 0.0
+        var encoded = 0
+        var latencySum = 0L
+        var minBitRate = MAX_BIT_RATE
+        var nextFrameMs = 0.0
+        for (now in 0 until SIM_MS) {
+            if (now >= nextFrameMs) {
+                nextFrameMs += 1000.0 / CAMERA_FPS
+                if (! controlled || ! controller.shouldSkipFrame(now * 1000000L)) {
+                    if (queue.size >= QUEUE_SIZE) {
+                        queue.poll()
+                    }
+                    queue.offer(now)
+                }
+            }
+            if (encodingCapture >= 0 && now >= encodeDoneMs) {
+                latencySum += now - encodingCapture
+                encoded++
+                encodingCapture = -1L
+            }
+            if (encodingCapture < 0 && queue.isNotEmpty()) {
+                encodingCapture = queue.poll()
+                val bitRate = if (controlled) controller.bitRate else MAX_BIT_RATE
+                encodeDoneMs = now + encodeMs(now) * (0.6 + 0.4 * bitRate / MAX_BIT_RATE)
+            }
+            if (controlled) {
+                controller.update(now, queue.size + PIPELINE_DEPTH + if (encodingCapture >= 0) 1 else 0)
+                minBitRate = minOf(minBitRate, controller.bitRate)
+            }
+        }
+        return Result(encoded, controller.skippedFrames,
+            if (encoded > 0) latencySum.toDouble() / encoded else 0.0,
+            minBitRate, controller.bitRate, controller.frameRate)
+    }
+
+    companion object {
+        private const val SIM_MS = 20000L
+        private const val CAMERA_FPS = 30
+        private const val MAX_BIT_RATE = 4000000
+        private const val QUEUE_SIZE = 5
+        // frames a hardware encoder holds in its pipeline anyway
+        private const val PIPELINE_DEPTH = 1
+
+        private val STEADY: (Long) -> Double = { 25.0 }
+        private val OVERLOADS = listOf<Pair<String, (Long) -> Double>>(
+            // thermal throttling from 4s to 12s, too slow for 30 fps even at the lowest bit rate
+            "throttle" to { t -> if (t in 4000 until 12000) 60.0 else 25.0 },
+            // 300ms hiccups every 2s until 12s
+            "spikes" to { t -> if (t < 12000 && t % 2000 < 300) 90.0 else 25.0 },
+            // slowly getting worse up to twice the frame interval, then back
+            "ramp" to { t -> if (t < 10000) 25.0 + t * 40.0 / 10000 else maxOf(25.0, 65.0 - (t - 10000) * 8.0 / 1000) }
+        )
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode
+
+import com.jiangdg.ausbc.encode.bean.RawData
+import org.junit.Assert.*
+import org.junit.Test
+import java.nio.ByteBuffer
+import kotlin.concurrent.thread
+
+/**
+ * Checks the drop policies and the buffer reuse of [RawDataRing]
+ */
+class RawDataRingTest {
+
+    @Test
+    fun dropOldest_keepsLatestFrames() {
+        val ring = RawDataRing(CAPACITY)
+        for (i in 0 until 5) {
+            assertTrue(ring.offer(frame(i), FRAME_SIZE, i.toLong()))
+        }
+        assertEquals(CAPACITY, ring.size())
+        assertEquals(listOf(2, 3, 4), drain(ring))
+        assertEquals(5L, ring.getOfferedCount())
+        assertEquals(2L, ring.getDroppedCount())
+    }
+
+    @Test
+    fun dropNewest_keepsQueuedFrames() {
+        val ring = RawDataRing(CAPACITY)
+        ring.setDropPolicy(RawDataRing.DropPolicy.DROP_NEWEST)
+        for (i in 0 until 5) {
+            assertEquals(i < CAPACITY, ring.offer(frame(i), FRAME_SIZE, i.toLong()))
+        }
+        assertEquals(listOf(0, 1, 2), drain(ring))
+        assertEquals(2L, ring.getDroppedCount())
+    }
+
+    @Test
+    fun block_dropsFrameOnTimeout() {
+        val ring = RawDataRing(CAPACITY)
+        ring.setDropPolicy(RawDataRing.DropPolicy.BLOCK, 50L)
+        for (i in 0 until CAPACITY) {
+            assertTrue(ring.offer(frame(i), FRAME_SIZE))
+        }
+        val start = System.nanoTime()
+        assertFalse(ring.offer(frame(CAPACITY), FRAME_SIZE))
+        val waitedMs = (System.nanoTime() - start) / 1000000L
+        assertTrue("waited ${waitedMs}ms", waitedMs >= 45L)
+        assertEquals(1L, ring.getDroppedCount())
+        assertEquals(listOf(0, 1, 2), drain(ring))
+    }
+
+    @Test
+    fun block_wakesUpOnPoll() {
+        val ring = RawDataRing(CAPACITY)
+        ring.setDropPolicy(RawDataRing.DropPolicy.BLOCK, 10000L)
+        for (i in 0 until CAPACITY) {
+            ring.offer(frame(i), FRAME_SIZE)
+        }
+        var result = false
+        val producer = thread { result = ring.offer(frame(CAPACITY), FRAME_SIZE) }
+        Thread.sleep(50L)
+        val start = System.nanoTime()
+        ring.recycle(ring.poll()!!)
+        producer.join()
+        assertTrue(result)
+        assertTrue(System.nanoTime() - start < 1000000000L)
+        assertEquals(0L, ring.getDroppedCount())
+        assertEquals(listOf(1, 2, 3), drain(ring))
+    }
+
+    @Test
+    fun recycledBuffer_isReused() {
+        val ring = RawDataRing(CAPACITY)
+        ring.offer(frame(0), FRAME_SIZE)
+        val first = ring.poll()!!
+        ring.recycle(first)
+        ring.offer(frame(1), FRAME_SIZE, 7L)
+        val second = ring.poll()!!
+        assertSame(first, second)
+        assertEquals(1, seqOf(second))
+        assertEquals(7L, second.timestampNs)
+    }
+
+    @Test
+    fun buffer_hasExactFrameSize() {
+        val ring = RawDataRing(CAPACITY)
+        ring.offer(frame(0), FRAME_SIZE)
+        val large = ring.poll()!!
+        ring.recycle(large)
+        // a smaller frame must not get the larger buffer, the encoders use data.size as the frame size
+        ring.offer(frame(1), FRAME_SIZE / 2)
+        val small = ring.poll()!!
+        assertNotSame(large, small)
+        assertEquals(FRAME_SIZE / 2, small.data.size)
+        assertEquals(FRAME_SIZE / 2, small.size)
+    }
+
+    @Test
+    fun offerBuffer_copiesRemainingBytes() {
+        val ring = RawDataRing(CAPACITY)
+        val buffer = ByteBuffer.allocateDirect(FRAME_SIZE + 4)
+        buffer.putInt(-1).put(frame(9)).flip()
+        buffer.position(4)
+        assertTrue(ring.offer(buffer))
+        assertEquals(4, buffer.position())
+        val rawData = ring.poll()!!
+        assertEquals(FRAME_SIZE, rawData.size)
+        assertEquals(9, seqOf(rawData))
+    }
+
+    @Test
+    fun clear_keepsBuffersForReuse() {
+        val ring = RawDataRing(CAPACITY)
+        ring.offer(frame(0), FRAME_SIZE)
+        val queued = ring.poll()!!
+        ring.recycle(queued)
+        ring.offer(frame(1), FRAME_SIZE)
+        ring.clear()
+        assertTrue(ring.isEmpty())
+        ring.offer(frame(2), FRAME_SIZE)
+        assertSame(queued, ring.poll())
+    }
+
+    private fun frame(seq: Int) = ByteArray(FRAME_SIZE).apply { ByteBuffer.wrap(this).putInt(seq) }
+
+    private fun seqOf(rawData: RawData) = ByteBuffer.wrap(rawData.data).int
+
+    private fun drain(ring: RawDataRing): List<Int> {
+        val seqs = ArrayList<Int>()
+        while (true) {
+            val rawData = ring.poll() ?: return seqs
+            seqs.add(seqOf(rawData))
+            ring.recycle(rawData)
+        }
+    }
+
+    companion object {
+        private const val CAPACITY = 3
+        private const val FRAME_SIZE = 64
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode
+
+import kotlin.math.abs
+
+/**
+ * Checks the presentation time given to the codec against the capture time of the frames
+ *
+ * Drift is how much the presentation time advanced more or less than the capture time
+ * since the first frame, so a stream stamped with its capture clock has no drift while
+ * one stamped when it is queued drifts by the queueing jitter. A presentation time not
+ * greater than the previous one is counted as non monotonic, MediaMuxer rejects those.
+ *
+ * Only used by [TimestampCheckerTest] to compare ways of stamping frames. In the encoder the
+ * video presentation time is the capture time itself, so it would always read no drift.
+ */
+class TimestampChecker {
+    private var mFirstPtsUs = 0L
+    private var mFirstCaptureUs = 0L
+    private var mLastPtsUs = 0L
+    private var mFrameCount = 0L
+    private var mNonMonotonicCount = 0L
+    private var mDriftUs = 0L
+    private var mMaxDriftUs = 0L
+
+    /**
+     * Check a frame
+     *
+     * @param ptsUs presentation time queued to the codec in us
+     * @param captureNs capture time of the frame in ns
+     * @return false if the presentation time is not monotonic
+     */
+    fun onFrame(ptsUs: Long, captureNs: Long): Boolean {
+        val captureUs = captureNs / 1000L
+        if (mFrameCount++ == 0L) {
+            mFirstPtsUs = ptsUs
+            mFirstCaptureUs = captureUs
+            mLastPtsUs = ptsUs
+            return true
+        }
+        mDriftUs = (ptsUs - mFirstPtsUs) - (captureUs - mFirstCaptureUs)
+        if (abs(mDriftUs) > abs(mMaxDriftUs)) {
+            mMaxDriftUs = mDriftUs
+        }
+        val monotonic = ptsUs > mLastPtsUs
+        if (! monotonic) {
+            mNonMonotonicCount++
+        }
+        mLastPtsUs = ptsUs
+        return monotonic
+    }
+
+    fun reset() {
+        mFrameCount = 0L
+        mNonMonotonicCount = 0L
+        mDriftUs = 0L
+        mMaxDriftUs = 0L
+    }
+
+    fun getFrameCount() = mFrameCount
+
+    fun getNonMonotonicCount() = mNonMonotonicCount
+
+    /**
+     * Drift of the last frame in us
+     */
+    fun getDriftUs() = mDriftUs
+
+    /**
+     * Largest drift seen in us, signed
+     */
+    fun getMaxDriftUs() = mMaxDriftUs
+
+    override fun toString(): String {
+        return "frames = $mFrameCount, non monotonic = $mNonMonotonicCount, " +
+                "drift = ${mDriftUs}us, max drift = ${mMaxDriftUs}us"
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+/**
+ * Runs [TimestampChecker] against synthetic frame streams with the presentation time taken
+ * at queue time(former H264EncodeProcessor.getPTSUs) and from the capture time.
+ */
+class TimestampCheckerTest {
+
+    /**
+     * One synthetic frame, when the camera captured it and when it was queued into the codec
+     */
+    private class SyntheticFrame(val captureNs: Long, val queueNs: Long)
+
+    @Test
+    fun captureTime_doesNotDrift() {
+        for (frames in listOf(loadedStream(Random(1)), stallStream())) {
+            val capture = check(frames) { it.captureNs / 1000L }
+            assertEquals(FRAMES.toLong(), capture.getFrameCount())
+            assertEquals(0L, capture.getMaxDriftUs())
+            assertEquals(0L, capture.getNonMonotonicCount())
+        }
+    }
+
+    @Test
+    fun queueTime_driftIsDetected() {
+        for (frames in listOf(loadedStream(Random(1)), stallStream())) {
+            val queue = check(frames) { it.queueNs / 1000L }
+            assertTrue("drift ${queue.getMaxDriftUs()}us", Math.abs(queue.getMaxDriftUs()) >= 10000L)
+        }
+    }
+
+    @Test
+    fun reorderedFrames_areReported() {
+        val capture = check(reorderedStream()) { it.captureNs / 1000L }
+        assertEquals((FRAMES / 100 - 1).toLong(), capture.getNonMonotonicCount())
+    }
+
+    private fun check(frames: List<SyntheticFrame>, pts: (SyntheticFrame) -> Long): TimestampChecker {
+        val checker = TimestampChecker()
+        frames.forEach { checker.onFrame(pts(it), it.captureNs) }
+        return checker
+    }
+
+    /**
+     * 30 fps with ±1ms capture jitter, the encoder queues each frame 2 to 25ms later
+     */
+    private fun loadedStream(random: Random): List<SyntheticFrame> {
+        var lastQueueNs = 0L
+        return (0 until FRAMES).map { i ->
+            val captureNs = 1000000000L + i * FRAME_INTERVAL_NS + (random.nextInt(2000000) - 1000000)
+            val queueNs = maxOf(captureNs + 2000000L + random.nextInt(23000000), lastQueueNs + 1000L)
+            lastQueueNs = queueNs
+            SyntheticFrame(captureNs, queueNs)
+        }
+    }
+
+    /**
+     * The encoder stalls for 200ms every 3s, then queues the waiting frames back to back
+     */
+    private fun stallStream(): List<SyntheticFrame> {
+        var stallUntilNs = 0L
+        var lastQueueNs = 0L
+        return (0 until FRAMES).map { i ->
+            val captureNs = 1000000000L + i * FRAME_INTERVAL_NS
+            if (i % 90 == 89) {
+                stallUntilNs = captureNs + 200000000L
+            }
+            val queueNs = maxOf(captureNs + 3000000L, stallUntilNs, lastQueueNs + 500000L)
+            lastQueueNs = queueNs
+            SyntheticFrame(captureNs, queueNs)
+        }
+    }
+
+    /**
+     * Every 100th frame arrives before the one captured just before it, e.g. reordered by decode workers
+     */
+    private fun reorderedStream(): List<SyntheticFrame> {
+        val captures = (0 until FRAMES).map { i -> 1000000000L + i * FRAME_INTERVAL_NS }.toMutableList()
+        for (i in 100 until FRAMES step 100) {
+            Collections.swap(captures, i - 1, i)
+        }
+        // queued in the order they arrive
+        return captures.mapIndexed { i, captureNs ->
+            SyntheticFrame(captureNs, 1005000000L + i * FRAME_INTERVAL_NS)
+        }
+    }
+
+    companion object {
+        private const val FRAME_INTERVAL_NS = 33333333L
+        private const val FRAMES = 900
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.internal
+
+import com.jiangdg.ausbc.render.internal.EffectChainPlanner.Pass
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.File
+
+/**
+ * Checks the generated fused shader and how [EffectChainPlanner] splits effect lists into passes
+ */
+class EffectChainPlannerTest {
+    private val mGray = FakeEffect("gray", 1)
+    private val mSepia = FakeEffect("sepia", 2)
+    private val mContrast = FakeEffect("contrast", 3)
+    private val mZoom = FakeEffect("zoom", 0)
+    private val mSoul = FakeEffect("soul", 0)
+
+    @Test
+    fun buildFragmentSource_renamesAndChainsSnippets() {
+        val source = EffectChainPlanner.buildFragmentSource(listOf(GRAY, CONTRAST))
+        assertTrue(source.contains("vec4 effectColor0(vec4 color)"))
+        assertTrue(source.contains("vec4 effectColor1(vec4 color)"))
+        assertTrue(source.contains("uniform float effectColor1_amount;"))
+        assertTrue(source.contains("(color.rgb - 0.5) * effectColor1_amount"))
+        assertFalse(Regex("\\beffectColor[(_]").containsMatchIn(source))
+        val main = source.substring(source.indexOf("void main()"))
+        assertEquals("void main()\n{\n" +
+                "    vec4 color = texture2D(uTextureSampler, vTextureCoord);\n" +
+                "    color = effectColor0(color);\n" +
+                "    color = effectColor1(color);\n" +
+                "    gl_FragColor = color;\n}\n", main)
+    }
+
+    @Test
+    fun buildFragmentSource_ofOneSnippet() {
+        val source = EffectChainPlanner.buildFragmentSource(listOf(GRAY))
+        assertTrue(source.startsWith("precision mediump float;\nuniform sampler2D uTextureSampler;\nvarying vec2 vTextureCoord;\n"))
+        assertTrue(source.contains("vec4 effectColor0(vec4 color)"))
+        assertFalse(source.contains("effectColor1"))
+    }
+
+    @Test
+    fun blackWhiteFragment_matchesGeneratedShader() {
+        // the effect draws the generated shader, the resource is kept for apps reading it
+        val source = EffectChainPlanner.buildFragmentSource(listOf(readRaw("effect_blackw_color")))
+        assertEquals(source, readRaw("effect_blackw_fragment"))
+    }
+
+    @Test
+    fun signatureOf_dependsOnSnippetsAndOrder() {
+        assertEquals("1,2", EffectChainPlanner.signatureOf(listOf(1, 2)))
+        assertNotEquals(EffectChainPlanner.signatureOf(listOf(1, 2)), EffectChainPlanner.signatureOf(listOf(2, 1)))
+        assertNotEquals(EffectChainPlanner.signatureOf(listOf(1, 23)), EffectChainPlanner.signatureOf(listOf(12, 3)))
+        assertEquals("effectColor0", EffectChainPlanner.functionName(0))
+    }
+
+    @Test
+    fun plan_fusesConsecutiveColorEffects() {
+        val plan = planner().plan(listOf(mGray, mSepia, mContrast))
+        assertEquals(listOf(Pass.Fused(listOf(mGray, mSepia, mContrast), listOf(1, 2, 3))), plan.passList)
+        assertEquals("1,2,3", (plan.passList[0] as Pass.Fused).signature)
+        assertTrue(plan.addedList.isEmpty())
+    }
+
+    @Test
+    fun plan_splitsRunsAtSeparateEffects() {
+        val plan = planner().plan(listOf(mGray, mSepia, mZoom, mContrast, mSoul))
+        assertEquals(listOf(
+            Pass.Fused(listOf(mGray, mSepia), listOf(1, 2)),
+            Pass.Separate(mZoom),
+            Pass.Fused(listOf(mContrast), listOf(3)),
+            Pass.Separate(mSoul)
+        ), plan.passList)
+        assertEquals(listOf(mZoom, mSoul), plan.addedList)
+        assertTrue(plan.removedList.isEmpty())
+    }
+
+    @Test
+    fun plan_drawsRunOneByOneWhenNotFused() {
+        val plan = planner().plan(listOf(mGray, mSepia, mZoom)) { ids -> ids != listOf(1, 2) }
+        assertEquals(listOf(Pass.Separate(mGray), Pass.Separate(mSepia), Pass.Separate(mZoom)), plan.passList)
+        assertEquals(listOf(mGray, mSepia, mZoom), plan.addedList)
+    }
+
+    @Test
+    fun plan_releasesRemovedSeparateEffects() {
+        val planner = planner()
+        planner.plan(listOf(mZoom, mGray, mSoul))
+        val plan = planner.plan(listOf(mZoom, mGray))
+        assertEquals(listOf(Pass.Separate(mZoom), Pass.Fused(listOf(mGray), listOf(1))), plan.passList)
+        assertTrue(plan.addedList.isEmpty())
+        assertEquals(listOf(mSoul), plan.removedList)
+        // back again, initialized again
+        val again = planner.plan(listOf(mZoom, mGray, mSoul))
+        assertEquals(listOf(mSoul), again.addedList)
+        assertTrue(again.removedList.isEmpty())
+    }
+
+    @Test
+    fun plan_releasesFallbackEffectsOnceFused() {
+        val planner = planner()
+        planner.plan(listOf(mGray, mSepia)) { false }
+        val plan = planner.plan(listOf(mGray, mSepia))
+        assertEquals(listOf(Pass.Fused(listOf(mGray, mSepia), listOf(1, 2))), plan.passList)
+        assertEquals(listOf(mGray, mSepia), plan.removedList)
+    }
+
+    @Test
+    fun clear_returnsSeparateEffects() {
+        val planner = planner()
+        planner.plan(listOf(mZoom, mGray, mSoul))
+        assertEquals(listOf(mZoom, mSoul), planner.clear())
+        assertTrue(planner.clear().isEmpty())
+        assertEquals(listOf(mZoom), planner.plan(listOf(mZoom)).addedList)
+    }
+
+    private fun planner() = EffectChainPlanner<FakeEffect> { it.colorSourceId }
+
+    // line by line like MediaUtils.readRawTextFile, unit tests run in the module directory
+    private fun readRaw(name: String) = File("src/main/res/raw/$name.glsl").readLines().joinToString("") { "$it\n" }
+
+    private class FakeEffect(val name: String, val colorSourceId: Int) {
+        override fun toString() = name
+    }
+
+    companion object {
+        private val GRAY = """
+            vec4 effectColor(vec4 color)
+            {
+                float luminance = color.r * 0.299 + color.g * 0.584 + color.b * 0.114;
+                return vec4(vec3(luminance), color.a);
+            }
+        """.trimIndent()
+
+        private val CONTRAST = """
+            uniform float effectColor_amount;
+            vec4 effectColor(vec4 color)
+            {
+                return vec4((color.rgb - 0.5) * effectColor_amount + 0.5, color.a);
+            }
+        """.trimIndent()
+    }
+}
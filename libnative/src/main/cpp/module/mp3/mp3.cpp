@@ -15,31 +15,395 @@
  *
  * Lame for mp3
  *
+ * Every recording owns a Mp3Encoder, so several cameras can record mp3 at the same time.
+ *
+ * With threads > 1 the pcm is cut into segments of SEGMENT_FRAMES mp3 frames that are
+ * encoded on their own lame instance in parallel and the frames are stitched in order.
+ * A segment starts PREROLL_FRAMES early and ends POSTROLL_FRAMES late, so the encoder
+ * delay and the psychoacoustic look ahead see the real neighbouring pcm, and the frames
+ * of the overlap are dropped. The bit reservoir is off in this mode, a frame can't borrow
+ * bits from a frame of another segment, which costs a little quality at the same bit rate.
+ *
  * @author Created by jiangdg on 2022/2/18
  */
+#include <algorithm>
+#include <cerrno>
+#include <climits>
+#include <cstdint>
+#include <cstdlib>
+#include <cstring>
+#include <mutex>
+#include <thread>
+#include <vector>
+#include <unistd.h>
 #include "mp3.h"
 #include "lame/lame.h"
 #include "../../utils/logger.h"
 
-static lame_global_flags *gfp = nullptr;
+#define SEGMENT_FRAMES 64
+#define PREROLL_FRAMES 3
+#define POSTROLL_FRAMES 3
 
-void lameInitInternal(int inSampleRate, int outChannel, int outSampleRate, int outBitRate, int quality) {
-    if(gfp != nullptr){
-        lameCloseInternal();
+struct Mp3Encoder {
+    lame_global_flags *gfp;
+    int inSampleRate;
+    int channels;
+    int outSampleRate;
+    int outBitRate;
+    int quality;
+    int threads;
+    // pcm samples per channel of a mp3 frame
+    int frameSize;
+    // mp3 output of the fd path, grown to the worst case of the largest pcm buffer
+    unsigned char *outBuf;
+    int outBufSize;
+    // aligned copy of pcm buffers at an odd address
+    short *pcmBuf;
+    int pcmBufSize;
+    // parallel mode, interleaved pcm not encoded yet after history samples per channel of pre-roll
+    std::vector<short> pending;
+    long history;
+};
+
+struct Segment {
+    // interleaved pcm from the start of the pre-roll
+    const short *pcm;
+    long preroll;
+    long samples;
+    long postroll;
+    bool last;
+    std::vector<unsigned char> out;
+    int error;
+};
+
+// lame fills tables shared by all instances on init
+static std::mutex gLock;
+// encoder of the former api without handles, only lameInitInternal/lameCloseInternal create and
+// destroy it, held for the whole call so that a close never frees it while it is encoding
+static std::mutex gDefaultLock;
+static Mp3Encoder *gDefault = nullptr;
+
+static lame_global_flags *createLame(const Mp3Encoder *encoder, bool segment) {
+    std::lock_guard<std::mutex> lock(gLock);
+    lame_global_flags *gfp = lame_init();
+    if (! gfp) {
+        return nullptr;
+    }
+    lame_set_in_samplerate(gfp, encoder->inSampleRate);
+    lame_set_num_channels(gfp, encoder->channels);
+    lame_set_out_samplerate(gfp, encoder->outSampleRate);
+    lame_set_brate(gfp, encoder->outBitRate);
+    lame_set_quality(gfp, encoder->quality);
+    if (segment) {
+        lame_set_disable_reservoir(gfp, 1);
+        lame_set_bWriteVbrTag(gfp, 0);
+    }
+    if (lame_init_params(gfp) < 0) {
+        lame_close(gfp);
+        return nullptr;
+    }
+    return gfp;
+}
+
+static int encodeSamples(lame_global_flags *gfp, int channels, const short *data, int samples, unsigned char* mp3Buf, int len) {
+    if (channels == 2) {
+        return lame_encode_buffer_interleaved(gfp, const_cast<short *>(data), samples, mp3Buf, len);
+    }
+    return lame_encode_buffer(gfp, data, data, samples, mp3Buf, len);
+}
+
+static int writeFully(int fd, const unsigned char *data, int size) {
+    int written = 0;
+    while (written < size) {
+        ssize_t ret = write(fd, data + written, size - written);
+        if (ret < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            LOG_E("write mp3 failed, errno = %d", errno);
+            return -1;
+        }
+        written += (int)ret;
+    }
+    return written;
+}
+
+/**
+ * byte length of the layer III frame at data, -1 if it is not a frame header
+ */
+static int mp3FrameLength(const unsigned char *data, int size) {
+    static const int kBitRates[2][16] = {
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0}
+    };
+    // by version bits, 0 is MPEG2.5, 2 is MPEG2 and 3 is MPEG1
+    static const int kSampleRates[4][3] = {
+            {11025, 12000, 8000}, {0, 0, 0}, {22050, 24000, 16000}, {44100, 48000, 32000}
+    };
+    if (size < 4 || data[0] != 0xFF || (data[1] & 0xE0) != 0xE0) {
+        return -1;
+    }
+    int version = (data[1] >> 3) & 3;
+    int layer = (data[1] >> 1) & 3;
+    int bitRateIndex = data[2] >> 4;
+    int sampleRateIndex = (data[2] >> 2) & 3;
+    int padding = (data[2] >> 1) & 1;
+    if (version == 1 || layer != 1 || bitRateIndex == 0 || bitRateIndex == 15 || sampleRateIndex == 3) {
+        return -1;
+    }
+    bool mpeg1 = version == 3;
+    int bitRate = kBitRates[mpeg1 ? 0 : 1][bitRateIndex] * 1000;
+    return (mpeg1 ? 144 : 72) * bitRate / kSampleRates[version][sampleRateIndex] + padding;
+}
+
+/**
+ * encode the segment with its pre-roll and post-roll on a new lame, keep the frames of the segment only
+ *
+ * output frame k of a lame fed from sample s covers the same pcm as frame s / frameSize + k
+ * of the whole recording, as s is a multiple of the frame size
+ */
+static void encodeSegment(const Mp3Encoder *encoder, Segment *segment) {
+    lame_global_flags *gfp = createLame(encoder, true);
+    if (! gfp) {
+        segment->error = -1;
+        return;
+    }
+    long total = segment->preroll + segment->samples + segment->postroll;
+    std::vector<unsigned char> out(lameMaxOutputSize((int)total) + 7200);
+    int size = encodeSamples(gfp, encoder->channels, segment->pcm, (int)total, out.data(), (int)out.size());
+    if (size >= 0) {
+        int ret = lame_encode_flush(gfp, out.data() + size, (int)out.size() - size);
+        size = ret < 0 ? ret : size + ret;
+    }
+    lame_close(gfp);
+    if (size < 0) {
+        segment->error = size;
+        return;
+    }
+    int skip = (int)(segment->preroll / encoder->frameSize);
+    int take = segment->last ? INT_MAX - skip : (int)(segment->samples / encoder->frameSize);
+    int offset = 0;
+    int begin = -1;
+    int index = 0;
+    while (offset < size && index < skip + take) {
+        int len = mp3FrameLength(out.data() + offset, size - offset);
+        if (len <= 0 || offset + len > size) {
+            break;
+        }
+        if (index == skip) {
+            begin = offset;
+        }
+        offset += len;
+        index++;
+    }
+    if (begin < 0 || (! segment->last && index < skip + take)) {
+        LOG_E("encode segment failed, frames = %d, expected = %d", index, skip + take);
+        segment->error = -1;
+        return;
+    }
+    segment->out.assign(out.begin() + begin, out.begin() + offset);
+}
+
+/**
+ * encode the pending pcm in batches of one segment per thread and write the frames in order
+ *
+ * without flush the pcm of a batch and its post-roll must be there, the rest waits for more
+ */
+static int encodeSegmentsToFd(Mp3Encoder *encoder, bool flush, int fd) {
+    long segmentSamples = (long)SEGMENT_FRAMES * encoder->frameSize;
+    long prerollSamples = (long)PREROLL_FRAMES * encoder->frameSize;
+    long postrollSamples = (long)POSTROLL_FRAMES * encoder->frameSize;
+    int written = 0;
+    while (true) {
+        long total = (long)encoder->pending.size() / encoder->channels;
+        long available = total - encoder->history;
+        int count;
+        if (! flush) {
+            if (available < encoder->threads * segmentSamples + postrollSamples) {
+                break;
+            }
+            count = encoder->threads;
+        } else {
+            if (available <= 0) {
+                break;
+            }
+            count = (int)std::min((long)encoder->threads, (available + segmentSamples - 1) / segmentSamples);
+        }
+        std::vector<Segment> segments(count);
+        long end = encoder->history;
+        for (int i = 0; i < count; i++) {
+            Segment &segment = segments[i];
+            long start = encoder->history + i * segmentSamples;
+            segment.preroll = std::min(start, prerollSamples);
+            segment.samples = std::min(segmentSamples, total - start);
+            segment.postroll = std::min(postrollSamples, total - start - segment.samples);
+            segment.last = flush && start + segment.samples == total;
+            segment.pcm = encoder->pending.data() + (start - segment.preroll) * encoder->channels;
+            segment.error = 0;
+            end = start + segment.samples;
+        }
+        std::vector<std::thread> workers;
+        for (int i = 1; i < count; i++) {
+            workers.emplace_back(encodeSegment, encoder, &segments[i]);
+        }
+        encodeSegment(encoder, &segments[0]);
+        for (auto &worker : workers) {
+            worker.join();
+        }
+        for (auto &segment : segments) {
+            if (segment.error < 0) {
+                return segment.error;
+            }
+            int ret = writeFully(fd, segment.out.data(), (int)segment.out.size());
+            if (ret < 0) {
+                return ret;
+            }
+            written += ret;
+        }
+        // keep the tail as pre-roll of the next batch
+        long keep = std::min(end, prerollSamples);
+        encoder->pending.erase(encoder->pending.begin(), encoder->pending.begin() + (end - keep) * encoder->channels);
+        encoder->history = keep;
+    }
+    return written;
+}
+
+static bool ensureOutBuf(Mp3Encoder *encoder, int size) {
+    if (encoder->outBufSize >= size) {
+        return true;
+    }
+    free(encoder->outBuf);
+    encoder->outBuf = (unsigned char *)malloc(size);
+    encoder->outBufSize = encoder->outBuf ? size : 0;
+    return encoder->outBuf != nullptr;
+}
+
+/**
+ * Android is little endian, the pcm bytes are already shorts, only copy them if at an odd address
+ */
+static const short *alignPcm(Mp3Encoder *encoder, const unsigned char* pcm, int pcmSize) {
+    if (((uintptr_t)pcm & 1) == 0) {
+        return (const short *)pcm;
+    }
+    if (encoder->pcmBufSize < pcmSize) {
+        free(encoder->pcmBuf);
+        encoder->pcmBuf = (short *)malloc(pcmSize);
+        encoder->pcmBufSize = encoder->pcmBuf ? pcmSize : 0;
+        if (! encoder->pcmBuf) {
+            return nullptr;
+        }
     }
-    gfp = lame_init();
-    LOGI("init lame library success!");
-    lame_set_in_samplerate(gfp,inSampleRate);
-    lame_set_num_channels(gfp,outChannel);
-    lame_set_out_samplerate(gfp,outSampleRate);
-    lame_set_brate(gfp,outBitRate);
-    lame_set_quality(gfp,quality);
-    lame_init_params(gfp);
-    LOGI("config lame library success!");
+    memcpy(encoder->pcmBuf, pcm, pcmSize);
+    return encoder->pcmBuf;
+}
+
+int lameMaxOutputSize(int samplesPerChannel) {
+    return samplesPerChannel * 5 / 4 + 7200;
+}
+
+Mp3Encoder *mp3EncoderCreate(int inSampleRate, int outChannel, int outSampleRate, int outBitRate, int quality, int threads) {
+    auto *encoder = new Mp3Encoder();
+    encoder->inSampleRate = inSampleRate;
+    encoder->channels = outChannel == 2 ? 2 : 1;
+    encoder->outSampleRate = outSampleRate;
+    encoder->outBitRate = outBitRate;
+    encoder->quality = quality;
+    encoder->threads = threads > 1 ? threads : 1;
+    encoder->gfp = createLame(encoder, false);
+    if (! encoder->gfp) {
+        LOGE("init lame library failed!");
+        delete encoder;
+        return nullptr;
+    }
+    encoder->frameSize = lame_get_framesize(encoder->gfp);
+    LOG_I("init lame library success, threads = %d", encoder->threads);
+    return encoder;
+}
+
+int mp3EncoderEncodePcm16(Mp3Encoder *encoder, const unsigned char* pcm, int pcmSize, unsigned char* mp3Buf, int len) {
+    if (! encoder || ! pcm || pcmSize < 0 || encoder->threads > 1) {
+        return -1;
+    }
+    int samples = pcmSize / 2 / encoder->channels;
+    if (samples == 0) {
+        return 0;
+    }
+    const short *data = alignPcm(encoder, pcm, pcmSize);
+    if (! data) {
+        return -1;
+    }
+    int ret = encodeSamples(encoder->gfp, encoder->channels, data, samples, mp3Buf, len);
+    if (ret < 0) {
+        LOG_E("encode pcm data failed, err = %d",ret);
+    }
+    return ret;
+}
+
+int mp3EncoderEncodeToFd(Mp3Encoder *encoder, const unsigned char* pcm, int pcmSize, int fd) {
+    if (! encoder || ! pcm || pcmSize < 0) {
+        return -1;
+    }
+    if (encoder->threads > 1) {
+        int samples = pcmSize / 2 / encoder->channels;
+        const short *data = alignPcm(encoder, pcm, pcmSize);
+        if (! data) {
+            return -1;
+        }
+        encoder->pending.insert(encoder->pending.end(), data, data + samples * encoder->channels);
+        return encodeSegmentsToFd(encoder, false, fd);
+    }
+    if (! ensureOutBuf(encoder, lameMaxOutputSize(pcmSize / 2 / encoder->channels))) {
+        return -1;
+    }
+    int ret = mp3EncoderEncodePcm16(encoder, pcm, pcmSize, encoder->outBuf, encoder->outBufSize);
+    if (ret <= 0) {
+        return ret;
+    }
+    return writeFully(fd, encoder->outBuf, ret);
+}
+
+int mp3EncoderFlushToFd(Mp3Encoder *encoder, int fd) {
+    if (! encoder) {
+        return -1;
+    }
+    if (encoder->threads > 1) {
+        return encodeSegmentsToFd(encoder, true, fd);
+    }
+    if (! ensureOutBuf(encoder, lameMaxOutputSize(0))) {
+        return -1;
+    }
+    int ret = lame_encode_flush(encoder->gfp, encoder->outBuf, encoder->outBufSize);
+    if (ret <= 0) {
+        LOG_E("flush lame failed, err = %d", ret);
+        return ret;
+    }
+    return writeFully(fd, encoder->outBuf, ret);
+}
+
+void mp3EncoderDestroy(Mp3Encoder *encoder) {
+    if (! encoder) {
+        return;
+    }
+    lame_close(encoder->gfp);
+    free(encoder->outBuf);
+    free(encoder->pcmBuf);
+    delete encoder;
+    LOGI("close lame success!");
+}
+
+void lameInitInternal(int inSampleRate, int outChannel, int outSampleRate, int outBitRate, int quality) {
+    Mp3Encoder *encoder = mp3EncoderCreate(inSampleRate, outChannel, outSampleRate, outBitRate, quality, 1);
+    std::lock_guard<std::mutex> lock(gDefaultLock);
+    mp3EncoderDestroy(gDefault);
+    gDefault = encoder;
 }
 
 int lameEncodeInternal(short* leftBuf, short* rightBuf, int sampleRate, unsigned char* mp3Buf, int len) {
-    int ret = lame_encode_buffer(gfp,leftBuf,rightBuf,sampleRate,mp3Buf,len);
+    std::lock_guard<std::mutex> lock(gDefaultLock);
+    if (! gDefault) {
+        return -1;
+    }
+    int ret = lame_encode_buffer(gDefault->gfp,leftBuf,rightBuf,sampleRate,mp3Buf,len);
     if (ret < 0) {
         LOG_E("encode pcm data failed, err = %d",ret);
     }
@@ -47,7 +411,11 @@ int lameEncodeInternal(short* leftBuf, short* rightBuf, int sampleRate, unsigned
 }
 
 int lameFlushInternal(unsigned char* mp3Buf, int len) {
-    int ret = lame_encode_flush(gfp,mp3Buf,len);
+    std::lock_guard<std::mutex> lock(gDefaultLock);
+    if (! gDefault) {
+        return -1;
+    }
+    int ret = lame_encode_flush(gDefault->gfp,mp3Buf,len);
     if (ret <= 0) {
         LOG_E("flush lame failed, err = %d", ret);
     }
@@ -55,7 +423,7 @@ int lameFlushInternal(unsigned char* mp3Buf, int len) {
 }
 
 void lameCloseInternal() {
-    lame_close(gfp);
-    gfp = nullptr;
-    LOGI("close lame success!");
-}
\ No newline at end of file
+    std::lock_guard<std::mutex> lock(gDefaultLock);
+    mp3EncoderDestroy(gDefault);
+    gDefault = nullptr;
+}
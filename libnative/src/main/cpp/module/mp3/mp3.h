@@ -24,6 +24,21 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
+typedef struct Mp3Encoder Mp3Encoder;
+
+// worst case mp3 bytes for samples per channel, see lame.h
+int lameMaxOutputSize(int samplesPerChannel);
+
+// threads > 1 encodes segments of the pcm in parallel, fd output only, see mp3.cpp
+Mp3Encoder *mp3EncoderCreate(int inSampleRate, int outChannel, int outSampleRate, int outBitRate, int quality, int threads);
+// pcm is 16-bit little endian, interleaved if stereo, pcmSize in bytes
+int mp3EncoderEncodePcm16(Mp3Encoder *encoder, const unsigned char* pcm, int pcmSize, unsigned char* mp3Buf, int len);
+int mp3EncoderEncodeToFd(Mp3Encoder *encoder, const unsigned char* pcm, int pcmSize, int fd);
+int mp3EncoderFlushToFd(Mp3Encoder *encoder, int fd);
+void mp3EncoderDestroy(Mp3Encoder *encoder);
+
+// the former api without handles, one encoder created by lameInitInternal and destroyed by
+// lameCloseInternal, encoders of mp3EncoderCreate are never used by it
 void lameInitInternal(int inSampleRate, int outChannel, int outSampleRate, int outBitRate, int quality);
 int lameEncodeInternal(short* leftBuf, short* rightBuf, int sampleRate, unsigned char* mp3Buf, int len);
 int lameFlushInternal(unsigned char* mp3Buf, int len);
@@ -0,0 +1,345 @@
+/**
+ *  plane rotation
+ *
+ *  90/270 degrees are done as 8x8 block transposes inside 64x64 tiles, so that both the
+ *  source rows and the destination rows of a tile stay in cache instead of walking a column
+ *  of the source for every destination row. the transposes use SSE2 on x86 and NEON on arm.
+ *  180 degrees reverses every row 16 bytes at a time with the same instruction sets.
+ *
+ *  rotatePlane: 8 bit samples, e.g. the Y plane
+ *  rotatePlaneUV: 16 bit sample pairs, e.g. the interleaved VU plane of NV21, width is in pairs
+ */
+
+#include <cstring>
+#include "rotate.h"
+
+#if defined(__SSE2__)
+#include <emmintrin.h>
+#elif defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define USE_NEON
+#endif
+
+#define BLOCK 8
+#define TILE 64
+
+/**
+ * dest row i = src column i for an 8x8 block of bytes, a negative srcStride reads the rows
+ * from the bottom(rotate 90), a negative destStride writes them from the bottom(rotate 270)
+ */
+static inline void transpose8x8(const uint8_t *src, int srcStride, uint8_t *dest, int destStride) {
+#if defined(__SSE2__)
+    const __m128i r0 = _mm_loadl_epi64((const __m128i *)(src));
+    const __m128i r1 = _mm_loadl_epi64((const __m128i *)(src + srcStride));
+    const __m128i r2 = _mm_loadl_epi64((const __m128i *)(src + srcStride * 2));
+    const __m128i r3 = _mm_loadl_epi64((const __m128i *)(src + srcStride * 3));
+    const __m128i r4 = _mm_loadl_epi64((const __m128i *)(src + srcStride * 4));
+    const __m128i r5 = _mm_loadl_epi64((const __m128i *)(src + srcStride * 5));
+    const __m128i r6 = _mm_loadl_epi64((const __m128i *)(src + srcStride * 6));
+    const __m128i r7 = _mm_loadl_epi64((const __m128i *)(src + srcStride * 7));
+    // rows 0-1, 2-3, 4-5, 6-7 interleaved byte by byte
+    const __m128i a0 = _mm_unpacklo_epi8(r0, r1);
+    const __m128i a1 = _mm_unpacklo_epi8(r2, r3);
+    const __m128i a2 = _mm_unpacklo_epi8(r4, r5);
+    const __m128i a3 = _mm_unpacklo_epi8(r6, r7);
+    // columns 0-3 and 4-7 of rows 0-3 and rows 4-7
+    const __m128i b0 = _mm_unpacklo_epi16(a0, a1);
+    const __m128i b1 = _mm_unpackhi_epi16(a0, a1);
+    const __m128i b2 = _mm_unpacklo_epi16(a2, a3);
+    const __m128i b3 = _mm_unpackhi_epi16(a2, a3);
+    // two columns of all 8 rows each
+    const __m128i c0 = _mm_unpacklo_epi32(b0, b2);
+    const __m128i c1 = _mm_unpackhi_epi32(b0, b2);
+    const __m128i c2 = _mm_unpacklo_epi32(b1, b3);
+    const __m128i c3 = _mm_unpackhi_epi32(b1, b3);
+    _mm_storel_epi64((__m128i *)(dest), c0);
+    _mm_storel_epi64((__m128i *)(dest + destStride), _mm_srli_si128(c0, 8));
+    _mm_storel_epi64((__m128i *)(dest + destStride * 2), c1);
+    _mm_storel_epi64((__m128i *)(dest + destStride * 3), _mm_srli_si128(c1, 8));
+    _mm_storel_epi64((__m128i *)(dest + destStride * 4), c2);
+    _mm_storel_epi64((__m128i *)(dest + destStride * 5), _mm_srli_si128(c2, 8));
+    _mm_storel_epi64((__m128i *)(dest + destStride * 6), c3);
+    _mm_storel_epi64((__m128i *)(dest + destStride * 7), _mm_srli_si128(c3, 8));
+#elif defined(USE_NEON)
+    const uint8x8x2_t t01 = vtrn_u8(vld1_u8(src), vld1_u8(src + srcStride));
+    const uint8x8x2_t t23 = vtrn_u8(vld1_u8(src + srcStride * 2), vld1_u8(src + srcStride * 3));
+    const uint8x8x2_t t45 = vtrn_u8(vld1_u8(src + srcStride * 4), vld1_u8(src + srcStride * 5));
+    const uint8x8x2_t t67 = vtrn_u8(vld1_u8(src + srcStride * 6), vld1_u8(src + srcStride * 7));
+    const uint16x4x2_t u02 = vtrn_u16(vreinterpret_u16_u8(t01.val[0]), vreinterpret_u16_u8(t23.val[0]));
+    const uint16x4x2_t u13 = vtrn_u16(vreinterpret_u16_u8(t01.val[1]), vreinterpret_u16_u8(t23.val[1]));
+    const uint16x4x2_t u46 = vtrn_u16(vreinterpret_u16_u8(t45.val[0]), vreinterpret_u16_u8(t67.val[0]));
+    const uint16x4x2_t u57 = vtrn_u16(vreinterpret_u16_u8(t45.val[1]), vreinterpret_u16_u8(t67.val[1]));
+    const uint32x2x2_t v04 = vtrn_u32(vreinterpret_u32_u16(u02.val[0]), vreinterpret_u32_u16(u46.val[0]));
+    const uint32x2x2_t v15 = vtrn_u32(vreinterpret_u32_u16(u13.val[0]), vreinterpret_u32_u16(u57.val[0]));
+    const uint32x2x2_t v26 = vtrn_u32(vreinterpret_u32_u16(u02.val[1]), vreinterpret_u32_u16(u46.val[1]));
+    const uint32x2x2_t v37 = vtrn_u32(vreinterpret_u32_u16(u13.val[1]), vreinterpret_u32_u16(u57.val[1]));
+    vst1_u8(dest, vreinterpret_u8_u32(v04.val[0]));
+    vst1_u8(dest + destStride, vreinterpret_u8_u32(v15.val[0]));
+    vst1_u8(dest + destStride * 2, vreinterpret_u8_u32(v26.val[0]));
+    vst1_u8(dest + destStride * 3, vreinterpret_u8_u32(v37.val[0]));
+    vst1_u8(dest + destStride * 4, vreinterpret_u8_u32(v04.val[1]));
+    vst1_u8(dest + destStride * 5, vreinterpret_u8_u32(v15.val[1]));
+    vst1_u8(dest + destStride * 6, vreinterpret_u8_u32(v26.val[1]));
+    vst1_u8(dest + destStride * 7, vreinterpret_u8_u32(v37.val[1]));
+#else
+    for (int i = 0; i < BLOCK; i++) {
+        for (int j = 0; j < BLOCK; j++) {
+            dest[i * destStride + j] = src[j * srcStride + i];
+        }
+    }
+#endif
+}
+
+/**
+ * same as transpose8x8 for 16 bit pairs, swapUV exchanges the two bytes of every pair(NV21 <=> NV12)
+ */
+static inline void transpose8x8UV(const uint8_t *src, int srcStride, uint8_t *dest, int destStride, bool swapUV) {
+#if defined(__SSE2__)
+    const __m128i r0 = _mm_loadu_si128((const __m128i *)(src));
+    const __m128i r1 = _mm_loadu_si128((const __m128i *)(src + srcStride));
+    const __m128i r2 = _mm_loadu_si128((const __m128i *)(src + srcStride * 2));
+    const __m128i r3 = _mm_loadu_si128((const __m128i *)(src + srcStride * 3));
+    const __m128i r4 = _mm_loadu_si128((const __m128i *)(src + srcStride * 4));
+    const __m128i r5 = _mm_loadu_si128((const __m128i *)(src + srcStride * 5));
+    const __m128i r6 = _mm_loadu_si128((const __m128i *)(src + srcStride * 6));
+    const __m128i r7 = _mm_loadu_si128((const __m128i *)(src + srcStride * 7));
+    const __m128i a0 = _mm_unpacklo_epi16(r0, r1);
+    const __m128i a1 = _mm_unpackhi_epi16(r0, r1);
+    const __m128i a2 = _mm_unpacklo_epi16(r2, r3);
+    const __m128i a3 = _mm_unpackhi_epi16(r2, r3);
+    const __m128i a4 = _mm_unpacklo_epi16(r4, r5);
+    const __m128i a5 = _mm_unpackhi_epi16(r4, r5);
+    const __m128i a6 = _mm_unpacklo_epi16(r6, r7);
+    const __m128i a7 = _mm_unpackhi_epi16(r6, r7);
+    // two columns of rows 0-3 and rows 4-7 each
+    const __m128i b0 = _mm_unpacklo_epi32(a0, a2);
+    const __m128i b1 = _mm_unpackhi_epi32(a0, a2);
+    const __m128i b2 = _mm_unpacklo_epi32(a1, a3);
+    const __m128i b3 = _mm_unpackhi_epi32(a1, a3);
+    const __m128i b4 = _mm_unpacklo_epi32(a4, a6);
+    const __m128i b5 = _mm_unpackhi_epi32(a4, a6);
+    const __m128i b6 = _mm_unpacklo_epi32(a5, a7);
+    const __m128i b7 = _mm_unpackhi_epi32(a5, a7);
+    __m128i c[8] = {
+            _mm_unpacklo_epi64(b0, b4), _mm_unpackhi_epi64(b0, b4),
+            _mm_unpacklo_epi64(b1, b5), _mm_unpackhi_epi64(b1, b5),
+            _mm_unpacklo_epi64(b2, b6), _mm_unpackhi_epi64(b2, b6),
+            _mm_unpacklo_epi64(b3, b7), _mm_unpackhi_epi64(b3, b7),
+    };
+    for (int i = 0; i < BLOCK; i++) {
+        if (swapUV) {
+            c[i] = _mm_or_si128(_mm_slli_epi16(c[i], 8), _mm_srli_epi16(c[i], 8));
+        }
+        _mm_storeu_si128((__m128i *)(dest + destStride * i), c[i]);
+    }
+#elif defined(USE_NEON)
+    const uint16x8x2_t t01 = vtrnq_u16(vreinterpretq_u16_u8(vld1q_u8(src)),
+                                       vreinterpretq_u16_u8(vld1q_u8(src + srcStride)));
+    const uint16x8x2_t t23 = vtrnq_u16(vreinterpretq_u16_u8(vld1q_u8(src + srcStride * 2)),
+                                       vreinterpretq_u16_u8(vld1q_u8(src + srcStride * 3)));
+    const uint16x8x2_t t45 = vtrnq_u16(vreinterpretq_u16_u8(vld1q_u8(src + srcStride * 4)),
+                                       vreinterpretq_u16_u8(vld1q_u8(src + srcStride * 5)));
+    const uint16x8x2_t t67 = vtrnq_u16(vreinterpretq_u16_u8(vld1q_u8(src + srcStride * 6)),
+                                       vreinterpretq_u16_u8(vld1q_u8(src + srcStride * 7)));
+    const uint32x4x2_t u02 = vtrnq_u32(vreinterpretq_u32_u16(t01.val[0]), vreinterpretq_u32_u16(t23.val[0]));
+    const uint32x4x2_t u13 = vtrnq_u32(vreinterpretq_u32_u16(t01.val[1]), vreinterpretq_u32_u16(t23.val[1]));
+    const uint32x4x2_t u46 = vtrnq_u32(vreinterpretq_u32_u16(t45.val[0]), vreinterpretq_u32_u16(t67.val[0]));
+    const uint32x4x2_t u57 = vtrnq_u32(vreinterpretq_u32_u16(t45.val[1]), vreinterpretq_u32_u16(t67.val[1]));
+    uint32x4_t c[8] = {
+            vcombine_u32(vget_low_u32(u02.val[0]), vget_low_u32(u46.val[0])),
+            vcombine_u32(vget_low_u32(u13.val[0]), vget_low_u32(u57.val[0])),
+            vcombine_u32(vget_low_u32(u02.val[1]), vget_low_u32(u46.val[1])),
+            vcombine_u32(vget_low_u32(u13.val[1]), vget_low_u32(u57.val[1])),
+            vcombine_u32(vget_high_u32(u02.val[0]), vget_high_u32(u46.val[0])),
+            vcombine_u32(vget_high_u32(u13.val[0]), vget_high_u32(u57.val[0])),
+            vcombine_u32(vget_high_u32(u02.val[1]), vget_high_u32(u46.val[1])),
+            vcombine_u32(vget_high_u32(u13.val[1]), vget_high_u32(u57.val[1])),
+    };
+    for (int i = 0; i < BLOCK; i++) {
+        uint8x16_t row = vreinterpretq_u8_u32(c[i]);
+        vst1q_u8(dest + destStride * i, swapUV ? vrev16q_u8(row) : row);
+    }
+#else
+    for (int i = 0; i < BLOCK; i++) {
+        for (int j = 0; j < BLOCK; j++) {
+            const uint8_t *s = src + j * srcStride + i * 2;
+            uint8_t *d = dest + i * destStride + j * 2;
+            d[0] = swapUV ? s[1] : s[0];
+            d[1] = swapUV ? s[0] : s[1];
+        }
+    }
+#endif
+}
+
+/**
+ * rotate the source rectangle [x0, x1) x [y0, y1) sample by sample, for the edges that do not fill a block
+ */
+static void rotateEdge(const uint8_t *src, int srcStride, uint8_t *dest, int destStride,
+                       int width, int height, int degree, int pixelBytes, bool swapUV,
+                       int x0, int y0, int x1, int y1) {
+    for (int y = y0; y < y1; y++) {
+        for (int x = x0; x < x1; x++) {
+            const uint8_t *s = src + y * srcStride + x * pixelBytes;
+            uint8_t *d = degree == 90
+                    ? dest + x * destStride + (height - 1 - y) * pixelBytes
+                    : dest + (width - 1 - x) * destStride + y * pixelBytes;
+            if (pixelBytes == 1) {
+                d[0] = s[0];
+            } else {
+                d[0] = swapUV ? s[1] : s[0];
+                d[1] = swapUV ? s[0] : s[1];
+            }
+        }
+    }
+}
+
+/**
+ * 90 or 270 degrees, the destination is height x width samples
+ */
+static void rotateBlocks(const uint8_t *src, int srcStride, uint8_t *dest, int destStride,
+                         int width, int height, int degree, int pixelBytes, bool swapUV) {
+    const int blockWidth = width & ~(BLOCK - 1);
+    const int blockHeight = height & ~(BLOCK - 1);
+    for (int ty = 0; ty < blockHeight; ty += TILE) {
+        const int tyEnd = ty + TILE < blockHeight ? ty + TILE : blockHeight;
+        for (int tx = 0; tx < blockWidth; tx += TILE) {
+            const int txEnd = tx + TILE < blockWidth ? tx + TILE : blockWidth;
+            for (int by = ty; by < tyEnd; by += BLOCK) {
+                for (int bx = tx; bx < txEnd; bx += BLOCK) {
+                    const uint8_t *s;
+                    uint8_t *d;
+                    int ss, ds;
+                    if (degree == 90) {
+                        // dest[x][height - 1 - y] = src[y][x], read the block rows from the bottom
+                        s = src + (by + BLOCK - 1) * srcStride + bx * pixelBytes;
+                        ss = -srcStride;
+                        d = dest + bx * destStride + (height - BLOCK - by) * pixelBytes;
+                        ds = destStride;
+                    } else {
+                        // dest[width - 1 - x][y] = src[y][x], write the block rows from the bottom
+                        s = src + by * srcStride + bx * pixelBytes;
+                        ss = srcStride;
+                        d = dest + (width - 1 - bx) * destStride + by * pixelBytes;
+                        ds = -destStride;
+                    }
+                    if (pixelBytes == 1) {
+                        transpose8x8(s, ss, d, ds);
+                    } else {
+                        transpose8x8UV(s, ss, d, ds, swapUV);
+                    }
+                }
+            }
+        }
+    }
+    // right edge of every row, then the bottom rows
+    rotateEdge(src, srcStride, dest, destStride, width, height, degree, pixelBytes, swapUV,
+               blockWidth, 0, width, height);
+    rotateEdge(src, srcStride, dest, destStride, width, height, degree, pixelBytes, swapUV,
+               0, blockHeight, blockWidth, height);
+}
+
+#if defined(__SSE2__)
+/**
+ * reverse 16 bytes, or 8 byte pairs keeping the byte order inside the pairs
+ */
+static inline __m128i reverse16(__m128i v, int unitBytes) {
+    if (unitBytes == 1) {
+        v = _mm_or_si128(_mm_slli_epi16(v, 8), _mm_srli_epi16(v, 8));
+    }
+    v = _mm_shufflelo_epi16(v, _MM_SHUFFLE(0, 1, 2, 3));
+    v = _mm_shufflehi_epi16(v, _MM_SHUFFLE(0, 1, 2, 3));
+    return _mm_shuffle_epi32(v, _MM_SHUFFLE(1, 0, 3, 2));
+}
+#elif defined(USE_NEON)
+static inline uint8x16_t reverse16(uint8x16_t v, int unitBytes) {
+    if (unitBytes == 1) {
+        v = vrev64q_u8(v);
+    } else {
+        v = vreinterpretq_u8_u16(vrev64q_u16(vreinterpretq_u16_u8(v)));
+    }
+    return vextq_u8(v, v, 8);
+}
+#endif
+
+/**
+ * dest = src with its units of 1 or 2 bytes in reverse order, 16 bytes at a time
+ */
+static void reverseRow(const uint8_t *src, uint8_t *dest, int bytes, int unitBytes) {
+    int x = 0;
+#if defined(__SSE2__)
+    for (; x + 16 <= bytes; x += 16) {
+        const __m128i v = _mm_loadu_si128((const __m128i *)(src + bytes - x - 16));
+        _mm_storeu_si128((__m128i *)(dest + x), reverse16(v, unitBytes));
+    }
+#elif defined(USE_NEON)
+    for (; x + 16 <= bytes; x += 16) {
+        vst1q_u8(dest + x, reverse16(vld1q_u8(src + bytes - x - 16), unitBytes));
+    }
+#endif
+    if (unitBytes == 1) {
+        for (; x < bytes; x++) {
+            dest[x] = src[bytes - 1 - x];
+        }
+    } else {
+        for (; x < bytes; x += 2) {
+            dest[x] = src[bytes - 2 - x];
+            dest[x + 1] = src[bytes - 1 - x];
+        }
+    }
+}
+
+/**
+ * 0 or 180 degrees, rows are read and written sequentially already
+ */
+static void rotateRows(const uint8_t *src, int srcStride, uint8_t *dest, int destStride,
+                       int width, int height, int degree, int pixelBytes, bool swapUV) {
+    // reversing the pairs and swapping their bytes is reversing all bytes
+    const int unitBytes = (pixelBytes == 1 || swapUV) ? 1 : 2;
+    for (int y = 0; y < height; y++) {
+        const uint8_t *s = src + y * srcStride;
+        if (degree == 0) {
+            uint8_t *d = dest + y * destStride;
+            if (!swapUV) {
+                memcpy(d, s, width * pixelBytes);
+            } else {
+                for (int x = 0; x < width; x++) {
+                    d[x * 2] = s[x * 2 + 1];
+                    d[x * 2 + 1] = s[x * 2];
+                }
+            }
+        } else {
+            reverseRow(s, dest + (height - 1 - y) * destStride, width * pixelBytes, unitBytes);
+        }
+    }
+}
+
+/**
+ * Rotate a plane of 8 bit samples clockwise, source and destination must not overlap
+ *
+ * @param width source width in samples, the destination is height x width for 90/270 degrees
+ * @param degree 0/90/180/270
+ */
+void rotatePlane(const uint8_t *src, int srcStride, uint8_t *dest, int destStride,
+                 int width, int height, int degree) {
+    if (degree == 90 || degree == 270) {
+        rotateBlocks(src, srcStride, dest, destStride, width, height, degree, 1, false);
+    } else {
+        rotateRows(src, srcStride, dest, destStride, width, height, degree, 1, false);
+    }
+}
+
+/**
+ * Rotate a plane of interleaved 16 bit chroma pairs clockwise, source and destination must not overlap
+ *
+ * @param width source width in pairs, strides are in bytes
+ * @param degree 0/90/180/270
+ * @param swapUV exchange the two bytes of every pair, NV21 <=> NV12
+ */
+void rotatePlaneUV(const uint8_t *src, int srcStride, uint8_t *dest, int destStride,
+                   int width, int height, int degree, bool swapUV) {
+    if (degree == 90 || degree == 270) {
+        rotateBlocks(src, srcStride, dest, destStride, width, height, degree, 2, swapUV);
+    } else {
+        rotateRows(src, srcStride, dest, destStride, width, height, degree, 2, swapUV);
+    }
+}
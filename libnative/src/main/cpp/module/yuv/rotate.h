@@ -0,0 +1,21 @@
+/**
+ * plane rotation
+ */
+
+#ifndef ANDROIDUSBCAMERA_ROTATE_H
+#define ANDROIDUSBCAMERA_ROTATE_H
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+#include <cstdint>
+
+void rotatePlane(const uint8_t *src, int srcStride, uint8_t *dest, int destStride,
+                 int width, int height, int degree);
+void rotatePlaneUV(const uint8_t *src, int srcStride, uint8_t *dest, int destStride,
+                   int width, int height, int degree, bool swapUV);
+
+#ifdef __cplusplus
+};
+#endif
+#endif //ANDROIDUSBCAMERA_ROTATE_H
@@ -10,6 +10,11 @@
  */
 
 #include "yuv.h"
+#include "rotate.h"
+
+// edge of the square blocks nv21TransformInternal walks in,
+// a block of source rows stays in cache while it is read column by column
+#define TRANSFORM_TILE 32
 
 void *yuv420spToNv21Internal(char* srcData, char* destData, int width, int height) {
     int yLength = width * height;
@@ -34,6 +39,7 @@ void *nv21ToYuv420spInternal(char* srcData, char* destData, int width, int heigh
 }
 
 void *nv21ToYuv420spWithMirrorInternal(char* srcData, char* destData, int width, int height) {
+    nv21TransformInternal(srcData, destData, width, height, 0, true, YUV_FORMAT_NV12);
     return nullptr;
 }
 
@@ -49,5 +55,132 @@ void *nv21ToYuv420pInternal(char* srcData, char* destData, int width, int height
 }
 
 void *nv21ToYuv420pWithMirrorInternal(char* srcData, char* destData, int width, int height) {
+    nv21TransformInternal(srcData, destData, width, height, 0, true, YUV_FORMAT_I420);
     return nullptr;
 }
+
+/**
+ * Where the first output pixel of a row comes from and how to step to the next one
+ *
+ * out[oy][ox] = src[sy][sx] for a clockwise rotation, mirror flips the output horizontally
+ */
+static void mapRow(int width, int height, int degree, bool mirror, int outWidth, int oy,
+                   int *sx, int *sy, int *dx, int *dy) {
+    int ox = mirror ? outWidth - 1 : 0;
+    int step = mirror ? -1 : 1;
+    switch (degree) {
+        case 90:
+            *sx = oy; *sy = height - 1 - ox; *dx = 0; *dy = -step;
+            break;
+        case 180:
+            *sx = width - 1 - ox; *sy = height - 1 - oy; *dx = -step; *dy = 0;
+            break;
+        case 270:
+            *sx = width - 1 - oy; *sy = ox; *dx = 0; *dy = step;
+            break;
+        default:
+            *sx = ox; *sy = oy; *dx = step; *dy = 0;
+            break;
+    }
+}
+
+/**
+ * Rotate, mirror and convert a NV21 frame in one pass, source and destination must not overlap
+ *
+ * @param degree clockwise rotation, 0/90/180/270, width and height are swapped for 90/270
+ * @param mirror flip the rotated image horizontally
+ * @param format YUV_FORMAT_NV21, YUV_FORMAT_NV12 or YUV_FORMAT_I420
+ * @return 0 on success, -1 for parameters not supported
+ */
+int nv21TransformInternal(const char* srcData, char* destData, int width, int height, int degree, bool mirror, int format) {
+    if (width <= 0 || height <= 0 || (width & 1) || (height & 1)) {
+        return -1;
+    }
+    if (degree != 0 && degree != 90 && degree != 180 && degree != 270) {
+        return -1;
+    }
+    if (format != YUV_FORMAT_NV21 && format != YUV_FORMAT_NV12 && format != YUV_FORMAT_I420) {
+        return -1;
+    }
+    const bool swap = degree == 90 || degree == 270;
+    const int outWidth = swap ? height : width;
+    const int outHeight = swap ? width : height;
+    const int yLength = width * height;
+    if (!mirror && format != YUV_FORMAT_I420) {
+        // block transposes, the interleaved chroma is rotated as 16 bit pairs
+        rotatePlane((const uint8_t *)srcData, width, (uint8_t *)destData, outWidth, width, height, degree);
+        rotatePlaneUV((const uint8_t *)srcData + yLength, width, (uint8_t *)destData + yLength, outWidth,
+                      width / 2, height / 2, degree, format == YUV_FORMAT_NV12);
+        return 0;
+    }
+    // luma, blocks of output rows x output columns
+    for (int ty = 0; ty < outHeight; ty += TRANSFORM_TILE) {
+        const int tyEnd = ty + TRANSFORM_TILE < outHeight ? ty + TRANSFORM_TILE : outHeight;
+        for (int tx = 0; tx < outWidth; tx += TRANSFORM_TILE) {
+            const int txEnd = tx + TRANSFORM_TILE < outWidth ? tx + TRANSFORM_TILE : outWidth;
+            for (int oy = ty; oy < tyEnd; oy++) {
+                int x, y, stepX, stepY;
+                mapRow(width, height, degree, mirror, outWidth, oy, &x, &y, &stepX, &stepY);
+                const char *src = srcData + (y + stepY * tx) * width + x + stepX * tx;
+                const int step = stepY * width + stepX;
+                char *dest = destData + oy * outWidth + tx;
+                if (step == 1) {
+                    memcpy(dest, src, txEnd - tx);
+                } else {
+                    for (int ox = tx; ox < txEnd; ox++) {
+                        *dest++ = *src;
+                        src += step;
+                    }
+                }
+            }
+        }
+    }
+    // chroma, NV21 keeps (v, u) pairs in a plane of (width / 2) x (height / 2)
+    const char *srcVU = srcData + yLength;
+    const int cWidth = width / 2;
+    const int cHeight = height / 2;
+    const int outCWidth = outWidth / 2;
+    const int outCHeight = outHeight / 2;
+    char *destUV = destData + yLength;
+    char *destU = destData + yLength;
+    char *destV = destU + yLength / 4;
+    for (int ty = 0; ty < outCHeight; ty += TRANSFORM_TILE) {
+        const int tyEnd = ty + TRANSFORM_TILE < outCHeight ? ty + TRANSFORM_TILE : outCHeight;
+        for (int tx = 0; tx < outCWidth; tx += TRANSFORM_TILE) {
+            const int txEnd = tx + TRANSFORM_TILE < outCWidth ? tx + TRANSFORM_TILE : outCWidth;
+            for (int oy = ty; oy < tyEnd; oy++) {
+                int x, y, stepX, stepY;
+                mapRow(cWidth, cHeight, degree, mirror, outCWidth, oy, &x, &y, &stepX, &stepY);
+                const char *src = srcVU + ((y + stepY * tx) * cWidth + x + stepX * tx) * 2;
+                const int step = (stepY * cWidth + stepX) * 2;
+                const int offset = oy * outCWidth + tx;
+                if (format == YUV_FORMAT_I420) {
+                    char *u = destU + offset;
+                    char *v = destV + offset;
+                    for (int ox = tx; ox < txEnd; ox++) {
+                        *v++ = src[0];
+                        *u++ = src[1];
+                        src += step;
+                    }
+                } else if (format == YUV_FORMAT_NV12) {
+                    char *uv = destUV + offset * 2;
+                    for (int ox = tx; ox < txEnd; ox++) {
+                        *uv++ = src[1];
+                        *uv++ = src[0];
+                        src += step;
+                    }
+                } else if (step == 2) {
+                    memcpy(destUV + offset * 2, src, (txEnd - tx) * 2);
+                } else {
+                    char *vu = destUV + offset * 2;
+                    for (int ox = tx; ox < txEnd; ox++) {
+                        *vu++ = src[0];
+                        *vu++ = src[1];
+                        src += step;
+                    }
+                }
+            }
+        }
+    }
+    return 0;
+}
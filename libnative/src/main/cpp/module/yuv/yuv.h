@@ -12,11 +12,17 @@ extern "C" {
 #endif
 #include <cstring>
 
+// output layout of nv21TransformInternal
+#define YUV_FORMAT_NV21 0       // YYYYYYYY VUVU
+#define YUV_FORMAT_NV12 1       // YYYYYYYY UVUV, COLOR_FormatYUV420SemiPlanar
+#define YUV_FORMAT_I420 2       // YYYYYYYY UU VV, COLOR_FormatYUV420Planar
+
 void *yuv420spToNv21Internal(char* srcData, char* destData, int width, int height);
 void *nv21ToYuv420spInternal(char* srcData, char* destData, int width, int height);
 void *nv21ToYuv420spWithMirrorInternal(char* srcData, char* destData, int width, int height);
 void *nv21ToYuv420pInternal(char* srcData, char* destData, int width, int height);
 void *nv21ToYuv420pWithMirrorInternal(char* srcData, char* destData, int width, int height);
+int nv21TransformInternal(const char* srcData, char* destData, int width, int height, int degree, bool mirror, int format);
 
 #ifdef __cplusplus
 };
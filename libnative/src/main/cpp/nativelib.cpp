@@ -56,6 +56,7 @@ static JNINativeMethod g_yuv_methods[] = {
         {"nv21ToYuv420p", "([BII)V", (void *)nv21ToYuv420p},
         {"nv21ToYuv420pWithMirror", "([BII)V", (void *)nv21ToYuv420pWithMirror},
         {"nativeRotateNV21", "([BIII)V", (void *)nativeRotateNV21},
+        {"nativeTransformNV21", "([BLjava/nio/ByteBuffer;IIIZI)I", (void *)nativeTransformNV21},
 };
 
 static JNINativeMethod g_lame_methods[] = {
@@ -63,6 +64,11 @@ static JNINativeMethod g_lame_methods[] = {
         {"lameEncode", "([S[SI[B)I", (void *)lameEncode},
         {"lameFlush", "([B)I", (void *)lameFlush},
         {"lameClose", "()V", (void *)lameClose},
+        {"nativeCreate", "(IIIIII)J", (void *)lameCreate},
+        {"lameEncodeDirect", "(JLjava/nio/ByteBuffer;IILjava/nio/ByteBuffer;II)I", (void *)lameEncodeDirect},
+        {"lameEncodeToFd", "(JLjava/nio/ByteBuffer;III)I", (void *)lameEncodeToFd},
+        {"lameFlushToFd", "(JI)I", (void *)lameFlushToFd},
+        {"lameClose", "(J)V", (void *)lameRelease},
 };
 
 extern "C"
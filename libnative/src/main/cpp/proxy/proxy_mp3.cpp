@@ -61,3 +61,51 @@ jint lameFlush(JNIEnv *env, jobject instance, jbyteArray mp3buf_) {
 void lameClose(JNIEnv *env, jobject instance) {
     lameCloseInternal();
 }
+
+/**
+ * address of size bytes at offset of a direct buffer, null if out of range
+ */
+static unsigned char *getDirectRange(JNIEnv *env, jobject buffer, jint offset, jint size) {
+    if (! buffer || offset < 0 || size < 0) {
+        return nullptr;
+    }
+    auto *address = (unsigned char *)env->GetDirectBufferAddress(buffer);
+    if (! address || env->GetDirectBufferCapacity(buffer) < (jlong)offset + size) {
+        return nullptr;
+    }
+    return address + offset;
+}
+
+jlong lameCreate(JNIEnv *env, jobject instance, jint inSampleRate, jint outChannel, jint outSampleRate,
+                 jint outBitRate, jint quality, jint threads) {
+    return reinterpret_cast<jlong>(mp3EncoderCreate(inSampleRate, outChannel, outSampleRate, outBitRate, quality, threads));
+}
+
+jint lameEncodeDirect(JNIEnv *env, jobject instance, jlong handle, jobject pcm_, jint offset, jint size,
+                      jobject mp3Buf_, jint mp3Offset, jint mp3Size) {
+    unsigned char *pcm = getDirectRange(env, pcm_, offset, size);
+    // mp3Size is the remaining() of the Java buffer, the capacity may be past its limit
+    unsigned char *mp3Buf = getDirectRange(env, mp3Buf_, mp3Offset, mp3Size);
+    if(! pcm || ! mp3Buf){
+        LOGE("lameEncodeDirect needs direct buffers");
+        return -1;
+    }
+    return mp3EncoderEncodePcm16(reinterpret_cast<Mp3Encoder *>(handle), pcm, size, mp3Buf, mp3Size);
+}
+
+jint lameEncodeToFd(JNIEnv *env, jobject instance, jlong handle, jobject pcm_, jint offset, jint size, jint fd) {
+    unsigned char *pcm = getDirectRange(env, pcm_, offset, size);
+    if(! pcm || fd < 0){
+        LOGE("lameEncodeToFd needs a direct buffer and a valid fd");
+        return -1;
+    }
+    return mp3EncoderEncodeToFd(reinterpret_cast<Mp3Encoder *>(handle), pcm, size, fd);
+}
+
+jint lameFlushToFd(JNIEnv *env, jobject instance, jlong handle, jint fd) {
+    return mp3EncoderFlushToFd(reinterpret_cast<Mp3Encoder *>(handle), fd);
+}
+
+void lameRelease(JNIEnv *env, jobject instance, jlong handle) {
+    mp3EncoderDestroy(reinterpret_cast<Mp3Encoder *>(handle));
+}
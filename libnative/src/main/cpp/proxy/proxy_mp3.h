@@ -30,6 +30,11 @@ void lameInit(JNIEnv *env, jobject instance, jint inSampleRate, jint outChannel,
 jint lameEncode(JNIEnv *env, jobject instance, jshortArray leftBuf_, jshortArray rightBuf, jint sampleRate, jbyteArray mp3Buf);
 jint lameFlush(JNIEnv *env, jobject instance, jbyteArray mp3Buf);
 void lameClose(JNIEnv *env, jobject instance);
+jlong lameCreate(JNIEnv *env, jobject instance, jint inSampleRate, jint outChannel, jint outSampleRate, jint outBitRate, jint quality, jint threads);
+jint lameEncodeDirect(JNIEnv *env, jobject instance, jlong handle, jobject pcm, jint offset, jint size, jobject mp3Buf, jint mp3Offset, jint mp3Size);
+jint lameEncodeToFd(JNIEnv *env, jobject instance, jlong handle, jobject pcm, jint offset, jint size, jint fd);
+jint lameFlushToFd(JNIEnv *env, jobject instance, jlong handle, jint fd);
+void lameRelease(JNIEnv *env, jobject instance, jlong handle);
 
 #ifdef __cplusplus
 };
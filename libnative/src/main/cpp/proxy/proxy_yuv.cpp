@@ -91,69 +91,53 @@ void nv21ToYuv420pWithMirror(JNIEnv *env, jobject instance, jbyteArray data, jin
 
 void nativeRotateNV21(JNIEnv *env, jobject instance, jbyteArray j_srcArr, jint width, jint height, jint rotateDegree) {
     if(! j_srcArr || width == 0 || height == 0) {
-        LOGE("Parameters error in nv21ToYuv420pWithMirror");
+        LOGE("Parameters error in nativeRotateNV21");
+        return;
+    }
+    if(rotateDegree != 90 && rotateDegree != 180 && rotateDegree != 270) {
+        return;
+    }
+    jint frameSize = width * height * 3 / 2;
+    if(env->GetArrayLength(j_srcArr) < frameSize) {
+        LOGE("Buffer error in nativeRotateNV21");
         return;
     }
     auto * c_srcArr = (jbyte*) env->GetByteArrayElements(j_srcArr, JNI_FALSE);
-    jsize srcLen = env->GetArrayLength(j_srcArr);
-    jint wh = width * height;
-    jint frameSize =wh * 3 / 2;
-    int yLength = wh;
-    int uLength = yLength / 4;
     // 开辟一段临时内存空间
-    char *c_tmp = (char *)malloc(srcLen);
-
-    int k = 0,i=0,j=0;
-    if(rotateDegree == 90){
-        // 旋转Y
-        for (i = 0; i < width; i++) {
-            for (j = height - 1; j >= 0; j--) {
-                c_tmp[k] = c_srcArr[width * j + i];
-                k++;
-            }
-        }
-        // 旋转U、V分量
-        for (i = 0; i < width; i += 2) {
-            for (j = height / 2 - 1; j >= 0; j--) {
-                c_tmp[k] = c_srcArr[wh + width * j + i];
-                c_tmp[k + 1] = c_srcArr[wh + width * j + i + 1];
-                k += 2;
-            }
-        }
-    }else if(rotateDegree == 180){
-        // 旋转Y分量
-        for (i = wh - 1; i >= 0; i--) {
-            c_tmp[k] = c_srcArr[i];
-            k++;
-        }
-        // 旋转U、V分量
-        for (j = wh * 3 / 2 - 1; j >= wh; j -= 2) {
-            c_tmp[k] = c_srcArr[j - 1];
-            c_tmp[k + 1] = c_srcArr[j];
-            k += 2;
-        }
-    }else if(rotateDegree == 270){
-        // 旋转Y分量
-        for(i=width-1 ; i>=0 ; i--){
-            for(j=height-1 ; j>=0 ; j--){
-                c_tmp[k] = c_srcArr[width*j + i];
-                k++;
-            }
-        }
-        // 旋转U、V分量
-        for(i=width-1 ; i>=0 ; i-=2){
-            for(j=height/2-1 ; j>=0 ; j--){
-                c_tmp[k] = c_srcArr[wh + width*j + i-1];
-                c_tmp[k+1] = c_srcArr[wh + width*j + i];
-                k +=2;
-            }
-        }
+    char *c_tmp = (char *)malloc(frameSize);
+    // 分块旋转Y、VU分量
+    if(nv21TransformInternal((char *)c_srcArr, c_tmp, width, height, rotateDegree, false, YUV_FORMAT_NV21) == 0) {
+        memcpy(c_srcArr, c_tmp, frameSize);
+    } else {
+        LOG_E("nativeRotateNV21 failed, size = %dx%d", width, height);
     }
-
-    // 将c_tmp的数据覆盖到原数组j_srcArr
-    env->SetByteArrayRegion(j_srcArr,0,srcLen,(jbyte *)c_tmp);
-    // 释放资源
-    env->ReleaseByteArrayElements(j_srcArr, c_srcArr, JNI_FALSE);
+    // 将旋转后的数据写回原数组j_srcArr并释放资源
+    env->ReleaseByteArrayElements(j_srcArr, c_srcArr, 0);
     // 释放临时内存
     free(c_tmp);
 }
+
+jint nativeTransformNV21(JNIEnv *env, jobject instance, jbyteArray data, jobject dest, jint width, jint height, jint degree, jboolean mirror, jint format) {
+    if(! data || ! dest || width <= 0 || height <= 0) {
+        LOGE("Parameters error in nativeTransformNV21");
+        return -1;
+    }
+    jint frameSize = width * height * 3 / 2;
+    auto *destData = (char *)env->GetDirectBufferAddress(dest);
+    if(! destData || env->GetDirectBufferCapacity(dest) < frameSize || env->GetArrayLength(data) < frameSize) {
+        LOGE("Buffer error in nativeTransformNV21, dest must be a direct buffer of frame size");
+        return -1;
+    }
+    // no copy of the source array on most runtimes, the transform does not call back into the JVM
+    auto *srcData = (char *)env->GetPrimitiveArrayCritical(data, nullptr);
+    if(! srcData) {
+        return -1;
+    }
+    int ret = nv21TransformInternal(srcData, destData, width, height, degree, mirror == JNI_TRUE, format);
+    env->ReleasePrimitiveArrayCritical(data, srcData, JNI_ABORT);
+    if(ret != 0) {
+        LOG_E("nativeTransformNV21 failed, size = %dx%d, degree = %d, format = %d", width, height, degree, format);
+        return -1;
+    }
+    return frameSize;
+}
@@ -34,6 +34,7 @@ void nv21ToYuv420spWithMirror(JNIEnv *env, jobject instance, jbyteArray data, ji
 void nv21ToYuv420p(JNIEnv *env, jobject instance, jbyteArray data, jint width, jint height);
 void nv21ToYuv420pWithMirror(JNIEnv *env, jobject instance, jbyteArray data, jint width, jint height);
 void nativeRotateNV21(JNIEnv *env, jobject instance, jbyteArray data, jint width, jint height, jint degree);
+jint nativeTransformNV21(JNIEnv *env, jobject instance, jbyteArray data, jobject dest, jint width, jint height, jint degree, jboolean mirror, jint format);
 
 #ifdef __cplusplus
 };
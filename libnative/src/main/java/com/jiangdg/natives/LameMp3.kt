@@ -1,6 +1,12 @@
 package com.jiangdg.natives
 
+import java.nio.ByteBuffer
+
 /** pcm to mp3
+ *
+ * Each [lameCreate] creates an encoder and returns its handle, pass it to the functions taking
+ * a handle so that several recordings can run at the same time. The functions without a
+ * handle work on the one encoder of [lameInit], as before, and never on a created one.
  *
  * @author Created by jiangdg on 2022/3/2
  */
@@ -52,4 +58,100 @@ object LameMp3 {
      * Release lame library resources
      */
     external fun lameClose()
+
+    /** Create an encoder of its own, for the functions taking a handle
+     *
+     * @param inSampleRate pcm format audio sample rate
+     * @param outChannel number of audio channels in pcm format
+     * @param outSampleRate mp3 format audio sample rate
+     * @param outBitRate mp3 format audio bit rate
+     * @param quality mp3 format audio quality, 0~9, slowest and worst~fastest and best
+     * @param threads more than 1 encodes segments of about a few seconds of pcm on that
+     *                many threads and stitches the frames, for long recordings. Only for
+     *                the fd functions, the mp3 is written a batch of segments late and the
+     *                bit reservoir is off.
+     * @return handle of the encoder, 0 if failed. [lameClose] it when done
+     */
+    @JvmOverloads
+    fun lameCreate(
+        inSampleRate: Int,
+        outChannel: Int,
+        outSampleRate: Int,
+        outBitRate: Int,
+        quality: Int,
+        threads: Int = 1
+    ): Long = nativeCreate(inSampleRate, outChannel, outSampleRate, outBitRate, quality, threads)
+
+    /** Encode pcm into mp3 format without converting it to shorts
+     *
+     * @param handle encoder of [lameCreate], not in the threads mode
+     * @param pcm direct buffer of 16-bit little endian pcm from position to limit,
+     *            interleaved if stereo. It is consumed on success.
+     * @param mp3Buf direct buffer the mp3 data is written to from its position up to its limit,
+     *               at least [getMaxMp3BufferSize] bytes left. The position is moved past the data.
+     * @return encoded data byte length, negative on error
+     */
+    fun lameEncode(handle: Long, pcm: ByteBuffer, mp3Buf: ByteBuffer): Int {
+        val ret = lameEncodeDirect(handle, pcm, pcm.position(), pcm.remaining(), mp3Buf, mp3Buf.position(), mp3Buf.remaining())
+        if (ret >= 0) {
+            pcm.position(pcm.limit())
+            mp3Buf.position(mp3Buf.position() + ret)
+        }
+        return ret
+    }
+
+    /** Encode pcm into mp3 format and write it to the file straight from native
+     *
+     * @param handle encoder of [lameCreate]
+     * @param pcm direct buffer of 16-bit little endian pcm from position to limit,
+     *            interleaved if stereo. It is consumed on success.
+     * @param fd file descriptor opened for writing, e.g. ParcelFileDescriptor.getFd
+     * @return written byte length, 0 while a threads mode encoder collects pcm, negative on error
+     */
+    fun lameEncode(handle: Long, pcm: ByteBuffer, fd: Int): Int {
+        val ret = lameEncodeToFd(handle, pcm, pcm.position(), pcm.remaining(), fd)
+        if (ret >= 0) {
+            pcm.position(pcm.limit())
+        }
+        return ret
+    }
+
+    /** Flush the last mp3 frames to the file
+     *
+     * @param handle encoder of [lameCreate]
+     * @param fd file descriptor opened for writing
+     * @return written byte length, negative on error
+     */
+    external fun lameFlushToFd(handle: Long, fd: Int): Int
+
+    /**
+     * Release the encoder
+     *
+     * @param handle encoder of [lameCreate]
+     */
+    external fun lameClose(handle: Long)
+
+    /** Worst case mp3 size of a pcm buffer, 1.25 * samples + 7200 bytes as documented by lame
+     *
+     * @param pcmSize 16-bit pcm byte size
+     * @param channelCount number of channels
+     * @return mp3 buffer size that never fails with a too small buffer
+     */
+    fun getMaxMp3BufferSize(pcmSize: Int, channelCount: Int): Int {
+        val samples = pcmSize / 2 / channelCount.coerceAtLeast(1)
+        return samples * 5 / 4 + 7200
+    }
+
+    private external fun nativeCreate(
+        inSampleRate: Int,
+        outChannel: Int,
+        outSampleRate: Int,
+        outBitRate: Int,
+        quality: Int,
+        threads: Int
+    ): Long
+
+    private external fun lameEncodeDirect(handle: Long, pcm: ByteBuffer, offset: Int, size: Int, mp3Buf: ByteBuffer, mp3Offset: Int, mp3Size: Int): Int
+
+    private external fun lameEncodeToFd(handle: Long, pcm: ByteBuffer, offset: Int, size: Int, fd: Int): Int
 }
\ No newline at end of file
@@ -15,6 +15,8 @@
  */
 package com.jiangdg.natives
 
+import java.nio.ByteBuffer
+
 /** YUV format transform
  *
  * @author Created by jiangdg on 2022/2/18
@@ -30,4 +32,29 @@ object YUVUtils {
     external fun nv21ToYuv420p(data: ByteArray, width: Int, height: Int)
     external fun nv21ToYuv420pWithMirror(data: ByteArray, width: Int, height: Int)
     external fun nativeRotateNV21(data: ByteArray, width: Int, height: Int, degree: Int)
+
+    /** Rotate, mirror and convert a NV21 frame in one pass into [dest]
+     *
+     * @param data NV21 frame, not modified
+     * @param dest direct buffer of at least width * height * 3 / 2 bytes, e.g. a MediaCodec input buffer
+     * @param width frame width, must be even
+     * @param height frame height, must be even
+     * @param degree clockwise rotation, 0/90/180/270, width and height of dest are swapped for 90/270
+     * @param mirror flip the rotated image horizontally
+     * @param format output layout, [FORMAT_NV21], [FORMAT_NV12] or [FORMAT_I420]
+     * @return bytes written to dest, or -1 on error
+     */
+    external fun nativeTransformNV21(
+        data: ByteArray,
+        dest: ByteBuffer,
+        width: Int,
+        height: Int,
+        degree: Int,
+        mirror: Boolean,
+        format: Int
+    ): Int
+
+    const val FORMAT_NV21 = 0
+    const val FORMAT_NV12 = 1
+    const val FORMAT_I420 = 2
 }
\ No newline at end of file
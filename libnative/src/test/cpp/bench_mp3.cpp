@@ -0,0 +1,193 @@
+/**
+ * host benchmark for the pcm to mp3 path in module/mp3/mp3.cpp
+ *
+ * encodes a pcm fixture the former way, a new short array per buffer converted from the
+ * pcm bytes and encoded into a fixed 2KB mp3 buffer, and the direct way, the pcm bytes
+ * encoded as they are into a worst case sized buffer written to the fd natively. Checks
+ * that both give the same mp3, or that only the former one failed, and prints one line per case in the format of Google
+ * Benchmark(time per buffer, iterations, pcm bytes per second).
+ *
+ * build and run on the Linux host from libnative/src/main/cpp:
+ *
+ *   gcc -O2 -w -include stdint.h -DSTDC_HEADERS -I../../test/cpp/stub -Imodule/mp3/lame -c module/mp3/lame/[A-Za-z]*.c && \
+ *   g++ -O2 -I../../test/cpp/stub -Imodule/mp3 ../../test/cpp/bench_mp3.cpp module/mp3/mp3.cpp *.o \
+ *     -lpthread -o /tmp/bench_mp3 && rm *.o && /tmp/bench_mp3
+ *
+ * usage: bench_mp3 [seconds of pcm]
+ */
+
+#include <cmath>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <ctime>
+#include <fcntl.h>
+#include <unistd.h>
+#include <vector>
+#include "mp3.h"
+
+#define FORMER_MP3_BUFFER_SIZE 2048
+
+static double nowMs() {
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000.0 + t.tv_nsec / 1000000.0;
+}
+
+/**
+ * mono 16-bit little endian fixture, a voice like tone with noise, written to disk and read back
+ */
+static std::vector<unsigned char> loadFixture(const char *path, int sampleRate, int seconds) {
+    int samples = sampleRate * seconds;
+    std::vector<unsigned char> pcm(samples * 2);
+    unsigned int seed = 1;
+    for (int i = 0; i < samples; i++) {
+        double t = (double)i / sampleRate;
+        double envelope = 0.5 + 0.5 * sin(2 * M_PI * 3 * t);
+        double v = envelope * (0.4 * sin(2 * M_PI * 220 * t) + 0.2 * sin(2 * M_PI * 660 * t)
+                + 0.1 * sin(2 * M_PI * 1870 * t)) + 0.05 * ((seed = seed * 1103515245 + 12345) % 2001 - 1000) / 1000.0;
+        auto s = (short)(v * 20000);
+        pcm[i * 2] = (unsigned char)(s & 0xFF);
+        pcm[i * 2 + 1] = (unsigned char)((s >> 8) & 0xFF);
+    }
+    FILE *fp = fopen(path, "wb");
+    fwrite(pcm.data(), 1, pcm.size(), fp);
+    fclose(fp);
+    std::vector<unsigned char> fixture(pcm.size());
+    fp = fopen(path, "rb");
+    size_t read = fread(fixture.data(), 1, fixture.size(), fp);
+    fclose(fp);
+    fixture.resize(read);
+    return fixture;
+}
+
+struct Result {
+    double ms;
+    int buffers;
+    long mp3Bytes;
+    int failures;
+};
+
+/**
+ * former recordMp3Start: MediaUtils.transferByte2Short per buffer, lameEncode into a 2KB array
+ */
+static Result encodeFormer(const std::vector<unsigned char> &pcm, int chunk, int fd) {
+    Result r = {0, 0, 0, 0};
+    unsigned char mp3Buf[FORMER_MP3_BUFFER_SIZE];
+    double start = nowMs();
+    for (size_t off = 0; off + chunk <= pcm.size(); off += chunk) {
+        int samples = chunk / 2;
+        auto *tmp = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            tmp[i] = (short)(pcm[off + i * 2] | (pcm[off + i * 2 + 1] << 8));
+        }
+        int ret = lameEncodeInternal(tmp, nullptr, samples, mp3Buf, sizeof(mp3Buf));
+        delete[] tmp;
+        r.buffers++;
+        if (ret < 0) {
+            // the buffer was too small, lame is left in a broken state, the rest of the record is lost
+            r.failures++;
+            r.ms = nowMs() - start;
+            return r;
+        } else if (ret > 0) {
+            r.mp3Bytes += write(fd, mp3Buf, ret);
+        }
+    }
+    int ret = lameFlushInternal(mp3Buf, sizeof(mp3Buf));
+    if (ret > 0) {
+        r.mp3Bytes += write(fd, mp3Buf, ret);
+    }
+    r.ms = nowMs() - start;
+    return r;
+}
+
+static Result encodeDirect(Mp3Encoder *encoder, const std::vector<unsigned char> &pcm, int chunk, int fd) {
+    Result r = {0, 0, 0, 0};
+    double start = nowMs();
+    for (size_t off = 0; off + chunk <= pcm.size(); off += chunk) {
+        int ret = mp3EncoderEncodeToFd(encoder, pcm.data() + off, chunk, fd);
+        if (ret < 0) {
+            r.failures++;
+        } else {
+            r.mp3Bytes += ret;
+        }
+        r.buffers++;
+    }
+    int ret = mp3EncoderFlushToFd(encoder, fd);
+    if (ret > 0) {
+        r.mp3Bytes += ret;
+    }
+    r.ms = nowMs() - start;
+    return r;
+}
+
+static std::vector<unsigned char> readAll(const char *path) {
+    std::vector<unsigned char> data;
+    FILE *fp = fopen(path, "rb");
+    if (! fp) {
+        return data;
+    }
+    unsigned char buf[8192];
+    size_t n;
+    while ((n = fread(buf, 1, sizeof(buf), fp)) > 0) {
+        data.insert(data.end(), buf, buf + n);
+    }
+    fclose(fp);
+    return data;
+}
+
+static void printResult(const char *name, const Result &r, int chunk) {
+    printf("%-44s %10.0f ns %10d %10.2fM/s  mp3 %ld bytes, %d failed buffers\n", name,
+           r.ms * 1e6 / r.buffers, r.buffers, (double)r.buffers * chunk / (r.ms / 1000.0) / 1e6, r.mp3Bytes, r.failures);
+}
+
+int main(int argc, char **argv) {
+    int seconds = argc > 1 ? atoi(argv[1]) : 60;
+    struct Case {
+        const char *name;
+        int sampleRate;
+        int bitRate;
+        int chunk;
+    } cases[] = {
+            // AudioStrategySystem, 8kHz mono at AACEncodeProcessor.BIT_RATE
+            {"8kHz/32kbps 640B", 8000, 32, 640},
+            // a UAC mic with large reads, more than 2KB of mp3 per buffer
+            {"48kHz/320kbps 16KB", 48000, 320, 16384},
+    };
+    int failed = 0;
+    printf("%-44s %13s %10s %12s\n", "Benchmark", "Time", "Iterations", "Throughput");
+    for (auto &c : cases) {
+        std::vector<unsigned char> pcm = loadFixture("/tmp/bench_mp3_fixture.pcm", c.sampleRate, seconds);
+        const char *formerPath = "/tmp/bench_mp3_former.mp3";
+        const char *directPath = "/tmp/bench_mp3_direct.mp3";
+        char name[64];
+
+        int fd = open(formerPath, O_WRONLY | O_CREAT | O_TRUNC, 0644);
+        lameInitInternal(c.sampleRate, 1, c.sampleRate, c.bitRate, 7);
+        Result former = encodeFormer(pcm, c.chunk, fd);
+        lameCloseInternal();
+        close(fd);
+        snprintf(name, sizeof(name), "BM_Former/%s", c.name);
+        printResult(name, former, c.chunk);
+
+        fd = open(directPath, O_WRONLY | O_CREAT | O_TRUNC, 0644);
+        Mp3Encoder *encoder = mp3EncoderCreate(c.sampleRate, 1, c.sampleRate, c.bitRate, 7, 1);
+        Result direct = encodeDirect(encoder, pcm, c.chunk, fd);
+        mp3EncoderDestroy(encoder);
+        close(fd);
+        snprintf(name, sizeof(name), "BM_Direct/%s", c.name);
+        printResult(name, direct, c.chunk);
+
+        bool same = readAll(formerPath) == readAll(directPath);
+        if (direct.failures != 0 || (former.failures == 0 && ! same)) {
+            printf("  FAILED: direct path lost data or differs from the former one\n");
+            failed++;
+        } else {
+            printf("  mp3 %s\n", same ? "identical" : "complete, the former path dropped buffers");
+        }
+        unlink(formerPath);
+        unlink(directPath);
+    }
+    unlink("/tmp/bench_mp3_fixture.pcm");
+    return failed == 0 ? 0 : 1;
+}
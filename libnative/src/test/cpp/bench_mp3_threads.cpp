@@ -0,0 +1,236 @@
+/**
+ * host test of the mp3 encoder instances and the threads mode of module/mp3/mp3.cpp
+ *
+ * encodes a pcm fixture single-threaded and with segments on threads, and checks that the
+ * stitched mp3 has the frames of the single-threaded one: same count, all valid, and the
+ * same bytes as a single-threaded encode with the bit reservoir off, except around segment
+ * joins. Also runs two encoders on two threads at once, each must give the bytes of a lone
+ * encoder. Prints one line per case in the format of Google Benchmark, the speedup needs
+ * as many cpus as threads.
+ *
+ * build and run on the Linux host from libnative/src/main/cpp:
+ *
+ *   gcc -O2 -w -include stdint.h -DSTDC_HEADERS -I../../test/cpp/stub -Imodule/mp3/lame -c module/mp3/lame/[A-Za-z]*.c && \
+ *   g++ -O2 -I../../test/cpp/stub -Imodule/mp3 -Imodule/mp3/lame ../../test/cpp/bench_mp3_threads.cpp \
+ *     module/mp3/mp3.cpp *.o -lpthread -o /tmp/bench_mp3_threads && rm *.o && /tmp/bench_mp3_threads
+ *
+ * usage: bench_mp3_threads [seconds of pcm] [threads]
+ */
+
+#include <cmath>
+#include <cstdio>
+#include <cstdlib>
+#include <ctime>
+#include <fcntl.h>
+#include <thread>
+#include <unistd.h>
+#include <vector>
+#include "mp3.h"
+#include "lame.h"
+
+typedef std::vector<unsigned char> Bytes;
+
+static double nowMs() {
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000.0 + t.tv_nsec / 1000000.0;
+}
+
+/**
+ * 16-bit little endian fixture, a voice like tone with noise, a different tone per channel
+ */
+static Bytes makeFixture(int sampleRate, int channels, int seconds) {
+    int samples = sampleRate * seconds;
+    Bytes pcm(samples * channels * 2);
+    unsigned int seed = 1;
+    for (int i = 0; i < samples; i++) {
+        double t = (double)i / sampleRate;
+        for (int c = 0; c < channels; c++) {
+            double envelope = 0.5 + 0.5 * sin(2 * M_PI * (3 + c) * t);
+            double v = envelope * (0.4 * sin(2 * M_PI * (220 + 110 * c) * t) + 0.2 * sin(2 * M_PI * 660 * t)
+                    + 0.1 * sin(2 * M_PI * 1870 * t)) + 0.05 * ((seed = seed * 1103515245 + 12345) % 2001 - 1000) / 1000.0;
+            auto s = (short)(v * 20000);
+            int index = (i * channels + c) * 2;
+            pcm[index] = (unsigned char)(s & 0xFF);
+            pcm[index + 1] = (unsigned char)((s >> 8) & 0xFF);
+        }
+    }
+    return pcm;
+}
+
+static Bytes readFile(const char *path) {
+    Bytes data;
+    FILE *fp = fopen(path, "rb");
+    if (! fp) {
+        return data;
+    }
+    unsigned char buf[8192];
+    size_t n;
+    while ((n = fread(buf, 1, sizeof(buf), fp)) > 0) {
+        data.insert(data.end(), buf, buf + n);
+    }
+    fclose(fp);
+    return data;
+}
+
+/**
+ * encode through the fd api the way AACEncodeProcessor does, chunk by chunk
+ */
+static Bytes encodeToFile(const Bytes &pcm, int sampleRate, int channels, int bitRate, int threads, int chunk,
+                          const char *path, double *ms) {
+    int fd = open(path, O_WRONLY | O_CREAT | O_TRUNC, 0644);
+    double start = nowMs();
+    Mp3Encoder *encoder = mp3EncoderCreate(sampleRate, channels, sampleRate, bitRate, 7, threads);
+    bool ok = encoder != nullptr;
+    for (size_t off = 0; ok && off < pcm.size(); off += chunk) {
+        int size = (int)std::min((size_t)chunk, pcm.size() - off);
+        ok = mp3EncoderEncodeToFd(encoder, pcm.data() + off, size, fd) >= 0;
+    }
+    ok = ok && mp3EncoderFlushToFd(encoder, fd) >= 0;
+    mp3EncoderDestroy(encoder);
+    if (ms) {
+        *ms = nowMs() - start;
+    }
+    close(fd);
+    Bytes mp3 = ok ? readFile(path) : Bytes();
+    unlink(path);
+    return mp3;
+}
+
+/**
+ * single-threaded with the settings of a segment, the bit reservoir off and no info tag
+ */
+static Bytes encodeNoReservoir(const Bytes &pcm, int sampleRate, int channels, int bitRate) {
+    lame_global_flags *gfp = lame_init();
+    lame_set_in_samplerate(gfp, sampleRate);
+    lame_set_num_channels(gfp, channels);
+    lame_set_out_samplerate(gfp, sampleRate);
+    lame_set_brate(gfp, bitRate);
+    lame_set_quality(gfp, 7);
+    lame_set_disable_reservoir(gfp, 1);
+    lame_set_bWriteVbrTag(gfp, 0);
+    lame_init_params(gfp);
+    int samples = (int)(pcm.size() / 2 / channels);
+    Bytes mp3(lameMaxOutputSize(samples) + 7200);
+    int size;
+    if (channels == 2) {
+        size = lame_encode_buffer_interleaved(gfp, (short *)pcm.data(), samples, mp3.data(), (int)mp3.size());
+    } else {
+        size = lame_encode_buffer(gfp, (const short *)pcm.data(), (const short *)pcm.data(), samples, mp3.data(), (int)mp3.size());
+    }
+    size += lame_encode_flush(gfp, mp3.data() + size, (int)mp3.size() - size);
+    lame_close(gfp);
+    mp3.resize(size);
+    return mp3;
+}
+
+static int frameLength(const unsigned char *data, size_t size) {
+    static const int kBitRates[2][16] = {
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0}
+    };
+    static const int kSampleRates[4][3] = {
+            {11025, 12000, 8000}, {0, 0, 0}, {22050, 24000, 16000}, {44100, 48000, 32000}
+    };
+    if (size < 4 || data[0] != 0xFF || (data[1] & 0xE0) != 0xE0) {
+        return -1;
+    }
+    int version = (data[1] >> 3) & 3;
+    int bitRateIndex = data[2] >> 4;
+    int sampleRateIndex = (data[2] >> 2) & 3;
+    if (version == 1 || ((data[1] >> 1) & 3) != 1 || bitRateIndex == 0 || bitRateIndex == 15 || sampleRateIndex == 3) {
+        return -1;
+    }
+    bool mpeg1 = version == 3;
+    return (mpeg1 ? 144 : 72) * kBitRates[mpeg1 ? 0 : 1][bitRateIndex] * 1000 / kSampleRates[version][sampleRateIndex]
+            + ((data[2] >> 1) & 1);
+}
+
+/**
+ * split into frames, empty if the stream is not a run of valid frames
+ */
+static std::vector<Bytes> splitFrames(const Bytes &mp3) {
+    std::vector<Bytes> frames;
+    size_t offset = 0;
+    while (offset < mp3.size()) {
+        int len = frameLength(mp3.data() + offset, mp3.size() - offset);
+        if (len <= 0 || offset + len > mp3.size()) {
+            return std::vector<Bytes>();
+        }
+        frames.emplace_back(mp3.begin() + offset, mp3.begin() + offset + len);
+        offset += len;
+    }
+    return frames;
+}
+
+/**
+ * the frames of a stream without padding bits, 44.1kHz pads some frames by the frame count
+ */
+static bool sameFrame(const Bytes &a, const Bytes &b) {
+    return a == b || (a.size() > 4 && b.size() > 4 && (a[2] & ~2) == (b[2] & ~2)
+            && std::equal(a.begin() + 4, a.begin() + std::min(a.size(), b.size()), b.begin() + 4));
+}
+
+int main(int argc, char **argv) {
+    int seconds = argc > 1 ? atoi(argv[1]) : 120;
+    int threads = argc > 2 ? atoi(argv[2]) : 4;
+    struct Case {
+        const char *name;
+        int sampleRate;
+        int channels;
+        int bitRate;
+        int chunk;
+    } cases[] = {
+            // AudioStrategySystem at AACEncodeProcessor.BIT_RATE
+            {"8kHz/mono/32kbps", 8000, 1, 32, 640},
+            {"44.1kHz/stereo/128kbps", 44100, 2, 128, 4096},
+    };
+    const char *path = "/tmp/bench_mp3_threads.mp3";
+    int failed = 0;
+    printf("%u cpus, %d threads, %d seconds of pcm\n", std::thread::hardware_concurrency(), threads, seconds);
+    printf("%-48s %13s %10s %12s\n", "Benchmark", "Time", "Iterations", "Speedup");
+    for (auto &c : cases) {
+        Bytes pcm = makeFixture(c.sampleRate, c.channels, seconds);
+        char name[96];
+        double singleMs = 0;
+        double threadsMs = 0;
+        Bytes single = encodeToFile(pcm, c.sampleRate, c.channels, c.bitRate, 1, c.chunk, path, &singleMs);
+        Bytes parallel = encodeToFile(pcm, c.sampleRate, c.channels, c.bitRate, threads, c.chunk, path, &threadsMs);
+        Bytes reference = encodeNoReservoir(pcm, c.sampleRate, c.channels, c.bitRate);
+        snprintf(name, sizeof(name), "BM_Mp3/%s/threads:1", c.name);
+        printf("%-48s %10.0f ms %10d %11.2fx\n", name, singleMs, 1, 1.0);
+        snprintf(name, sizeof(name), "BM_Mp3/%s/threads:%d", c.name, threads);
+        printf("%-48s %10.0f ms %10d %11.2fx\n", name, threadsMs, 1, singleMs / threadsMs);
+
+        std::vector<Bytes> singleFrames = splitFrames(single);
+        std::vector<Bytes> parallelFrames = splitFrames(parallel);
+        std::vector<Bytes> referenceFrames = splitFrames(reference);
+        size_t same = 0;
+        for (size_t i = 0; i < std::min(parallelFrames.size(), referenceFrames.size()); i++) {
+            same += sameFrame(parallelFrames[i], referenceFrames[i]) ? 1 : 0;
+        }
+        // the single-threaded stream starts with an empty info tag frame
+        bool countOk = ! parallelFrames.empty() && parallelFrames.size() == referenceFrames.size()
+                && parallelFrames.size() + 1 == singleFrames.size();
+        bool sameOk = same * 100 >= parallelFrames.size() * 95;
+        printf("  frames %zu, single-threaded %zu with the info tag, same as without reservoir %zu (%.1f%%), "
+               "size %zu / %zu bytes\n", parallelFrames.size(), singleFrames.size(), same,
+               parallelFrames.empty() ? 0.0 : same * 100.0 / parallelFrames.size(), parallel.size(), single.size());
+        if (! countOk || ! sameOk) {
+            printf("  FAILED: stitched frames differ from the single-threaded encode\n");
+            failed++;
+        }
+
+        // two recordings at once, e.g. the mics of two cameras
+        Bytes concurrent[2];
+        std::thread other([&] {
+            concurrent[1] = encodeToFile(pcm, c.sampleRate, c.channels, c.bitRate, 1, c.chunk, "/tmp/bench_mp3_threads_1.mp3", nullptr);
+        });
+        concurrent[0] = encodeToFile(pcm, c.sampleRate, c.channels, c.bitRate, 1, c.chunk, "/tmp/bench_mp3_threads_0.mp3", nullptr);
+        other.join();
+        bool concurrentOk = concurrent[0] == single && concurrent[1] == single;
+        printf("  two encoders at once %s\n", concurrentOk ? "identical to one" : "FAILED, differ from one");
+        failed += concurrentOk ? 0 : 1;
+    }
+    return failed == 0 ? 0 : 1;
+}
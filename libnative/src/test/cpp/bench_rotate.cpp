@@ -0,0 +1,215 @@
+/**
+ * host benchmark for the NV21 rotation in module/yuv/rotate.cpp
+ *
+ * runs the former column walking loops of nativeRotateNV21 and the tiled block transposes
+ * on the same frames, checks that both give the expected image first, nv21TransformInternal
+ * also mirrored and converted to NV12/I420, and prints one line per case
+ * in the format of Google Benchmark(time per frame, iterations, bytes per second).
+ *
+ * build and run on the Linux host from libnative/src/main/cpp:
+ *
+ *   g++ -O2 -I. -Imodule/yuv ../../test/cpp/bench_rotate.cpp module/yuv/yuv.cpp module/yuv/rotate.cpp \
+ *     -o /tmp/bench_rotate && /tmp/bench_rotate
+ *
+ * add -U__SSE2__ to measure the scalar transposes that are used without SSE2/NEON.
+ *
+ * usage: bench_rotate [min_time_ms]
+ */
+
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <ctime>
+#include "yuv.h"
+#include "rotate.h"
+
+#define DEFAULT_MIN_TIME_MS 300
+
+static double nowMs() {
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000.0 + t.tv_nsec / 1000000.0;
+}
+
+/**
+ * former nativeRotateNV21 90/180 degrees, one source column per destination row
+ */
+static void columnRotateNV21(const char *src, char *dest, int width, int height, int degree) {
+    int wh = width * height;
+    int k = 0, i, j;
+    if (degree == 90) {
+        for (i = 0; i < width; i++) {
+            for (j = height - 1; j >= 0; j--) {
+                dest[k++] = src[width * j + i];
+            }
+        }
+        for (i = 0; i < width; i += 2) {
+            for (j = height / 2 - 1; j >= 0; j--) {
+                dest[k] = src[wh + width * j + i];
+                dest[k + 1] = src[wh + width * j + i + 1];
+                k += 2;
+            }
+        }
+    } else if (degree == 180) {
+        for (i = wh - 1; i >= 0; i--) {
+            dest[k++] = src[i];
+        }
+        for (j = wh * 3 / 2 - 1; j >= wh; j -= 2) {
+            dest[k] = src[j - 1];
+            dest[k + 1] = src[j];
+            k += 2;
+        }
+    } else {
+        // clockwise 270, the former loops flipped the image vertically as well
+        for (i = width - 1; i >= 0; i--) {
+            for (j = 0; j < height; j++) {
+                dest[k++] = src[width * j + i];
+            }
+        }
+        for (i = width - 2; i >= 0; i -= 2) {
+            for (j = 0; j < height / 2; j++) {
+                dest[k] = src[wh + width * j + i];
+                dest[k + 1] = src[wh + width * j + i + 1];
+                k += 2;
+            }
+        }
+    }
+}
+
+/**
+ * sample by sample reference of nv21TransformInternal, dest[oy][ox] = src[sy][sx],
+ * mirror flips the rotated image horizontally, the chroma is written in the layout of format
+ */
+static void referenceTransformNV21(const char *src, char *dest, int width, int height, int degree,
+                                   bool mirror, int format) {
+    const bool swap = degree == 90 || degree == 270;
+    for (int plane = 0; plane < 2; plane++) {
+        const int w = plane ? width / 2 : width;
+        const int h = plane ? height / 2 : height;
+        const int pixelBytes = plane ? 2 : 1;
+        const char *s = plane ? src + width * height : src;
+        char *d = plane ? dest + width * height : dest;
+        const int outWidth = swap ? h : w;
+        const int outHeight = swap ? w : h;
+        for (int oy = 0; oy < outHeight; oy++) {
+            for (int ox = 0; ox < outWidth; ox++) {
+                const int rx = mirror ? outWidth - 1 - ox : ox;
+                int sx, sy;
+                switch (degree) {
+                    case 90: sx = oy; sy = h - 1 - rx; break;
+                    case 180: sx = w - 1 - rx; sy = h - 1 - oy; break;
+                    case 270: sx = w - 1 - oy; sy = rx; break;
+                    default: sx = rx; sy = oy; break;
+                }
+                const char *sample = s + (sy * w + sx) * pixelBytes;
+                const int o = oy * outWidth + ox;
+                if (!plane || format == YUV_FORMAT_NV21) {
+                    memcpy(d + o * pixelBytes, sample, pixelBytes);
+                } else if (format == YUV_FORMAT_NV12) {
+                    d[o * 2] = sample[1];
+                    d[o * 2 + 1] = sample[0];
+                } else {
+                    // I420, the U plane then the V plane
+                    d[o] = sample[1];
+                    d[w * h + o] = sample[0];
+                }
+            }
+        }
+    }
+}
+
+typedef void (*rotate_func_t)(const char *src, char *dest, int width, int height, int degree);
+
+static void tiledRotateNV21(const char *src, char *dest, int width, int height, int degree) {
+    nv21TransformInternal(src, dest, width, height, degree, false, YUV_FORMAT_NV21);
+}
+
+static void benchmark(const char *name, rotate_func_t func, const char *src, char *dest,
+                      int width, int height, int degree, double minTimeMs) {
+    const size_t frameSize = (size_t)width * height * 3 / 2;
+    func(src, dest, width, height, degree);     // warm up
+    int iterations = 0;
+    const double start = nowMs();
+    double elapsed;
+    do {
+        func(src, dest, width, height, degree);
+        iterations++;
+        elapsed = nowMs() - start;
+    } while (elapsed < minTimeMs);
+    const double msPerFrame = elapsed / iterations;
+    char label[64];
+    snprintf(label, sizeof(label), "BM_Rotate%s/%dx%d/%d", name, width, height, degree);
+    printf("%-36s %10.3f ms %10d %10.1f MB/s\n", label, msPerFrame, iterations,
+           frameSize * 2 / (msPerFrame * 1000.0));
+}
+
+int main(int argc, char *argv[]) {
+    static const int sizes[][2] = {{640, 480}, {1280, 720}, {1920, 1080}, {3840, 2160}};
+    static const int degrees[] = {90, 180, 270};
+    static const int formats[] = {YUV_FORMAT_NV21, YUV_FORMAT_NV12, YUV_FORMAT_I420};
+    static const char *formatNames[] = {"NV21", "NV12", "I420"};
+    const double minTimeMs = argc > 1 ? atof(argv[1]) : DEFAULT_MIN_TIME_MS;
+    int failed = 0;
+
+    // odd block counts and edges that do not fill a block, checked for every degree, format and mirror
+    static const int checkSizes[][2] = {{2, 2}, {8, 8}, {16, 16}, {18, 10}, {66, 34}, {130, 72}, {1920, 1080}};
+    for (const auto &size : checkSizes) {
+        const int width = size[0];
+        const int height = size[1];
+        const size_t frameSize = (size_t)width * height * 3 / 2;
+        char *src = (char *)malloc(frameSize);
+        char *expected = (char *)malloc(frameSize);
+        char *actual = (char *)malloc(frameSize);
+        for (size_t i = 0; i < frameSize; i++) {
+            src[i] = (char)rand();
+        }
+        for (int degree = 0; degree < 360; degree += 90) {
+            // the block transposes without mirror and the tiled sample walk with mirror or I420
+            for (int format : formats) {
+                for (int mirror = 0; mirror < 2; mirror++) {
+                    referenceTransformNV21(src, expected, width, height, degree, mirror, format);
+                    memset(actual, 0, frameSize);
+                    if (nv21TransformInternal(src, actual, width, height, degree, mirror, format) != 0
+                        || memcmp(expected, actual, frameSize) != 0) {
+                        printf("transform mismatch %dx%d %d %s%s\n", width, height, degree,
+                               formatNames[format], mirror ? " mirror" : "");
+                        failed++;
+                    }
+                }
+            }
+            referenceTransformNV21(src, expected, width, height, degree, false, YUV_FORMAT_NV21);
+            if (degree) {
+                columnRotateNV21(src, actual, width, height, degree);
+                if (memcmp(expected, actual, frameSize) != 0) {
+                    printf("column rotation mismatch %dx%d %d\n", width, height, degree);
+                    failed++;
+                }
+            }
+        }
+        free(src);
+        free(expected);
+        free(actual);
+    }
+    if (failed) {
+        return 1;
+    }
+
+    printf("%-36s %13s %10s %15s\n", "Benchmark", "Time", "Iterations", "Bandwidth");
+    for (const auto &size : sizes) {
+        const int width = size[0];
+        const int height = size[1];
+        const size_t frameSize = (size_t)width * height * 3 / 2;
+        char *src = (char *)malloc(frameSize);
+        char *dest = (char *)malloc(frameSize);
+        for (size_t i = 0; i < frameSize; i++) {
+            src[i] = (char)rand();
+        }
+        for (int degree : degrees) {
+            benchmark("Column", columnRotateNV21, src, dest, width, height, degree, minTimeMs);
+            benchmark("Tiled", tiledRotateNV21, src, dest, width, height, degree, minTimeMs);
+        }
+        free(src);
+        free(dest);
+    }
+    return 0;
+}
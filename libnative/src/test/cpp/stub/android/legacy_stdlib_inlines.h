@@ -0,0 +1,3 @@
+/**
+ * host stub of the NDK header included by lame/VbrTag.c, nothing is needed on glibc
+ */
@@ -0,0 +1,13 @@
+/**
+ * host stub of the NDK log, only for building the benchmarks in src/test/cpp
+ */
+#ifndef ANDROIDUSBCAMERA_STUB_ANDROID_LOG_H
+#define ANDROIDUSBCAMERA_STUB_ANDROID_LOG_H
+
+#include <stdio.h>
+
+#define ANDROID_LOG_INFO 4
+#define ANDROID_LOG_ERROR 6
+#define __android_log_print(prio, tag, ...) (prio >= ANDROID_LOG_ERROR ? fprintf(stderr, __VA_ARGS__), fputc('\n', stderr) : 0)
+
+#endif //ANDROIDUSBCAMERA_STUB_ANDROID_LOG_H
@@ -0,0 +1,20 @@
+package com.jiangdg.uvc;
+
+import java.nio.ByteBuffer;
+
+/** Zero-copy frame callback for UVCCamera
+ * <p>
+ * Unlike {@link IFrameCallback}, the ByteBuffer is lent from the native frame pool
+ * and stays valid after onFrame returns, so it can be consumed without a heap copy.
+ * Every frame must be given back by {@link UVCCamera#releaseFrameBuffer(long)},
+ * otherwise following frames are dropped once too many are held. Frames still held when the
+ * camera is closed or destroyed stay valid and are freed when released.
+ */
+public interface IFrameBufferCallback {
+	/**
+	 * This method is called from native library via JNI on the capture thread.
+	 * @param frame direct ByteBuffer backed by the native frame, read only and must not be accessed after released
+	 * @param frameId id of this frame, pass it to {@link UVCCamera#releaseFrameBuffer(long)}
+	 */
+	public void onFrame(ByteBuffer frame, long frameId);
+}
@@ -52,6 +52,14 @@ public class UVCCamera {
 	public static final int DEFAULT_PREVIEW_MAX_FPS = 31;
 	public static final float DEFAULT_BANDWIDTH = 1.0f;
 	public static final int DEFAULT_PREVIEW_MODE = FRAME_FORMAT_MJPEG;
+	public static final int MAX_DECODE_WORKERS = 4;
+	public static final int DEFAULT_FRAME_QUEUE_SIZE = 4;
+	public static final int MAX_FRAME_QUEUE_SIZE = 32;
+
+	// what happens to a new frame when the preview thread can't keep up with the camera
+	public static final int FRAME_QUEUE_DROP_NEWEST = 0;		// default, drop the new frame
+	public static final int FRAME_QUEUE_OVERWRITE_OLDEST = 1;	// drop the oldest queued frame, lowest latency
+	public static final int FRAME_QUEUE_BLOCK = 2;			// stall the USB transfer until the queue has room
 
 	public static final int PIXEL_FORMAT_RAW = 0;
 	public static final int PIXEL_FORMAT_YUV = 1;
@@ -59,6 +67,14 @@ public class UVCCamera {
 	public static final int PIXEL_FORMAT_RGBX = 3;
 	public static final int PIXEL_FORMAT_YUV420SP = 4;	// NV12
 	public static final int PIXEL_FORMAT_NV21 = 5;		// = YVU420SemiPlanar,NV21，但是保存到jpg颜色失真
+	public static final int PIXEL_FORMAT_I420 = 6;		// YUV420Planar
+
+	// chroma subsampling of compressToJpeg, same values as TJSAMP_xxx of TurboJPEG
+	public static final int JPEG_SUBSAMPLING_444 = 0;
+	public static final int JPEG_SUBSAMPLING_422 = 1;
+	public static final int JPEG_SUBSAMPLING_420 = 2;	// default, same as NV21, no chroma resampling
+	public static final int JPEG_SUBSAMPLING_GRAY = 3;
+	public static final int DEFAULT_JPEG_QUALITY = 95;
 
 	//--------------------------------------------------------------------------------
     public static final int	CTRL_SCANNING		= 0x00000001;	// D0:  Scanning Mode
@@ -131,6 +147,9 @@ public class UVCCamera {
 	protected float mCurrentBandwidthFactor = DEFAULT_BANDWIDTH;
     protected String mSupportedSize;
     protected List<Size> mCurrentSizeList;
+	// held while the native camera or its preview is released, so a lent frame is never
+	// given back to a freed preview, see releaseFrameBuffer
+	private final Object mFrameSync = new Object();
 	// these fields from here are accessed from native code and do not change name and remove
     protected long mNativePtr;
     protected int mScanningModeMin, mScanningModeMax, mScanningModeDef;
@@ -258,7 +277,10 @@ public class UVCCamera {
     public synchronized void close() {
     	stopPreview();
     	if (mNativePtr != 0) {
-    		nativeRelease(mNativePtr);
+    		// the preview is stopped above, so no frame callback that may release a frame is running
+    		synchronized (mFrameSync) {
+    			nativeRelease(mNativePtr);
+    		}
 //    		mNativePtr = 0;	// nativeDestroyを呼ぶのでここでクリアしちゃダメ
     	}
     	if (mCtrlBlock != null) {
@@ -355,6 +377,116 @@ public class UVCCamera {
 		}
 	}
 
+	/**
+	 * set number of threads to decode MJPEG frames, takes effect on next {@link #startPreview()}
+	 * more workers help 4K or high fps MJPEG cameras that can't be decoded within the frame interval,
+	 * decoded frames are still delivered in the order they were received.
+	 * @param workers 1(default) decodes on the preview thread, [1, MAX_DECODE_WORKERS]
+	 */
+	public synchronized void setDecodeWorkers(final int workers) {
+		if ((workers < 1) || (workers > MAX_DECODE_WORKERS))
+			throw new IllegalArgumentException("invalid decode workers:" + workers);
+		if (mNativePtr != 0) {
+			nativeSetDecodeWorkers(mNativePtr, workers);
+		}
+	}
+
+	/**
+	 * set size and overflow policy of the frame queue between the USB transfer and the preview thread,
+	 * must be called before {@link #startPreview()}
+	 * @param capacity [1, MAX_FRAME_QUEUE_SIZE], DEFAULT_FRAME_QUEUE_SIZE by default
+	 * @param policy FRAME_QUEUE_DROP_NEWEST(default), FRAME_QUEUE_OVERWRITE_OLDEST or FRAME_QUEUE_BLOCK
+	 */
+	public synchronized void setFrameQueuePolicy(final int capacity, final int policy) {
+		if ((capacity < 1) || (capacity > MAX_FRAME_QUEUE_SIZE))
+			throw new IllegalArgumentException("invalid frame queue size:" + capacity);
+		if ((policy < FRAME_QUEUE_DROP_NEWEST) || (policy > FRAME_QUEUE_BLOCK))
+			throw new IllegalArgumentException("invalid frame queue policy:" + policy);
+		if (mNativePtr != 0) {
+			final int result = nativeSetFrameQueue(mNativePtr, capacity, policy);
+			if (result != 0)
+				throw new IllegalStateException("can't change frame queue while previewing");
+		}
+	}
+
+	/**
+	 * let libuvc choose the number of USB transfers and packets per transfer from the negotiated
+	 * frame size, frame interval and endpoint, and add/remove transfers in flight depending on
+	 * the rate of incomplete frames. takes effect on next {@link #startPreview()}
+	 * @param adaptive false(default) uses fixed transfers
+	 */
+	public synchronized void setAdaptiveTransfers(final boolean adaptive) {
+		if (mNativePtr != 0) {
+			nativeSetAdaptiveTransfers(mNativePtr, adaptive);
+		}
+	}
+
+	/**
+	 * get the USB transfer configuration and frame/error counters of the current stream,
+	 * or of the last stream after {@link #stopPreview()}
+	 * @return null if the camera is already destroyed
+	 */
+	public synchronized UVCStreamStats getStreamStats() {
+		if (mNativePtr != 0) {
+			final int[] values = new int[UVCStreamStats.NUM_VALUES];
+			if (nativeGetStreamStats(mNativePtr, values) == 0) {
+				return new UVCStreamStats(values);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * get the latency of each frame stage since the preview started or the last reset
+	 * @param reset clear the histograms after reading, e.g. to report fixed intervals
+	 * @return null if the camera is already destroyed
+	 */
+	public synchronized UVCPipelineStats getPipelineStats(final boolean reset) {
+		if (mNativePtr != 0) {
+			final long[] values = new long[UVCPipelineStats.NUM_STAGES * UVCPipelineStats.NUM_VALUES_PER_STAGE];
+			if (nativeGetPipelineStats(mNativePtr, values, reset) == 0) {
+				return new UVCPipelineStats(values);
+			}
+		}
+		return null;
+	}
+
+	public UVCPipelineStats getPipelineStats() {
+		return getPipelineStats(false);
+	}
+
+	/**
+	 * write the next MJPEG frame of the camera to the file as it is, nothing is decoded or encoded again.
+	 * default Huffman tables are added if the camera leaves them out
+	 * @param fd file descriptor to write from its current position, not closed
+	 * @param timeoutMs max wait time for the frame
+	 * @return written bytes, negative if the preview is not running in MJPEG or on failure
+	 */
+	public synchronized int captureStill(final int fd, final int timeoutMs) {
+		if (mNativePtr != 0) {
+			return nativeCaptureStill(mNativePtr, fd, timeoutMs);
+		}
+		return -1;
+	}
+
+	/**
+	 * compress a NV21 frame to JPEG with TurboJPEG and write it to the file
+	 * the JPEG buffer is native and kept for the next call, nothing is copied to the Java heap
+	 * @param nv21 width * height * 3 / 2 bytes
+	 * @param quality [1, 100], DEFAULT_JPEG_QUALITY
+	 * @param subsampling JPEG_SUBSAMPLING_xxx
+	 * @param fd file descriptor to write from its current position, not closed
+	 * @return written bytes, negative on failure
+	 */
+	public synchronized int compressToJpeg(final byte[] nv21, final int width, final int height,
+		final int quality, final int subsampling, final int fd) {
+
+		if (mNativePtr != 0) {
+			return nativeCompressToJpeg(mNativePtr, nv21, width, height, quality, subsampling, fd);
+		}
+		return -1;
+	}
+
 	public List<Size> getSupportedSizeList() {
 		if (mCurrentFrameFormat < 0) {
 			mCurrentFrameFormat = FRAME_FORMAT_MJPEG;
@@ -439,6 +571,46 @@ public class UVCCamera {
     	}
     }
 
+    /**
+     * set zero-copy frame callback, it replaces the callback set by {@link #setFrameCallback}
+     * the frames must be given back with {@link #releaseFrameBuffer(long)}
+     * @param callback
+     * @param pixelFormat
+     */
+    public void setFrameBufferCallback(final IFrameBufferCallback callback, final int pixelFormat) {
+    	if (mNativePtr != 0) {
+        	nativeSetFrameBufferCallback(mNativePtr, callback, pixelFormat);
+    	}
+    }
+
+    /**
+     * give the frame received by {@link IFrameBufferCallback} back to the native frame pool
+     * frames held while the camera is closed or destroyed stay valid, they are freed here
+     * it may be called from any thread, also while the camera is being closed
+     * @param frameId
+     */
+    public void releaseFrameBuffer(final long frameId) {
+    	synchronized (mFrameSync) {
+    		// after close the native camera has no preview and after destroy mNativePtr is 0,
+    		// both end up in the orphan frames
+    		nativeReleaseFrameBuffer(mNativePtr, frameId);
+    	}
+    }
+
+    /**
+     * capture time of the frame received by {@link IFrameBufferCallback}, call it before the frame is released
+     * @param frameId
+     * @return nanoseconds in the time base of {@link System#nanoTime()}, 0 if unknown
+     */
+    public long getFrameTimestamp(final long frameId) {
+    	synchronized (mFrameSync) {
+    		if (mNativePtr != 0) {
+    			return nativeGetFrameTimestamp(mNativePtr, frameId);
+    		}
+    	}
+    	return 0;
+    }
+
     /**
      * start preview
      */
@@ -463,9 +635,11 @@ public class UVCCamera {
      */
     public synchronized void destroy() {
     	close();
-    	if (mNativePtr != 0) {
-    		nativeDestroy(mNativePtr);
-    		mNativePtr = 0;
+    	synchronized (mFrameSync) {
+    		if (mNativePtr != 0) {
+    			nativeDestroy(mNativePtr);
+    			mNativePtr = 0;
+    		}
     	}
     }
 
@@ -1094,6 +1268,17 @@ public class UVCCamera {
 	private static final native int nativeStopPreview(final long id_camera);
 	private static final native int nativeSetPreviewDisplay(final long id_camera, final Surface surface);
 	private static final native int nativeSetFrameCallback(final long mNativePtr, final IFrameCallback callback, final int pixelFormat);
+	private static final native int nativeSetFrameBufferCallback(final long mNativePtr, final IFrameBufferCallback callback, final int pixelFormat);
+	private static final native int nativeReleaseFrameBuffer(final long mNativePtr, final long frameId);
+	private static final native long nativeGetFrameTimestamp(final long mNativePtr, final long frameId);
+	private static final native int nativeSetDecodeWorkers(final long id_camera, final int workers);
+	private static final native int nativeSetFrameQueue(final long id_camera, final int capacity, final int policy);
+	private static final native int nativeSetAdaptiveTransfers(final long id_camera, final boolean adaptive);
+	private static final native int nativeGetStreamStats(final long id_camera, final int[] stats);
+	private static final native int nativeGetPipelineStats(final long id_camera, final long[] stats, final boolean reset);
+	private static final native int nativeCaptureStill(final long id_camera, final int fd, final int timeoutMs);
+	private static final native int nativeCompressToJpeg(final long id_camera, final byte[] nv21,
+		final int width, final int height, final int quality, final int subsampling, final int fd);
 
 //**********************************************************************
 	/**
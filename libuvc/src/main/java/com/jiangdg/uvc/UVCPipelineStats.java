@@ -0,0 +1,96 @@
+package com.jiangdg.uvc;
+
+import java.util.Locale;
+
+/** Latency of each stage a frame passes from the USB payload to the frame callback
+ * <p>
+ * Snapshot returned by {@link UVCCamera#getPipelineStats(boolean)}, all values are in microseconds.
+ * Percentiles come from log-linear histograms and are accurate to about 6%.
+ * Stages a frame did not pass(e.g. decode in YUYV mode, convert/callback without a frame callback)
+ * have no samples.
+ */
+public class UVCPipelineStats {
+	// same as PIPELINE_STAGE_NUM and PIPELINE_STATS_VALUES in PipelineStats.h
+	static final int NUM_STAGES = 6;
+	static final int NUM_VALUES_PER_STAGE = 8;
+
+	public static class Stage {
+		public final String name;
+		public final long count;
+		public final long minUs;
+		public final long meanUs;
+		public final long p50Us;
+		public final long p90Us;
+		public final long p99Us;
+		public final long p999Us;
+		public final long maxUs;
+
+		Stage(final String name, final long[] values, final int offset) {
+			this.name = name;
+			count = values[offset];
+			minUs = values[offset + 1];
+			meanUs = values[offset + 2];
+			p50Us = values[offset + 3];
+			p90Us = values[offset + 4];
+			p99Us = values[offset + 5];
+			p999Us = values[offset + 6];
+			maxUs = values[offset + 7];
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%s(n=%d,min=%d,mean=%d,p50=%d,p90=%d,p99=%d,p99.9=%d,max=%d)",
+				name, count, minUs, meanUs, p50Us, p90Us, p99Us, p999Us, maxUs);
+		}
+	}
+
+	/** first payload received => frame complete */
+	public final Stage usb;
+	/** frame complete => taken by the preview thread */
+	public final Stage queue;
+	/** taken by the preview thread => MJPEG decoded */
+	public final Stage decode;
+	/** decoded(or taken) => converted for the frame callback, includes preview drawing and the capture queue */
+	public final Stage convert;
+	/** converted => {@link IFrameCallback#onFrame} returned */
+	public final Stage callback;
+	/** first payload received => the last stage the frame reached */
+	public final Stage total;
+
+	UVCPipelineStats(final long[] values) {
+		usb = new Stage("usb", values, 0);
+		queue = new Stage("queue", values, NUM_VALUES_PER_STAGE);
+		decode = new Stage("decode", values, NUM_VALUES_PER_STAGE * 2);
+		convert = new Stage("convert", values, NUM_VALUES_PER_STAGE * 3);
+		callback = new Stage("callback", values, NUM_VALUES_PER_STAGE * 4);
+		total = new Stage("total", values, NUM_VALUES_PER_STAGE * 5);
+	}
+
+	/**
+	 * @return all stages in pipeline order, total last
+	 */
+	public Stage[] getStages() {
+		return new Stage[] { usb, queue, decode, convert, callback, total };
+	}
+
+	/**
+	 * @param budgetUs latency budget of a stage
+	 * @return the stage other than total with the largest p99 over the budget, null if none is over it
+	 */
+	public Stage findSlowestStage(final long budgetUs) {
+		Stage result = null;
+		for (final Stage stage: new Stage[] { usb, queue, decode, convert, callback }) {
+			if ((stage.count > 0) && (stage.p99Us > budgetUs)
+				&& ((result == null) || (stage.p99Us > result.p99Us))) {
+				result = stage;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "UVCPipelineStats(" + usb + "," + queue + "," + decode + ","
+			+ convert + "," + callback + "," + total + ")";
+	}
+}
@@ -0,0 +1,63 @@
+package com.jiangdg.uvc;
+
+import java.util.Locale;
+
+/** USB transfer configuration and frame counters of the UVC stream
+ * <p>
+ * Snapshot returned by {@link UVCCamera#getStreamStats()}, counters are reset on every startPreview
+ * and keep the values of the last stream after stopPreview.
+ */
+public class UVCStreamStats {
+	// number of values passed from native, same order as the fields below
+	static final int NUM_VALUES = 14;
+
+	/** transfers were sized by libuvc, see {@link UVCCamera#setAdaptiveTransfers(boolean)} */
+	public final boolean adaptive;
+	/** isochronous endpoint, bulk endpoint otherwise */
+	public final boolean isochronous;
+	public final int packetsPerTransfer;
+	public final int bytesPerPacket;
+	/** number of allocated transfers */
+	public final int numTransfers;
+	/** number of transfers kept in flight */
+	public final int activeTransfers;
+	public final int frameBufferBytes;
+	/** received frames */
+	public final int frames;
+	/** frames with error bits or shorter than the negotiated size(uncompressed formats only) */
+	public final int incompleteFrames;
+	/** frames overwritten before the callback took them */
+	public final int droppedFrames;
+	public final int packetErrors;
+	public final int transferErrors;
+	/** how many times adaptive mode added/removed a transfer in flight */
+	public final int growCount;
+	public final int shrinkCount;
+
+	UVCStreamStats(final int[] values) {
+		adaptive = values[0] != 0;
+		isochronous = values[1] != 0;
+		packetsPerTransfer = values[2];
+		bytesPerPacket = values[3];
+		numTransfers = values[4];
+		activeTransfers = values[5];
+		frameBufferBytes = values[6];
+		frames = values[7];
+		incompleteFrames = values[8];
+		droppedFrames = values[9];
+		packetErrors = values[10];
+		transferErrors = values[11];
+		growCount = values[12];
+		shrinkCount = values[13];
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US,
+			"UVCStreamStats(%s,%s,packets/transfer=%d,bytes/packet=%d,transfers=%d/%d,buffer=%d,"
+				+ "frames=%d,incomplete=%d,dropped=%d,packetErrors=%d,transferErrors=%d,grow=%d,shrink=%d)",
+			isochronous ? "iso" : "bulk", adaptive ? "adaptive" : "fixed",
+			packetsPerTransfer, bytesPerPacket, activeTransfers, numTransfers, frameBufferBytes,
+			frames, incompleteFrames, droppedFrames, packetErrors, transferErrors, growCount, shrinkCount);
+	}
+}
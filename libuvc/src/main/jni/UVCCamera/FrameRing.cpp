@@ -0,0 +1,329 @@
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "FrameRing.h"
+
+#define	LOCAL_DEBUG 0
+
+#define LOAD(p) __atomic_load_n(p, __ATOMIC_ACQUIRE)
+#define STORE(p, v) __atomic_store_n(p, v, __ATOMIC_RELEASE)
+
+static inline int futex_wait(volatile int32_t *addr, int32_t expected, int timeout_ms) {
+	struct timespec ts;
+	struct timespec *pts = NULL;
+	if (timeout_ms >= 0) {
+		ts.tv_sec = timeout_ms / 1000;
+		ts.tv_nsec = (timeout_ms % 1000) * 1000000L;
+		pts = &ts;
+	}
+	return syscall(__NR_futex, addr, FUTEX_WAIT_PRIVATE, expected, pts, NULL, 0);
+}
+
+static inline void futex_wake(volatile int32_t *addr, int num) {
+	syscall(__NR_futex, addr, FUTEX_WAKE_PRIVATE, num, NULL, NULL, 0);
+}
+
+static uint32_t ring_size_for(uint32_t capacity) {
+	uint32_t sz = 1;
+	while (sz < capacity) sz <<= 1;
+	return sz;
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+FrameRing::FrameRing(uint32_t capacity, int policy)
+:	mMask(0),
+	mCapacity(0),
+	mPolicy(FRAME_QUEUE_DROP_NEWEST),
+	mHead(0),
+	mTail(0),
+	mNotEmpty(0),
+	mNotFull(0),
+	mConsumerWaiting(0),
+	mProducerWaiting(0),
+	mClosed(0),
+	mDropped(0) {
+
+	memset(mSlots, 0, sizeof(mSlots));
+	configure(capacity, policy);
+}
+
+FrameRing::~FrameRing() {
+}
+
+/**
+ * change capacity and overflow policy, the ring must be empty
+ * @param capacity clamped to [1, MAX_FRAME_RING_CAPACITY]
+ * @return 0 on success
+ */
+int FrameRing::configure(uint32_t capacity, int policy) {
+	ENTER();
+
+	if (UNLIKELY(size())) {
+		RETURN(-1, int);
+	}
+	if ((policy < FRAME_QUEUE_DROP_NEWEST) || (policy > FRAME_QUEUE_BLOCK)) {
+		RETURN(-1, int);
+	}
+	if (capacity < 1) capacity = 1;
+	if (capacity > MAX_FRAME_RING_CAPACITY) capacity = MAX_FRAME_RING_CAPACITY;
+	mCapacity = capacity;
+	mMask = ring_size_for(capacity) - 1;
+	mPolicy = policy;
+	mHead = mTail = 0;
+	mDropped = 0;
+
+	RETURN(0, int);
+}
+
+void FrameRing::notify_not_empty() {
+	if (__atomic_load_n(&mConsumerWaiting, __ATOMIC_SEQ_CST)) {
+		__atomic_add_fetch(&mNotEmpty, 1, __ATOMIC_SEQ_CST);
+		futex_wake(&mNotEmpty, 1);
+	}
+}
+
+void FrameRing::notify_not_full() {
+	if (__atomic_load_n(&mProducerWaiting, __ATOMIC_SEQ_CST)) {
+		__atomic_add_fetch(&mNotFull, 1, __ATOMIC_SEQ_CST);
+		futex_wake(&mNotFull, 1);
+	}
+}
+
+/**
+ * producer side, enqueue the frame
+ * @param evicted set to the dropped oldest frame with FRAME_QUEUE_OVERWRITE_OLDEST, the caller must recycle it
+ * @return false if the frame was not queued(ring is full or closed), the frame stays with the caller
+ */
+bool FrameRing::push(uvc_frame_t *frame, uvc_frame_t **evicted) {
+	*evicted = NULL;
+	const uint32_t head = mHead;	// only the producer writes head
+	for ( ; ; ) {
+		if (UNLIKELY(LOAD(&mClosed))) {
+			return false;
+		}
+		uint32_t tail = LOAD(&mTail);
+		if (LIKELY(head - tail < mCapacity)) {
+			break;
+		}
+		switch (mPolicy) {
+		case FRAME_QUEUE_OVERWRITE_OLDEST:
+		{
+			uvc_frame_t *oldest = __atomic_load_n(&mSlots[tail & mMask], __ATOMIC_RELAXED);
+			// the consumer may take the oldest frame at the same time, only one of us wins
+			if (__atomic_compare_exchange_n(&mTail, &tail, tail + 1,
+				false, __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE)) {
+				*evicted = oldest;
+				__atomic_add_fetch(&mDropped, 1, __ATOMIC_RELAXED);
+			}
+			continue;
+		}
+		case FRAME_QUEUE_BLOCK:
+		{
+			const int32_t signal = __atomic_load_n(&mNotFull, __ATOMIC_SEQ_CST);
+			__atomic_store_n(&mProducerWaiting, 1, __ATOMIC_SEQ_CST);
+			if ((head - __atomic_load_n(&mTail, __ATOMIC_SEQ_CST) >= mCapacity)
+				&& !__atomic_load_n(&mClosed, __ATOMIC_SEQ_CST)) {
+				futex_wait(&mNotFull, signal, -1);
+			}
+			__atomic_store_n(&mProducerWaiting, 0, __ATOMIC_RELAXED);
+			continue;
+		}
+		default:
+			__atomic_add_fetch(&mDropped, 1, __ATOMIC_RELAXED);
+			return false;
+		}
+	}
+	__atomic_store_n(&mSlots[head & mMask], frame, __ATOMIC_RELAXED);
+	__atomic_store_n(&mHead, head + 1, __ATOMIC_SEQ_CST);
+	notify_not_empty();
+	return true;
+}
+
+/**
+ * consumer side, dequeue the oldest frame without waiting
+ * @return NULL if the ring is empty
+ */
+uvc_frame_t *FrameRing::pop() {
+	uint32_t tail = LOAD(&mTail);
+	for ( ; ; ) {
+		if (tail == LOAD(&mHead)) {
+			return NULL;
+		}
+		uvc_frame_t *frame = __atomic_load_n(&mSlots[tail & mMask], __ATOMIC_RELAXED);
+		// compare_exchange reloads tail when an overwriting producer evicted this frame first
+		if (LIKELY(__atomic_compare_exchange_n(&mTail, &tail, tail + 1,
+			false, __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE))) {
+			if (UNLIKELY(mPolicy == FRAME_QUEUE_BLOCK)) {
+				notify_not_full();
+			}
+			return frame;
+		}
+	}
+}
+
+/**
+ * consumer side, dequeue the oldest frame and sleep once if the ring is empty,
+ * same as the previous pthread_cond_wait based queues this returns NULL when woken up by #wakeup/#close
+ * @param timeout_ms negative value waits forever
+ */
+uvc_frame_t *FrameRing::wait(int timeout_ms) {
+	uvc_frame_t *frame = pop();
+	if (LIKELY(frame) || LOAD(&mClosed)) {
+		return frame;
+	}
+	const int32_t signal = __atomic_load_n(&mNotEmpty, __ATOMIC_SEQ_CST);
+	__atomic_store_n(&mConsumerWaiting, 1, __ATOMIC_SEQ_CST);
+	// check again, the producer may have pushed before it saw mConsumerWaiting
+	if ((__atomic_load_n(&mHead, __ATOMIC_SEQ_CST) == __atomic_load_n(&mTail, __ATOMIC_SEQ_CST))
+		&& !__atomic_load_n(&mClosed, __ATOMIC_SEQ_CST)) {
+		futex_wait(&mNotEmpty, signal, timeout_ms);
+	}
+	__atomic_store_n(&mConsumerWaiting, 0, __ATOMIC_RELAXED);
+	return pop();
+}
+
+/**
+ * wake up the consumer blocked in #wait
+ */
+void FrameRing::wakeup() {
+	__atomic_add_fetch(&mNotEmpty, 1, __ATOMIC_SEQ_CST);
+	futex_wake(&mNotEmpty, 1);
+}
+
+/**
+ * accept frames again
+ */
+void FrameRing::open() {
+	__atomic_store_n(&mClosed, 0, __ATOMIC_SEQ_CST);
+}
+
+/**
+ * reject further frames and wake up both sides, queued frames are kept until they are popped
+ */
+void FrameRing::close() {
+	__atomic_store_n(&mClosed, 1, __ATOMIC_SEQ_CST);
+	__atomic_add_fetch(&mNotEmpty, 1, __ATOMIC_SEQ_CST);
+	__atomic_add_fetch(&mNotFull, 1, __ATOMIC_SEQ_CST);
+	futex_wake(&mNotEmpty, 1);
+	futex_wake(&mNotFull, 1);
+}
+
+uint32_t FrameRing::size() const {
+	const uint32_t tail = LOAD(&mTail);
+	return LOAD(&mHead) - tail;
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+FramePool::FramePool(uint32_t capacity)
+:	mCount(0),
+	mEnqueuePos(0),
+	mDequeuePos(0) {
+
+	setCapacity(capacity);
+	for (uint32_t i = 0; i < MAX_FRAME_RING_CAPACITY; i++) {
+		mCells[i].sequence = i;
+		mCells[i].frame = NULL;
+	}
+}
+
+/**
+ * change the number of frames the pool keeps, frames above a lowered capacity
+ * are not dropped, put refuses frames until enough of them were taken out
+ * @param capacity clamped to [0, MAX_FRAME_RING_CAPACITY]
+ */
+void FramePool::setCapacity(uint32_t capacity) {
+	if (capacity > MAX_FRAME_RING_CAPACITY) capacity = MAX_FRAME_RING_CAPACITY;
+	__atomic_store_n(&mCapacity, capacity, __ATOMIC_RELAXED);
+}
+
+/**
+ * free all frames in the pool, nobody may access the pool any more
+ */
+FramePool::~FramePool() {
+	uvc_frame_t *frame;
+	for ( ; (frame = get()) ; ) {
+		uvc_free_frame(frame);
+	}
+}
+
+/**
+ * @return false if the pool is full, the frame stays with the caller
+ */
+bool FramePool::put(uvc_frame_t *frame) {
+	// reserve a place first, the ring itself always has room for MAX_FRAME_RING_CAPACITY
+	uint32_t count = __atomic_load_n(&mCount, __ATOMIC_RELAXED);
+	do {
+		if (count >= __atomic_load_n(&mCapacity, __ATOMIC_RELAXED)) {
+			return false;	// full
+		}
+	} while (!__atomic_compare_exchange_n(&mCount, &count, count + 1,
+		true, __ATOMIC_RELAXED, __ATOMIC_RELAXED));
+
+	uint32_t pos = __atomic_load_n(&mEnqueuePos, __ATOMIC_RELAXED);
+	for ( ; ; ) {
+		cell_t *cell = &mCells[pos & (MAX_FRAME_RING_CAPACITY - 1)];
+		const uint32_t seq = __atomic_load_n(&cell->sequence, __ATOMIC_ACQUIRE);
+		const int32_t diff = (int32_t)(seq - pos);
+		if (diff == 0) {
+			if (__atomic_compare_exchange_n(&mEnqueuePos, &pos, pos + 1,
+				true, __ATOMIC_RELAXED, __ATOMIC_RELAXED)) {
+				cell->frame = frame;
+				__atomic_store_n(&cell->sequence, pos + 1, __ATOMIC_RELEASE);
+				return true;
+			}
+		} else if (diff < 0) {
+			// a get that took its frame out hasn't released the cell yet
+			__atomic_sub_fetch(&mCount, 1, __ATOMIC_RELAXED);
+			return false;
+		} else {
+			pos = __atomic_load_n(&mEnqueuePos, __ATOMIC_RELAXED);
+		}
+	}
+}
+
+/**
+ * @return NULL if the pool is empty
+ */
+uvc_frame_t *FramePool::get() {
+	uint32_t pos = __atomic_load_n(&mDequeuePos, __ATOMIC_RELAXED);
+	for ( ; ; ) {
+		cell_t *cell = &mCells[pos & (MAX_FRAME_RING_CAPACITY - 1)];
+		const uint32_t seq = __atomic_load_n(&cell->sequence, __ATOMIC_ACQUIRE);
+		const int32_t diff = (int32_t)(seq - (pos + 1));
+		if (diff == 0) {
+			if (__atomic_compare_exchange_n(&mDequeuePos, &pos, pos + 1,
+				true, __ATOMIC_RELAXED, __ATOMIC_RELAXED)) {
+				uvc_frame_t *frame = cell->frame;
+				cell->frame = NULL;
+				__atomic_store_n(&cell->sequence, pos + MAX_FRAME_RING_CAPACITY, __ATOMIC_RELEASE);
+				__atomic_sub_fetch(&mCount, 1, __ATOMIC_RELEASE);
+				return frame;
+			}
+		} else if (diff < 0) {
+			return NULL;	// empty
+		} else {
+			pos = __atomic_load_n(&mDequeuePos, __ATOMIC_RELAXED);
+		}
+	}
+}
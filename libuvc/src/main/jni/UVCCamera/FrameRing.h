@@ -0,0 +1,86 @@
+#ifndef FRAMERING_H_
+#define FRAMERING_H_
+
+#include "libUVCCamera.h"
+
+#pragma interface
+
+// what FrameRing#push does when the ring is full
+#define FRAME_QUEUE_DROP_NEWEST 0		// reject the incoming frame
+#define FRAME_QUEUE_OVERWRITE_OLDEST 1	// evict the oldest queued frame
+#define FRAME_QUEUE_BLOCK 2				// wait until the consumer takes a frame
+
+#define MAX_FRAME_RING_CAPACITY 64
+
+/**
+ * bounded lock-free single-producer/single-consumer queue of frames.
+ * push/pop only touch atomics, the futex is used only when the consumer
+ * finds the ring empty (or a blocking producer finds it full).
+ * the producer may change threads as long as the hand-off between them is
+ * synchronized, e.g. MJpegDecoderPool emits under its own mutex.
+ */
+class FrameRing {
+private:
+	uvc_frame_t *mSlots[MAX_FRAME_RING_CAPACITY];
+	uint32_t mMask;
+	uint32_t mCapacity;
+	int mPolicy;
+	// free running counters, written by producer(head) and consumer(tail)
+	volatile uint32_t mHead;
+	volatile uint32_t mTail;
+	// futex words, bumped to wake the other side up
+	volatile int32_t mNotEmpty;
+	volatile int32_t mNotFull;
+	volatile int32_t mConsumerWaiting;
+	volatile int32_t mProducerWaiting;
+	volatile int32_t mClosed;
+	volatile uint32_t mDropped;
+	void notify_not_empty();
+	void notify_not_full();
+public:
+	FrameRing(uint32_t capacity, int policy = FRAME_QUEUE_DROP_NEWEST);
+	~FrameRing();
+
+	int configure(uint32_t capacity, int policy);
+	bool push(uvc_frame_t *frame, uvc_frame_t **evicted);
+	uvc_frame_t *pop();
+	uvc_frame_t *wait(int timeout_ms = -1);
+	void wakeup();
+	void open();
+	void close();
+	uint32_t size() const;
+	inline const uint32_t capacity() const { return mCapacity; }
+	inline const int policy() const { return mPolicy; }
+	inline const uint32_t dropped() const { return mDropped; }
+};
+
+/**
+ * bounded lock-free multi-producer/multi-consumer pool of recycled frames.
+ * every cell carries a sequence number so a stale index never reads a reused cell.
+ * the ring always has MAX_FRAME_RING_CAPACITY cells, the number of frames kept is
+ * limited to the exact capacity, which can be changed while the pool is used.
+ */
+class FramePool {
+private:
+	typedef struct {
+		volatile uint32_t sequence;
+		uvc_frame_t *frame;
+	} cell_t;
+	cell_t mCells[MAX_FRAME_RING_CAPACITY];
+	volatile uint32_t mCapacity;
+	// frames in the pool, reserved by put before the frame is enqueued
+	volatile uint32_t mCount;
+	volatile uint32_t mEnqueuePos;
+	volatile uint32_t mDequeuePos;
+public:
+	FramePool(uint32_t capacity);
+	~FramePool();
+
+	void setCapacity(uint32_t capacity);
+	bool put(uvc_frame_t *frame);
+	uvc_frame_t *get();
+	inline const uint32_t capacity() const { return mCapacity; }
+	inline const uint32_t size() const { return mCount; }
+};
+
+#endif /* FRAMERING_H_ */
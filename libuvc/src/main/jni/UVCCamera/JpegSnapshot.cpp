@@ -0,0 +1,305 @@
+#include <errno.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "JpegSnapshot.h"
+
+#define	LOCAL_DEBUG 0
+
+/* ISO/IEC 10918-1:1993(E) K.3.3, the tables libuvc/src/frame-mjpeg.c decodes with when a UVC device
+ leaves the Huffman tables out of its MJPEG frames, see build_dht_segment */
+static const uint8_t dc_lumi_len[] = {
+	0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+static const uint8_t dc_chromi_len[] = {
+	0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+static const uint8_t dc_val[] = {
+	0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+static const uint8_t ac_lumi_len[] = {
+	0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+static const uint8_t ac_lumi_val[] = {
+	0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+	0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+	0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+	0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+	0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+	0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+	0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+	0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+	0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+	0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+	0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+	0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+	0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+	0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+	0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+	0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+	0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+	0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+	0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+	0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+	0xf9, 0xfa
+};
+static const uint8_t ac_chromi_len[] = {
+	0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+static const uint8_t ac_chromi_val[] = {
+	0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+	0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+	0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+	0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+	0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+	0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+	0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+	0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+	0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+	0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+	0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+	0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+	0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+	0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+	0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+	0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+	0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+	0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+	0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+	0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+	0xf9, 0xfa
+};
+
+// marker, length, then class/id, 16 code counts and the values of each table
+#define DHT_SEGMENT_BYTES (4 + 4 * 17 + 2 * sizeof(dc_val) + sizeof(ac_lumi_val) + sizeof(ac_chromi_val))
+
+static uint8_t *append_table(uint8_t *p, uint8_t class_id, const uint8_t *len, const uint8_t *val, size_t val_bytes) {
+	*(p++) = class_id;
+	memcpy(p, len, 16);
+	p += 16;
+	memcpy(p, val, val_bytes);
+	return p + val_bytes;
+}
+
+static void build_dht_segment(uint8_t *segment) {
+	uint8_t *p = segment;
+	*(p++) = 0xff;
+	*(p++) = 0xc4;
+	*(p++) = (uint8_t)((DHT_SEGMENT_BYTES - 2) >> 8);
+	*(p++) = (uint8_t)((DHT_SEGMENT_BYTES - 2) & 0xff);
+	p = append_table(p, 0x00, dc_lumi_len, dc_val, sizeof(dc_val));
+	p = append_table(p, 0x01, dc_chromi_len, dc_val, sizeof(dc_val));
+	p = append_table(p, 0x10, ac_lumi_len, ac_lumi_val, sizeof(ac_lumi_val));
+	append_table(p, 0x11, ac_chromi_len, ac_chromi_val, sizeof(ac_chromi_val));
+}
+
+static int write_fully(int fd, const uint8_t *data, size_t bytes) {
+	size_t written = 0;
+	while (written < bytes) {
+		const ssize_t ret = ::write(fd, data + written, bytes - written);
+		if (ret < 0) {
+			if (errno == EINTR) continue;
+			LOGE("write failed:errno=%d", errno);
+			return -1;
+		}
+		written += ret;
+	}
+	return (int)written;
+}
+
+JpegSnapshot::JpegSnapshot()
+:	mHandle(NULL),
+	mJpegBuf(NULL),
+	mJpegBufBytes(0),
+	mChroma(NULL),
+	mChromaBytes(0),
+	mJpegBytes(0) {
+}
+
+JpegSnapshot::~JpegSnapshot() {
+	if (mHandle) {
+		tjDestroy(mHandle);
+		mHandle = NULL;
+	}
+	if (mJpegBuf) {
+		tjFree(mJpegBuf);
+		mJpegBuf = NULL;
+	}
+	if (mChroma) {
+		free(mChroma);
+		mChroma = NULL;
+	}
+}
+
+bool JpegSnapshot::ensure_buffers(int width, int height, int subsamp) {
+	if (UNLIKELY(!mHandle)) {
+		mHandle = tjInitCompress();
+		if (UNLIKELY(!mHandle)) return false;
+	}
+	// worst case of the quality and subsampling, never realloc'ed by TurboJPEG
+	const unsigned long jpeg_bytes = tjBufSize(width, height, subsamp);
+	if (mJpegBufBytes < jpeg_bytes) {
+		if (mJpegBuf) tjFree(mJpegBuf);
+		mJpegBuf = tjAlloc((int)jpeg_bytes);
+		mJpegBufBytes = mJpegBuf ? jpeg_bytes : 0;
+		if (UNLIKELY(!mJpegBuf)) return false;
+	}
+	const size_t chroma_bytes = subsamp == TJSAMP_GRAY ? 0
+		: (size_t)tjPlaneWidth(1, width, subsamp) * tjPlaneHeight(1, height, subsamp) * 2;
+	if (mChromaBytes < chroma_bytes) {
+		free(mChroma);
+		mChroma = (uint8_t *)malloc(chroma_bytes);
+		mChromaBytes = mChroma ? chroma_bytes : 0;
+		if (UNLIKELY(!mChroma)) return false;
+	}
+	return true;
+}
+
+/**
+ * compress a NV21 frame, the JPEG is kept until the next call, see #write
+ * the Y plane is compressed in place, the VU plane is split into U and V planes of the subsampling
+ * @param quality [1, 100]
+ * @param subsamp TJSAMP_444, TJSAMP_422, TJSAMP_420 or TJSAMP_GRAY, 420 is the subsampling of NV21
+ * @return JPEG bytes, negative on failure
+ */
+int JpegSnapshot::compressNV21(const uint8_t *nv21, int width, int height, int quality, int subsamp) {
+	ENTER();
+
+	mJpegBytes = 0;
+	if (UNLIKELY(!nv21 || (width <= 0) || (height <= 0)
+		|| (quality < 1) || (quality > 100)
+		|| ((subsamp != TJSAMP_444) && (subsamp != TJSAMP_422) && (subsamp != TJSAMP_420) && (subsamp != TJSAMP_GRAY)))) {
+		RETURN(-1, int);
+	}
+	if (UNLIKELY(!ensure_buffers(width, height, subsamp))) {
+		LOGE("failed to allocate buffers");
+		RETURN(-1, int);
+	}
+	const unsigned char *planes[3] = { nv21, NULL, NULL };
+	int strides[3] = { width, 0, 0 };
+	if (subsamp != TJSAMP_GRAY) {
+		// VU of NV21 is half width and half height, rows are repeated for 422/444 and columns for 444
+		const int src_w = (width + 1) / 2;
+		const int src_h = (height + 1) / 2;
+		const int w = tjPlaneWidth(1, width, subsamp);
+		const int h = tjPlaneHeight(1, height, subsamp);
+		const uint8_t *vu = nv21 + width * height;
+		uint8_t *u = mChroma;
+		uint8_t *v = mChroma + w * h;
+		for (int y = 0; y < h; y++) {
+			const int src_y = subsamp == TJSAMP_420 ? y : y / 2;
+			const uint8_t *src = vu + (src_y < src_h ? src_y : src_h - 1) * src_w * 2;
+			uint8_t *u_row = u + y * w;
+			uint8_t *v_row = v + y * w;
+			if (subsamp == TJSAMP_444) {
+				for (int x = 0; x < w; x++) {
+					v_row[x] = src[(x / 2) * 2];
+					u_row[x] = src[(x / 2) * 2 + 1];
+				}
+			} else {
+				for (int x = 0; x < w; x++) {
+					v_row[x] = src[x * 2];
+					u_row[x] = src[x * 2 + 1];
+				}
+			}
+		}
+		planes[1] = u;
+		planes[2] = v;
+		strides[1] = strides[2] = w;
+	}
+	unsigned long jpeg_bytes = mJpegBufBytes;
+	if (UNLIKELY(tjCompressFromYUVPlanes(mHandle, planes, width, strides, height, subsamp,
+		&mJpegBuf, &jpeg_bytes, quality, TJFLAG_NOREALLOC))) {
+
+		LOGE("tjCompressFromYUVPlanes:%s", tjGetErrorStr());
+		RETURN(-1, int);
+	}
+	mJpegBytes = jpeg_bytes;
+
+	RETURN((int)jpeg_bytes, int);
+}
+
+/**
+ * write the JPEG of the last #compressNV21 to the file descriptor
+ * @return written bytes, negative on failure
+ */
+int JpegSnapshot::write(int fd) {
+	ENTER();
+
+	if (UNLIKELY(!mJpegBytes || (fd < 0))) {
+		RETURN(-1, int);
+	}
+	const int result = write_fully(fd, mJpegBuf, mJpegBytes);
+
+	RETURN(result, int);
+}
+
+/**
+ * write a MJPEG frame of the device as it is, with the standard Huffman tables added before
+ * the scan if the device left them out like many UVC cameras do, the file is a valid JPEG then.
+ * bytes after EOI(padding of some devices) are dropped
+ * @return written bytes, negative if it is not a JPEG or on failure
+ */
+int JpegSnapshot::writeMjpeg(const uint8_t *data, size_t bytes, int fd) {
+	ENTER();
+
+	if (UNLIKELY(!data || (bytes < 4) || (data[0] != 0xff) || (data[1] != 0xd8) || (fd < 0))) {
+		RETURN(-1, int);
+	}
+	for (size_t i = bytes - 2; i > 2; i--) {
+		if ((data[i] == 0xff) && (data[i + 1] == 0xd9)) {
+			bytes = i + 2;
+			break;
+		}
+	}
+	// walk the segments up to the start of scan
+	bool has_dht = false;
+	size_t sos = 0;
+	size_t offset = 2;
+	while (offset + 4 <= bytes) {
+		if (UNLIKELY(data[offset] != 0xff)) break;
+		const uint8_t marker = data[offset + 1];
+		if (marker == 0xff) {
+			offset++;	// fill byte
+			continue;
+		}
+		if (marker == 0xda) {
+			sos = offset;
+			break;
+		}
+		if (marker == 0xc4) {
+			has_dht = true;
+		}
+		offset += 2 + ((data[offset + 2] << 8) | data[offset + 3]);
+	}
+	if (UNLIKELY(!sos)) {
+		LOGW("not a JPEG frame");
+		RETURN(-1, int);
+	}
+	int result;
+	if (has_dht) {
+		result = write_fully(fd, data, bytes);
+	} else {
+		result = write_fully(fd, data, sos);
+		if (LIKELY(result >= 0)) {
+			uint8_t dht[DHT_SEGMENT_BYTES];
+			build_dht_segment(dht);
+			const int ret = write_fully(fd, dht, DHT_SEGMENT_BYTES);
+			result = ret < 0 ? ret : result + ret;
+		}
+		if (LIKELY(result >= 0)) {
+			const int ret = write_fully(fd, data + sos, bytes - sos);
+			result = ret < 0 ? ret : result + ret;
+		}
+	}
+
+	RETURN(result, int);
+}
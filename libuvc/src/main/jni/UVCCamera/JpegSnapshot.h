@@ -0,0 +1,39 @@
+#ifndef JPEGSNAPSHOT_H_
+#define JPEGSNAPSHOT_H_
+
+#include <stdint.h>
+#include <stddef.h>
+#include <turbojpeg.h>
+
+#pragma interface
+
+#define DEFAULT_SNAPSHOT_QUALITY 95
+
+/**
+ * save preview frames as JPEG files.
+ * NV21 frames are compressed with TurboJPEG into an output buffer kept between snapshots and written
+ * to the file descriptor from there, so the source can be released(e.g. a pinned Java array)
+ * before the file I/O. MJPEG frames of the device are written as they are.
+ * not thread safe, UVCCamera calls it under the lock of the Java object
+ */
+class JpegSnapshot {
+private:
+	tjhandle mHandle;
+	unsigned char *mJpegBuf;
+	unsigned long mJpegBufBytes;
+	// U and V planes deinterleaved from the VU plane of NV21
+	uint8_t *mChroma;
+	size_t mChromaBytes;
+	// size of the last JPEG in mJpegBuf
+	unsigned long mJpegBytes;
+	bool ensure_buffers(int width, int height, int subsamp);
+public:
+	JpegSnapshot();
+	~JpegSnapshot();
+
+	int compressNV21(const uint8_t *nv21, int width, int height, int quality, int subsamp);
+	int write(int fd);
+	static int writeMjpeg(const uint8_t *data, size_t bytes, int fd);
+};
+
+#endif /* JPEGSNAPSHOT_H_ */
@@ -0,0 +1,254 @@
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "MJpegDecoderPool.h"
+
+#define	LOCAL_DEBUG 0
+
+#define SLOT_FREE 0
+#define SLOT_QUEUED 1
+#define SLOT_DECODING 2
+#define SLOT_DONE 3
+
+MJpegDecoderPool::MJpegDecoderPool(void *owner, const mjpeg_decoder_callbacks_t *callbacks)
+:	mOwner(owner),
+	mCallbacks(callbacks),
+	mIsRunning(false),
+	mNumWorkers(0),
+	mMaxInFlight(0),
+	mSubmitted(0),
+	mTaken(0),
+	mEmitted(0),
+	mHasLastSequence(false),
+	mLastSequence(0),
+	mDropped(0),
+	mFailed(0),
+	mOutOfOrder(0) {
+
+	ENTER();
+	memset(mSlots, 0, sizeof(mSlots));
+	pthread_mutex_init(&job_mutex, NULL);
+	pthread_cond_init(&job_sync, NULL);
+	pthread_mutex_init(&emit_mutex, NULL);
+	EXIT();
+}
+
+MJpegDecoderPool::~MJpegDecoderPool() {
+
+	ENTER();
+	stop();
+	pthread_mutex_destroy(&emit_mutex);
+	pthread_cond_destroy(&job_sync);
+	pthread_mutex_destroy(&job_mutex);
+	EXIT();
+}
+
+/**
+ * start worker threads
+ * @param num_workers clamped to [1, MAX_DECODE_WORKERS]
+ * @return 0 on success
+ */
+int MJpegDecoderPool::start(int num_workers) {
+	ENTER();
+
+	if (UNLIKELY(isRunning())) {
+		RETURN(-1, int);
+	}
+	if (num_workers < 1) num_workers = 1;
+	if (num_workers > MAX_DECODE_WORKERS) num_workers = MAX_DECODE_WORKERS;
+
+	mSubmitted = mTaken = mEmitted = 0;
+	mDropped = mFailed = mOutOfOrder = 0;
+	mHasLastSequence = false;
+	mMaxInFlight = num_workers * DECODE_SLOTS_PER_WORKER;
+	mNumWorkers = 0;
+	mIsRunning = true;
+	for (int i = 0; i < num_workers; i++) {
+		if (UNLIKELY(pthread_create(&mWorkers[i], NULL, worker_thread_func, (void *)this))) {
+			LOGW("failed to create decode worker %d", i);
+			break;
+		}
+		mNumWorkers++;
+	}
+	if (UNLIKELY(!mNumWorkers)) {
+		mIsRunning = false;
+		RETURN(-1, int);
+	}
+	LOGI("decode workers:%d", mNumWorkers);
+
+	RETURN(0, int);
+}
+
+/**
+ * stop and join worker threads, frames still in the pool are released
+ */
+int MJpegDecoderPool::stop() {
+	ENTER();
+
+	pthread_mutex_lock(&job_mutex);
+	{
+		mIsRunning = false;
+		pthread_cond_broadcast(&job_sync);
+	}
+	pthread_mutex_unlock(&job_mutex);
+	for (int i = 0; i < mNumWorkers; i++) {
+		if (pthread_join(mWorkers[i], NULL) != EXIT_SUCCESS) {
+			LOGW("MJpegDecoderPool::stop:pthread_join failed");
+		}
+	}
+	if (mNumWorkers) {
+		LOGI("emitted:%u,dropped:%u,failed:%u,out of order:%u",
+			mEmitted, mDropped, mFailed, mOutOfOrder);
+	}
+	mNumWorkers = 0;
+	clear_slots();
+
+	RETURN(0, int);
+}
+
+/**
+ * queue MJPEG frame for decoding, the pool takes ownership of the frame.
+ * when all slots are in flight the frame is released immediately,
+ * same as addPreviewFrame drops frames when the preview thread falls behind.
+ * @return false if the frame was dropped
+ */
+bool MJpegDecoderPool::submit(uvc_frame_t *frame_mjpeg) {
+	bool result = false;
+	pthread_mutex_lock(&job_mutex);
+	if (LIKELY(isRunning() && (mSubmitted - mEmitted < (uint32_t)mMaxInFlight))) {
+		decode_slot_t *slot = &mSlots[mSubmitted % MAX_DECODE_SLOTS];
+		slot->frame = frame_mjpeg;
+		slot->sequence = frame_mjpeg->sequence;
+		slot->state = SLOT_QUEUED;
+		mSubmitted++;
+		pthread_cond_signal(&job_sync);
+		result = true;
+	} else {
+		mDropped++;
+	}
+	pthread_mutex_unlock(&job_mutex);
+	if (UNLIKELY(!result)) {
+		mCallbacks->release(mOwner, frame_mjpeg);
+	}
+	return result;
+}
+
+void *MJpegDecoderPool::worker_thread_func(void *vptr_args) {
+	ENTER();
+
+	MJpegDecoderPool *pool = reinterpret_cast<MJpegDecoderPool *>(vptr_args);
+	if (LIKELY(pool)) {
+		pool->do_work();
+	}
+
+	PRE_EXIT();
+	pthread_exit(NULL);
+}
+
+void MJpegDecoderPool::do_work() {
+	ENTER();
+
+	for ( ; ; ) {
+		pthread_mutex_lock(&job_mutex);
+		while (isRunning() && (mTaken == mSubmitted)) {
+			pthread_cond_wait(&job_sync, &job_mutex);
+		}
+		if (UNLIKELY(!isRunning())) {
+			pthread_mutex_unlock(&job_mutex);
+			break;
+		}
+		decode_slot_t *slot = &mSlots[mTaken % MAX_DECODE_SLOTS];
+		uvc_frame_t *frame = slot->frame;
+		slot->frame = NULL;
+		slot->state = SLOT_DECODING;
+		mTaken++;
+		pthread_mutex_unlock(&job_mutex);
+
+		uvc_frame_t *decoded = mCallbacks->decode(mOwner, frame);
+
+		pthread_mutex_lock(&job_mutex);
+		{
+			slot->frame = decoded;
+			slot->state = SLOT_DONE;
+			if (UNLIKELY(!decoded)) {
+				mFailed++;
+			}
+		}
+		pthread_mutex_unlock(&job_mutex);
+		emit();
+	}
+
+	EXIT();
+}
+
+/**
+ * pass decoded frames to the owner in submission order.
+ * whichever worker finishes the oldest frame flushes every consecutive finished frame,
+ * frames that finished early wait in their slot until then.
+ */
+void MJpegDecoderPool::emit() {
+	pthread_mutex_lock(&emit_mutex);
+	for ( ; ; ) {
+		uvc_frame_t *frame = NULL;
+		uint32_t sequence = 0;
+		bool ready;
+		pthread_mutex_lock(&job_mutex);
+		{
+			decode_slot_t *slot = &mSlots[mEmitted % MAX_DECODE_SLOTS];
+			ready = (mEmitted != mTaken) && (slot->state == SLOT_DONE);
+			if (ready) {
+				frame = slot->frame;
+				sequence = slot->sequence;
+				slot->frame = NULL;
+				slot->state = SLOT_FREE;
+				mEmitted++;
+			}
+		}
+		pthread_mutex_unlock(&job_mutex);
+		if (!ready) break;
+		if (LIKELY(frame)) {
+			// libuvc numbers frames with hold_seq, never hand out a frame older than the last one
+			if (UNLIKELY(mHasLastSequence && ((int32_t)(sequence - mLastSequence) <= 0))) {
+				mOutOfOrder++;
+				mCallbacks->release(mOwner, frame);
+			} else {
+				mHasLastSequence = true;
+				mLastSequence = sequence;
+				mCallbacks->on_decoded(mOwner, frame);
+			}
+		}
+	}
+	pthread_mutex_unlock(&emit_mutex);
+}
+
+void MJpegDecoderPool::clear_slots() {
+	ENTER();
+
+	pthread_mutex_lock(&job_mutex);
+	{
+		for (int i = 0; i < MAX_DECODE_SLOTS; i++) {
+			if (mSlots[i].frame) {
+				mCallbacks->release(mOwner, mSlots[i].frame);
+				mSlots[i].frame = NULL;
+			}
+			mSlots[i].state = SLOT_FREE;
+		}
+		mSubmitted = mTaken = mEmitted = 0;
+	}
+	pthread_mutex_unlock(&job_mutex);
+
+	EXIT();
+}
@@ -0,0 +1,67 @@
+#ifndef MJPEGDECODERPOOL_H_
+#define MJPEGDECODERPOOL_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+
+#pragma interface
+
+#define MAX_DECODE_WORKERS 4
+// frames that can be in flight(queued, decoding or waiting for reordering) per worker
+#define DECODE_SLOTS_PER_WORKER 2
+#define MAX_DECODE_SLOTS (MAX_DECODE_WORKERS * DECODE_SLOTS_PER_WORKER)
+
+// callbacks into the owner of the pool, all of them receive the owner pointer given to the constructor
+typedef struct {
+	// decode MJPEG frame, the input frame must be released by the callee. return NULL on failure
+	uvc_frame_t *(*decode)(void *owner, uvc_frame_t *frame_mjpeg);
+	// receive decoded frame in the order it was submitted, never called concurrently
+	void (*on_decoded)(void *owner, uvc_frame_t *frame);
+	// give back a frame that is dropped without decoding
+	void (*release)(void *owner, uvc_frame_t *frame);
+} mjpeg_decoder_callbacks_t;
+
+typedef struct {
+	uvc_frame_t *frame;
+	uint32_t sequence;
+	volatile int state;
+} decode_slot_t;
+
+/**
+ * decode MJPEG frames on several worker threads and hand them back in sequence order
+ */
+class MJpegDecoderPool {
+private:
+	void *mOwner;
+	const mjpeg_decoder_callbacks_t *mCallbacks;
+	volatile bool mIsRunning;
+	int mNumWorkers;
+	int mMaxInFlight;
+	pthread_t mWorkers[MAX_DECODE_WORKERS];
+	pthread_mutex_t job_mutex;
+	pthread_cond_t job_sync;
+	pthread_mutex_t emit_mutex;
+	decode_slot_t mSlots[MAX_DECODE_SLOTS];
+	// monotonically increasing counters, slot index is counter % MAX_DECODE_SLOTS
+	uint32_t mSubmitted, mTaken, mEmitted;
+	bool mHasLastSequence;
+	uint32_t mLastSequence;
+	uint32_t mDropped, mFailed, mOutOfOrder;
+	static void *worker_thread_func(void *vptr_args);
+	void do_work();
+	void emit();
+	void clear_slots();
+public:
+	MJpegDecoderPool(void *owner, const mjpeg_decoder_callbacks_t *callbacks);
+	~MJpegDecoderPool();
+
+	int start(int num_workers);
+	int stop();
+	bool submit(uvc_frame_t *frame_mjpeg);
+	inline const bool isRunning() const { return mIsRunning; }
+	inline const int getNumWorkers() const { return mNumWorkers; }
+	inline const uint32_t getDroppedCount() const { return mDropped; }
+	inline const uint32_t getOutOfOrderCount() const { return mOutOfOrder; }
+};
+
+#endif /* MJPEGDECODERPOOL_H_ */
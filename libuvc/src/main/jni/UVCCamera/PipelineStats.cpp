@@ -0,0 +1,178 @@
+#include <stdlib.h>
+#include <string.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "PipelineStats.h"
+
+#define	LOCAL_DEBUG 0
+
+//**********************************************************************
+//
+//**********************************************************************
+LatencyHistogram::LatencyHistogram() {
+	reset();
+}
+
+LatencyHistogram::~LatencyHistogram() {
+}
+
+/*
+ * values below LATENCY_SUB_BUCKETS have a bucket each,
+ * larger values share the bucket with the same top LATENCY_SUB_BUCKET_BITS + 1 bits
+ */
+int LatencyHistogram::index_of(uint32_t value_us) {
+	if (value_us < LATENCY_SUB_BUCKETS) {
+		return value_us;
+	}
+	if (UNLIKELY(value_us > LATENCY_MAX_US)) {
+		value_us = LATENCY_MAX_US;
+	}
+	const int msb = 31 - __builtin_clz(value_us);
+	const int shift = msb - LATENCY_SUB_BUCKET_BITS;
+	const int sub = (value_us >> shift) - LATENCY_SUB_BUCKETS;
+	return LATENCY_SUB_BUCKETS + shift * LATENCY_SUB_BUCKETS + sub;
+}
+
+uint32_t LatencyHistogram::highest_equivalent(int index) {
+	if (index < LATENCY_SUB_BUCKETS) {
+		return index;
+	}
+	const int shift = (index - LATENCY_SUB_BUCKETS) / LATENCY_SUB_BUCKETS;
+	const uint32_t sub = (index - LATENCY_SUB_BUCKETS) % LATENCY_SUB_BUCKETS;
+	return ((LATENCY_SUB_BUCKETS + sub + 1) << shift) - 1;
+}
+
+void LatencyHistogram::record(uint32_t value_us) {
+	__atomic_add_fetch(&mCounts[index_of(value_us)], 1, __ATOMIC_RELAXED);
+	__atomic_add_fetch(&mSum, value_us, __ATOMIC_RELAXED);
+	uint32_t current = __atomic_load_n(&mMin, __ATOMIC_RELAXED);
+	while ((value_us < current)
+		&& !__atomic_compare_exchange_n(&mMin, &current, value_us, true, __ATOMIC_RELAXED, __ATOMIC_RELAXED)) { }
+	current = __atomic_load_n(&mMax, __ATOMIC_RELAXED);
+	while ((value_us > current)
+		&& !__atomic_compare_exchange_n(&mMax, &current, value_us, true, __ATOMIC_RELAXED, __ATOMIC_RELAXED)) { }
+	// count last so that a reader seeing the count also sees the bucket
+	__atomic_add_fetch(&mTotalCount, 1, __ATOMIC_RELEASE);
+}
+
+/**
+ * clear all samples, samples recorded at the same time may be partly lost
+ */
+void LatencyHistogram::reset() {
+	for (int i = 0; i < LATENCY_NUM_BUCKETS; i++) {
+		__atomic_store_n(&mCounts[i], 0, __ATOMIC_RELAXED);
+	}
+	__atomic_store_n(&mSum, 0, __ATOMIC_RELAXED);
+	__atomic_store_n(&mMin, 0xffffffff, __ATOMIC_RELAXED);
+	__atomic_store_n(&mMax, 0, __ATOMIC_RELAXED);
+	__atomic_store_n(&mTotalCount, 0, __ATOMIC_RELEASE);
+}
+
+uint64_t LatencyHistogram::count() const {
+	return __atomic_load_n(&mTotalCount, __ATOMIC_ACQUIRE);
+}
+
+/**
+ * @param percent [0, 100]
+ * @return upper bound of the bucket the percentile falls in, never larger than the max recorded value
+ */
+uint32_t LatencyHistogram::percentile(double percent) const {
+	const uint64_t total = count();
+	if (!total) return 0;
+	uint64_t target = (uint64_t)(percent / 100.0 * total + 0.5);
+	if (target < 1) target = 1;
+	if (target > total) target = total;
+	const uint32_t max = __atomic_load_n(&mMax, __ATOMIC_RELAXED);
+	uint64_t seen = 0;
+	for (int i = 0; i < LATENCY_NUM_BUCKETS; i++) {
+		seen += __atomic_load_n(&mCounts[i], __ATOMIC_RELAXED);
+		if (seen >= target) {
+			const uint32_t value = highest_equivalent(i);
+			return value < max ? value : max;
+		}
+	}
+	return max;
+}
+
+/**
+ * @param values PIPELINE_STATS_VALUES values, count, min, mean, p50, p90, p99, p99.9, max
+ */
+void LatencyHistogram::summary(int64_t *values) const {
+	const uint64_t total = count();
+	values[0] = total;
+	values[1] = total ? __atomic_load_n(&mMin, __ATOMIC_RELAXED) : 0;
+	values[2] = total ? __atomic_load_n(&mSum, __ATOMIC_RELAXED) / total : 0;
+	values[3] = percentile(50.0);
+	values[4] = percentile(90.0);
+	values[5] = percentile(99.0);
+	values[6] = percentile(99.9);
+	values[7] = total ? __atomic_load_n(&mMax, __ATOMIC_RELAXED) : 0;
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+PipelineStats::PipelineStats() {
+}
+
+PipelineStats::~PipelineStats() {
+}
+
+static inline uint32_t elapsed_us(uint64_t from_ns, uint64_t to_ns) {
+	if (UNLIKELY(to_ns < from_ns)) return 0;
+	const uint64_t us = (to_ns - from_ns) / 1000;
+	return us < LATENCY_MAX_US ? (uint32_t)us : LATENCY_MAX_US;
+}
+
+/**
+ * record the intervals of one frame, stages the frame did not pass(timestamp 0) are skipped
+ * @param timestamps UVC_FRAME_STAGE_NUM values from uvc_frame_t.timestamps
+ */
+void PipelineStats::record(const uint64_t *timestamps) {
+	const uint64_t first = timestamps[UVC_FRAME_STAGE_FIRST_PAYLOAD];
+	const uint64_t complete = timestamps[UVC_FRAME_STAGE_COMPLETE];
+	const uint64_t dequeued = timestamps[UVC_FRAME_STAGE_DEQUEUED];
+	const uint64_t decoded = timestamps[UVC_FRAME_STAGE_DECODED];
+	const uint64_t converted = timestamps[UVC_FRAME_STAGE_CONVERTED];
+	const uint64_t delivered = timestamps[UVC_FRAME_STAGE_DELIVERED];
+
+	if (first && complete) mStages[PIPELINE_STAGE_USB].record(elapsed_us(first, complete));
+	if (complete && dequeued) mStages[PIPELINE_STAGE_QUEUE].record(elapsed_us(complete, dequeued));
+	if (dequeued && decoded) mStages[PIPELINE_STAGE_DECODE].record(elapsed_us(dequeued, decoded));
+	const uint64_t before_convert = decoded ? decoded : dequeued;
+	if (before_convert && converted) mStages[PIPELINE_STAGE_CONVERT].record(elapsed_us(before_convert, converted));
+	if (converted && delivered) mStages[PIPELINE_STAGE_CALLBACK].record(elapsed_us(converted, delivered));
+	if (first) {
+		uint64_t last = 0;
+		for (int i = UVC_FRAME_STAGE_COMPLETE; i < UVC_FRAME_STAGE_NUM; i++) {
+			if (timestamps[i] > last) last = timestamps[i];
+		}
+		if (last) mStages[PIPELINE_STAGE_TOTAL].record(elapsed_us(first, last));
+	}
+}
+
+void PipelineStats::reset() {
+	for (int i = 0; i < PIPELINE_STAGE_NUM; i++) {
+		mStages[i].reset();
+	}
+}
+
+/**
+ * @param values PIPELINE_STAGE_NUM * PIPELINE_STATS_VALUES values
+ */
+void PipelineStats::summary(int64_t *values) const {
+	for (int i = 0; i < PIPELINE_STAGE_NUM; i++) {
+		mStages[i].summary(values + i * PIPELINE_STATS_VALUES);
+	}
+}
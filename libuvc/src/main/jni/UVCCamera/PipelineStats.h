@@ -0,0 +1,68 @@
+#ifndef PIPELINESTATS_H_
+#define PIPELINESTATS_H_
+
+#include "libUVCCamera.h"
+
+#pragma interface
+
+// intervals between uvc_frame_t.timestamps recorded by PipelineStats
+#define PIPELINE_STAGE_USB 0		// first payload => frame complete
+#define PIPELINE_STAGE_QUEUE 1		// frame complete => dequeued by the preview thread
+#define PIPELINE_STAGE_DECODE 2		// dequeued => MJPEG decoded
+#define PIPELINE_STAGE_CONVERT 3	// decoded(or dequeued) => converted for the frame callback,
+									// includes preview drawing and the hand-off to the capture thread
+#define PIPELINE_STAGE_CALLBACK 4	// converted => IFrameCallback returned
+#define PIPELINE_STAGE_TOTAL 5		// first payload => the last stage the frame reached
+#define PIPELINE_STAGE_NUM 6
+
+// values per stage passed to Java, same order as UVCPipelineStats.Stage
+#define PIPELINE_STATS_VALUES 8		// count, min, mean, p50, p90, p99, p99.9, max
+
+/**
+ * lock-free log-linear latency histogram in microseconds like HdrHistogram,
+ * every power of two is split into 2^LATENCY_SUB_BUCKET_BITS buckets
+ * so recorded values keep about 6% precision from 1us up to LATENCY_MAX_US.
+ * recording is a few relaxed atomic adds, readers may see a sample half recorded.
+ */
+#define LATENCY_SUB_BUCKET_BITS 4
+#define LATENCY_SUB_BUCKETS (1 << LATENCY_SUB_BUCKET_BITS)
+#define LATENCY_MAX_BITS 30			// ~18 minutes
+#define LATENCY_MAX_US ((1U << LATENCY_MAX_BITS) - 1)
+#define LATENCY_NUM_BUCKETS (LATENCY_SUB_BUCKETS * (LATENCY_MAX_BITS - LATENCY_SUB_BUCKET_BITS + 1))
+
+class LatencyHistogram {
+private:
+	volatile uint32_t mCounts[LATENCY_NUM_BUCKETS];
+	volatile uint64_t mTotalCount;
+	volatile uint64_t mSum;
+	volatile uint32_t mMin;
+	volatile uint32_t mMax;
+	static int index_of(uint32_t value_us);
+	static uint32_t highest_equivalent(int index);
+public:
+	LatencyHistogram();
+	~LatencyHistogram();
+
+	void record(uint32_t value_us);
+	void reset();
+	uint64_t count() const;
+	uint32_t percentile(double percent) const;
+	void summary(int64_t *values) const;
+};
+
+/**
+ * latency of every frame stage of one camera, fed by UVCPreview with the timestamps each frame collected
+ */
+class PipelineStats {
+private:
+	LatencyHistogram mStages[PIPELINE_STAGE_NUM];
+public:
+	PipelineStats();
+	~PipelineStats();
+
+	void record(const uint64_t *timestamps);
+	void reset();
+	void summary(int64_t *values) const;
+};
+
+#endif /* PIPELINESTATS_H_ */
@@ -63,6 +63,7 @@ UVCCamera::UVCCamera()
 	mStatusCallback(NULL),
 	mButtonCallback(NULL),
 	mPreview(NULL),
+	mSnapshot(NULL),
 	mCtrlSupports(0),
 	mPUSupports(0) {
 
@@ -77,6 +78,7 @@ UVCCamera::UVCCamera()
 UVCCamera::~UVCCamera() {
 	ENTER();
 	release();
+	SAFE_DELETE(mSnapshot);
 	if (mContext) {
 		uvc_exit(mContext);
 		mContext = NULL;
@@ -264,11 +266,107 @@ int UVCCamera::setPreviewDisplay(ANativeWindow *preview_window) {
 	RETURN(result, int);
 }
 
-int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
+int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, bool lend_frames) {
 	ENTER();
 	int result = EXIT_FAILURE;
 	if (mPreview) {
-		result = mPreview->setFrameCallback(env, frame_callback_obj, pixel_format);
+		result = mPreview->setFrameCallback(env, frame_callback_obj, pixel_format, lend_frames);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::releaseFrameBuffer(jlong frame_id) {
+	int result = EXIT_FAILURE;
+	if (LIKELY(mPreview)) {
+		result = mPreview->releaseFrameBuffer(frame_id);
+	} else {
+		// the preview is already gone, e.g. after close
+		result = UVCPreview::releaseOrphanFrame(frame_id);
+	}
+	return result;
+}
+
+jlong UVCCamera::getFrameTimestamp(jlong frame_id) {
+	jlong result = 0;
+	if (LIKELY(mPreview)) {
+		result = mPreview->getFrameTimestamp(frame_id);
+	}
+	return result;
+}
+
+int UVCCamera::setDecodeWorkers(int num_workers) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setDecodeWorkers(num_workers);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setFrameQueue(int capacity, int policy) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setFrameQueue(capacity, policy);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setAdaptiveTransfers(bool adaptive) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setAdaptiveTransfers(adaptive);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::getStreamStats(uvc_stream_stats_t *stats) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->getStreamStats(stats);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::getPipelineStats(int64_t *values, bool reset) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->getPipelineStats(values, reset);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::captureStill(int fd, int timeout_ms) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->captureStill(fd, timeout_ms);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * compress a NV21 frame to JPEG, write it with #writeSnapshot
+ * @param subsamp TJSAMP_xxx
+ * @return JPEG bytes, negative on failure
+ */
+int UVCCamera::compressSnapshot(const uint8_t *nv21, int width, int height, int quality, int subsamp) {
+	ENTER();
+	if (!mSnapshot) {
+		mSnapshot = new JpegSnapshot();
+	}
+	const int result = mSnapshot->compressNV21(nv21, width, height, quality, subsamp);
+	RETURN(result, int);
+}
+
+int UVCCamera::writeSnapshot(int fd) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mSnapshot) {
+		result = mSnapshot->write(fd);
 	}
 	RETURN(result, int);
 }
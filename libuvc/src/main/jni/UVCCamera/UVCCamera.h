@@ -34,6 +34,7 @@
 #include "UVCStatusCallback.h"
 #include "UVCButtonCallback.h"
 #include "UVCPreview.h"
+#include "JpegSnapshot.h"
 
 #define	CTRL_SCANNING		0x000001	// D0:  Scanning Mode
 #define	CTRL_AE				0x000002	// D1:  Auto-Exposure Mode
@@ -117,6 +118,8 @@ class UVCCamera {
 	UVCButtonCallback *mButtonCallback;
 	// プレビュー用
 	UVCPreview *mPreview;
+	// created on the first snapshot, keeps its buffers for the next one
+	JpegSnapshot *mSnapshot;
 	uint64_t mCtrlSupports;
 	uint64_t mPUSupports;
 	control_value_t mScanningMode;
@@ -191,10 +194,20 @@ public:
 	char *getSupportedSize();
 	int setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth = DEFAULT_BANDWIDTH);
 	int setPreviewDisplay(ANativeWindow *preview_window);
-	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, bool lend_frames = false);
+	int releaseFrameBuffer(jlong frame_id);
+	jlong getFrameTimestamp(jlong frame_id);
+	int setDecodeWorkers(int num_workers);
+	int setFrameQueue(int capacity, int policy);
+	int setAdaptiveTransfers(bool adaptive);
+	int getStreamStats(uvc_stream_stats_t *stats);
+	int getPipelineStats(int64_t *values, bool reset);
 	int startPreview();
 	int stopPreview();
 	int setCaptureDisplay(ANativeWindow *capture_window);
+	int captureStill(int fd, int timeout_ms);
+	int compressSnapshot(const uint8_t *nv21, int width, int height, int quality, int subsamp);
+	int writeSnapshot(int fd);
 
 	int getCtrlSupports(uint64_t *supports);
 	int getProcSupports(uint64_t *supports);
@@ -23,6 +23,7 @@
 */
 
 #include <stdlib.h>
+#include <errno.h>
 #include <linux/time.h>
 #include <unistd.h>
 
@@ -40,14 +41,18 @@
 #include "utilbase.h"
 #include "UVCPreview.h"
 #include "libuvc_internal.h"
+#include "JpegSnapshot.h"
 
 #define	LOCAL_DEBUG 0
-#define MAX_FRAME 4
 #define PREVIEW_PIXEL_BYTES 4	// RGBA/RGBX
-#define FRAME_POOL_SZ MAX_FRAME + 2
+#define FRAME_POOL_HELD 2	// frames held by the preview thread and the capture queue
+#define CAPTURE_WAIT_MS 1000
+#define MAX_LENT_FRAME 8	// frames Java can hold at once before callbacks are dropped
 
-struct timespec ts;
-struct timeval tv;
+// frames Java still held when their preview was destroyed, freed when Java releases them
+// process wide, the camera and its preview can be gone by then
+static pthread_mutex_t orphan_mutex = PTHREAD_MUTEX_INITIALIZER;
+static ObjectArray<uvc_frame_t *> sOrphanFrames;
 
 UVCPreview::UVCPreview(uvc_device_handle_t *devh)
 :	mPreviewWindow(NULL),
@@ -67,13 +72,22 @@ UVCPreview::UVCPreview(uvc_device_handle_t *devh)
 	previewFormat(WINDOW_FORMAT_RGBA_8888),
 	mIsRunning(false),
 	mIsCapturing(false),
-	captureQueu(NULL),
+	mPreviewFrames(DEFAULT_FRAME_QUEUE_SIZE, FRAME_QUEUE_DROP_NEWEST),
+	mCaptureFrames(1, FRAME_QUEUE_OVERWRITE_OLDEST),
 	mFrameCallbackObj(NULL),
 	mFrameCallbackFunc(NULL),
-	callbackPixelBytes(2) {
+	callbackPixelBytes(2),
+	mCallbackFrameFormat(UVC_FRAME_FORMAT_YUYV),
+	mLendFrames(false),
+	mDecodeWorkers(1),
+	mDecoderPool(NULL),
+	mAdaptiveTransfers(false),
+	mStreaming(false),
+	mStillFd(-1),
+	mStillResult(0),
+	mFramePool(DEFAULT_FRAME_QUEUE_SIZE + FRAME_POOL_HELD) {
 
 	ENTER();
-	pthread_cond_init(&preview_sync, NULL);
 	pthread_mutex_init(&preview_mutex, NULL);
     // 初始化并关联 capture_clock_attr
     //pthread_condattr_init(&capture_clock_attr);
@@ -82,6 +96,10 @@ UVCPreview::UVCPreview(uvc_device_handle_t *devh)
 	pthread_mutex_init(&capture_mutex, NULL);
 
 	pthread_mutex_init(&pool_mutex, NULL);
+	pthread_cond_init(&still_sync, NULL);
+	pthread_mutex_init(&still_mutex, NULL);
+	memset(&mStreamStats, 0, sizeof(mStreamStats));
+	update_pool_capacity();
 	EXIT();
 }
 
@@ -96,16 +114,18 @@ UVCPreview::~UVCPreview() {
 	mCaptureWindow = NULL;
 	clearPreviewFrame();
 	clearCaptureFrame();
+	orphan_lent_frames();
 	clear_pool();
 	pthread_mutex_lock(&preview_mutex);
 	pthread_mutex_destroy(&preview_mutex);
-	pthread_cond_destroy(&preview_sync);
 	pthread_mutex_lock(&capture_mutex);
 	pthread_mutex_destroy(&capture_mutex);
 	pthread_cond_destroy(&capture_sync);
 	// 释放 capture_clock_aatr
     // pthread_condattr_destroy(&capture_clock_attr);
 	pthread_mutex_destroy(&pool_mutex);
+	pthread_mutex_destroy(&still_mutex);
+	pthread_cond_destroy(&still_sync);
 	EXIT();
 }
 
@@ -116,14 +136,7 @@ UVCPreview::~UVCPreview() {
  * and you may need to confirm the size
  */
 uvc_frame_t *UVCPreview::get_frame(size_t data_bytes) {
-	uvc_frame_t *frame = NULL;
-	pthread_mutex_lock(&pool_mutex);
-	{
-		if (!mFramePool.isEmpty()) {
-			frame = mFramePool.last();
-		}
-	}
-	pthread_mutex_unlock(&pool_mutex);
+	uvc_frame_t *frame = mFramePool.get();
 	if UNLIKELY(!frame) {
 		LOGW("allocate new frame");
 		frame = uvc_allocate_frame(data_bytes);
@@ -132,13 +145,7 @@ uvc_frame_t *UVCPreview::get_frame(size_t data_bytes) {
 }
 
 void UVCPreview::recycle_frame(uvc_frame_t *frame) {
-	pthread_mutex_lock(&pool_mutex);
-	if (LIKELY(mFramePool.size() < FRAME_POOL_SZ)) {
-		mFramePool.put(frame);
-		frame = NULL;
-	}
-	pthread_mutex_unlock(&pool_mutex);
-	if (UNLIKELY(frame)) {
+	if (UNLIKELY(!mFramePool.put(frame))) {
 		uvc_free_frame(frame);
 	}
 }
@@ -148,27 +155,136 @@ void UVCPreview::init_pool(size_t data_bytes) {
 	ENTER();
 
 	clear_pool();
+	const int capacity = mFramePool.capacity();
+	for (int i = 0; i < capacity; i++) {
+		recycle_frame(uvc_allocate_frame(data_bytes));
+	}
+
+	EXIT();
+}
+
+/**
+ * keep as many frames as can be out of the pool at once with the current configuration,
+ * the preview queue, the frames held by the preview/capture threads, the MJpegDecoderPool slots
+ * and the frames lent to Java all come back here
+ */
+void UVCPreview::update_pool_capacity() {
+	const int decode_slots = mDecodeWorkers > 1 ? mDecodeWorkers * DECODE_SLOTS_PER_WORKER : 0;
+	const int lent = mLendFrames ? MAX_LENT_FRAME : 0;
+	mFramePool.setCapacity(mPreviewFrames.capacity() + FRAME_POOL_HELD + decode_slots + lent);
+}
+
+void UVCPreview::clear_pool() {
+	ENTER();
+
+	uvc_frame_t *frame;
+	for ( ; (frame = mFramePool.get()) ; ) {
+		uvc_free_frame(frame);
+	}
+	EXIT();
+}
+
+/**
+ * hand the frame over to Java, it will come back through releaseFrameBuffer
+ * @return false if Java already holds too many frames, the frame stays with the caller
+ */
+bool UVCPreview::lend_frame(uvc_frame_t *frame) {
+	bool result = false;
+	pthread_mutex_lock(&pool_mutex);
+	if (LIKELY(mLentFrames.size() < MAX_LENT_FRAME)) {
+		mLentFrames.put(frame);
+		result = true;
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	return result;
+}
+
+/**
+ * return the frame which was lent to Java to the frame pool
+ * frames of a destroyed preview are freed, see orphan_lent_frames, unknown ids are ignored
+ */
+int UVCPreview::releaseFrameBuffer(jlong frame_id) {
+	uvc_frame_t *frame = reinterpret_cast<uvc_frame_t *>(frame_id);
+	int index;
 	pthread_mutex_lock(&pool_mutex);
 	{
-		for (int i = 0; i < FRAME_POOL_SZ; i++) {
-			mFramePool.put(uvc_allocate_frame(data_bytes));
+		index = mLentFrames.getIndex(frame);
+		if (LIKELY(index >= 0)) {
+			mLentFrames.remove(index);
 		}
 	}
 	pthread_mutex_unlock(&pool_mutex);
+	if (LIKELY(index >= 0)) {
+		recycle_frame(frame);
+		return 0;
+	}
+	return releaseOrphanFrame(frame_id);
+}
 
-	EXIT();
+/**
+ * free a frame Java held while its preview was destroyed
+ * @return 0 if it was such a frame, -1 otherwise
+ */
+/*static*/
+int UVCPreview::releaseOrphanFrame(jlong frame_id) {
+	uvc_frame_t *frame = reinterpret_cast<uvc_frame_t *>(frame_id);
+	int index;
+	pthread_mutex_lock(&orphan_mutex);
+	{
+		index = sOrphanFrames.getIndex(frame);
+		if (index >= 0) {
+			sOrphanFrames.remove(index);
+		}
+	}
+	pthread_mutex_unlock(&orphan_mutex);
+	if (index >= 0) {
+		uvc_free_frame(frame);
+		return 0;
+	}
+	return -1;
 }
 
-void UVCPreview::clear_pool() {
+/**
+ * capture time of a frame lent to Java, CLOCK_MONOTONIC the same as System.nanoTime
+ * the first payload of the frame is the closest we know to the exposure,
+ * the time the frame completed is used when the first payload was not recorded
+ * @return nanoseconds, 0 for unknown ids(already released or orphaned by orphan_lent_frames)
+ */
+jlong UVCPreview::getFrameTimestamp(jlong frame_id) {
+	uvc_frame_t *frame = reinterpret_cast<uvc_frame_t *>(frame_id);
+	jlong result = 0;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		if (LIKELY(mLentFrames.getIndex(frame) >= 0)) {
+			result = frame->timestamps[UVC_FRAME_STAGE_FIRST_PAYLOAD];
+			if (!result) {
+				result = frame->timestamps[UVC_FRAME_STAGE_COMPLETE];
+			}
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	return result;
+}
+
+/**
+ * hand the frames still held by Java over to the process wide orphan list
+ * their direct ByteBuffers stay valid until Java releases them, see releaseOrphanFrame
+ */
+void UVCPreview::orphan_lent_frames() {
 	ENTER();
 
 	pthread_mutex_lock(&pool_mutex);
 	{
-		const int n = mFramePool.size();
-		for (int i = 0; i < n; i++) {
-			uvc_free_frame(mFramePool[i]);
+		const int n = mLentFrames.size();
+		if (UNLIKELY(n)) {
+			LOGW("%d frame(s) still lent to Java, freed when released", n);
+			pthread_mutex_lock(&orphan_mutex);
+			for (int i = 0; i < n; i++) {
+				sOrphanFrames.put(mLentFrames[i]);
+			}
+			pthread_mutex_unlock(&orphan_mutex);
 		}
-		mFramePool.clear();
+		mLentFrames.clear();
 	}
 	pthread_mutex_unlock(&pool_mutex);
 	EXIT();
@@ -176,6 +292,21 @@ void UVCPreview::clear_pool() {
 
 inline const bool UVCPreview::isRunning() const {return mIsRunning; }
 
+/**
+ * set number of threads to decode MJPEG frames, takes effect on next startPreview
+ * @param num_workers 1 decodes on the preview thread, clamped to MAX_DECODE_WORKERS
+ */
+int UVCPreview::setDecodeWorkers(int num_workers) {
+	ENTER();
+
+	if (num_workers < 1) num_workers = 1;
+	if (num_workers > MAX_DECODE_WORKERS) num_workers = MAX_DECODE_WORKERS;
+	mDecodeWorkers = num_workers;
+	update_pool_capacity();
+
+	RETURN(0, int);
+}
+
 int UVCPreview::setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth) {
 	ENTER();
 	
@@ -215,7 +346,7 @@ int UVCPreview::setPreviewDisplay(ANativeWindow *preview_window) {
 	RETURN(0, int);
 }
 
-int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
+int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, bool lend_frames) {
 	
 	ENTER();
 	pthread_mutex_lock(&capture_mutex);
@@ -223,27 +354,35 @@ int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pi
 		if (isRunning() && isCapturing()) {
 			mIsCapturing = false;
 			if (mFrameCallbackObj) {
-				pthread_cond_signal(&capture_sync);
+				mCaptureFrames.wakeup();
 				pthread_cond_wait(&capture_sync, &capture_mutex);	// wait finishing capturing
 			}
 		}
-		if (!env->IsSameObject(mFrameCallbackObj, frame_callback_obj))	{
+		if (!env->IsSameObject(mFrameCallbackObj, frame_callback_obj) || (mLendFrames != lend_frames))	{
 			iframecallback_fields.onFrame = NULL;
+			iframecallback_fields.onFrameBuffer = NULL;
 			if (mFrameCallbackObj) {
 				env->DeleteGlobalRef(mFrameCallbackObj);
 			}
 			mFrameCallbackObj = frame_callback_obj;
+			mLendFrames = lend_frames;
+			update_pool_capacity();
 			if (frame_callback_obj) {
 				// get method IDs of Java object for callback
 				jclass clazz = env->GetObjectClass(frame_callback_obj);
 				if (LIKELY(clazz)) {
-					iframecallback_fields.onFrame = env->GetMethodID(clazz,
-						"onFrame",	"(Ljava/nio/ByteBuffer;)V");
+					if (lend_frames) {
+						iframecallback_fields.onFrameBuffer = env->GetMethodID(clazz,
+							"onFrame",	"(Ljava/nio/ByteBuffer;J)V");
+					} else {
+						iframecallback_fields.onFrame = env->GetMethodID(clazz,
+							"onFrame",	"(Ljava/nio/ByteBuffer;)V");
+					}
 				} else {
 					LOGW("failed to get object class");
 				}
 				env->ExceptionClear();
-				if (!iframecallback_fields.onFrame) {
+				if (!iframecallback_fields.onFrame && !iframecallback_fields.onFrameBuffer) {
 					LOGE("Can't find IFrameCallback#onFrame");
 					env->DeleteGlobalRef(frame_callback_obj);
 					mFrameCallbackObj = frame_callback_obj = NULL;
@@ -265,35 +404,70 @@ void UVCPreview::callbackPixelFormatChanged() {
 	switch (mPixelFormat) {
 	  case PIXEL_FORMAT_RAW:
 		LOGI("PIXEL_FORMAT_RAW:");
+		mCallbackFrameFormat = UVC_FRAME_FORMAT_YUYV;
 		callbackPixelBytes = sz * 2;
 		break;
 	  case PIXEL_FORMAT_YUV:
 		LOGI("PIXEL_FORMAT_YUV:");
+		mCallbackFrameFormat = UVC_FRAME_FORMAT_YUYV;
 		callbackPixelBytes = sz * 2;
 		break;
 	  case PIXEL_FORMAT_RGB565:
 		LOGI("PIXEL_FORMAT_RGB565:");
 		mFrameCallbackFunc = uvc_any2rgb565;
+		mCallbackFrameFormat = UVC_FRAME_FORMAT_RGB565;
 		callbackPixelBytes = sz * 2;
 		break;
 	  case PIXEL_FORMAT_RGBX:
 		LOGI("PIXEL_FORMAT_RGBX:");
 		mFrameCallbackFunc = uvc_any2rgbx;
+		mCallbackFrameFormat = UVC_FRAME_FORMAT_RGBX;
 		callbackPixelBytes = sz * 4;
 		break;
 	  case PIXEL_FORMAT_YUV20SP:
 		LOGI("PIXEL_FORMAT_YUV20SP:");
 		mFrameCallbackFunc = uvc_yuyv2iyuv420SP;
+		mCallbackFrameFormat = UVC_FRAME_FORMAT_NV21;
 		callbackPixelBytes = (sz * 3) / 2;
 		break;
 	  case PIXEL_FORMAT_NV21:
 		LOGI("PIXEL_FORMAT_NV21:");
 		mFrameCallbackFunc = uvc_yuyv2yuv420SP;
+		mCallbackFrameFormat = UVC_FRAME_FORMAT_NV12;
+		callbackPixelBytes = (sz * 3) / 2;
+		break;
+	  case PIXEL_FORMAT_I420:
+		LOGI("PIXEL_FORMAT_I420:");
+		mFrameCallbackFunc = uvc_any2i420;
+		mCallbackFrameFormat = UVC_FRAME_FORMAT_I420;
 		callbackPixelBytes = (sz * 3) / 2;
 		break;
 	}
 }
 
+/**
+ * decide which format MJPEG frames are decoded to.
+ * when the callback wants YUV420 (or nobody is listening) the frame is decoded
+ * straight to YUV420 with TurboJPEG and both preview and callback consume it as is,
+ * otherwise fall back to YUYV that every converter accepts.
+ */
+uvc_frame_format UVCPreview::mjpeg_decode_format() {
+	if (!mFrameCallbackObj) {
+		return UVC_FRAME_FORMAT_NV21;
+	}
+	switch (mCallbackFrameFormat) {
+	case UVC_FRAME_FORMAT_NV21:
+	case UVC_FRAME_FORMAT_NV12:
+	case UVC_FRAME_FORMAT_I420:
+		return mCallbackFrameFormat;
+	case UVC_FRAME_FORMAT_RGBX:
+		// uvc_any2rgbx also accepts YUV420
+		return UVC_FRAME_FORMAT_NV21;
+	default:
+		return UVC_FRAME_FORMAT_YUYV;
+	}
+}
+
 void UVCPreview::clearDisplay() {
 	ENTER();
 
@@ -339,6 +513,8 @@ int UVCPreview::startPreview() {
 
 	int result = EXIT_FAILURE;
 	if (!isRunning()) {
+		mPreviewFrames.open();
+		mCaptureFrames.open();
 		mIsRunning = true;
 		pthread_mutex_lock(&preview_mutex);
 		{
@@ -350,11 +526,8 @@ int UVCPreview::startPreview() {
 		if (UNLIKELY(result != EXIT_SUCCESS)) {
 			LOGW("UVCCamera::window does not exist/already running/could not create thread etc.");
 			mIsRunning = false;
-			pthread_mutex_lock(&preview_mutex);
-			{
-				pthread_cond_signal(&preview_sync);
-			}
-			pthread_mutex_unlock(&preview_mutex);
+			mPreviewFrames.close();
+			mCaptureFrames.close();
 		}
 	}
 	RETURN(result, int);
@@ -365,11 +538,11 @@ int UVCPreview::stopPreview() {
 	bool b = isRunning();
 	if (LIKELY(b)) {
 		mIsRunning = false;
-        pthread_cond_signal(&preview_sync);
+		mPreviewFrames.close();
+		mCaptureFrames.close();
         // jiangdg:fix stopview crash
         // because of capture_thread may null when called do_preview()
 		if (mHasCapturing) {
-            pthread_cond_signal(&capture_sync);
             if (capture_thread && pthread_join(capture_thread, NULL) != EXIT_SUCCESS) {
                 LOGW("UVCPreview::terminate capture thread: pthread_join failed");
             }
@@ -425,7 +598,8 @@ void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args)
 #endif
 			return;
 		}
-		uvc_error_t ret = uvc_duplicate_frame(frame, copy);
+		// the stream runs with UVC_STREAM_FLAG_HANDOFF, take the receive buffer instead of copying it
+		uvc_error_t ret = uvc_swap_frame_data(frame, copy);
 		if (UNLIKELY(ret)) {
 			preview->recycle_frame(copy);
 			return;
@@ -434,43 +608,181 @@ void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args)
 	}
 }
 
+/**
+ * called on the libusb event thread, what happens when the preview thread falls behind
+ * depends on the policy given to setFrameQueue
+ */
 void UVCPreview::addPreviewFrame(uvc_frame_t *frame) {
+	uvc_frame_t *evicted = NULL;
+	if (!isRunning() || !mPreviewFrames.push(frame, &evicted)) {
+		recycle_frame(frame);
+	}
+	if (evicted) {
+		recycle_frame(evicted);
+	}
+}
 
-	pthread_mutex_lock(&preview_mutex);
-	if (isRunning() && (previewFrames.size() < MAX_FRAME)) {
-		previewFrames.put(frame);
+uvc_frame_t *UVCPreview::waitPreviewFrame() {
+	uvc_frame_t *frame = mPreviewFrames.wait();
+	if (UNLIKELY(frame && !isRunning())) {
+		recycle_frame(frame);
 		frame = NULL;
-		pthread_cond_signal(&preview_sync);
 	}
-	pthread_mutex_unlock(&preview_mutex);
-	if (frame) {
+	if (LIKELY(frame)) {
+		uvc_frame_set_timestamp(frame, UVC_FRAME_STAGE_DEQUEUED);
+	}
+	return frame;
+}
+
+void UVCPreview::clearPreviewFrame() {
+	uvc_frame_t *frame;
+	for ( ; (frame = mPreviewFrames.pop()) ; ) {
 		recycle_frame(frame);
 	}
 }
 
-uvc_frame_t *UVCPreview::waitPreviewFrame() {
-	uvc_frame_t *frame = NULL;
+/**
+ * change the capacity and overflow policy of the queue between the libusb event thread and the preview thread
+ * @param capacity [1, MAX_FRAME_QUEUE_SIZE]
+ * @param policy FRAME_QUEUE_DROP_NEWEST, FRAME_QUEUE_OVERWRITE_OLDEST or FRAME_QUEUE_BLOCK
+ * @return 0 on success, -1 while previewing or on invalid arguments
+ */
+int UVCPreview::setFrameQueue(int capacity, int policy) {
+	ENTER();
+
+	if (UNLIKELY(isRunning() || (capacity < 1) || (capacity > MAX_FRAME_QUEUE_SIZE))) {
+		RETURN(-1, int);
+	}
+	clearPreviewFrame();
+	const int result = mPreviewFrames.configure(capacity, policy);
+	update_pool_capacity();
+
+	RETURN(result, int);
+}
+
+/**
+ * let libuvc choose the number of transfers and packets per transfer and adjust them
+ * depending on the rate of incomplete frames, takes effect on next startPreview
+ */
+int UVCPreview::setAdaptiveTransfers(bool adaptive) {
+	ENTER();
+
+	mAdaptiveTransfers = adaptive;
+
+	RETURN(0, int);
+}
+
+/**
+ * get the transfer configuration and frame counters of the current stream,
+ * or of the last stream after stopping preview
+ */
+int UVCPreview::getStreamStats(uvc_stream_stats_t *stats) {
+	ENTER();
+
+	int result = 0;
 	pthread_mutex_lock(&preview_mutex);
 	{
-		if (!previewFrames.size()) {
-			pthread_cond_wait(&preview_sync, &preview_mutex);
-		}
-		if (LIKELY(isRunning() && previewFrames.size() > 0)) {
-			frame = previewFrames.remove(0);
+		if (mStreaming) {
+			result = uvc_get_stream_stats(mDeviceHandle, &mStreamStats);
 		}
+		*stats = mStreamStats;
 	}
 	pthread_mutex_unlock(&preview_mutex);
-	return frame;
+
+	RETURN(result, int);
 }
 
-void UVCPreview::clearPreviewFrame() {
-	pthread_mutex_lock(&preview_mutex);
+/**
+ * get the latency summary of each pipeline stage since the preview started or the last reset
+ * @param values PIPELINE_STAGE_NUM * PIPELINE_STATS_VALUES values in microseconds(counts as is)
+ * @param reset clear the histograms after reading
+ */
+int UVCPreview::getPipelineStats(int64_t *values, bool reset) {
+	ENTER();
+
+	mPipelineStats.summary(values);
+	if (reset) {
+		mPipelineStats.reset();
+	}
+
+	RETURN(0, int);
+}
+
+/**
+ * write the next MJPEG frame of the device to the file descriptor as it is, without decoding
+ * and encoding it again, see JpegSnapshot::writeMjpeg
+ * @param fd file descriptor to write, the caller keeps the ownership
+ * @param timeout_ms max wait time for the frame
+ * @return written bytes or a negative uvc_error_t, UVC_ERROR_NOT_SUPPORTED if the stream is not MJPEG
+ */
+int UVCPreview::captureStill(int fd, int timeout_ms) {
+	ENTER();
+
+	if (UNLIKELY(fd < 0)) {
+		RETURN(UVC_ERROR_INVALID_PARAM, int);
+	}
+	int result;
+	pthread_mutex_lock(&still_mutex);
 	{
-		for (int i = 0; i < previewFrames.size(); i++)
-			recycle_frame(previewFrames[i]);
-		previewFrames.clear();
+		if (!isRunning() || !frameMode) {
+			result = UVC_ERROR_NOT_SUPPORTED;
+		} else if (mStillFd >= 0) {
+			result = UVC_ERROR_BUSY;
+		} else {
+			struct timespec ts;
+			clock_gettime(CLOCK_REALTIME, &ts);
+			ts.tv_sec += timeout_ms / 1000;
+			ts.tv_nsec += (timeout_ms % 1000) * 1000000L;
+			if (ts.tv_nsec >= 1000000000L) {
+				ts.tv_sec++;
+				ts.tv_nsec -= 1000000000L;
+			}
+			mStillResult = UVC_ERROR_TIMEOUT;
+			mStillFd = fd;
+			for ( ; mStillFd >= 0 ; ) {
+				if (pthread_cond_timedwait(&still_sync, &still_mutex, &ts) == ETIMEDOUT) {
+					break;
+				}
+			}
+			// the fd must not be touched after returning
+			mStillFd = -1;
+			result = mStillResult;
+		}
 	}
-	pthread_mutex_unlock(&preview_mutex);
+	pthread_mutex_unlock(&still_mutex);
+
+	RETURN(result, int);
+}
+
+/**
+ * called on the preview thread for each MJPEG frame while a still capture waits
+ */
+void UVCPreview::save_still(uvc_frame_t *frame_mjpeg) {
+	pthread_mutex_lock(&still_mutex);
+	{
+		if (mStillFd >= 0) {
+			const int bytes = JpegSnapshot::writeMjpeg((const uint8_t *)frame_mjpeg->data, frame_mjpeg->actual_bytes, mStillFd);
+			// a broken frame, try the next one
+			if (LIKELY(bytes >= 0)) {
+				mStillResult = bytes;
+				mStillFd = -1;
+				pthread_cond_broadcast(&still_sync);
+			}
+		}
+	}
+	pthread_mutex_unlock(&still_mutex);
+}
+
+void UVCPreview::cancel_still(int result) {
+	pthread_mutex_lock(&still_mutex);
+	{
+		if (mStillFd >= 0) {
+			mStillResult = result;
+			mStillFd = -1;
+			pthread_cond_broadcast(&still_sync);
+		}
+	}
+	pthread_mutex_unlock(&still_mutex);
 }
 
 void *UVCPreview::preview_thread_func(void *vptr_args) {
@@ -532,7 +844,12 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 	uvc_frame_t *frame = NULL;
 	uvc_frame_t *frame_mjpeg = NULL;
 	uvc_error_t result = uvc_start_streaming_bandwidth(
-		mDeviceHandle, ctrl, uvc_preview_frame_callback, (void *)this, requestBandwidth, 0);
+		mDeviceHandle, ctrl, uvc_preview_frame_callback, (void *)this, requestBandwidth,
+		UVC_STREAM_FLAG_HANDOFF | (mAdaptiveTransfers ? UVC_STREAM_FLAG_ADAPTIVE : 0));
+	pthread_mutex_lock(&preview_mutex);
+	mStreaming = !result;
+	pthread_mutex_unlock(&preview_mutex);
+	mPipelineStats.reset();
     // jiangdg:fix stopview crash
     // use mHasCapturing flag confirm capture_thread was be created
     mHasCapturing = false;
@@ -545,19 +862,40 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 #if LOCAL_DEBUG
 		LOGI("Streaming...");
 #endif
-		if (frameMode) {
+		if (frameMode && (mDecodeWorkers > 1)) {
+			// MJPEG mode, decode on worker threads and draw/capture in sequence order
+			static const mjpeg_decoder_callbacks_t callbacks = {
+				decoder_pool_decode, decoder_pool_on_decoded, decoder_pool_release
+			};
+			mDecoderPool = new MJpegDecoderPool(this, &callbacks);
+			if (UNLIKELY(mDecoderPool->start(mDecodeWorkers))) {
+				SAFE_DELETE(mDecoderPool);
+			}
+		}
+		if (frameMode && mDecoderPool) {
+			for ( ; LIKELY(isRunning()) ; ) {
+				frame_mjpeg = waitPreviewFrame();
+				if (LIKELY(frame_mjpeg)) {
+					if (UNLIKELY(mStillFd >= 0)) {
+						save_still(frame_mjpeg);
+					}
+					mDecoderPool->submit(frame_mjpeg);
+				}
+			}
+			mDecoderPool->stop();
+			SAFE_DELETE(mDecoderPool);
+		} else if (frameMode) {
 			// MJPEG mode
 			for ( ; LIKELY(isRunning()) ; ) {
 				frame_mjpeg = waitPreviewFrame();
 				if (LIKELY(frame_mjpeg)) {
-					frame = get_frame(frame_mjpeg->width * frame_mjpeg->height * 2);
-					result = uvc_mjpeg2yuyv(frame_mjpeg, frame);   // MJPEG => yuyv
-					recycle_frame(frame_mjpeg);
-					if (LIKELY(!result)) {
+					if (UNLIKELY(mStillFd >= 0)) {
+						save_still(frame_mjpeg);
+					}
+					frame = decode_mjpeg(frame_mjpeg);
+					if (LIKELY(frame)) {
 						frame = draw_preview_one(frame, &mPreviewWindow, uvc_any2rgbx, 4);
 						addCaptureFrame(frame);
-					} else {
-						recycle_frame(frame);
 					}
 				}
 			}
@@ -571,10 +909,16 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 				}
 			}
 		}
-		pthread_cond_signal(&capture_sync);
+		mCaptureFrames.wakeup();
+		cancel_still(UVC_ERROR_INTERRUPTED);
 #if LOCAL_DEBUG
 		LOGI("preview_thread_func:wait for all callbacks complete");
 #endif
+		// keep the final counters, uvc_stop_streaming frees the stream
+		pthread_mutex_lock(&preview_mutex);
+		uvc_get_stream_stats(mDeviceHandle, &mStreamStats);
+		mStreaming = false;
+		pthread_mutex_unlock(&preview_mutex);
 		uvc_stop_streaming(mDeviceHandle);
 #if LOCAL_DEBUG
 		LOGI("Streaming finished");
@@ -586,6 +930,48 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 	EXIT();
 }
 
+/**
+ * decode MJPEG frame to the format mjpeg_decode_format selects, the MJPEG frame is recycled
+ * @return decoded frame or NULL on failure
+ */
+uvc_frame_t *UVCPreview::decode_mjpeg(uvc_frame_t *frame_mjpeg) {
+	uvc_error_t result;
+	uvc_frame_t *frame = get_frame(frame_mjpeg->width * frame_mjpeg->height * 2);
+	if (UNLIKELY(!frame)) {
+		recycle_frame(frame_mjpeg);
+		return NULL;
+	}
+	const uvc_frame_format decode_format = mjpeg_decode_format();
+	if (decode_format != UVC_FRAME_FORMAT_YUYV) {
+		result = uvc_mjpeg2yuv420(frame_mjpeg, frame, decode_format);   // MJPEG => NV21/NV12/I420
+	} else {
+		result = uvc_mjpeg2yuyv(frame_mjpeg, frame);   // MJPEG => yuyv
+	}
+	recycle_frame(frame_mjpeg);
+	if (UNLIKELY(result)) {
+		recycle_frame(frame);
+		return NULL;
+	}
+	uvc_frame_set_timestamp(frame, UVC_FRAME_STAGE_DECODED);
+	return frame;
+}
+
+// called on MJpegDecoderPool worker threads
+uvc_frame_t *UVCPreview::decoder_pool_decode(void *owner, uvc_frame_t *frame_mjpeg) {
+	return reinterpret_cast<UVCPreview *>(owner)->decode_mjpeg(frame_mjpeg);
+}
+
+// called in sequence order, one frame at a time
+void UVCPreview::decoder_pool_on_decoded(void *owner, uvc_frame_t *frame) {
+	UVCPreview *preview = reinterpret_cast<UVCPreview *>(owner);
+	frame = preview->draw_preview_one(frame, &preview->mPreviewWindow, uvc_any2rgbx, 4);
+	preview->addCaptureFrame(frame);
+}
+
+void UVCPreview::decoder_pool_release(void *owner, uvc_frame_t *frame) {
+	reinterpret_cast<UVCPreview *>(owner)->recycle_frame(frame);
+}
+
 static void copyFrame(const uint8_t *src, uint8_t *dest, const int width, int height, const int stride_src, const int stride_dest) {
 	const int h8 = height % 8;
 	for (int i = 0; i < h8; i++) {
@@ -690,7 +1076,7 @@ int UVCPreview::setCaptureDisplay(ANativeWindow *capture_window) {
 		if (isRunning() && isCapturing()) {
 			mIsCapturing = false;
 			if (mCaptureWindow) {
-				pthread_cond_signal(&capture_sync);
+				mCaptureFrames.wakeup();
 				pthread_cond_wait(&capture_sync, &capture_mutex);	// wait finishing capturing
 			}
 		}
@@ -720,55 +1106,27 @@ int UVCPreview::setCaptureDisplay(ANativeWindow *capture_window) {
 }
 
 void UVCPreview::addCaptureFrame(uvc_frame_t *frame) {
-	pthread_mutex_lock(&capture_mutex);
-	if (LIKELY(isRunning())) {
-		// keep only latest one
-		if (captureQueu) {
-			recycle_frame(captureQueu);
-		}
-		captureQueu = frame;
-		pthread_cond_broadcast(&capture_sync);
-	} else {
+	uvc_frame_t *evicted = NULL;
+	// keep only latest one
+	if (UNLIKELY(!isRunning() || !mCaptureFrames.push(frame, &evicted))) {
 		// Add this can solve native leak
 		recycle_frame(frame);
 	}
-	pthread_mutex_unlock(&capture_mutex);
+	if (evicted) {
+		recycle_frame(evicted);
+	}
 }
 
 /**
  * get frame data for capturing, if not exist, block and wait
  */
 uvc_frame_t *UVCPreview::waitCaptureFrame() {
-	uvc_frame_t *frame = NULL;
-	pthread_mutex_lock(&capture_mutex);
-	{
-		if (!captureQueu) {
-			 //  这里有阻塞的情况，替换成 pthread_cond_timedwait 方法，设置相对的超时时间为 1s
-             //pthread_cond_wait(&capture_sync, &capture_mutex);
-            /*struct timespec tv;
-            clock_gettime(CLOCK_MONOTONIC, &tv);
-            tv.tv_sec += 1;
-            pthread_cond_timedwait(&capture_sync, &capture_mutex,&tv);*/
-                ts.tv_sec = 0;
-                ts.tv_nsec = 0;
-
-            #if _POSIX_TIMERS > 0
-                      clock_gettime(CLOCK_REALTIME, &ts);
-            #else
-                      gettimeofday(&tv, NULL);
-                      ts.tv_sec = tv.tv_sec;
-                      ts.tv_nsec = tv.tv_usec * 1000;
-            #endif
-                      ts.tv_sec += 1;
-                      ts.tv_nsec += 0;
-            pthread_cond_timedwait(&capture_sync, &capture_mutex,&ts);
-		}
-		if (LIKELY(isRunning() && captureQueu)) {
-			frame = captureQueu;
-			captureQueu = NULL;
-		}
+	// wait at most 1 sec so that the capture thread notices stop/callback changes
+	uvc_frame_t *frame = mCaptureFrames.wait(CAPTURE_WAIT_MS);
+	if (UNLIKELY(frame && !isRunning())) {
+		recycle_frame(frame);
+		frame = NULL;
 	}
-	pthread_mutex_unlock(&capture_mutex);
 	return frame;
 }
 
@@ -776,13 +1134,10 @@ uvc_frame_t *UVCPreview::waitCaptureFrame() {
  * clear drame data for capturing
  */
 void UVCPreview::clearCaptureFrame() {
-	pthread_mutex_lock(&capture_mutex);
-	{
-		if (captureQueu)
-			recycle_frame(captureQueu);
-		captureQueu = NULL;
+	uvc_frame_t *frame;
+	for ( ; (frame = mCaptureFrames.pop()) ; ) {
+		recycle_frame(frame);
 	}
-	pthread_mutex_unlock(&capture_mutex);
 }
 
 //======================================================================
@@ -826,7 +1181,10 @@ void UVCPreview::do_capture(JNIEnv *env) {
 		} else {
 			do_capture_idle_loop(env);
 		}
+		// setFrameCallback/setCaptureDisplay hold capture_mutex until they start waiting
+		pthread_mutex_lock(&capture_mutex);
 		pthread_cond_broadcast(&capture_sync);
+		pthread_mutex_unlock(&capture_mutex);
 	}	// end of for (; isRunning() ;)
 	EXIT();
 }
@@ -854,7 +1212,7 @@ void UVCPreview::do_capture_surface(JNIEnv *env) {
 	for (; isRunning() && isCapturing() ;) {
 		frame = waitCaptureFrame();
 		if (LIKELY(frame)) {
-			// frame data is always YUYV format.
+			// frame data is YUYV, or NV21/NV12/I420 when decoded from MJPEG.
 			if LIKELY(isCapturing()) {
 				if (UNLIKELY(!converted)) {
 					converted = get_frame(previewBytes);
@@ -890,11 +1248,16 @@ void UVCPreview::do_capture_callback(JNIEnv *env, uvc_frame_t *frame) {
 
 	if (LIKELY(frame)) {
 		uvc_frame_t *callback_frame = frame;
+		// keep a copy, a lent frame may come back and be reused while onFrameBuffer runs
+		uint64_t timestamps[UVC_FRAME_STAGE_NUM];
+		memcpy(timestamps, frame->timestamps, sizeof(timestamps));
 		if (mFrameCallbackObj) {
-			if (mFrameCallbackFunc) {
+			// MJPEG frames may already be decoded to the callback format
+			if (mFrameCallbackFunc && (frame->frame_format != mCallbackFrameFormat)) {
 				callback_frame = get_frame(callbackPixelBytes);
 				if (LIKELY(callback_frame)) {
 					int b = mFrameCallbackFunc(frame, callback_frame);
+					memcpy(callback_frame->timestamps, timestamps, sizeof(timestamps));
 					recycle_frame(frame);
 					if (UNLIKELY(b)) {
 						LOGW("failed to convert for callback frame");
@@ -906,15 +1269,37 @@ void UVCPreview::do_capture_callback(JNIEnv *env, uvc_frame_t *frame) {
 					goto SKIP;
 				}
 			}
-			jobject buf = env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
-			if (iframecallback_fields.onFrame) {
-				env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
+			timestamps[UVC_FRAME_STAGE_CONVERTED] = uvc_timestamp_ns();
+			if (mLendFrames) {
+				// zero-copy mode, Java owns the frame until IFrameBufferCallback releases it
+				if (UNLIKELY(!iframecallback_fields.onFrameBuffer || !lend_frame(callback_frame))) {
+#if LOCAL_DEBUG
+					LOGW("too many frames held by Java, drop this one");
+#endif
+					goto SKIP;
+				}
+				jobject buf = env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
+				env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrameBuffer,
+					buf, reinterpret_cast<jlong>(callback_frame));
+				timestamps[UVC_FRAME_STAGE_DELIVERED] = uvc_timestamp_ns();
+				env->ExceptionClear();
+				env->DeleteLocalRef(buf);
+				callback_frame = NULL;
+			} else {
+				jobject buf = env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
+				if (iframecallback_fields.onFrame) {
+					env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
+					timestamps[UVC_FRAME_STAGE_DELIVERED] = uvc_timestamp_ns();
+				}
+				env->ExceptionClear();
+				env->DeleteLocalRef(buf);
 			}
-			env->ExceptionClear();
-			env->DeleteLocalRef(buf);
 		}
  SKIP:
-		recycle_frame(callback_frame);
+		mPipelineStats.record(timestamps);
+		if (callback_frame) {
+			recycle_frame(callback_frame);
+		}
 	}
 	EXIT();
 }
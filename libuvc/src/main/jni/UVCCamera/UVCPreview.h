@@ -29,6 +29,9 @@
 #include <pthread.h>
 #include <android/native_window.h>
 #include "objectarray.h"
+#include "MJpegDecoderPool.h"
+#include "FrameRing.h"
+#include "PipelineStats.h"
 
 #pragma interface
 
@@ -38,6 +41,8 @@
 #define DEFAULT_PREVIEW_FPS_MAX 30
 #define DEFAULT_PREVIEW_MODE 0
 #define DEFAULT_BANDWIDTH 1.0f
+#define DEFAULT_FRAME_QUEUE_SIZE 4
+#define MAX_FRAME_QUEUE_SIZE 32
 
 typedef uvc_error_t (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
 
@@ -47,10 +52,12 @@ typedef uvc_error_t (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
 #define PIXEL_FORMAT_RGBX 3
 #define PIXEL_FORMAT_YUV20SP 4
 #define PIXEL_FORMAT_NV21 5		// YVU420SemiPlanar
+#define PIXEL_FORMAT_I420 6		// YUV420Planar
 
 // for callback to Java object
 typedef struct {
 	jmethodID onFrame;
+	jmethodID onFrameBuffer;
 } Fields_iframecallback;
 
 class UVCPreview {
@@ -66,8 +73,7 @@ private:
 	size_t frameBytes;
 	pthread_t preview_thread;
 	pthread_mutex_t preview_mutex;
-	pthread_cond_t preview_sync;
-	ObjectArray<uvc_frame_t *> previewFrames;
+	FrameRing mPreviewFrames;
 	int previewFormat;
 	size_t previewBytes;
 //
@@ -79,19 +85,42 @@ private:
 	pthread_cond_t capture_sync;
 	// 声明时间的 attr
     //pthread_condattr_t capture_clock_attr;
-	uvc_frame_t *captureQueu;			// keep latest frame
+	FrameRing mCaptureFrames;			// keep latest frame
 	jobject mFrameCallbackObj;
 	convFunc_t mFrameCallbackFunc;
 	Fields_iframecallback iframecallback_fields;
 	int mPixelFormat;
 	size_t callbackPixelBytes;
+	// frame format delivered to IFrameCallback, frames already in this format are passed as is
+	volatile uvc_frame_format mCallbackFrameFormat;
+	// frames lent to Java via IFrameBufferCallback, owned by Java until releaseFrameBuffer
+	bool mLendFrames;
+	ObjectArray<uvc_frame_t *> mLentFrames;
+	// MJPEG frames are decoded on this many threads, 1 decodes on the preview thread
+	int mDecodeWorkers;
+	MJpegDecoderPool *mDecoderPool;
+	// start the stream with UVC_STREAM_FLAG_ADAPTIVE
+	bool mAdaptiveTransfers;
+	// stats of the last stream, the live stream is read while mStreaming(guarded by preview_mutex)
+	bool mStreaming;
+	uvc_stream_stats_t mStreamStats;
+	// latency of each frame stage, recorded on the capture thread
+	PipelineStats mPipelineStats;
+	// still capture of MJPEG frames, the next frame is written to mStillFd as it is
+	pthread_mutex_t still_mutex;
+	pthread_cond_t still_sync;
+	volatile int mStillFd;
+	int mStillResult;
 // improve performance by reducing memory allocation
-	pthread_mutex_t pool_mutex;
-	ObjectArray<uvc_frame_t *> mFramePool;
+	FramePool mFramePool;
+	pthread_mutex_t pool_mutex;			// for mLentFrames
 	uvc_frame_t *get_frame(size_t data_bytes);
 	void recycle_frame(uvc_frame_t *frame);
 	void init_pool(size_t data_bytes);
+	void update_pool_capacity();
 	void clear_pool();
+	bool lend_frame(uvc_frame_t *frame);
+	void orphan_lent_frames();
 //
 	void clearDisplay();
 	static void uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args);
@@ -102,6 +131,12 @@ private:
 	int prepare_preview(uvc_stream_ctrl_t *ctrl);
 	void do_preview(uvc_stream_ctrl_t *ctrl);
 	uvc_frame_t *draw_preview_one(uvc_frame_t *frame, ANativeWindow **window, convFunc_t func, int pixelBytes);
+	uvc_frame_t *decode_mjpeg(uvc_frame_t *frame_mjpeg);
+	static uvc_frame_t *decoder_pool_decode(void *owner, uvc_frame_t *frame_mjpeg);
+	static void decoder_pool_on_decoded(void *owner, uvc_frame_t *frame);
+	static void decoder_pool_release(void *owner, uvc_frame_t *frame);
+	void save_still(uvc_frame_t *frame_mjpeg);
+	void cancel_still(int result);
 //
 	void addCaptureFrame(uvc_frame_t *frame);
 	uvc_frame_t *waitCaptureFrame();
@@ -112,6 +147,7 @@ private:
 	void do_capture_idle_loop(JNIEnv *env);
 	void do_capture_callback(JNIEnv *env, uvc_frame_t *frame);
 	void callbackPixelFormatChanged();
+	uvc_frame_format mjpeg_decode_format();
 public:
 	UVCPreview(uvc_device_handle_t *devh);
 	~UVCPreview();
@@ -119,7 +155,16 @@ public:
 	inline const bool isRunning() const;
 	int setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth = 1.0f);
 	int setPreviewDisplay(ANativeWindow *preview_window);
-	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, bool lend_frames = false);
+	int releaseFrameBuffer(jlong frame_id);
+	static int releaseOrphanFrame(jlong frame_id);
+	jlong getFrameTimestamp(jlong frame_id);
+	int setDecodeWorkers(int num_workers);
+	int setFrameQueue(int capacity, int policy);
+	int setAdaptiveTransfers(bool adaptive);
+	int getStreamStats(uvc_stream_stats_t *stats);
+	int getPipelineStats(int64_t *values, bool reset);
+	int captureStill(int fd, int timeout_ms);
 	int startPreview();
 	int stopPreview();
 	inline const bool isCapturing() const;
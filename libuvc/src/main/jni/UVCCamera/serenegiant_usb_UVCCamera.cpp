@@ -276,6 +276,155 @@ static jint nativeSetFrameCallback(JNIEnv *env, jobject thiz,
 	RETURN(result, jint);
 }
 
+static jint nativeSetFrameBufferCallback(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject jIFrameBufferCallback, jint pixel_format) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		jobject frame_callback_obj = env->NewGlobalRef(jIFrameBufferCallback);
+		result = camera->setFrameCallback(env, frame_callback_obj, pixel_format, true);
+	}
+	RETURN(result, jint);
+}
+
+// give the frame lent through IFrameBufferCallback back to the frame pool
+// id_camera is 0 when the camera was destroyed while Java held the frame
+static jint nativeReleaseFrameBuffer(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jlong frame_id) {
+
+	jint result = JNI_ERR;
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->releaseFrameBuffer(frame_id);
+	} else {
+		result = UVCPreview::releaseOrphanFrame(frame_id);
+	}
+	return result;
+}
+
+// capture time of the frame lent through IFrameBufferCallback, System.nanoTime base
+static jlong nativeGetFrameTimestamp(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jlong frame_id) {
+
+	jlong result = 0;
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->getFrameTimestamp(frame_id);
+	}
+	return result;
+}
+
+static jint nativeSetDecodeWorkers(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint num_workers) {
+
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		return camera->setDecodeWorkers(num_workers);
+	}
+	RETURN(JNI_ERR, jint);
+}
+
+static jint nativeSetFrameQueue(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint capacity, jint policy) {
+
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		return camera->setFrameQueue(capacity, policy);
+	}
+	RETURN(JNI_ERR, jint);
+}
+
+static jint nativeSetAdaptiveTransfers(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jboolean adaptive) {
+
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		return camera->setAdaptiveTransfers(adaptive);
+	}
+	RETURN(JNI_ERR, jint);
+}
+
+// same order as UVCStreamStats
+#define STREAM_STATS_NUM 14
+
+static jint nativeGetStreamStats(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jintArray stats_array) {
+
+	ENTER();
+	jint result = JNI_ERR;
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && stats_array && (env->GetArrayLength(stats_array) >= STREAM_STATS_NUM))) {
+		uvc_stream_stats_t stats;
+		result = camera->getStreamStats(&stats);
+		if (LIKELY(!result)) {
+			const jint values[STREAM_STATS_NUM] = {
+				stats.adaptive, stats.isochronous,
+				(jint)stats.packets_per_transfer, (jint)stats.bytes_per_packet,
+				(jint)stats.num_transfers, (jint)stats.active_transfers, (jint)stats.frame_buffer_bytes,
+				(jint)stats.frames, (jint)stats.incomplete_frames, (jint)stats.dropped_frames,
+				(jint)stats.packet_errors, (jint)stats.transfer_errors,
+				(jint)stats.grow_count, (jint)stats.shrink_count,
+			};
+			env->SetIntArrayRegion(stats_array, 0, STREAM_STATS_NUM, values);
+		}
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeGetPipelineStats(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jlongArray stats_array, jboolean reset) {
+
+	ENTER();
+	jint result = JNI_ERR;
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	const int num = PIPELINE_STAGE_NUM * PIPELINE_STATS_VALUES;
+	if (LIKELY(camera && stats_array && (env->GetArrayLength(stats_array) >= num))) {
+		int64_t values[num];
+		result = camera->getPipelineStats(values, reset);
+		if (LIKELY(!result)) {
+			env->SetLongArrayRegion(stats_array, 0, num, reinterpret_cast<const jlong *>(values));
+		}
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeCaptureStill(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint fd, jint timeout_ms) {
+
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		return camera->captureStill(fd, timeout_ms);
+	}
+	RETURN(JNI_ERR, jint);
+}
+
+static jint nativeCompressToJpeg(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jbyteArray nv21_array, jint width, jint height, jint quality, jint subsampling, jint fd) {
+
+	ENTER();
+	jint result = JNI_ERR;
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && nv21_array && (width > 0) && (height > 0)
+		&& (env->GetArrayLength(nv21_array) >= width * height * 3 / 2))) {
+		// pinned only while compressing, the file is written after releasing it
+		void *nv21 = env->GetPrimitiveArrayCritical(nv21_array, NULL);
+		if (LIKELY(nv21)) {
+			result = camera->compressSnapshot(reinterpret_cast<const uint8_t *>(nv21), width, height, quality, subsampling);
+			env->ReleasePrimitiveArrayCritical(nv21_array, nv21, JNI_ABORT);
+			if (LIKELY(result > 0)) {
+				result = camera->writeSnapshot(fd);
+			}
+		}
+	}
+	RETURN(result, jint);
+}
+
 static jint nativeSetCaptureDisplay(JNIEnv *env, jobject thiz,
 	ID_TYPE id_camera, jobject jSurface) {
 
@@ -2041,6 +2190,16 @@ static JNINativeMethod methods[] = {
 	{ "nativeStopPreview",				"(J)I", (void *) nativeStopPreview },
 	{ "nativeSetPreviewDisplay",		"(JLandroid/view/Surface;)I", (void *) nativeSetPreviewDisplay },
 	{ "nativeSetFrameCallback",			"(JLcom/jiangdg/uvc/IFrameCallback;I)I", (void *) nativeSetFrameCallback },
+	{ "nativeSetFrameBufferCallback",	"(JLcom/jiangdg/uvc/IFrameBufferCallback;I)I", (void *) nativeSetFrameBufferCallback },
+	{ "nativeReleaseFrameBuffer",		"(JJ)I", (void *) nativeReleaseFrameBuffer },
+	{ "nativeGetFrameTimestamp",		"(JJ)J", (void *) nativeGetFrameTimestamp },
+	{ "nativeSetDecodeWorkers",			"(JI)I", (void *) nativeSetDecodeWorkers },
+	{ "nativeSetFrameQueue",			"(JII)I", (void *) nativeSetFrameQueue },
+	{ "nativeSetAdaptiveTransfers",		"(JZ)I", (void *) nativeSetAdaptiveTransfers },
+	{ "nativeGetStreamStats",			"(J[I)I", (void *) nativeGetStreamStats },
+	{ "nativeGetPipelineStats",			"(J[JZ)I", (void *) nativeGetPipelineStats },
+	{ "nativeCaptureStill",				"(JII)I", (void *) nativeCaptureStill },
+	{ "nativeCompressToJpeg",			"(J[BIIIII)I", (void *) nativeCompressToJpeg },
 
 	{ "nativeSetCaptureDisplay",		"(JLandroid/view/Surface;)I", (void *) nativeSetCaptureDisplay },
 
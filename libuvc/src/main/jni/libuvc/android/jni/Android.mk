@@ -56,6 +56,10 @@ LOCAL_CFLAGS += -DUVC_DEBUGGING
 LOCAL_EXPORT_LDLIBS := -llog
 
 LOCAL_ARM_MODE := arm
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+# frame-simd.c
+LOCAL_ARM_NEON := true
+endif
 
 #LOCAL_STATIC_LIBRARIES += jpeg-turbo1500_static
 LOCAL_SHARED_LIBRARIES += jpeg-turbo1500
@@ -66,6 +70,7 @@ LOCAL_SRC_FILES := \
 	src/device.c \
 	src/diag.c \
 	src/frame.c \
+	src/frame-simd.c \
 	src/frame-mjpeg.c \
 	src/init.c \
 	src/stream.c
@@ -105,6 +105,12 @@ enum uvc_frame_format {
 	UVC_FRAME_FORMAT_MJPEG,
 	UVC_FRAME_FORMAT_GRAY8,
 	UVC_FRAME_FORMAT_BY8,
+	/** YUV420 semi-planar, Y plane followed by interleaved VU (NV21/YVU420SemiPlanar) */
+	UVC_FRAME_FORMAT_NV21,
+	/** YUV420 semi-planar, Y plane followed by interleaved UV (NV12/YUV420SemiPlanar) */
+	UVC_FRAME_FORMAT_NV12,
+	/** YUV420 planar, Y plane followed by U and V planes (I420/YUV420Planar) */
+	UVC_FRAME_FORMAT_I420,
 	/** Number of formats understood */
 	UVC_FRAME_FORMAT_COUNT,
 };
@@ -449,6 +455,25 @@ typedef struct uvc_device_descriptor {
 	const char *product;
 } uvc_device_descriptor_t;
 
+/** Stages of the frame pipeline recorded in uvc_frame_t.timestamps
+ * @ingroup streaming
+ */
+enum uvc_frame_stage {
+	/** first payload of the frame received in _uvc_process_payload */
+	UVC_FRAME_STAGE_FIRST_PAYLOAD = 0,
+	/** frame completed in _uvc_swap_buffers */
+	UVC_FRAME_STAGE_COMPLETE,
+	/** taken from the queue by the preview thread */
+	UVC_FRAME_STAGE_DEQUEUED,
+	/** MJPEG frame decoded */
+	UVC_FRAME_STAGE_DECODED,
+	/** converted to the pixel format of the frame callback */
+	UVC_FRAME_STAGE_CONVERTED,
+	/** frame callback returned */
+	UVC_FRAME_STAGE_DELIVERED,
+	UVC_FRAME_STAGE_NUM
+};
+
 /** An image frame received from the UVC device
  * @ingroup streaming
  */
@@ -482,6 +507,8 @@ typedef struct uvc_frame {
 	 * Set this field to zero if you are supplying the buffer.
 	 */
 	uint8_t library_owns_data;
+	/** CLOCK_MONOTONIC nanoseconds when the frame passed each uvc_frame_stage, 0 if it did not */
+	uint64_t timestamps[UVC_FRAME_STAGE_NUM];
 } uvc_frame_t;
 
 /** A callback function to handle incoming assembled UVC frames
@@ -580,6 +607,50 @@ uvc_error_t uvc_probe_stream_ctrl(uvc_device_handle_t *devh,
 uvc_error_t uvc_get_frame_desc(uvc_device_handle_t *devh,
 		uvc_stream_ctrl_t *ctrl, uvc_frame_desc_t **desc);
 
+/** Stream setup flags
+ * @ingroup streaming
+ * UVC_STREAM_FLAG_HANDOFF: the frame passed to uvc_frame_callback_t carries the receive buffer itself
+ * instead of a copy, take it with uvc_swap_frame_data to avoid copying the frame again.
+ */
+#define UVC_STREAM_FLAG_HANDOFF 0x02	// XXX the lower bit is reserved
+/** UVC_STREAM_FLAG_ADAPTIVE: choose the number and size of transfers from the frame size, frame interval
+ * and endpoint instead of the fixed LIBUVC_NUM_TRANSFER_BUFS x 32 packets, and keep more or less transfers
+ * in flight depending on how many frames arrive incomplete.
+ */
+#define UVC_STREAM_FLAG_ADAPTIVE 0x04
+
+/** Transfer configuration and frame counters of a stream
+ * @ingroup streaming
+ */
+typedef struct uvc_stream_stats {
+	/** 1 if the stream runs with UVC_STREAM_FLAG_ADAPTIVE */
+	uint8_t adaptive;
+	/** 1 for isochronous, 0 for bulk transfer */
+	uint8_t isochronous;
+	/** packets per isochronous transfer, 0 for bulk transfer */
+	uint32_t packets_per_transfer;
+	/** bytes per packet(isochronous) or per transfer(bulk) */
+	uint32_t bytes_per_packet;
+	/** allocated transfers */
+	uint32_t num_transfers;
+	/** transfers currently kept in flight */
+	uint32_t active_transfers;
+	/** size of the frame buffers */
+	uint32_t frame_buffer_bytes;
+	/** frames received */
+	uint32_t frames;
+	/** frames received with errors or missing data */
+	uint32_t incomplete_frames;
+	/** frames overwritten before the user callback took them */
+	uint32_t dropped_frames;
+	/** isochronous packets with error status */
+	uint32_t packet_errors;
+	/** transfers completed with timeout/stall/overflow */
+	uint32_t transfer_errors;
+	/** times active_transfers was raised/lowered */
+	uint32_t grow_count, shrink_count;
+} uvc_stream_stats_t;
+
 uvc_error_t uvc_start_streaming(uvc_device_handle_t *devh,
 		uvc_stream_ctrl_t *ctrl, uvc_frame_callback_t *cb, void *user_ptr,
 		uint8_t flags);
@@ -588,6 +659,9 @@ uvc_error_t uvc_start_streaming_bandwidth(uvc_device_handle_t *devh,
 		float bandwidth,
 		uint8_t flags);	// XXX added saki
 
+uvc_error_t uvc_stream_get_stats(uvc_stream_handle_t *strmh, uvc_stream_stats_t *stats);
+uvc_error_t uvc_get_stream_stats(uvc_device_handle_t *devh, uvc_stream_stats_t *stats);
+
 uvc_error_t uvc_start_iso_streaming(uvc_device_handle_t *devh,
 		uvc_stream_ctrl_t *ctrl, uvc_frame_callback_t *cb, void *user_ptr);
 
@@ -786,6 +860,19 @@ uvc_frame_t *uvc_allocate_frame(size_t data_bytes);
 void uvc_free_frame(uvc_frame_t *frame);
 
 uvc_error_t uvc_duplicate_frame(uvc_frame_t *in, uvc_frame_t *out);
+uvc_error_t uvc_swap_frame_data(uvc_frame_t *in, uvc_frame_t *out);
+uint64_t uvc_timestamp_ns(void);
+void uvc_frame_set_timestamp(uvc_frame_t *frame, enum uvc_frame_stage stage);
+//----------------------------------------------------------------------
+/** instruction set used by uvc_yuyv2rgbx, uvc_yuv4202rgbx, uvc_any2rgbx, uvc_yuyv2yuv420SP and uvc_yuyv2iyuv420SP */
+enum uvc_simd_level {
+	UVC_SIMD_NONE = 0,	// scalar C, the reference implementation
+	UVC_SIMD_SSE2,
+	UVC_SIMD_AVX2,
+	UVC_SIMD_NEON,
+};
+int uvc_get_simd_level(void);
+int uvc_set_simd_level(int level);
 //----------------------------------------------------------------------
 uvc_error_t uvc_yuyv2rgb(uvc_frame_t *in, uvc_frame_t *out);
 uvc_error_t uvc_uyvy2rgb(uvc_frame_t *in, uvc_frame_t *out);
@@ -801,6 +888,10 @@ uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_mjpeg2rgb565(uvc_frame_t *in, uvc_frame_t *out);	// XXX
 uvc_error_t uvc_mjpeg2rgbx(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out);		// XXX
+uvc_error_t uvc_mjpeg2yuv420(uvc_frame_t *in, uvc_frame_t *out, enum uvc_frame_format out_format);	// XXX
+uvc_error_t uvc_mjpeg2nv21(uvc_frame_t *in, uvc_frame_t *out);		// XXX
+uvc_error_t uvc_mjpeg2nv12(uvc_frame_t *in, uvc_frame_t *out);		// XXX
+uvc_error_t uvc_mjpeg2i420(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 #endif
 
 uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out);		// XXX
@@ -811,6 +902,7 @@ uvc_error_t uvc_any2rgb565(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_rgb2rgbx(uvc_frame_t *in, uvc_frame_t *out);		// XXX
+uvc_error_t uvc_yuv4202rgbx(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_any2rgbx(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 
 uvc_error_t uvc_yuyv2yuv420P(uvc_frame_t *in, uvc_frame_t *out);	// XXX
@@ -821,6 +913,9 @@ uvc_error_t uvc_yuyv2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out);	// XXX
 uvc_error_t uvc_yuyv2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out);	// XXX
 uvc_error_t uvc_any2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out);	// XXX
 
+uvc_error_t uvc_yuyv2i420(uvc_frame_t *in, uvc_frame_t *out);		// XXX
+uvc_error_t uvc_any2i420(uvc_frame_t *in, uvc_frame_t *out);		// XXX
+
 uvc_error_t uvc_any2yuyv(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 
 uvc_error_t uvc_ensure_frame_size(uvc_frame_t *frame, size_t need_bytes); // XXX
@@ -248,8 +248,14 @@ typedef struct uvc_device_info {
   and then allow the user to change the number of buffers as required.
  */
 #define LIBUVC_NUM_TRANSFER_BUFS 10
+/* limits for UVC_STREAM_FLAG_ADAPTIVE */
+#define LIBUVC_MIN_TRANSFER_BUFS 2
+#define LIBUVC_MAX_TRANSFER_BUFS 32
+#define LIBUVC_MAX_PACKETS_PER_TRANSFER 128
 
 #define LIBUVC_XFER_BUF_SIZE	( 16 * 1024 * 1024 )
+/* spare frame buffers kept for UVC_STREAM_FLAG_HANDOFF */
+#define LIBUVC_NUM_HANDOFF_BUFS 4
 
 struct uvc_stream_handle {
   struct uvc_device_handle *devh;
@@ -269,16 +275,34 @@ struct uvc_stream_handle {
   uint32_t pts, hold_pts;
   uint32_t last_scr, hold_last_scr;
   size_t got_bytes, hold_bytes;
+  /* uvc_timestamp_ns when the first payload of the frame arrived and when the frame completed */
+  uint64_t first_payload_ns, hold_first_payload_ns, hold_complete_ns;
   size_t size_buf;	// XXX add for boundary check
   uint8_t *outbuf, *holdbuf;
+  /* UVC_STREAM_FLAG_HANDOFF, holdbuf is lent to the user callback instead of copied,
+   * spare buffers to continue receiving with are kept in handoff_bufs */
+  uint8_t handoff;
+  uint8_t *handoff_bufs[LIBUVC_NUM_HANDOFF_BUFS];
+  int num_handoff_bufs;
   pthread_mutex_t cb_mutex;
   pthread_cond_t cb_cond;
   pthread_t cb_thread;
   uint32_t last_polled_seq;
   uvc_frame_callback_t *user_cb;
   void *user_ptr;
-  struct libusb_transfer *transfers[LIBUVC_NUM_TRANSFER_BUFS];
-  uint8_t *transfer_bufs[LIBUVC_NUM_TRANSFER_BUFS];
+  struct libusb_transfer *transfers[LIBUVC_MAX_TRANSFER_BUFS];
+  uint8_t *transfer_bufs[LIBUVC_MAX_TRANSFER_BUFS];
+  /* transfers[0..num_transfers) are allocated, active_transfers of them are kept in flight
+   * and the others are parked. UVC_STREAM_FLAG_ADAPTIVE changes active_transfers at runtime */
+  uint8_t adaptive;
+  int num_transfers, active_transfers, min_active_transfers, in_flight;
+  uint8_t parked[LIBUVC_MAX_TRANSFER_BUFS];
+  /* bytes of a complete uncompressed frame, 0 for compressed formats */
+  size_t expected_frame_bytes;
+  uint32_t window_frames, window_incomplete, clean_windows;
+  /* last sequence passed to the user callback */
+  uint32_t cb_seq;
+  uvc_stream_stats_t stats;
   struct uvc_frame frame;
   enum uvc_frame_format frame_format;
 };
@@ -327,6 +351,23 @@ uvc_error_t uvc_query_stream_ctrl(
     uint8_t probe,
     enum uvc_req_code req);
 
+/** row kernels of the color converters in frame.c, selected at runtime from the CPU features */
+typedef struct uvc_convert_kernels {
+  const char *name;
+  enum uvc_simd_level level;
+  /** YUYV => RGBX8888, pixels must be a multiple of 8 */
+  void (*yuyv2rgbx)(const uint8_t *yuyv, uint8_t *rgbx, int pixels);
+  /** one row of NV21/NV12/I420 => RGBX8888, c_step is 2 for interleaved chroma and 1 for planar chroma */
+  void (*yuv4202rgbx)(const uint8_t *py, const uint8_t *pu, const uint8_t *pv, int c_step,
+    uint8_t *rgbx, int width);
+  /** two rows of YUYV => NV12(swap_uv=0)/NV21(swap_uv=1), chroma is taken from the first row */
+  void (*yuyv2yuv420sp)(const uint8_t *yuyv, int src_stride,
+    uint8_t *y0, uint8_t *y1, uint8_t *uv, int width, int swap_uv);
+} uvc_convert_kernels_t;
+
+extern const uvc_convert_kernels_t uvc_convert_kernels_c;
+const uvc_convert_kernels_t *uvc_get_convert_kernels(void);
+
 void uvc_start_handler_thread(uvc_context_t *ctx);
 uvc_error_t uvc_claim_if(uvc_device_handle_t *devh, int idx);
 uvc_error_t uvc_release_if(uvc_device_handle_t *devh, int idx);
@@ -42,7 +42,9 @@
 #include "libuvc/libuvc.h"
 #include "libuvc/libuvc_internal.h"
 #include <jpeglib.h>
+#include <turbojpeg.h>
 #include <setjmp.h>
+#include <pthread.h>
 
 extern uvc_error_t uvc_ensure_frame_size(uvc_frame_t *frame, size_t need_bytes);
 
@@ -189,6 +191,7 @@ uvc_error_t uvc_mjpeg2rgb(uvc_frame_t *in, uvc_frame_t *out) {
 	out->step = in->width * 3;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	dinfo.err = jpeg_std_error(&jerr.super);
@@ -259,6 +262,7 @@ uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 	out->step = in->width * 3;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	dinfo.err = jpeg_std_error(&jerr.super);
@@ -333,6 +337,7 @@ uvc_error_t uvc_mjpeg2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 	out->step = in->width * 2;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	dinfo.err = jpeg_std_error(&jerr.super);
@@ -410,6 +415,7 @@ uvc_error_t uvc_mjpeg2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 	out->step = in->width * 4;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	dinfo.err = jpeg_std_error(&jerr.super);
@@ -484,6 +490,7 @@ uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
 	out->step = in->width * 2;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	struct jpeg_decompress_struct dinfo;
@@ -550,3 +557,224 @@ fail:
 	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER+1;
 }
 
+
+//**********************************************************************
+// MJPEG => YUV420 planar/semi-planar with TurboJPEG
+//**********************************************************************
+/**
+ * per-thread TurboJPEG decompressor and scratch chroma planes.
+ * they are created on first use and released when the thread exits,
+ * so the decode path never allocates after the first frame.
+ */
+typedef struct tj_decoder {
+	tjhandle handle;
+	uint8_t *chroma;
+	size_t chroma_bytes;
+} tj_decoder_t;
+
+static pthread_key_t tj_decoder_key;
+static pthread_once_t tj_decoder_once = PTHREAD_ONCE_INIT;
+
+static void _tj_decoder_free(void *arg) {
+	tj_decoder_t *decoder = (tj_decoder_t *)arg;
+	if (LIKELY(decoder)) {
+		if (decoder->handle)
+			tjDestroy(decoder->handle);
+		free(decoder->chroma);
+		free(decoder);
+	}
+}
+
+static void _tj_decoder_key_create(void) {
+	pthread_key_create(&tj_decoder_key, _tj_decoder_free);
+}
+
+static tj_decoder_t *_tj_decoder_get(void) {
+	pthread_once(&tj_decoder_once, _tj_decoder_key_create);
+	tj_decoder_t *decoder = (tj_decoder_t *)pthread_getspecific(tj_decoder_key);
+	if (UNLIKELY(!decoder)) {
+		decoder = (tj_decoder_t *)calloc(1, sizeof(tj_decoder_t));
+		if (UNLIKELY(!decoder))
+			return NULL;
+		decoder->handle = tjInitDecompress();
+		if (UNLIKELY(!decoder->handle)) {
+			free(decoder);
+			return NULL;
+		}
+		pthread_setspecific(tj_decoder_key, decoder);
+	}
+	return decoder;
+}
+
+/** @brief Convert an MJPEG frame to YUV420 planar/semi-planar
+ * @ingroup frame
+ *
+ * The luma plane is decoded in place into the output frame and only the chroma
+ * planes are touched afterwards, so this replaces uvc_mjpeg2yuyv followed by
+ * uvc_yuyv2iyuv420SP/uvc_yuyv2yuv420SP with a single pass.
+ * 4:2:0 jpeg decoded to I420 needs no post processing at all.
+ * 4:2:2/4:4:4/4:1:1/gray jpeg are resampled to 4:2:0 by picking the nearest chroma sample,
+ * which is what the YUYV path did too.
+ *
+ * @param in MJPEG frame
+ * @param out YUV420 frame
+ * @param out_format UVC_FRAME_FORMAT_NV21(VU), UVC_FRAME_FORMAT_NV12(UV) or UVC_FRAME_FORMAT_I420
+ */
+uvc_error_t uvc_mjpeg2yuv420(uvc_frame_t *in, uvc_frame_t *out, enum uvc_frame_format out_format) {
+
+	out->actual_bytes = 0;	// XXX
+	if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_MJPEG))
+		return UVC_ERROR_INVALID_PARAM;
+	if (UNLIKELY((out_format != UVC_FRAME_FORMAT_NV21)
+		&& (out_format != UVC_FRAME_FORMAT_NV12)
+		&& (out_format != UVC_FRAME_FORMAT_I420)))
+		return UVC_ERROR_INVALID_PARAM;
+
+	tj_decoder_t *decoder = _tj_decoder_get();
+	if (UNLIKELY(!decoder))
+		return UVC_ERROR_NO_MEM;
+
+	int width, height, subsamp, colorspace;
+	if (UNLIKELY(tjDecompressHeader3(decoder->handle, in->data, in->actual_bytes,
+		&width, &height, &subsamp, &colorspace))) {
+		LOGW("tjDecompressHeader3:%s", tjGetErrorStr());
+		return UVC_ERROR_OTHER;
+	}
+	if (UNLIKELY((width != (int)in->width) || (height != (int)in->height)))
+		return UVC_ERROR_OTHER;
+
+	const int cw = (width + 1) >> 1;
+	const int ch = (height + 1) >> 1;
+	const size_t y_bytes = width * height;
+	const size_t c_bytes = cw * ch;
+	if (UNLIKELY(uvc_ensure_frame_size(out, y_bytes + c_bytes * 2) < 0))
+		return UVC_ERROR_NO_MEM;
+
+	out->width = width;
+	out->height = height;
+	out->frame_format = out_format;
+	out->step = width;
+	out->sequence = in->sequence;
+	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
+	out->source = in->source;
+
+	uint8_t *dst_y = out->data;
+	uint8_t *dst_c = dst_y + y_bytes;
+	unsigned char *planes[3];
+	int strides[3];
+	planes[0] = dst_y;
+	strides[0] = width;
+
+	if ((subsamp == TJSAMP_420) && (out_format == UVC_FRAME_FORMAT_I420)) {
+		// decoder output matches the requested layout, decode chroma straight into the frame
+		planes[1] = dst_c;
+		planes[2] = dst_c + c_bytes;
+		strides[1] = strides[2] = cw;
+		if (UNLIKELY(tjDecompressToYUVPlanes(decoder->handle, in->data, in->actual_bytes,
+			planes, width, strides, height, TJFLAG_FASTDCT))) {
+			LOGW("tjDecompressToYUVPlanes:%s", tjGetErrorStr());
+			return UVC_ERROR_OTHER;
+		}
+		out->actual_bytes = y_bytes + c_bytes * 2;
+		return UVC_SUCCESS;
+	}
+
+	const int is_gray = subsamp == TJSAMP_GRAY;
+	const int sw = is_gray ? 0 : tjPlaneWidth(1, width, subsamp);
+	const int sh = is_gray ? 0 : tjPlaneHeight(1, height, subsamp);
+	if (!is_gray) {
+		// decode chroma into the per-thread scratch planes
+		const size_t need_bytes = (size_t)sw * sh * 2;
+		if (UNLIKELY(decoder->chroma_bytes < need_bytes)) {
+			uint8_t *chroma = (uint8_t *)realloc(decoder->chroma, need_bytes);
+			if (UNLIKELY(!chroma))
+				return UVC_ERROR_NO_MEM;
+			decoder->chroma = chroma;
+			decoder->chroma_bytes = need_bytes;
+		}
+		planes[1] = decoder->chroma;
+		planes[2] = decoder->chroma + sw * sh;
+		strides[1] = strides[2] = sw;
+	} else {
+		planes[1] = planes[2] = NULL;
+		strides[1] = strides[2] = 0;
+	}
+	if (UNLIKELY(tjDecompressToYUVPlanes(decoder->handle, in->data, in->actual_bytes,
+		planes, width, strides, height, TJFLAG_FASTDCT))) {
+		LOGW("tjDecompressToYUVPlanes:%s", tjGetErrorStr());
+		return UVC_ERROR_OTHER;
+	}
+
+	if (UNLIKELY(is_gray)) {
+		memset(dst_c, 128, c_bytes * 2);
+		out->actual_bytes = y_bytes + c_bytes * 2;
+		return UVC_SUCCESS;
+	}
+
+	int h, w;
+	const uint8_t *src_u, *src_v;
+	if (out_format == UVC_FRAME_FORMAT_I420) {
+		uint8_t *u = dst_c;
+		uint8_t *v = dst_c + c_bytes;
+		for (h = 0; h < ch; h++) {
+			src_u = planes[1] + (h * sh / ch) * sw;
+			src_v = planes[2] + (h * sh / ch) * sw;
+			if (sw == cw) {
+				memcpy(u, src_u, cw);
+				memcpy(v, src_v, cw);
+			} else {
+				for (w = 0; w < cw; w++) {
+					u[w] = src_u[w * sw / cw];
+					v[w] = src_v[w * sw / cw];
+				}
+			}
+			u += cw;
+			v += cw;
+		}
+	} else {
+		// NV21 is V first, NV12 is U first
+		const int vu = out_format == UVC_FRAME_FORMAT_NV21;
+		uint8_t *c = dst_c;
+		for (h = 0; h < ch; h++) {
+			src_u = planes[1] + (h * sh / ch) * sw;
+			src_v = planes[2] + (h * sh / ch) * sw;
+			const uint8_t *first = vu ? src_v : src_u;
+			const uint8_t *second = vu ? src_u : src_v;
+			if (sw == cw) {
+				for (w = 0; w < cw; w++) {
+					*(c++) = first[w];
+					*(c++) = second[w];
+				}
+			} else {
+				for (w = 0; w < cw; w++) {
+					*(c++) = first[w * sw / cw];
+					*(c++) = second[w * sw / cw];
+				}
+			}
+		}
+	}
+	out->actual_bytes = y_bytes + c_bytes * 2;
+	return UVC_SUCCESS;
+}
+
+/** @brief Convert an MJPEG frame to NV21(YVU420SemiPlanar)
+ * @ingroup frame
+ */
+uvc_error_t uvc_mjpeg2nv21(uvc_frame_t *in, uvc_frame_t *out) {
+	return uvc_mjpeg2yuv420(in, out, UVC_FRAME_FORMAT_NV21);
+}
+
+/** @brief Convert an MJPEG frame to NV12(YUV420SemiPlanar)
+ * @ingroup frame
+ */
+uvc_error_t uvc_mjpeg2nv12(uvc_frame_t *in, uvc_frame_t *out) {
+	return uvc_mjpeg2yuv420(in, out, UVC_FRAME_FORMAT_NV12);
+}
+
+/** @brief Convert an MJPEG frame to I420(YUV420Planar)
+ * @ingroup frame
+ */
+uvc_error_t uvc_mjpeg2i420(uvc_frame_t *in, uvc_frame_t *out) {
+	return uvc_mjpeg2yuv420(in, out, UVC_FRAME_FORMAT_I420);
+}
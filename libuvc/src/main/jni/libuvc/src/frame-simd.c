@@ -0,0 +1,527 @@
+/*
+ * vectorized row kernels for the color converters in frame.c
+ *
+ * every kernel produces exactly the same bytes as the scalar kernels in frame.c(uvc_convert_kernels_c),
+ * chroma is computed with the same 14 bit fixed point coefficients and arithmetic shift,
+ * luma is added in 16 bit and saturated to 8 bit with an unsigned saturating pack.
+ * the remainder that does not fill a vector is converted by the scalar kernels.
+ *
+ *   x86/x86_64: SSE2(baseline of both ABIs), AVX2 when cpuid reports it and the OS saves ymm registers
+ *   arm64-v8a/armeabi-v7a: NEON(baseline of both ABIs)
+ *
+ * libuvc/src/test/cpp/test-frame-simd.c checks bit exactness against the scalar kernels,
+ * libuvc/src/test/cpp/bench-frame-simd.c measures them.
+ */
+#include <pthread.h>
+#include "libuvc/libuvc.h"
+#include "libuvc/libuvc_internal.h"
+
+#if defined(__SSE2__)
+	#include <emmintrin.h>
+	#if defined(__GNUC__) && (defined(__x86_64__) || defined(__i386__))
+		#define USE_AVX2 1
+		#include <immintrin.h>
+		#include <cpuid.h>
+	#endif
+#endif
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+	#include <arm_neon.h>
+	#define USE_NEON 1
+#endif
+
+// 14 bit fixed point coefficients, same as IYUYV2RGBX_2/YUV2RGBX_2 in frame.c
+#define COEF_RV 22987
+#define COEF_GU -5636
+#define COEF_GV -11698
+#define COEF_BU 29049
+
+#if defined(__SSE2__)
+//**********************************************************************
+// SSE2
+//**********************************************************************
+/**
+ * pixel pair chroma => 16 bit r/g/b offset of both pixels
+ * @param uv 4 pixel pairs, (first, second) chroma of each pair as 16 bit, minus 128
+ * @param coef (first, second) coefficients for each pair
+ */
+static inline __m128i sse2_chroma(const __m128i uv, const __m128i coef) {
+	const __m128i c = _mm_srai_epi32(_mm_madd_epi16(uv, coef), 14);
+	// each 32 bit lane fits in 16 bit, copy it to the upper half for the second pixel of the pair
+	return _mm_or_si128(_mm_and_si128(c, _mm_set1_epi32(0xffff)), _mm_slli_epi32(c, 16));
+}
+
+/**
+ * store 16 RGBX pixels
+ */
+static inline void sse2_store_rgbx(uint8_t *prgbx, const __m128i r, const __m128i g, const __m128i b) {
+	const __m128i a = _mm_set1_epi8((char)0xff);
+	const __m128i rg_lo = _mm_unpacklo_epi8(r, g);
+	const __m128i rg_hi = _mm_unpackhi_epi8(r, g);
+	const __m128i ba_lo = _mm_unpacklo_epi8(b, a);
+	const __m128i ba_hi = _mm_unpackhi_epi8(b, a);
+	_mm_storeu_si128((__m128i *)(prgbx +  0), _mm_unpacklo_epi16(rg_lo, ba_lo));
+	_mm_storeu_si128((__m128i *)(prgbx + 16), _mm_unpackhi_epi16(rg_lo, ba_lo));
+	_mm_storeu_si128((__m128i *)(prgbx + 32), _mm_unpacklo_epi16(rg_hi, ba_hi));
+	_mm_storeu_si128((__m128i *)(prgbx + 48), _mm_unpackhi_epi16(rg_hi, ba_hi));
+}
+
+/**
+ * 16 pixels, y_lo/y_hi: 16 bit luma of pixel 0-7/8-15, uv_lo/uv_hi: (first, second) chroma of pair 0-3/4-7
+ */
+static inline void sse2_yuv2rgbx_16(uint8_t *prgbx,
+	const __m128i y_lo, const __m128i y_hi, const __m128i uv_lo, const __m128i uv_hi,
+	const __m128i coef_r, const __m128i coef_g, const __m128i coef_b) {
+
+	const __m128i r = _mm_packus_epi16(
+		_mm_add_epi16(y_lo, sse2_chroma(uv_lo, coef_r)), _mm_add_epi16(y_hi, sse2_chroma(uv_hi, coef_r)));
+	const __m128i g = _mm_packus_epi16(
+		_mm_add_epi16(y_lo, sse2_chroma(uv_lo, coef_g)), _mm_add_epi16(y_hi, sse2_chroma(uv_hi, coef_g)));
+	const __m128i b = _mm_packus_epi16(
+		_mm_add_epi16(y_lo, sse2_chroma(uv_lo, coef_b)), _mm_add_epi16(y_hi, sse2_chroma(uv_hi, coef_b)));
+	sse2_store_rgbx(prgbx, r, g, b);
+}
+
+#define SSE2_COEF(first, second) _mm_set1_epi32((int)(((uint32_t)(uint16_t)(second) << 16) | (uint16_t)(first)))
+
+static void yuyv2rgbx_sse2(const uint8_t *pyuv, uint8_t *prgbx, int pixels) {
+	const __m128i mask = _mm_set1_epi16(0x00ff);
+	const __m128i bias = _mm_set1_epi16(128);
+	// chroma of YUYV is (u, v)
+	const __m128i coef_r = SSE2_COEF(0, COEF_RV);
+	const __m128i coef_g = SSE2_COEF(COEF_GU, COEF_GV);
+	const __m128i coef_b = SSE2_COEF(COEF_BU, 0);
+	int i;
+	for (i = 0; i + 16 <= pixels; i += 16) {
+		const __m128i a = _mm_loadu_si128((const __m128i *)(pyuv +  0));
+		const __m128i b = _mm_loadu_si128((const __m128i *)(pyuv + 16));
+		sse2_yuv2rgbx_16(prgbx,
+			_mm_and_si128(a, mask), _mm_and_si128(b, mask),
+			_mm_sub_epi16(_mm_srli_epi16(a, 8), bias), _mm_sub_epi16(_mm_srli_epi16(b, 8), bias),
+			coef_r, coef_g, coef_b);
+		pyuv += 32;
+		prgbx += 64;
+	}
+	if (i < pixels) {
+		uvc_convert_kernels_c.yuyv2rgbx(pyuv, prgbx, pixels - i);
+	}
+}
+
+static void yuv4202rgbx_sse2(const uint8_t *py, const uint8_t *pu, const uint8_t *pv, int c_step,
+	uint8_t *prgbx, int width) {
+
+	const __m128i zero = _mm_setzero_si128();
+	const __m128i bias = _mm_set1_epi16(128);
+	// interleaved chroma is (u, v) for NV12 and (v, u) for NV21, planar chroma is interleaved as (u, v)
+	const int vu = (c_step == 2) && (pv < pu);
+	const __m128i coef_r = vu ? SSE2_COEF(COEF_RV, 0) : SSE2_COEF(0, COEF_RV);
+	const __m128i coef_g = vu ? SSE2_COEF(COEF_GV, COEF_GU) : SSE2_COEF(COEF_GU, COEF_GV);
+	const __m128i coef_b = vu ? SSE2_COEF(0, COEF_BU) : SSE2_COEF(COEF_BU, 0);
+	int w;
+	for (w = 0; w + 16 <= width; w += 16) {
+		__m128i c;
+		if (c_step == 2) {
+			c = _mm_loadu_si128((const __m128i *)(vu ? pv : pu));
+		} else {
+			c = _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i *)pu), _mm_loadl_epi64((const __m128i *)pv));
+		}
+		const __m128i y = _mm_loadu_si128((const __m128i *)py);
+		sse2_yuv2rgbx_16(prgbx,
+			_mm_unpacklo_epi8(y, zero), _mm_unpackhi_epi8(y, zero),
+			_mm_sub_epi16(_mm_unpacklo_epi8(c, zero), bias), _mm_sub_epi16(_mm_unpackhi_epi8(c, zero), bias),
+			coef_r, coef_g, coef_b);
+		py += 16;
+		pu += 8 * c_step;
+		pv += 8 * c_step;
+		prgbx += 64;
+	}
+	if (w < width) {
+		uvc_convert_kernels_c.yuv4202rgbx(py, pu, pv, c_step, prgbx, width - w);
+	}
+}
+
+static inline __m128i sse2_swap_bytes(const __m128i x) {
+	return _mm_or_si128(_mm_slli_epi16(x, 8), _mm_srli_epi16(x, 8));
+}
+
+static void yuyv2yuv420sp_sse2(const uint8_t *yuv, int src_stride,
+	uint8_t *y0, uint8_t *y1, uint8_t *uv, int width, int swap_uv) {
+
+	const __m128i mask = _mm_set1_epi16(0x00ff);
+	int w;
+	for (w = 0; w + 16 <= width; w += 16) {
+		const __m128i a = _mm_loadu_si128((const __m128i *)(yuv +  0));
+		const __m128i b = _mm_loadu_si128((const __m128i *)(yuv + 16));
+		const __m128i c = _mm_loadu_si128((const __m128i *)(yuv + src_stride +  0));
+		const __m128i d = _mm_loadu_si128((const __m128i *)(yuv + src_stride + 16));
+		_mm_storeu_si128((__m128i *)y0, _mm_packus_epi16(_mm_and_si128(a, mask), _mm_and_si128(b, mask)));
+		_mm_storeu_si128((__m128i *)y1, _mm_packus_epi16(_mm_and_si128(c, mask), _mm_and_si128(d, mask)));
+		const __m128i chroma = _mm_packus_epi16(_mm_srli_epi16(a, 8), _mm_srli_epi16(b, 8));
+		_mm_storeu_si128((__m128i *)uv, swap_uv ? sse2_swap_bytes(chroma) : chroma);
+		yuv += 32;
+		y0 += 16;
+		y1 += 16;
+		uv += 16;
+	}
+	if (w < width) {
+		uvc_convert_kernels_c.yuyv2yuv420sp(yuv, src_stride, y0, y1, uv, width - w, swap_uv);
+	}
+}
+
+static const uvc_convert_kernels_t uvc_convert_kernels_sse2 = {
+	.name = "sse2",
+	.level = UVC_SIMD_SSE2,
+	.yuyv2rgbx = yuyv2rgbx_sse2,
+	.yuv4202rgbx = yuv4202rgbx_sse2,
+	.yuyv2yuv420sp = yuyv2yuv420sp_sse2,
+};
+#endif // __SSE2__
+
+#if USE_AVX2
+//**********************************************************************
+// AVX2, compiled for the target attribute only and selected after the cpuid check
+//**********************************************************************
+#define AVX2_FUNC __attribute__((target("avx2")))
+
+AVX2_FUNC static inline __m256i avx2_chroma(const __m256i uv, const __m256i coef) {
+	const __m256i c = _mm256_srai_epi32(_mm256_madd_epi16(uv, coef), 14);
+	return _mm256_or_si256(_mm256_and_si256(c, _mm256_set1_epi32(0xffff)), _mm256_slli_epi32(c, 16));
+}
+
+/**
+ * 32 pixels, y_lo/y_hi: 16 bit luma of pixel 0-15/16-31, uv_lo/uv_hi: (first, second) chroma of pair 0-7/8-15
+ */
+AVX2_FUNC static inline void avx2_yuv2rgbx_32(uint8_t *prgbx,
+	const __m256i y_lo, const __m256i y_hi, const __m256i uv_lo, const __m256i uv_hi,
+	const __m256i coef_r, const __m256i coef_g, const __m256i coef_b) {
+
+	// packus works per 128 bit lane, bytes are pixel 0-7, 16-23 | 8-15, 24-31
+	const __m256i r = _mm256_packus_epi16(
+		_mm256_add_epi16(y_lo, avx2_chroma(uv_lo, coef_r)), _mm256_add_epi16(y_hi, avx2_chroma(uv_hi, coef_r)));
+	const __m256i g = _mm256_packus_epi16(
+		_mm256_add_epi16(y_lo, avx2_chroma(uv_lo, coef_g)), _mm256_add_epi16(y_hi, avx2_chroma(uv_hi, coef_g)));
+	const __m256i b = _mm256_packus_epi16(
+		_mm256_add_epi16(y_lo, avx2_chroma(uv_lo, coef_b)), _mm256_add_epi16(y_hi, avx2_chroma(uv_hi, coef_b)));
+	const __m256i a = _mm256_set1_epi8((char)0xff);
+	// pixel 0-7 | 8-15
+	const __m256i rg_lo = _mm256_unpacklo_epi8(r, g);
+	const __m256i ba_lo = _mm256_unpacklo_epi8(b, a);
+	// pixel 16-23 | 24-31
+	const __m256i rg_hi = _mm256_unpackhi_epi8(r, g);
+	const __m256i ba_hi = _mm256_unpackhi_epi8(b, a);
+	// pixel 0-3 | 8-11 and 4-7 | 12-15
+	const __m256i p0 = _mm256_unpacklo_epi16(rg_lo, ba_lo);
+	const __m256i p1 = _mm256_unpackhi_epi16(rg_lo, ba_lo);
+	// pixel 16-19 | 24-27 and 20-23 | 28-31
+	const __m256i p2 = _mm256_unpacklo_epi16(rg_hi, ba_hi);
+	const __m256i p3 = _mm256_unpackhi_epi16(rg_hi, ba_hi);
+	_mm256_storeu_si256((__m256i *)(prgbx +  0), _mm256_permute2x128_si256(p0, p1, 0x20));
+	_mm256_storeu_si256((__m256i *)(prgbx + 32), _mm256_permute2x128_si256(p0, p1, 0x31));
+	_mm256_storeu_si256((__m256i *)(prgbx + 64), _mm256_permute2x128_si256(p2, p3, 0x20));
+	_mm256_storeu_si256((__m256i *)(prgbx + 96), _mm256_permute2x128_si256(p2, p3, 0x31));
+}
+
+#define AVX2_COEF(first, second) _mm256_set1_epi32((int)(((uint32_t)(uint16_t)(second) << 16) | (uint16_t)(first)))
+
+AVX2_FUNC static void yuyv2rgbx_avx2(const uint8_t *pyuv, uint8_t *prgbx, int pixels) {
+	const __m256i mask = _mm256_set1_epi16(0x00ff);
+	const __m256i bias = _mm256_set1_epi16(128);
+	const __m256i coef_r = AVX2_COEF(0, COEF_RV);
+	const __m256i coef_g = AVX2_COEF(COEF_GU, COEF_GV);
+	const __m256i coef_b = AVX2_COEF(COEF_BU, 0);
+	int i;
+	for (i = 0; i + 32 <= pixels; i += 32) {
+		const __m256i a = _mm256_loadu_si256((const __m256i *)(pyuv +  0));
+		const __m256i b = _mm256_loadu_si256((const __m256i *)(pyuv + 32));
+		avx2_yuv2rgbx_32(prgbx,
+			_mm256_and_si256(a, mask), _mm256_and_si256(b, mask),
+			_mm256_sub_epi16(_mm256_srli_epi16(a, 8), bias), _mm256_sub_epi16(_mm256_srli_epi16(b, 8), bias),
+			coef_r, coef_g, coef_b);
+		pyuv += 64;
+		prgbx += 128;
+	}
+	if (i < pixels) {
+		yuyv2rgbx_sse2(pyuv, prgbx, pixels - i);
+	}
+}
+
+AVX2_FUNC static void yuv4202rgbx_avx2(const uint8_t *py, const uint8_t *pu, const uint8_t *pv, int c_step,
+	uint8_t *prgbx, int width) {
+
+	const __m256i bias = _mm256_set1_epi16(128);
+	const int vu = (c_step == 2) && (pv < pu);
+	const __m256i coef_r = vu ? AVX2_COEF(COEF_RV, 0) : AVX2_COEF(0, COEF_RV);
+	const __m256i coef_g = vu ? AVX2_COEF(COEF_GV, COEF_GU) : AVX2_COEF(COEF_GU, COEF_GV);
+	const __m256i coef_b = vu ? AVX2_COEF(0, COEF_BU) : AVX2_COEF(COEF_BU, 0);
+	int w;
+	for (w = 0; w + 32 <= width; w += 32) {
+		__m128i c_lo, c_hi;
+		if (c_step == 2) {
+			const uint8_t *pc = vu ? pv : pu;
+			c_lo = _mm_loadu_si128((const __m128i *)(pc +  0));
+			c_hi = _mm_loadu_si128((const __m128i *)(pc + 16));
+		} else {
+			const __m128i u = _mm_loadu_si128((const __m128i *)pu);
+			const __m128i v = _mm_loadu_si128((const __m128i *)pv);
+			c_lo = _mm_unpacklo_epi8(u, v);
+			c_hi = _mm_unpackhi_epi8(u, v);
+		}
+		avx2_yuv2rgbx_32(prgbx,
+			_mm256_cvtepu8_epi16(_mm_loadu_si128((const __m128i *)(py +  0))),
+			_mm256_cvtepu8_epi16(_mm_loadu_si128((const __m128i *)(py + 16))),
+			_mm256_sub_epi16(_mm256_cvtepu8_epi16(c_lo), bias), _mm256_sub_epi16(_mm256_cvtepu8_epi16(c_hi), bias),
+			coef_r, coef_g, coef_b);
+		py += 32;
+		pu += 16 * c_step;
+		pv += 16 * c_step;
+		prgbx += 128;
+	}
+	if (w < width) {
+		yuv4202rgbx_sse2(py, pu, pv, c_step, prgbx, width - w);
+	}
+}
+
+AVX2_FUNC static void yuyv2yuv420sp_avx2(const uint8_t *yuv, int src_stride,
+	uint8_t *y0, uint8_t *y1, uint8_t *uv, int width, int swap_uv) {
+
+	const __m256i mask = _mm256_set1_epi16(0x00ff);
+	int w;
+	for (w = 0; w + 32 <= width; w += 32) {
+		const __m256i a = _mm256_loadu_si256((const __m256i *)(yuv +  0));
+		const __m256i b = _mm256_loadu_si256((const __m256i *)(yuv + 32));
+		const __m256i c = _mm256_loadu_si256((const __m256i *)(yuv + src_stride +  0));
+		const __m256i d = _mm256_loadu_si256((const __m256i *)(yuv + src_stride + 32));
+		// packus works per 128 bit lane, restore the order of the 64 bit quarters
+		_mm256_storeu_si256((__m256i *)y0, _mm256_permute4x64_epi64(
+			_mm256_packus_epi16(_mm256_and_si256(a, mask), _mm256_and_si256(b, mask)), 0xd8));
+		_mm256_storeu_si256((__m256i *)y1, _mm256_permute4x64_epi64(
+			_mm256_packus_epi16(_mm256_and_si256(c, mask), _mm256_and_si256(d, mask)), 0xd8));
+		__m256i chroma = _mm256_permute4x64_epi64(
+			_mm256_packus_epi16(_mm256_srli_epi16(a, 8), _mm256_srli_epi16(b, 8)), 0xd8);
+		if (swap_uv) {
+			chroma = _mm256_or_si256(_mm256_slli_epi16(chroma, 8), _mm256_srli_epi16(chroma, 8));
+		}
+		_mm256_storeu_si256((__m256i *)uv, chroma);
+		yuv += 64;
+		y0 += 32;
+		y1 += 32;
+		uv += 32;
+	}
+	if (w < width) {
+		yuyv2yuv420sp_sse2(yuv, src_stride, y0, y1, uv, width - w, swap_uv);
+	}
+}
+
+static const uvc_convert_kernels_t uvc_convert_kernels_avx2 = {
+	.name = "avx2",
+	.level = UVC_SIMD_AVX2,
+	.yuyv2rgbx = yuyv2rgbx_avx2,
+	.yuv4202rgbx = yuv4202rgbx_avx2,
+	.yuyv2yuv420sp = yuyv2yuv420sp_avx2,
+};
+
+static int cpu_has_avx2(void) {
+	unsigned int eax, ebx, ecx, edx;
+	if (!__get_cpuid(1, &eax, &ebx, &ecx, &edx)) {
+		return 0;
+	}
+	// OSXSAVE and AVX
+	if ((ecx & ((1u << 27) | (1u << 28))) != ((1u << 27) | (1u << 28))) {
+		return 0;
+	}
+	// the OS must save xmm and ymm registers on context switch
+	unsigned int xcr0_lo, xcr0_hi;
+	__asm__ volatile (".byte 0x0f, 0x01, 0xd0" : "=a"(xcr0_lo), "=d"(xcr0_hi) : "c"(0));
+	if ((xcr0_lo & 6) != 6) {
+		return 0;
+	}
+	if (__get_cpuid_max(0, NULL) < 7) {
+		return 0;
+	}
+	__cpuid_count(7, 0, eax, ebx, ecx, edx);
+	return (ebx & (1u << 5)) != 0;
+}
+#endif // USE_AVX2
+
+#if USE_NEON
+//**********************************************************************
+// NEON
+//**********************************************************************
+/**
+ * 8 pixel pairs => 8 r/g/b offsets as 16 bit
+ */
+static inline void neon_chroma(const uint8x8_t u, const uint8x8_t v,
+	int16x8_t *r, int16x8_t *g, int16x8_t *b) {
+
+	const uint8x8_t bias = vdup_n_u8(128);
+	// u - 128 wraps around in 16 bit unsigned, reinterpreted as signed it is the signed difference
+	const int16x8_t du = vreinterpretq_s16_u16(vsubl_u8(u, bias));
+	const int16x8_t dv = vreinterpretq_s16_u16(vsubl_u8(v, bias));
+	const int16x4_t du_lo = vget_low_s16(du), du_hi = vget_high_s16(du);
+	const int16x4_t dv_lo = vget_low_s16(dv), dv_hi = vget_high_s16(dv);
+	*r = vcombine_s16(
+		vshrn_n_s32(vmull_n_s16(dv_lo, COEF_RV), 14),
+		vshrn_n_s32(vmull_n_s16(dv_hi, COEF_RV), 14));
+	*g = vcombine_s16(
+		vshrn_n_s32(vmlal_n_s16(vmull_n_s16(du_lo, COEF_GU), dv_lo, COEF_GV), 14),
+		vshrn_n_s32(vmlal_n_s16(vmull_n_s16(du_hi, COEF_GU), dv_hi, COEF_GV), 14));
+	*b = vcombine_s16(
+		vshrn_n_s32(vmull_n_s16(du_lo, COEF_BU), 14),
+		vshrn_n_s32(vmull_n_s16(du_hi, COEF_BU), 14));
+}
+
+/**
+ * 16 pixels, ye/yo: luma of the even/odd pixels, u/v: chroma of the 8 pixel pairs
+ */
+static inline void neon_yuv2rgbx_16(uint8_t *prgbx,
+	const uint8x8_t ye, const uint8x8_t yo, const uint8x8_t u, const uint8x8_t v) {
+
+	int16x8_t r, g, b;
+	neon_chroma(u, v, &r, &g, &b);
+	const int16x8_t e = vreinterpretq_s16_u16(vmovl_u8(ye));
+	const int16x8_t o = vreinterpretq_s16_u16(vmovl_u8(yo));
+	const uint8x8x2_t rr = vzip_u8(vqmovun_s16(vaddq_s16(e, r)), vqmovun_s16(vaddq_s16(o, r)));
+	const uint8x8x2_t gg = vzip_u8(vqmovun_s16(vaddq_s16(e, g)), vqmovun_s16(vaddq_s16(o, g)));
+	const uint8x8x2_t bb = vzip_u8(vqmovun_s16(vaddq_s16(e, b)), vqmovun_s16(vaddq_s16(o, b)));
+	uint8x8x4_t rgbx;
+	rgbx.val[3] = vdup_n_u8(0xff);
+	rgbx.val[0] = rr.val[0];
+	rgbx.val[1] = gg.val[0];
+	rgbx.val[2] = bb.val[0];
+	vst4_u8(prgbx, rgbx);
+	rgbx.val[0] = rr.val[1];
+	rgbx.val[1] = gg.val[1];
+	rgbx.val[2] = bb.val[1];
+	vst4_u8(prgbx + 32, rgbx);
+}
+
+static void yuyv2rgbx_neon(const uint8_t *pyuv, uint8_t *prgbx, int pixels) {
+	int i;
+	for (i = 0; i + 16 <= pixels; i += 16) {
+		// y0 u y1 v => even luma, u, odd luma, v
+		const uint8x8x4_t yuyv = vld4_u8(pyuv);
+		neon_yuv2rgbx_16(prgbx, yuyv.val[0], yuyv.val[2], yuyv.val[1], yuyv.val[3]);
+		pyuv += 32;
+		prgbx += 64;
+	}
+	if (i < pixels) {
+		uvc_convert_kernels_c.yuyv2rgbx(pyuv, prgbx, pixels - i);
+	}
+}
+
+static void yuv4202rgbx_neon(const uint8_t *py, const uint8_t *pu, const uint8_t *pv, int c_step,
+	uint8_t *prgbx, int width) {
+
+	const int vu = (c_step == 2) && (pv < pu);
+	int w;
+	for (w = 0; w + 16 <= width; w += 16) {
+		const uint8x8x2_t y = vld2_u8(py);
+		uint8x8_t u, v;
+		if (c_step == 2) {
+			const uint8x8x2_t c = vld2_u8(vu ? pv : pu);
+			u = c.val[vu];
+			v = c.val[!vu];
+		} else {
+			u = vld1_u8(pu);
+			v = vld1_u8(pv);
+		}
+		neon_yuv2rgbx_16(prgbx, y.val[0], y.val[1], u, v);
+		py += 16;
+		pu += 8 * c_step;
+		pv += 8 * c_step;
+		prgbx += 64;
+	}
+	if (w < width) {
+		uvc_convert_kernels_c.yuv4202rgbx(py, pu, pv, c_step, prgbx, width - w);
+	}
+}
+
+static void yuyv2yuv420sp_neon(const uint8_t *yuv, int src_stride,
+	uint8_t *y0, uint8_t *y1, uint8_t *uv, int width, int swap_uv) {
+
+	int w;
+	for (w = 0; w + 16 <= width; w += 16) {
+		// luma and (u, v) of 16 pixels
+		const uint8x16x2_t a = vld2q_u8(yuv);
+		const uint8x16x2_t b = vld2q_u8(yuv + src_stride);
+		vst1q_u8(y0, a.val[0]);
+		vst1q_u8(y1, b.val[0]);
+		vst1q_u8(uv, swap_uv ? vrev16q_u8(a.val[1]) : a.val[1]);
+		yuv += 32;
+		y0 += 16;
+		y1 += 16;
+		uv += 16;
+	}
+	if (w < width) {
+		uvc_convert_kernels_c.yuyv2yuv420sp(yuv, src_stride, y0, y1, uv, width - w, swap_uv);
+	}
+}
+
+static const uvc_convert_kernels_t uvc_convert_kernels_neon = {
+	.name = "neon",
+	.level = UVC_SIMD_NEON,
+	.yuyv2rgbx = yuyv2rgbx_neon,
+	.yuv4202rgbx = yuv4202rgbx_neon,
+	.yuyv2yuv420sp = yuyv2yuv420sp_neon,
+};
+#endif // USE_NEON
+
+//**********************************************************************
+// dispatch
+//**********************************************************************
+static pthread_once_t kernels_once = PTHREAD_ONCE_INIT;
+// kernels available on this CPU indexed by enum uvc_simd_level, NULL if not supported
+static const uvc_convert_kernels_t *supported_kernels[UVC_SIMD_NEON + 1];
+static const uvc_convert_kernels_t *best_kernels;
+static const uvc_convert_kernels_t *current_kernels;
+
+static void init_kernels(void) {
+	supported_kernels[UVC_SIMD_NONE] = &uvc_convert_kernels_c;
+	best_kernels = &uvc_convert_kernels_c;
+#if defined(__SSE2__)
+	supported_kernels[UVC_SIMD_SSE2] = best_kernels = &uvc_convert_kernels_sse2;
+#endif
+#if USE_AVX2
+	if (cpu_has_avx2()) {
+		supported_kernels[UVC_SIMD_AVX2] = best_kernels = &uvc_convert_kernels_avx2;
+	}
+#endif
+#if USE_NEON
+	supported_kernels[UVC_SIMD_NEON] = best_kernels = &uvc_convert_kernels_neon;
+#endif
+	__atomic_store_n(&current_kernels, best_kernels, __ATOMIC_RELEASE);
+}
+
+/** @internal
+ * kernels the color converters should use
+ */
+const uvc_convert_kernels_t *uvc_get_convert_kernels(void) {
+	const uvc_convert_kernels_t *kernels = __atomic_load_n(&current_kernels, __ATOMIC_ACQUIRE);
+	if (UNLIKELY(!kernels)) {
+		pthread_once(&kernels_once, init_kernels);
+		kernels = __atomic_load_n(&current_kernels, __ATOMIC_ACQUIRE);
+	}
+	return kernels;
+}
+
+/** @brief instruction set the color converters currently use
+ * @ingroup frame
+ * @return enum uvc_simd_level
+ */
+int uvc_get_simd_level(void) {
+	return uvc_get_convert_kernels()->level;
+}
+
+/** @brief select the instruction set of the color converters, mainly for testing and benchmarking
+ * @ingroup frame
+ * @param level enum uvc_simd_level, the best supported one is used if this CPU does not support it
+ * @return the level actually selected
+ */
+int uvc_set_simd_level(int level) {
+	pthread_once(&kernels_once, init_kernels);
+	const uvc_convert_kernels_t *kernels = best_kernels;
+	if ((level >= UVC_SIMD_NONE) && (level <= UVC_SIMD_NEON) && supported_kernels[level]) {
+		kernels = supported_kernels[level];
+	}
+	__atomic_store_n(&current_kernels, kernels, __ATOMIC_RELEASE);
+	return kernels->level;
+}
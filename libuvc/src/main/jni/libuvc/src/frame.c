@@ -85,6 +85,8 @@ uvc_frame_t *uvc_allocate_frame(size_t data_bytes) {
 	// XXX in many case, it is not neccesary to clear because all fields are set before use
 	// therefore we remove this to improve performace, but be care not to forget to set fields before use
 	memset(frame, 0, sizeof(*frame));	// bzero(frame, sizeof(*frame)); // bzero is deprecated
+#else
+	memset(frame->timestamps, 0, sizeof(frame->timestamps));
 #endif
 //	frame->library_owns_data = 1;	// XXX moved to lower
 
@@ -114,6 +116,56 @@ void uvc_free_frame(uvc_frame_t *frame) {
 	free(frame);
 }
 
+/** @brief Move the image data of a frame to another frame without copying
+ * @ingroup frame
+ *
+ * Exchanges the data buffers of both frames and copies the other fields of in to out,
+ * in receives the former buffer of out. Used with frames given to the callback of
+ * a stream started with UVC_STREAM_FLAG_HANDOFF, libuvc reuses the returned buffer.
+ *
+ * @param in Original frame
+ * @param out Frame to receive the image data
+ */
+uvc_error_t uvc_swap_frame_data(uvc_frame_t *in, uvc_frame_t *out) {
+	// both buffers must be allocated by malloc, they are freed by the other side later
+	if (UNLIKELY(!in->library_owns_data || !out->library_owns_data))
+		return UVC_ERROR_INVALID_PARAM;
+
+	void *data = out->data;
+	const size_t data_bytes = out->data_bytes;
+	out->data = in->data;
+	out->data_bytes = in->data_bytes;
+	in->data = data;
+	in->data_bytes = data_bytes;
+
+	out->width = in->width;
+	out->height = in->height;
+	out->frame_format = in->frame_format;
+	out->step = in->step;
+	out->sequence = in->sequence;
+	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
+	out->source = in->source;
+	out->actual_bytes = in->actual_bytes;
+	return UVC_SUCCESS;
+}
+
+/** @brief CLOCK_MONOTONIC time in nanoseconds, the clock of uvc_frame_t.timestamps
+ * @ingroup frame
+ */
+uint64_t uvc_timestamp_ns(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+/** @brief Record the current time as the time the frame passed the stage
+ * @ingroup frame
+ */
+void uvc_frame_set_timestamp(uvc_frame_t *frame, enum uvc_frame_stage stage) {
+	frame->timestamps[stage] = uvc_timestamp_ns();
+}
+
 static inline unsigned char sat(int i) {
 	return (unsigned char) (i >= 255 ? 255 : (i < 0 ? 0 : i));
 }
@@ -135,6 +187,7 @@ uvc_error_t uvc_duplicate_frame(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->step;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 	out->actual_bytes = in->actual_bytes;	// XXX
 
@@ -241,6 +294,7 @@ uvc_error_t uvc_rgb2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	uint8_t *prgb = in->data;
@@ -323,6 +377,7 @@ uvc_error_t uvc_rgb2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	uint8_t *prgb = in->data;
@@ -426,6 +481,7 @@ uvc_error_t uvc_yuyv2rgb(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -490,6 +546,7 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -567,6 +624,27 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 	IYUYV2RGBX_2(pyuv, prgbx, ax, bx) \
 	IYUYV2RGBX_2(pyuv, prgbx, ax + PIXEL2_YUYV, bx + PIXEL2_RGBX);
 
+/** @internal
+ * scalar YUYV => RGBX8888 kernel, the reference of the vectorized kernels in frame-simd.c
+ * @param pixels multiple of 8
+ */
+static void yuyv2rgbx_c(const uint8_t *pyuv, uint8_t *prgbx, int pixels) {
+	const uint8_t *pyuv_end = pyuv + pixels * PIXEL_YUYV;
+	for (; pyuv < pyuv_end ;) {
+		IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
+
+		prgbx += PIXEL8_RGBX;
+		pyuv += PIXEL8_YUYV;
+	}
+}
+
+/** @internal
+ * number of 8 pixel blocks that fit between p and end(the last position a block may start at)
+ */
+static inline int blocks8(const uint8_t *p, const uint8_t *end, const int block_bytes) {
+	return p <= end ? (int)((end - p) / block_bytes) + 1 : 0;
+}
+
 /** @brief Convert a frame from YUYV to RGBX8888
  * @ingroup frame
  * @param ini YUYV frame
@@ -586,48 +664,149 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
 	const uint8_t *pyuv_end = pyuv + in->data_bytes - PIXEL8_YUYV;
 	uint8_t *prgbx = out->data;
 	const uint8_t *prgbx_end = prgbx + out->data_bytes - PIXEL8_RGBX;
+	const uvc_convert_kernels_t *kernels = uvc_get_convert_kernels();
+	int n;
 
-	// YUYV => RGBX8888
+	// YUYV => RGBX8888, 8 pixels at a time as long as both buffers have room
 #if USE_STRIDE
 	if (in->step && out->step && (in->step != out->step)) {
 		const int hh = in->height < out->height ? in->height : out->height;
 		const int ww = in->width < out->width ? in->width : out->width;
-		int h, w;
+		int h;
 		for (h = 0; h < hh; h++) {
-			w = 0;
 			pyuv = in->data + in->step * h;
 			prgbx = out->data + out->step * h;
-			for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) && (w < ww) ;) {
-				IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
-
-				prgbx += PIXEL8_RGBX;
-				pyuv += PIXEL8_YUYV;
-				w += 8;
-			}
+			n = (ww + 7) >> 3;
+			const int n_in = blocks8(pyuv, pyuv_end, PIXEL8_YUYV);
+			const int n_out = blocks8(prgbx, prgbx_end, PIXEL8_RGBX);
+			if (n > n_in) n = n_in;
+			if (n > n_out) n = n_out;
+			if (n > 0)
+				kernels->yuyv2rgbx(pyuv, prgbx, n << 3);
 		}
 	} else {
 		// compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
-		for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
-			IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
-
-			prgbx += PIXEL8_RGBX;
-			pyuv += PIXEL8_YUYV;
-		}
+		n = blocks8(pyuv, pyuv_end, PIXEL8_YUYV);
+		const int n_out = blocks8(prgbx, prgbx_end, PIXEL8_RGBX);
+		if (n > n_out) n = n_out;
+		if (n > 0)
+			kernels->yuyv2rgbx(pyuv, prgbx, n << 3);
 	}
 #else
-	for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
-		IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
+	n = blocks8(pyuv, pyuv_end, PIXEL8_YUYV);
+	const int n_out = blocks8(prgbx, prgbx_end, PIXEL8_RGBX);
+	if (n > n_out) n = n_out;
+	if (n > 0)
+		kernels->yuyv2rgbx(pyuv, prgbx, n << 3);
+#endif
+	return UVC_SUCCESS;
+}
 
-		prgbx += PIXEL8_RGBX;
-		pyuv += PIXEL8_YUYV;
+#define YUV2RGBX_2(py, u, v, prgbx) { \
+		const int r = (22987 * ((v) - 128)) >> 14; \
+		const int g = (-5636 * ((u) - 128) - 11698 * ((v) - 128)) >> 14; \
+		const int b = (29049 * ((u) - 128)) >> 14; \
+		const int y0 = (py)[0]; \
+		(prgbx)[0] = sat(y0 + r); \
+		(prgbx)[1] = sat(y0 + g); \
+		(prgbx)[2] = sat(y0 + b); \
+		(prgbx)[3] = 0xff; \
+		const int y1 = (py)[1]; \
+		(prgbx)[4] = sat(y1 + r); \
+		(prgbx)[5] = sat(y1 + g); \
+		(prgbx)[6] = sat(y1 + b); \
+		(prgbx)[7] = 0xff; \
+	}
+
+/** @internal
+ * scalar NV21/NV12/I420 => RGBX8888 kernel for one row, the reference of the vectorized kernels in frame-simd.c
+ * @param pu, pv chroma of the row
+ * @param c_step 2 for interleaved chroma(NV21/NV12), 1 for planar chroma(I420)
+ */
+static void yuv4202rgbx_c(const uint8_t *py, const uint8_t *pu, const uint8_t *pv, int c_step,
+	uint8_t *prgbx, int width) {
+
+	int w;
+	for (w = 0; w < width - 1; w += 2) {
+		const int u = *pu;
+		const int v = *pv;
+		YUV2RGBX_2(py, u, v, prgbx);
+		py += 2;
+		pu += c_step;
+		pv += c_step;
+		prgbx += PIXEL2_RGBX;
+	}
+	if (UNLIKELY(w < width)) {
+		// odd width, convert last pixel
+		const int r = (22987 * (*pv - 128)) >> 14;
+		const int g = (-5636 * (*pu - 128) - 11698 * (*pv - 128)) >> 14;
+		const int b = (29049 * (*pu - 128)) >> 14;
+		prgbx[0] = sat(py[0] + r);
+		prgbx[1] = sat(py[0] + g);
+		prgbx[2] = sat(py[0] + b);
+		prgbx[3] = 0xff;
+	}
+}
+
+/** @brief Convert a frame from NV21/NV12/I420 to RGBX8888
+ * @ingroup frame
+ * uses same coefficients as uvc_yuyv2rgbx so that preview looks identical
+ * whether the frame came through YUYV or was decoded straight to YUV420
+ * @param in NV21, NV12 or I420 frame
+ * @param out RGBX8888 frame
+ */
+uvc_error_t uvc_yuv4202rgbx(uvc_frame_t *in, uvc_frame_t *out) {
+	int u_offset, v_offset, c_step;
+	const int width = in->width;
+	const int height = in->height;
+	const int cw = (width + 1) >> 1;
+	const int ch = (height + 1) >> 1;
+
+	switch (in->frame_format) {
+	case UVC_FRAME_FORMAT_NV21:
+		v_offset = 0; u_offset = 1; c_step = 2;
+		break;
+	case UVC_FRAME_FORMAT_NV12:
+		u_offset = 0; v_offset = 1; c_step = 2;
+		break;
+	case UVC_FRAME_FORMAT_I420:
+		u_offset = 0; v_offset = cw * ch; c_step = 1;
+		break;
+	default:
+		return UVC_ERROR_INVALID_PARAM;
+	}
+
+	if (UNLIKELY(uvc_ensure_frame_size(out, width * height * PIXEL_RGBX) < 0))
+		return UVC_ERROR_NO_MEM;
+
+	out->width = width;
+	out->height = height;
+	out->frame_format = UVC_FRAME_FORMAT_RGBX;
+	if (out->library_owns_data || !out->step)
+		out->step = width * PIXEL_RGBX;
+	out->sequence = in->sequence;
+	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
+	out->source = in->source;
+
+	const int y_step = in->step ? in->step : width;
+	const int out_step = out->step;
+	const uint8_t *c_plane = in->data + y_step * height;
+	const int c_stride = c_step == 2 ? cw * 2 : cw;
+	const uvc_convert_kernels_t *kernels = uvc_get_convert_kernels();
+	int h;
+	for (h = 0; h < height; h++) {
+		const uint8_t *pc = c_plane + c_stride * (h >> 1);
+		kernels->yuv4202rgbx(in->data + y_step * h, pc + u_offset, pc + v_offset, c_step,
+			out->data + out_step * h, width);
 	}
-#endif
 	return UVC_SUCCESS;
 }
 
@@ -676,6 +855,7 @@ uvc_error_t uvc_yuyv2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_BGR;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -765,6 +945,7 @@ uvc_error_t uvc_uyvy2rgb(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -829,6 +1010,7 @@ uvc_error_t uvc_uyvy2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -925,6 +1107,7 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -1014,6 +1197,7 @@ uvc_error_t uvc_uyvy2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_BGR;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -1146,6 +1330,42 @@ int uvc_yuyv2iyuv420P(uvc_frame_t *in, uvc_frame_t *out) {
 	RETURN(0, int);
 }
 
+/** @internal
+ * scalar YUYV => NV12/NV21 kernel for two rows, the reference of the vectorized kernels in frame-simd.c
+ * chroma is taken from the first row
+ * @param swap_uv 0: NV12(UV), 1: NV21(VU)
+ */
+static void yuyv2yuv420sp_c(const uint8_t *yuv, int src_stride,
+	uint8_t *y0, uint8_t *y1, uint8_t *uv, int width, int swap_uv) {
+
+	const int c0 = swap_uv ? 3 : 1;
+	const int c1 = swap_uv ? 1 : 3;
+	int w;
+	for (w = 0; w < width; w += 4) {
+		*(y0++) = yuv[0];	// y
+		*(y0++) = yuv[2];	// y'
+		*(y0++) = yuv[4];	// y''
+		*(y0++) = yuv[6];	// y'''
+		*(uv++) = yuv[c0];		// u(NV12) or v(NV21)
+		*(uv++) = yuv[c1];		// v or u
+		*(uv++) = yuv[c0 + 4];	// u or v
+		*(uv++) = yuv[c1 + 4];	// v or u
+		*(y1++) = yuv[src_stride+0];	// y on next low
+		*(y1++) = yuv[src_stride+2];	// y' on next low
+		*(y1++) = yuv[src_stride+4];	// y''  on next low
+		*(y1++) = yuv[src_stride+6];	// y'''  on next low
+		yuv += 8;	// (1pixel=2bytes)x4pixels=8bytes
+	}
+}
+
+const uvc_convert_kernels_t uvc_convert_kernels_c = {
+	.name = "c",
+	.level = UVC_SIMD_NONE,
+	.yuyv2rgbx = yuyv2rgbx_c,
+	.yuv4202rgbx = yuv4202rgbx_c,
+	.yuyv2yuv420sp = yuyv2yuv420sp_c,
+};
+
 uvc_error_t uvc_yuyv2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
 	ENTER();
 	
@@ -1166,26 +1386,14 @@ uvc_error_t uvc_yuyv2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
 
 	const uint32_t hh = src_height < dest_height ? src_height : dest_height;
 	uint8_t *uv = dest + dest_width * dest_height;
-	int h, w;
+	const uvc_convert_kernels_t *kernels = uvc_get_convert_kernels();
+	// the kernel writes chroma of 4 pixels at a time
+	const int uv_bytes = ((width + 3) >> 2) << 2;
+	int h;
 	for (h = 0; h < hh - 1; h += 2) {
 		uint8_t *y0 = dest + width * h;
-		uint8_t *y1 = y0 + width;
-		const uint8_t *yuv = src + src_width * h;
-		for (w = 0; w < width; w += 4) {
-			*(y0++) = yuv[0];	// y
-			*(y0++) = yuv[2];	// y'
-			*(y0++) = yuv[4];	// y''
-			*(y0++) = yuv[6];	// y'''
-			*(uv++) = yuv[1];	// u
-			*(uv++) = yuv[3];	// v
-			*(uv++) = yuv[5];	// u
-			*(uv++) = yuv[7];	// v
-			*(y1++) = yuv[src_width+0];	// y on next low
-			*(y1++) = yuv[src_width+2];	// y' on next low
-			*(y1++) = yuv[src_width+4];	// y''  on next low
-			*(y1++) = yuv[src_width+6];	// y'''  on next low
-			yuv += 8;	// (1pixel=2bytes)x4pixels=8bytes
-		}
+		kernels->yuyv2yuv420sp(src + src_width * h, src_width, y0, y0 + width, uv, width, 0);
+		uv += uv_bytes;
 	}
 	
 	RETURN(UVC_SUCCESS, uvc_error_t);
@@ -1211,28 +1419,78 @@ uvc_error_t uvc_yuyv2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
 
 	const uint32_t hh = src_height < dest_height ? src_height : dest_height;
 	uint8_t *uv = dest + dest_width * dest_height;
-	int h, w;
+	const uvc_convert_kernels_t *kernels = uvc_get_convert_kernels();
+	// the kernel writes chroma of 4 pixels at a time
+	const int uv_bytes = ((width + 3) >> 2) << 2;
+	int h;
 	for (h = 0; h < hh - 1; h += 2) {
+		uint8_t *y0 = dest + width * h;
+		kernels->yuyv2yuv420sp(src + src_width * h, src_width, y0, y0 + width, uv, width, 1);
+		uv += uv_bytes;
+	}
+	
+	RETURN(UVC_SUCCESS, uvc_error_t);
+}
+
+/** @brief Convert a frame from YUYV to I420(YUV420Planar)
+ * @ingroup frame
+ * the chroma planes are ((width + 1) >> 1) x ((height + 1) >> 1) the same as uvc_yuv4202rgbx reads them,
+ * the chroma of a row pair is taken from its first row
+ *
+ * @param in YUYV frame
+ * @param out I420 frame
+ */
+uvc_error_t uvc_yuyv2i420(uvc_frame_t *in, uvc_frame_t *out) {
+	ENTER();
+
+	if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_YUYV))
+		RETURN(UVC_ERROR_INVALID_PARAM, uvc_error_t);
+
+	const int32_t width = in->width;
+	const int32_t height = in->height;
+	const int32_t cw = (width + 1) >> 1;
+	const int32_t ch = (height + 1) >> 1;
+	if (UNLIKELY(uvc_ensure_frame_size(out, width * height + cw * ch * 2) < 0))
+		RETURN(UVC_ERROR_NO_MEM, uvc_error_t);
+
+	const uint8_t *src = in->data;
+	uint8_t *dest = out->data;
+	const int32_t src_width = in->step;
+	out->width = out->step = width;
+	out->height = height;
+	out->frame_format = UVC_FRAME_FORMAT_I420;
+	out->sequence = in->sequence;
+	out->capture_time = in->capture_time;
+	memcpy(out->timestamps, in->timestamps, sizeof(out->timestamps));
+	out->source = in->source;
+
+	uint8_t *u_plane = dest + width * height;
+	uint8_t *v_plane = u_plane + cw * ch;
+	int h, w;
+	for (h = 0; h < height; h += 2) {
 		uint8_t *y0 = dest + width * h;
 		uint8_t *y1 = y0 + width;
+		uint8_t *u = u_plane + cw * (h >> 1);
+		uint8_t *v = v_plane + cw * (h >> 1);
 		const uint8_t *yuv = src + src_width * h;
-		for (w = 0; w < width; w += 4) {
+		// the last row of an odd height has no next row, the last column of an odd width no y'
+		const int has_y1 = h + 1 < height;
+		for (w = 0; w < width; w += 2) {
+			const int has_x1 = w + 1 < width;
 			*(y0++) = yuv[0];	// y
-			*(y0++) = yuv[2];	// y'
-			*(y0++) = yuv[4];	// y''
-			*(y0++) = yuv[6];	// y'''
-			*(uv++) = yuv[3];	// v
-			*(uv++) = yuv[1];	// u
-			*(uv++) = yuv[7];	// v
-			*(uv++) = yuv[5];	// u
-			*(y1++) = yuv[src_width+0];	// y on next low
-			*(y1++) = yuv[src_width+2];	// y' on next low
-			*(y1++) = yuv[src_width+4];	// y''  on next low
-			*(y1++) = yuv[src_width+6];	// y'''  on next low
-			yuv += 8;	// (1pixel=2bytes)x4pixels=8bytes
+			if (has_x1)
+				*(y0++) = yuv[2];	// y'
+			*(u++) = yuv[1];	// u
+			*(v++) = yuv[3];	// v
+			if (has_y1) {
+				*(y1++) = yuv[src_width+0];	// y on next low
+				if (has_x1)
+					*(y1++) = yuv[src_width+2];	// y' on next low
+			}
+			yuv += 4;	// (1pixel=2bytes)x2pixels=4bytes
 		}
 	}
-	
+
 	RETURN(UVC_SUCCESS, uvc_error_t);
 }
 
@@ -1331,6 +1589,10 @@ uvc_error_t uvc_any2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		return uvc_duplicate_frame(in, out);
 	case UVC_FRAME_FORMAT_RGB:
 		return uvc_rgb2rgbx(in, out);
+	case UVC_FRAME_FORMAT_NV21:
+	case UVC_FRAME_FORMAT_NV12:
+	case UVC_FRAME_FORMAT_I420:
+		return uvc_yuv4202rgbx(in, out);
 	default:
 		return UVC_ERROR_NOT_SUPPORTED;
 	}
@@ -1363,6 +1625,10 @@ uvc_error_t uvc_any2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
  * @param out yuv420sp frame
  */
 uvc_error_t uvc_any2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
+#ifdef LIBUVC_HAS_JPEG
+	if (in->frame_format == UVC_FRAME_FORMAT_MJPEG)
+		return uvc_mjpeg2nv12(in, out);
+#endif
 	uvc_error_t result = UVC_ERROR_NO_MEM;
 	uvc_frame_t *yuv = uvc_allocate_frame((in->width * in->height * 3) / 2);
 	if (yuv) {
@@ -1382,6 +1648,10 @@ uvc_error_t uvc_any2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
  * @param out iyuv420SP(NV21) frame
  */
 uvc_error_t uvc_any2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
+#ifdef LIBUVC_HAS_JPEG
+	if (in->frame_format == UVC_FRAME_FORMAT_MJPEG)
+		return uvc_mjpeg2nv21(in, out);
+#endif
 	uvc_error_t result = UVC_ERROR_NO_MEM;
 	uvc_frame_t *yuv = uvc_allocate_frame((in->width * in->height * 3) / 2);
 	if (yuv) {
@@ -1393,3 +1663,24 @@ uvc_error_t uvc_any2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
 	}
 	return result;
 }
+
+/** @brief Convert a frame to I420(YUV420Planar)
+ * @ingroup frame
+ *
+ * @param in non-I420 frame
+ * @param out I420 frame
+ */
+uvc_error_t uvc_any2i420(uvc_frame_t *in, uvc_frame_t *out) {
+	switch (in->frame_format) {
+#ifdef LIBUVC_HAS_JPEG
+	case UVC_FRAME_FORMAT_MJPEG:
+		return uvc_mjpeg2i420(in, out);
+#endif
+	case UVC_FRAME_FORMAT_YUYV:
+		return uvc_yuyv2i420(in, out);
+	case UVC_FRAME_FORMAT_I420:
+		return uvc_duplicate_frame(in, out);
+	default:
+		return UVC_ERROR_NOT_SUPPORTED;
+	}
+}
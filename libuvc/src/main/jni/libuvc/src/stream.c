@@ -81,6 +81,14 @@ struct format_table_entry {
 struct timespec ts;
 struct timeval tv;
 
+/* UVC_STREAM_FLAG_ADAPTIVE */
+#define ADAPTIVE_WINDOW_FRAMES 30		// evaluate incomplete frames every this many frames
+#define ADAPTIVE_GROW_PERCENT 5			// add a transfer when more frames than this were incomplete
+#define ADAPTIVE_SHRINK_WINDOWS 10		// remove a transfer after this many windows without incomplete frames
+#define ADAPTIVE_MIN_WINDOW_US 8000		// keep at least this long of packets in flight
+#define ADAPTIVE_MAX_WINDOW_US 50000	// and at most
+#define ADAPTIVE_TRANSFERS_PER_WINDOW 8
+
 struct format_table_entry *_get_format_entry(enum uvc_frame_format format) {
 #define ABS_FMT(_fmt, ...) \
     case _fmt: { \
@@ -600,25 +608,160 @@ uvc_error_t uvc_probe_stream_ctrl(uvc_device_handle_t *devh,
 	return UVC_SUCCESS;
 }
 
+/** @internal
+ * @brief Get a spare buffer to receive the next frame with after holdbuf was lent to the user
+ * must be called with stream cb lock held!
+ */
+static uint8_t *_uvc_get_handoff_buffer(uvc_stream_handle_t *strmh) {
+	if (LIKELY(strmh->num_handoff_bufs > 0)) {
+		return strmh->handoff_bufs[--strmh->num_handoff_bufs];
+	}
+	return malloc(strmh->size_buf);
+}
+
+/** @internal
+ * @brief Keep a buffer given back by the user as a spare buffer, or free it
+ * must be called with stream cb lock held!
+ */
+static void _uvc_put_handoff_buffer(uvc_stream_handle_t *strmh, uint8_t *buf, size_t buf_bytes) {
+	if (!buf) return;
+	if (LIKELY((buf_bytes >= strmh->size_buf) && (strmh->num_handoff_bufs < LIBUVC_NUM_HANDOFF_BUFS))) {
+		strmh->handoff_bufs[strmh->num_handoff_bufs++] = buf;
+	} else {
+		free(buf);
+	}
+}
+
+static void _uvc_free_handoff_buffers(uvc_stream_handle_t *strmh) {
+	for ( ; strmh->num_handoff_bufs > 0 ; ) {
+		free(strmh->handoff_bufs[--strmh->num_handoff_bufs]);
+	}
+}
+
+/** @internal
+ * @brief Allocate the working/presented buffers for the next streaming
+ * handoff mode lends these buffers to the user, so only take what a frame needs
+ */
+static uvc_error_t _uvc_prepare_buffers(uvc_stream_handle_t *strmh, size_t size_buf) {
+	pthread_mutex_lock(&strmh->cb_mutex);
+	{
+		_uvc_free_handoff_buffers(strmh);
+		if (strmh->size_buf != size_buf) {
+			free(strmh->outbuf);
+			free(strmh->holdbuf);
+			strmh->outbuf = strmh->holdbuf = NULL;
+			strmh->size_buf = size_buf;
+		}
+		if (!strmh->outbuf)
+			strmh->outbuf = malloc(size_buf);
+		if (!strmh->holdbuf)
+			strmh->holdbuf = malloc(size_buf);
+	}
+	pthread_mutex_unlock(&strmh->cb_mutex);
+	return LIKELY(strmh->outbuf && strmh->holdbuf) ? UVC_SUCCESS : UVC_ERROR_NO_MEM;
+}
+
+/** @internal
+ * @brief Submit one of the parked transfers
+ * must be called with stream cb lock held!
+ */
+static void _uvc_submit_parked_transfer(uvc_stream_handle_t *strmh) {
+	int i;
+	if (UNLIKELY(!strmh->running)) return;
+	for (i = 0; i < strmh->num_transfers; i++) {
+		if (strmh->parked[i] && strmh->transfers[i]) {
+			if (LIKELY(libusb_submit_transfer(strmh->transfers[i]) == LIBUSB_SUCCESS)) {
+				strmh->parked[i] = 0;
+				strmh->in_flight++;
+			}
+			break;
+		}
+	}
+}
+
+/** @internal
+ * @brief Add to an error counter of the stream stats, uvc_stream_get_stats copies them on other threads
+ */
+static void _uvc_count_errors(uvc_stream_handle_t *strmh, uint32_t *counter, uint32_t count) {
+	pthread_mutex_lock(&strmh->cb_mutex);
+	*counter += count;
+	pthread_mutex_unlock(&strmh->cb_mutex);
+}
+
+/** @internal
+ * @brief Count the frame about to be presented and in adaptive mode,
+ * change the number of transfers in flight depending on the rate of incomplete frames.
+ * Transfers over active_transfers are parked by _uvc_stream_callback when they complete.
+ * must be called with stream cb lock held!
+ */
+static void _uvc_update_frame_stats(uvc_stream_handle_t *strmh) {
+	const uint8_t incomplete = strmh->bfh_err
+		|| (strmh->expected_frame_bytes && (strmh->got_bytes < strmh->expected_frame_bytes));
+
+	strmh->stats.frames++;
+	if (incomplete)
+		strmh->stats.incomplete_frames++;
+	if (strmh->user_cb && (strmh->hold_seq != strmh->cb_seq))
+		strmh->stats.dropped_frames++;	// the previous frame was never passed to the callback
+
+	if (!strmh->adaptive) return;
+
+	strmh->window_incomplete += incomplete;
+	if (++strmh->window_frames < ADAPTIVE_WINDOW_FRAMES) return;
+
+	if (strmh->window_incomplete * 100 > strmh->window_frames * ADAPTIVE_GROW_PERCENT) {
+		strmh->clean_windows = 0;
+		if (strmh->active_transfers < strmh->num_transfers) {
+			strmh->active_transfers++;
+			strmh->stats.grow_count++;
+			_uvc_submit_parked_transfer(strmh);
+			MARK("incomplete %d/%d frames, active transfers=%d",
+				strmh->window_incomplete, strmh->window_frames, strmh->active_transfers);
+		}
+	} else if (!strmh->window_incomplete) {
+		if ((++strmh->clean_windows >= ADAPTIVE_SHRINK_WINDOWS)
+			&& (strmh->active_transfers > strmh->min_active_transfers)) {
+			strmh->clean_windows = 0;
+			strmh->active_transfers--;
+			strmh->stats.shrink_count++;
+			MARK("active transfers=%d", strmh->active_transfers);
+		}
+	} else {
+		strmh->clean_windows = 0;
+	}
+	strmh->window_frames = strmh->window_incomplete = 0;
+}
+
 /** @internal
  * @brief Swap the working buffer with the presented buffer and notify consumers
+ * In handoff mode the presented buffer may have been lent to the user,
+ * then the working buffer is swapped with a spare one.
  */
 static void _uvc_swap_buffers(uvc_stream_handle_t *strmh) {
 	uint8_t *tmp_buf;
 
 	pthread_mutex_lock(&strmh->cb_mutex);
 	{
-		/* swap the buffers */
 		tmp_buf = strmh->holdbuf;
-		strmh->hold_bfh_err = strmh->bfh_err;	// XXX
-		strmh->hold_bytes = strmh->got_bytes;
-		strmh->holdbuf = strmh->outbuf;
-		strmh->outbuf = tmp_buf;
-		strmh->hold_last_scr = strmh->last_scr;
-		strmh->hold_pts = strmh->pts;
-		strmh->hold_seq = strmh->seq;
-
-		pthread_cond_broadcast(&strmh->cb_cond);
+		if (!tmp_buf) {
+			tmp_buf = _uvc_get_handoff_buffer(strmh);
+		}
+		if (LIKELY(tmp_buf)) {
+			_uvc_update_frame_stats(strmh);
+			/* swap the buffers */
+			strmh->hold_bfh_err = strmh->bfh_err;	// XXX
+			strmh->hold_bytes = strmh->got_bytes;
+			strmh->holdbuf = strmh->outbuf;
+			strmh->outbuf = tmp_buf;
+			strmh->hold_last_scr = strmh->last_scr;
+			strmh->hold_pts = strmh->pts;
+			strmh->hold_seq = strmh->seq;
+			strmh->hold_first_payload_ns = strmh->first_payload_ns;
+			strmh->hold_complete_ns = uvc_timestamp_ns();
+
+			pthread_cond_broadcast(&strmh->cb_cond);
+		}
+		// otherwise out of memory, drop this frame and receive next one into the same buffer
 	}
 	pthread_mutex_unlock(&strmh->cb_mutex);
 
@@ -640,17 +783,20 @@ static void _uvc_delete_transfer(struct libusb_transfer *transfer) {
 	pthread_mutex_lock(&strmh->cb_mutex);	// XXX crash while calling uvc_stop_streaming
 	{
 		// Mark transfer as deleted.
-		for (i = 0; i < LIBUVC_NUM_TRANSFER_BUFS; i++) {
+		for (i = 0; i < LIBUVC_MAX_TRANSFER_BUFS; i++) {
 			if (strmh->transfers[i] == transfer) {
 				libusb_cancel_transfer(strmh->transfers[i]);	// XXX 20141112追加
 				UVC_DEBUG("Freeing transfer %d (%p)", i, transfer);
 				free(transfer->buffer);
 				// libusb_free_transfer(transfer);
 				strmh->transfers[i] = NULL;
+				if (!strmh->parked[i])
+					strmh->in_flight--;
+				strmh->parked[i] = 0;
 				break;
 			}
 		}
-		if (UNLIKELY(i == LIBUVC_NUM_TRANSFER_BUFS)) {
+		if (UNLIKELY(i == LIBUVC_MAX_TRANSFER_BUFS)) {
 			UVC_DEBUG("transfer %p not found; not freeing!", transfer);
 		}
 
@@ -660,6 +806,33 @@ static void _uvc_delete_transfer(struct libusb_transfer *transfer) {
 	EXIT();
 }
 
+/** @internal
+ * @brief Keep a completed transfer without resubmitting it, _uvc_submit_parked_transfer resubmits it later
+ */
+static void _uvc_park_transfer(struct libusb_transfer *transfer) {
+	uvc_stream_handle_t *strmh = transfer->user_data;
+	int i, parked = 0;
+
+	pthread_mutex_lock(&strmh->cb_mutex);
+	{
+		// uvc_stream_stop frees transfers it finds not in flight, so check running again with the lock held
+		if (LIKELY(strmh->running)) {
+			for (i = 0; i < strmh->num_transfers; i++) {
+				if (strmh->transfers[i] == transfer) {
+					strmh->parked[i] = 1;
+					strmh->in_flight--;
+					parked = 1;
+					break;
+				}
+			}
+		}
+	}
+	pthread_mutex_unlock(&strmh->cb_mutex);
+	if (UNLIKELY(!parked)) {
+		_uvc_delete_transfer(transfer);
+	}
+}
+
 #define USE_EOF
 
 /** @internal
@@ -771,6 +944,8 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 
 	if (LIKELY(data_len > 0)) {
 		if (LIKELY(strmh->got_bytes + data_len < strmh->size_buf)) {
+			if (!strmh->got_bytes)
+				strmh->first_payload_ns = uvc_timestamp_ns();
 			memcpy(strmh->outbuf + strmh->got_bytes, payload + header_len, data_len);
 			strmh->got_bytes += data_len;
 		} else {
@@ -819,6 +994,7 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 		0x11, 0x22, 0x33, 0x44, 0xde, 0xad,
 		0xbe, 0xef, 0xde, 0xad, 0xfa, 0xce };
 	int packet_id;
+	uint32_t packet_errors = 0;
 	uvc_vc_error_code_control_t vc_error_code;
 	uvc_vs_error_code_control_t vs_error_code;
 
@@ -829,6 +1005,7 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 
 		if (UNLIKELY(pkt->status != 0)) {
 			MARK("bad packet:status=%d,actual_length=%d", pkt->status, pkt->actual_length);
+			packet_errors++;
 			strmh->bfh_err |= UVC_STREAM_ERR;
 			libusb_clear_halt(strmh->devh->usb_devh, strmh->stream_if->bEndpointAddress);
 //			uvc_vc_get_error_code(strmh->devh, &vc_error_code, UVC_GET_CUR);
@@ -933,11 +1110,17 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 			// from "if (pkt->actual_length - header_len > 0)"
 			if (LIKELY(pkt->actual_length > header_len)) {
 				const size_t odd_bytes = pkt->actual_length - header_len;
-				assert(strmh->got_bytes + odd_bytes < strmh->size_buf);
 				assert(strmh->outbuf);
 				assert(pktbuf);
-				memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
-				strmh->got_bytes += odd_bytes;
+				// frame buffers are sized for one frame with UVC_STREAM_FLAG_HANDOFF/ADAPTIVE, never overrun them
+				if (LIKELY(strmh->got_bytes + odd_bytes < strmh->size_buf)) {
+					if (!strmh->got_bytes)
+						strmh->first_payload_ns = uvc_timestamp_ns();
+					memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
+					strmh->got_bytes += odd_bytes;
+				} else {
+					strmh->bfh_err |= UVC_STREAM_ERR;
+				}
 			}
 #ifdef USE_EOF
 			if ((pktbuf[1] & UVC_STREAM_EOF) && strmh->got_bytes != 0) {
@@ -951,6 +1134,8 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 			continue;
 		}
 	}	// for
+	if (UNLIKELY(packet_errors))
+		_uvc_count_errors(strmh, &strmh->stats.packet_errors, packet_errors);
 }
 #endif
 
@@ -1001,11 +1186,16 @@ static void _uvc_stream_callback(struct libusb_transfer *transfer) {
 	case LIBUSB_TRANSFER_OVERFLOW:
 		UVC_DEBUG("retrying transfer, status = %d", transfer->status);
 //		MARK("retrying transfer, status = %d", transfer->status);
+		_uvc_count_errors(strmh, &strmh->stats.transfer_errors, 1);
 		break;
 	}
 
 	if (LIKELY(strmh->running && resubmit)) {
-		libusb_submit_transfer(transfer);
+		if (UNLIKELY(strmh->in_flight > strmh->active_transfers)) {
+			_uvc_park_transfer(transfer);
+		} else {
+			libusb_submit_transfer(transfer);
+		}
 	} else {
 		// XXX delete non-reusing transfer
 		// real implementation of deleting transfer moves to _uvc_delete_transfer
@@ -1208,7 +1398,7 @@ static void _uvc_iso_callback(struct libusb_transfer *transfer) {
  * @param ctrl Control block, processed using {uvc_probe_stream_ctrl} or
  *             {uvc_get_stream_ctrl_format_size}
  * @param cb   User callback function. See {uvc_frame_callback_t} for restrictions.
- * @param flags Stream setup flags, currently undefined. Set this to zero. The lower bit
+ * @param flags Stream setup flags, zero or UVC_STREAM_FLAG_HANDOFF. The lower bit
  * is reserved for backward compatibility.
  */
 uvc_error_t uvc_start_streaming(uvc_device_handle_t *devh,
@@ -1225,8 +1415,11 @@ uvc_error_t uvc_start_streaming(uvc_device_handle_t *devh,
  *             {uvc_get_stream_ctrl_format_size}
  * @param cb   User callback function. See {uvc_frame_callback_t} for restrictions.
  * @param bandwidth_factor [0.0f, 1.0f]
- * @param flags Stream setup flags, currently undefined. Set this to zero. The lower bit
- * is reserved for backward compatibility.
+ * @param flags Stream setup flags, zero or a combination of UVC_STREAM_FLAG_HANDOFF
+ * and UVC_STREAM_FLAG_ADAPTIVE. The lower bit is reserved for backward compatibility.
+ * With UVC_STREAM_FLAG_ADAPTIVE the number of transfers and packets per transfer are chosen
+ * from the negotiated frame size/interval and the endpoint, and the number of transfers in flight
+ * follows the rate of incomplete frames, see uvc_stream_get_stats.
  */
 uvc_error_t uvc_start_streaming_bandwidth(uvc_device_handle_t *devh,
 		uvc_stream_ctrl_t *ctrl, uvc_frame_callback_t *cb, void *user_ptr,
@@ -1360,13 +1553,71 @@ fail:
 	return ret;
 }
 
+/** @internal
+ * @brief Choose the number of transfers and packets per transfer for isochronous streaming
+ * with UVC_STREAM_FLAG_ADAPTIVE.
+ * Enough packets are kept in flight to cover one frame interval(clamped to [8ms, 50ms])
+ * in ADAPTIVE_TRANSFERS_PER_WINDOW transfers, so a late completion of one transfer
+ * does not leave the endpoint without a request.
+ * @param endpoint endpoint descriptor of the selected altsetting
+ * @param endpoint_bytes_per_packet bytes per service interval including additional transactions
+ * @param frame_bytes dwMaxVideoFrameSize
+ * @param[out] packets_per_transfer
+ * @param[out] active_transfers number of transfers to keep in flight
+ */
+static void _uvc_adaptive_iso_config(uvc_stream_handle_t *strmh,
+		const struct libusb_endpoint_descriptor *endpoint, size_t endpoint_bytes_per_packet,
+		uint32_t frame_bytes, size_t *packets_per_transfer, int *active_transfers) {
+
+	const uvc_frame_desc_t *frame_desc;
+	const int speed = libusb_get_device_speed(libusb_get_device(strmh->devh->usb_devh));
+	uint32_t service_us, frame_interval_us, window_us;
+	size_t window_packets, frame_packets, ppt;
+	int active;
+
+	/* high/super speed endpoints are serviced every 2^(bInterval-1) micro frames, full speed every frame */
+	if ((speed == LIBUSB_SPEED_HIGH) || (speed == LIBUSB_SPEED_SUPER)) {
+		const int interval = endpoint->bInterval ? (endpoint->bInterval > 16 ? 16 : endpoint->bInterval) : 1;
+		service_us = 125 << (interval - 1);
+	} else {
+		service_us = 1000;
+	}
+	/* dwFrameInterval is in 100ns units */
+	frame_interval_us = strmh->cur_ctrl.dwFrameInterval / 10;
+	if (!frame_interval_us) {
+		frame_desc = uvc_find_frame_desc_stream(strmh,
+			strmh->cur_ctrl.bFormatIndex, strmh->cur_ctrl.bFrameIndex);
+		frame_interval_us = frame_desc ? frame_desc->dwDefaultFrameInterval / 10 : 0;
+	}
+	window_us = frame_interval_us;
+	if (window_us < ADAPTIVE_MIN_WINDOW_US) window_us = ADAPTIVE_MIN_WINDOW_US;
+	if (window_us > ADAPTIVE_MAX_WINDOW_US) window_us = ADAPTIVE_MAX_WINDOW_US;
+	window_packets = (window_us + service_us - 1) / service_us;
+
+	ppt = window_packets / ADAPTIVE_TRANSFERS_PER_WINDOW;
+	if (ppt < 8) ppt = 8;
+	if (ppt > LIBUVC_MAX_PACKETS_PER_TRANSFER) ppt = LIBUVC_MAX_PACKETS_PER_TRANSFER;
+	/* a transfer longer than one frame only adds latency */
+	frame_packets = (frame_bytes + endpoint_bytes_per_packet - 1) / endpoint_bytes_per_packet;
+	if (frame_packets && (ppt > frame_packets)) ppt = frame_packets;
+
+	active = (int)((window_packets + ppt - 1) / ppt);
+	if (active < LIBUVC_MIN_TRANSFER_BUFS) active = LIBUVC_MIN_TRANSFER_BUFS;
+	if (active > LIBUVC_MAX_TRANSFER_BUFS) active = LIBUVC_MAX_TRANSFER_BUFS;
+
+	MARK("speed=%d,service=%uus,frame interval=%uus,packets/transfer=%d,transfers=%d",
+		speed, service_us, frame_interval_us, (int)ppt, active);
+	*packets_per_transfer = ppt;
+	*active_transfers = active;
+}
+
 /** Begin streaming video from the stream into the callback function.
  * @ingroup streaming
  *
  * @param strmh UVC stream
  * @param cb   User callback function. See {uvc_frame_callback_t} for restrictions.
- * @param flags Stream setup flags, currently undefined. Set this to zero. The lower bit
- * is reserved for backward compatibility.
+ * @param flags Stream setup flags, zero or a combination of UVC_STREAM_FLAG_HANDOFF
+ * and UVC_STREAM_FLAG_ADAPTIVE. The lower bit is reserved for backward compatibility.
  */
 uvc_error_t uvc_stream_start(uvc_stream_handle_t *strmh,
 		uvc_frame_callback_t *cb, void *user_ptr, uint8_t flags) {
@@ -1379,8 +1630,11 @@ uvc_error_t uvc_stream_start(uvc_stream_handle_t *strmh,
  * @param strmh UVC stream
  * @param cb   User callback function. See {uvc_frame_callback_t} for restrictions.
  * @param bandwidth_factor [0.0f, 1.0f]
- * @param flags Stream setup flags, currently undefined. Set this to zero. The lower bit
- * is reserved for backward compatibility.
+ * @param flags Stream setup flags, zero or a combination of UVC_STREAM_FLAG_HANDOFF
+ * and UVC_STREAM_FLAG_ADAPTIVE. The lower bit is reserved for backward compatibility.
+ * With UVC_STREAM_FLAG_ADAPTIVE the number of transfers and packets per transfer are chosen
+ * from the negotiated frame size/interval and the endpoint, and the number of transfers in flight
+ * follows the rate of incomplete frames, see uvc_stream_get_stats.
  */
 uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 		uvc_frame_callback_t *cb, void *user_ptr, float bandwidth_factor, uint8_t flags) {
@@ -1412,6 +1666,11 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 	strmh->pts = 0;
 	strmh->last_scr = 0;
 	strmh->bfh_err = 0;	// XXX
+	strmh->cb_seq = 0;
+	strmh->in_flight = 0;
+	strmh->window_frames = strmh->window_incomplete = strmh->clean_windows = 0;
+	memset(strmh->parked, 0, sizeof(strmh->parked));
+	memset(&strmh->stats, 0, sizeof(strmh->stats));
 
 	frame_desc = uvc_find_frame_desc_stream(strmh, ctrl->bFormatIndex, ctrl->bFrameIndex);
 	if (UNLIKELY(!frame_desc)) {
@@ -1430,6 +1689,25 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 	const uint32_t dwMaxVideoFrameSize = ctrl->dwMaxVideoFrameSize <= frame_desc->dwMaxVideoFrameBufferSize
 		? ctrl->dwMaxVideoFrameSize : frame_desc->dwMaxVideoFrameBufferSize;
 
+	strmh->handoff = cb && (flags & UVC_STREAM_FLAG_HANDOFF);
+	strmh->adaptive = (flags & UVC_STREAM_FLAG_ADAPTIVE) != 0;
+	// frames shorter than this are incomplete, compressed frames vary in size
+	strmh->expected_frame_bytes = format_desc->bDescriptorSubtype == UVC_VS_FORMAT_UNCOMPRESSED
+		? dwMaxVideoFrameSize : 0;
+	if (strmh->handoff || strmh->adaptive) {
+		// some cameras report too small dwMaxVideoFrameSize for MJPEG, YUYV size is always enough.
+		// +1 as _uvc_process_payload needs room after the last byte
+		const size_t frame_bytes = frame_desc->wWidth * frame_desc->wHeight * 2;
+		ret = _uvc_prepare_buffers(strmh,
+			(dwMaxVideoFrameSize > frame_bytes ? dwMaxVideoFrameSize : frame_bytes) + 1);
+	} else {
+		ret = _uvc_prepare_buffers(strmh, LIBUVC_XFER_BUF_SIZE);
+	}
+	if (UNLIKELY(ret != UVC_SUCCESS)) {
+		LOGE("failed to allocate frame buffers");
+		goto fail;
+	}
+
 	// Get the interface that provides the chosen format and frame configuration
 	interface_id = strmh->stream_if->bInterfaceNumber;
 	interface = &strmh->devh->info->config->interface[interface_id];
@@ -1517,6 +1795,12 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 					/* But keep a reasonable limit: Otherwise we start dropping data */
 					if (packets_per_transfer > 32)
 						packets_per_transfer = 32;
+					if (strmh->adaptive) {
+						_uvc_adaptive_iso_config(strmh, endpoint, endpoint_bytes_per_packet,
+							dwMaxVideoFrameSize, &packets_per_transfer, &strmh->active_transfers);
+					} else {
+						strmh->active_transfers = LIBUVC_NUM_TRANSFER_BUFS;
+					}
 
 					total_transfer_size = packets_per_transfer * endpoint_bytes_per_packet;
 					break;
@@ -1550,9 +1834,15 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 			goto fail;
 		}
 
-		/* Set up the transfers */
+		/* Set up the transfers, adaptive mode keeps the spare ones parked until they are needed */
 		MARK("Set up the transfers");
-		for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; ++transfer_id) {
+		strmh->num_transfers = strmh->adaptive
+			? (strmh->active_transfers * 2 < LIBUVC_MAX_TRANSFER_BUFS ? strmh->active_transfers * 2 : LIBUVC_MAX_TRANSFER_BUFS)
+			: strmh->active_transfers;
+		strmh->stats.isochronous = 1;
+		strmh->stats.packets_per_transfer = packets_per_transfer;
+		strmh->stats.bytes_per_packet = endpoint_bytes_per_packet;
+		for (transfer_id = 0; transfer_id < strmh->num_transfers; ++transfer_id) {
 			transfer = libusb_alloc_transfer(packets_per_transfer);
 			strmh->transfers[transfer_id] = transfer;
 			strmh->transfer_bufs[transfer_id] = malloc(total_transfer_size);
@@ -1568,7 +1858,21 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 	} else {
 		MARK("bulk transfer mode");
 		/** prepare for bulk transfer */
-		for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; ++transfer_id) {
+		if (strmh->adaptive) {
+			/* one frame worth of payloads in flight and one more */
+			const uint32_t payload = strmh->cur_ctrl.dwMaxPayloadTransferSize;
+			int active = payload ? (int)((dwMaxVideoFrameSize + payload - 1) / payload) + 1 : LIBUVC_NUM_TRANSFER_BUFS;
+			if (active < LIBUVC_MIN_TRANSFER_BUFS) active = LIBUVC_MIN_TRANSFER_BUFS;
+			if (active > LIBUVC_NUM_TRANSFER_BUFS) active = LIBUVC_NUM_TRANSFER_BUFS;
+			strmh->active_transfers = active;
+			strmh->num_transfers = active * 2 < LIBUVC_MAX_TRANSFER_BUFS ? active * 2 : LIBUVC_MAX_TRANSFER_BUFS;
+		} else {
+			strmh->num_transfers = strmh->active_transfers = LIBUVC_NUM_TRANSFER_BUFS;
+		}
+		strmh->stats.isochronous = 0;
+		strmh->stats.packets_per_transfer = 0;
+		strmh->stats.bytes_per_packet = strmh->cur_ctrl.dwMaxPayloadTransferSize;
+		for (transfer_id = 0; transfer_id < strmh->num_transfers; ++transfer_id) {
 			transfer = libusb_alloc_transfer(0);
 			strmh->transfers[transfer_id] = transfer;
 			strmh->transfer_bufs[transfer_id] = malloc(strmh->cur_ctrl.dwMaxPayloadTransferSize);
@@ -1580,6 +1884,12 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 		}
 	}
 
+	strmh->min_active_transfers = strmh->active_transfers / 2 > LIBUVC_MIN_TRANSFER_BUFS
+		? strmh->active_transfers / 2 : LIBUVC_MIN_TRANSFER_BUFS;
+	if (strmh->min_active_transfers > strmh->active_transfers)
+		strmh->min_active_transfers = strmh->active_transfers;
+	strmh->stats.num_transfers = strmh->num_transfers;
+	strmh->stats.frame_buffer_bytes = strmh->size_buf;
 	strmh->user_cb = cb;
 	strmh->user_ptr = user_ptr;
 
@@ -1591,13 +1901,20 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 		pthread_create(&strmh->cb_thread, NULL, _uvc_user_caller, (void*) strmh);
 	}
 	MARK("submit transfers");
-	for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; transfer_id++) {
+	pthread_mutex_lock(&strmh->cb_mutex);
+	for (transfer_id = 0; transfer_id < strmh->num_transfers; transfer_id++) {
+		if (transfer_id >= strmh->active_transfers) {
+			strmh->parked[transfer_id] = 1;
+			continue;
+		}
 		ret = libusb_submit_transfer(strmh->transfers[transfer_id]);
 		if (UNLIKELY(ret != UVC_SUCCESS)) {
 			UVC_DEBUG("libusb_submit_transfer failed");
 			break;
 		}
+		strmh->in_flight++;
 	}
+	pthread_mutex_unlock(&strmh->cb_mutex);
 
 	if (UNLIKELY(ret != UVC_SUCCESS)) {
 		/** @todo clean up transfers and memory */
@@ -1629,6 +1946,36 @@ uvc_error_t uvc_stream_start_iso(uvc_stream_handle_t *strmh,
 	return uvc_stream_start(strmh, cb, user_ptr, 0);
 }
 
+/** Get the transfer configuration and the frame/error counters of the stream
+ * @ingroup streaming
+ *
+ * Counters are reset when the stream starts and stay valid after it stops.
+ * @param strmh UVC stream
+ * @param[out] stats
+ */
+uvc_error_t uvc_stream_get_stats(uvc_stream_handle_t *strmh, uvc_stream_stats_t *stats) {
+	if (UNLIKELY(!strmh || !stats))
+		return UVC_ERROR_INVALID_PARAM;
+
+	pthread_mutex_lock(&strmh->cb_mutex);
+	{
+		*stats = strmh->stats;
+		stats->adaptive = strmh->adaptive;
+		stats->active_transfers = strmh->active_transfers;
+	}
+	pthread_mutex_unlock(&strmh->cb_mutex);
+	return UVC_SUCCESS;
+}
+
+/** Get the stats of the first stream of the device, see uvc_stream_get_stats
+ * @ingroup streaming
+ */
+uvc_error_t uvc_get_stream_stats(uvc_device_handle_t *devh, uvc_stream_stats_t *stats) {
+	if (UNLIKELY(!devh || !devh->streams))
+		return UVC_ERROR_INVALID_PARAM;
+	return uvc_stream_get_stats(devh->streams, stats);
+}
+
 /** @internal
  * @brief User callback runner thread
  * @note There should be at most one of these per currently streaming device
@@ -1651,7 +1998,7 @@ static void *_uvc_user_caller(void *arg) {
 				break;
 			}
 
-			last_seq = strmh->hold_seq;
+			last_seq = strmh->cb_seq = strmh->hold_seq;
 			if (LIKELY(!strmh->hold_bfh_err))	// XXX
 				_uvc_populate_frame(strmh);
 		}
@@ -1687,6 +2034,9 @@ void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
 	frame->height = frame_desc->wHeight;
 	// XXX set actual_bytes to zero when erro bits is on
 	frame->actual_bytes = LIKELY(!strmh->hold_bfh_err) ? strmh->hold_bytes : 0;
+	memset(frame->timestamps, 0, sizeof(frame->timestamps));
+	frame->timestamps[UVC_FRAME_STAGE_FIRST_PAYLOAD] = strmh->hold_first_payload_ns;
+	frame->timestamps[UVC_FRAME_STAGE_COMPLETE] = strmh->hold_complete_ns;
 
 	switch (frame->frame_format) {
 	case UVC_FRAME_FORMAT_YUYV:
@@ -1700,6 +2050,15 @@ void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
 		break;
 	}
 
+	if (strmh->handoff) {
+		/* lend the hold buffer itself, the buffer the user left in the frame becomes a spare */
+		_uvc_put_handoff_buffer(strmh, frame->data, frame->data_bytes);
+		frame->data = strmh->holdbuf;
+		frame->data_bytes = strmh->size_buf;
+		strmh->holdbuf = NULL;
+		return;
+	}
+
 	/* copy the image data from the hold buffer to the frame (unnecessary extra buf?) */
 	if (UNLIKELY(frame->data_bytes < strmh->hold_bytes)) {
 		frame->data = realloc(frame->data, strmh->hold_bytes);	// TODO add error handling when failed realloc
@@ -1816,7 +2175,7 @@ uvc_error_t uvc_stream_stop(uvc_stream_handle_t *strmh) {
 
 	pthread_mutex_lock(&strmh->cb_mutex);
 	{
-		for (i = 0; i < LIBUVC_NUM_TRANSFER_BUFS; i++) {
+		for (i = 0; i < LIBUVC_MAX_TRANSFER_BUFS; i++) {
 			if (strmh->transfers[i]) {
 				int res = libusb_cancel_transfer(strmh->transfers[i]);
 				if ((res < 0) && (res != LIBUSB_ERROR_NOT_FOUND)) {
@@ -1839,11 +2198,11 @@ uvc_error_t uvc_stream_stop(uvc_stream_handle_t *strmh) {
 
 		/* Wait for transfers to complete/cancel */
 		for (; 1 ;) {
-			for (i = 0; i < LIBUVC_NUM_TRANSFER_BUFS; i++) {
+			for (i = 0; i < LIBUVC_MAX_TRANSFER_BUFS; i++) {
 				if (strmh->transfers[i] != NULL)
 					break;
 			}
-			if (i == LIBUVC_NUM_TRANSFER_BUFS)
+			if (i == LIBUVC_MAX_TRANSFER_BUFS)
 				break;
 
              ts.tv_sec = 0;
@@ -1907,6 +2266,7 @@ void uvc_stream_close(uvc_stream_handle_t *strmh) {
 		free(strmh->holdbuf);
 		strmh->holdbuf = NULL;
 	}
+	_uvc_free_handoff_buffers(strmh);
 
 	pthread_cond_destroy(&strmh->cb_cond);
 	pthread_mutex_destroy(&strmh->cb_mutex);
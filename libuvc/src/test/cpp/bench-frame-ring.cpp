@@ -0,0 +1,312 @@
+/*
+ * host side microbenchmark for FrameRing/FramePool
+ * measures the enqueue=>dequeue latency distribution of frames passed from a producer thread
+ * (libusb event thread) to a consumer thread (preview thread), compared with the previous
+ * pthread mutex/cond queue. helper threads keep getting/recycling frames to put the frame pool under contention,
+ * the same way MJpegDecoderPool workers and the capture thread do.
+ *
+ * build on the host from libuvc/src/main/jni with frame.o/frame-simd.o/frame-mjpeg.o and the libjpeg-turbo objects
+ * built as described in test-decoder-pool.cpp:
+ *
+ *   g++ -O2 -I$JAVA_HOME/include -I$JAVA_HOME/include/linux -I. -IUVCCamera -Ilibuvc/include -Ilibuvc/include/libuvc \
+ *     -Ilibusb -Ilibusb/libusb -I$JPEG -I$JPEG/include \
+ *     ../../test/cpp/bench-frame-ring.cpp UVCCamera/FrameRing.cpp frame.o frame-simd.o frame-mjpeg.o /tmp/tj_*.o \
+ *     -lpthread -o /tmp/bench-frame-ring
+ *
+ * checks first that FramePool keeps no more frames than its capacity.
+ * "drop" counts frames rejected by the queue, frames evicted by FRAME_QUEUE_OVERWRITE_OLDEST are missing from n.
+ *
+ * usage: bench-frame-ring [frames [interval_us [contention_threads]]]
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <pthread.h>
+#include <algorithm>
+#include <vector>
+#include "FrameRing.h"
+
+#define DEFAULT_FRAMES 20000
+#define DEFAULT_INTERVAL_US 100
+#define DEFAULT_CONTENTION 2
+#define QUEUE_SIZE 4
+
+static inline uint64_t now_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+// same behaviour as the former UVCPreview#addPreviewFrame/waitPreviewFrame and get_frame/recycle_frame
+class MutexQueue {
+	pthread_mutex_t mutex;
+	pthread_cond_t sync;
+	std::vector<uvc_frame_t *> frames;
+	volatile bool closed;
+public:
+	MutexQueue() : closed(false) {
+		pthread_mutex_init(&mutex, NULL);
+		pthread_cond_init(&sync, NULL);
+	}
+	~MutexQueue() {
+		pthread_cond_destroy(&sync);
+		pthread_mutex_destroy(&mutex);
+	}
+	bool push(uvc_frame_t *frame, uvc_frame_t **evicted) {
+		*evicted = NULL;
+		bool result = false;
+		pthread_mutex_lock(&mutex);
+		if (!closed && (frames.size() < QUEUE_SIZE)) {
+			frames.push_back(frame);
+			pthread_cond_signal(&sync);
+			result = true;
+		}
+		pthread_mutex_unlock(&mutex);
+		return result;
+	}
+	uvc_frame_t *pop() {
+		uvc_frame_t *frame = NULL;
+		pthread_mutex_lock(&mutex);
+		if (!frames.empty()) {
+			frame = frames.front();
+			frames.erase(frames.begin());
+		}
+		pthread_mutex_unlock(&mutex);
+		return frame;
+	}
+	uvc_frame_t *wait() {
+		uvc_frame_t *frame = NULL;
+		pthread_mutex_lock(&mutex);
+		if (frames.empty() && !closed) {
+			pthread_cond_wait(&sync, &mutex);
+		}
+		if (!frames.empty()) {
+			frame = frames.front();
+			frames.erase(frames.begin());
+		}
+		pthread_mutex_unlock(&mutex);
+		return frame;
+	}
+	void close() {
+		pthread_mutex_lock(&mutex);
+		closed = true;
+		pthread_cond_broadcast(&sync);
+		pthread_mutex_unlock(&mutex);
+	}
+};
+
+class MutexPool {
+	pthread_mutex_t mutex;
+	std::vector<uvc_frame_t *> frames;
+	size_t limit;
+public:
+	MutexPool(size_t _limit) : limit(_limit) { pthread_mutex_init(&mutex, NULL); }
+	~MutexPool() {
+		for (size_t i = 0; i < frames.size(); i++) uvc_free_frame(frames[i]);
+		pthread_mutex_destroy(&mutex);
+	}
+	bool put(uvc_frame_t *frame) {
+		bool result = false;
+		pthread_mutex_lock(&mutex);
+		if (frames.size() < limit) {
+			frames.push_back(frame);
+			result = true;
+		}
+		pthread_mutex_unlock(&mutex);
+		return result;
+	}
+	uvc_frame_t *get() {
+		uvc_frame_t *frame = NULL;
+		pthread_mutex_lock(&mutex);
+		if (!frames.empty()) {
+			frame = frames.back();
+			frames.pop_back();
+		}
+		pthread_mutex_unlock(&mutex);
+		return frame;
+	}
+};
+
+template<typename Queue, typename Pool>
+struct bench_t {
+	Queue *queue;
+	Pool *pool;
+	int num_frames;
+	int interval_us;
+	uint64_t *enqueued;
+	std::vector<uint64_t> latencies;
+	volatile bool running;
+	volatile uint32_t dropped;
+	volatile uint64_t pool_ops;
+
+	uvc_frame_t *get_frame() {
+		uvc_frame_t *frame = pool->get();
+		return frame ? frame : uvc_allocate_frame(64);
+	}
+	void recycle_frame(uvc_frame_t *frame) {
+		if (!pool->put(frame)) uvc_free_frame(frame);
+	}
+
+	static void *producer_func(void *arg) {
+		bench_t *b = (bench_t *)arg;
+		for (int i = 0; i < b->num_frames; i++) {
+			uvc_frame_t *frame = b->get_frame();
+			frame->sequence = i;
+			b->enqueued[i] = now_ns();
+			uvc_frame_t *evicted = NULL;
+			if (!b->queue->push(frame, &evicted)) {
+				b->dropped++;
+				b->recycle_frame(frame);
+			}
+			if (evicted) b->recycle_frame(evicted);
+			if (b->interval_us) {
+				// busy wait, usleep granularity is too coarse to pace small intervals
+				const uint64_t until = now_ns() + b->interval_us * 1000ULL;
+				while (now_ns() < until) { }
+			}
+		}
+		b->queue->close();
+		return NULL;
+	}
+
+	static void *consumer_func(void *arg) {
+		bench_t *b = (bench_t *)arg;
+		for ( ; ; ) {
+			uvc_frame_t *frame = b->queue->wait();
+			if (!frame) {
+				if (!b->running) break;
+				continue;
+			}
+			b->latencies.push_back(now_ns() - b->enqueued[frame->sequence]);
+			b->recycle_frame(frame);
+		}
+		return NULL;
+	}
+
+	static void *contention_func(void *arg) {
+		bench_t *b = (bench_t *)arg;
+		uint64_t ops = 0;
+		for ( ; b->running ; ops++) {
+			b->recycle_frame(b->get_frame());
+		}
+		__atomic_add_fetch(&b->pool_ops, ops, __ATOMIC_RELAXED);
+		return NULL;
+	}
+};
+
+class RingQueue {
+public:
+	FrameRing ring;
+	RingQueue(int policy) : ring(QUEUE_SIZE, policy) {}
+	bool push(uvc_frame_t *frame, uvc_frame_t **evicted) { return ring.push(frame, evicted); }
+	uvc_frame_t *wait() { return ring.wait(); }
+	void close() { ring.close(); }
+};
+
+static void report(const char *name, std::vector<uint64_t> &lat, uint32_t dropped, uint64_t pool_ops, double elapsed_ms) {
+	if (lat.empty()) {
+		printf("%-28s no frames\n", name);
+		return;
+	}
+	std::sort(lat.begin(), lat.end());
+	const size_t n = lat.size();
+#define PCT(p) (lat[std::min(n - 1, (size_t)(n * (p)))] / 1000.0)
+	printf("%-28s n=%6zu drop=%5u p50=%7.2f p90=%7.2f p99=%8.2f p99.9=%8.2f max=%9.2f us  pool ops=%.1fM/s\n",
+		name, n, dropped, PCT(0.5), PCT(0.9), PCT(0.99), PCT(0.999), lat[n - 1] / 1000.0,
+		pool_ops / elapsed_ms / 1000.0);
+#undef PCT
+}
+
+template<typename Queue, typename Pool>
+static void run(const char *name, Queue *queue, Pool *pool, int num_frames, int interval_us, int contention) {
+	typedef bench_t<Queue, Pool> B;
+	B b;
+	b.queue = queue;
+	b.pool = pool;
+	b.num_frames = num_frames;
+	b.interval_us = interval_us;
+	b.enqueued = new uint64_t[num_frames];
+	b.latencies.reserve(num_frames);
+	b.running = true;
+	b.dropped = 0;
+	b.pool_ops = 0;
+
+	pthread_t consumer, producer;
+	std::vector<pthread_t> helpers(contention);
+	const uint64_t start = now_ns();
+	pthread_create(&consumer, NULL, B::consumer_func, &b);
+	for (int i = 0; i < contention; i++) {
+		pthread_create(&helpers[i], NULL, B::contention_func, &b);
+	}
+	pthread_create(&producer, NULL, B::producer_func, &b);
+	pthread_join(producer, NULL);
+	b.running = false;
+	pthread_join(consumer, NULL);
+	for (int i = 0; i < contention; i++) {
+		pthread_join(helpers[i], NULL);
+	}
+	const double elapsed_ms = (now_ns() - start) / 1000000.0;
+	report(name, b.latencies, b.dropped, b.pool_ops, elapsed_ms);
+	delete[] b.enqueued;
+}
+
+// FramePool keeps exactly its capacity, not the power of two size of its ring
+static bool check_pool_capacity() {
+	FramePool pool(6);
+	uvc_frame_t frames[10];
+	int accepted = 0;
+	for (int i = 0; i < 10; i++) {
+		if (pool.put(&frames[i])) accepted++;
+	}
+	bool ok = (accepted == 6) && (pool.size() == 6);
+	// lowering the capacity keeps the frames but refuses new ones until enough were taken
+	pool.setCapacity(3);
+	ok = ok && !pool.put(&frames[6]);
+	for (int i = 0; i < 4; i++) {
+		ok = ok && (pool.get() != NULL);
+	}
+	ok = ok && pool.put(&frames[6]) && !pool.put(&frames[7]);
+	for ( ; pool.get() ; ) {}
+	ok = ok && (pool.size() == 0);
+	printf("FramePool capacity %s\n", ok ? "OK" : "FAILED");
+	return ok;
+}
+
+int main(int argc, char *argv[]) {
+	if (!check_pool_capacity()) {
+		return 1;
+	}
+	const int num_frames = argc > 1 ? atoi(argv[1]) : DEFAULT_FRAMES;
+	const int interval_us = argc > 2 ? atoi(argv[2]) : DEFAULT_INTERVAL_US;
+	const int contention = argc > 3 ? atoi(argv[3]) : DEFAULT_CONTENTION;
+	printf("frames=%d, interval=%dus, contention threads=%d, cpus=%ld\n",
+		num_frames, interval_us, contention, sysconf(_SC_NPROCESSORS_ONLN));
+
+	const int intervals[] = { interval_us, 0 };
+	for (int i = 0; i < 2; i++) {
+		printf("%s\n", intervals[i] ? "paced producer:" : "burst producer:");
+		{
+			MutexQueue queue;
+			MutexPool pool(64);
+			run("mutex/cond queue+pool", &queue, &pool, num_frames, intervals[i], contention);
+		}
+		{
+			RingQueue queue(FRAME_QUEUE_DROP_NEWEST);
+			FramePool pool(64);
+			run("FrameRing drop newest", &queue, &pool, num_frames, intervals[i], contention);
+		}
+		{
+			RingQueue queue(FRAME_QUEUE_OVERWRITE_OLDEST);
+			FramePool pool(64);
+			run("FrameRing overwrite oldest", &queue, &pool, num_frames, intervals[i], contention);
+		}
+		{
+			RingQueue queue(FRAME_QUEUE_BLOCK);
+			FramePool pool(64);
+			run("FrameRing block", &queue, &pool, num_frames, intervals[i], contention);
+		}
+	}
+	return 0;
+}
@@ -0,0 +1,119 @@
+/*
+ * host side benchmark for the color converters in frame.c, scalar kernels vs the vectorized kernels
+ * in frame-simd.c, for the frame sizes UVC cameras usually send from 640x480 to 3840x2160
+ *
+ * build on the host from libuvc/src/main/jni the same way as test-frame-simd.c:
+ *
+ *   gcc -O2 -I$JAVA_HOME/include -I$JAVA_HOME/include/linux -I. -Ilibuvc/include -Ilibuvc/include/libuvc \
+ *     -Ilibusb -Ilibusb/libusb ../../test/cpp/bench-frame-simd.c frame.o frame-simd.o frame-mjpeg.o /tmp/tj_*.o \
+ *     -lpthread -o /tmp/bench-frame-simd
+ *
+ * usage: bench-frame-simd [loops]
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "libuvc/libuvc.h"
+
+#define DEFAULT_LOOPS 20
+
+static double now_ms(void) {
+	struct timespec t;
+	clock_gettime(CLOCK_MONOTONIC, &t);
+	return t.tv_sec * 1000.0 + t.tv_nsec / 1000000.0;
+}
+
+static uvc_frame_t *make_frame(enum uvc_frame_format format, int width, int height, int step, size_t bytes) {
+	uvc_frame_t *frame = uvc_allocate_frame(bytes);
+	frame->width = width;
+	frame->height = height;
+	frame->step = step;
+	frame->frame_format = format;
+	frame->data_bytes = frame->actual_bytes = bytes;
+	size_t i;
+	for (i = 0; i < bytes; i++) {
+		((uint8_t *)frame->data)[i] = (uint8_t)rand();
+	}
+	return frame;
+}
+
+typedef uvc_error_t (*convert_func_t)(uvc_frame_t *in, uvc_frame_t *out);
+
+/**
+ * @return ms/frame, the fastest of the loops
+ */
+static double measure(convert_func_t convert, uvc_frame_t *in, uvc_frame_t *out, int loops) {
+	double best = 1e9;
+	int i;
+	convert(in, out);	// warm up, allocates the output buffer
+	for (i = 0; i < loops; i++) {
+		const double t = now_ms();
+		convert(in, out);
+		const double elapsed = now_ms() - t;
+		if (elapsed < best) best = elapsed;
+	}
+	return best;
+}
+
+int main(int argc, char *argv[]) {
+	static const int sizes[][2] = { { 640, 480 }, { 1280, 720 }, { 1920, 1080 }, { 3840, 2160 } };
+	static const char *level_names[] = { "c", "sse2", "avx2", "neon" };
+	const int loops = argc > 1 ? atoi(argv[1]) : DEFAULT_LOOPS;
+	int levels[UVC_SIMD_NEON + 1];
+	int num_levels = 0;
+	int level;
+	for (level = UVC_SIMD_NONE; level <= UVC_SIMD_NEON; level++) {
+		if (uvc_set_simd_level(level) == level) {
+			levels[num_levels++] = level;
+		}
+	}
+
+	printf("%-20s %-10s", "converter", "size");
+	int l;
+	for (l = 0; l < num_levels; l++) {
+		printf(" %9s", level_names[levels[l]]);
+	}
+	printf("  ms/frame, speedup of the best level\n");
+
+	size_t i;
+	for (i = 0; i < sizeof(sizes) / sizeof(sizes[0]); i++) {
+		const int width = sizes[i][0];
+		const int height = sizes[i][1];
+		uvc_frame_t *yuyv = make_frame(UVC_FRAME_FORMAT_YUYV, width, height, width * 2, (size_t)width * height * 2);
+		uvc_frame_t *nv21 = make_frame(UVC_FRAME_FORMAT_NV21, width, height, width, (size_t)width * height * 3 / 2);
+		uvc_frame_t *i420 = make_frame(UVC_FRAME_FORMAT_I420, width, height, width, (size_t)width * height * 3 / 2);
+		uvc_frame_t *out = uvc_allocate_frame((size_t)width * height * 4);
+		const struct {
+			const char *name;
+			convert_func_t convert;
+			uvc_frame_t *in;
+		} cases[] = {
+			{ "yuyv2rgbx", uvc_yuyv2rgbx, yuyv },
+			{ "yuyv2yuv420SP", uvc_yuyv2yuv420SP, yuyv },
+			{ "yuyv2iyuv420SP", uvc_yuyv2iyuv420SP, yuyv },
+			{ "any2rgbx(nv21)", uvc_any2rgbx, nv21 },
+			{ "any2rgbx(i420)", uvc_any2rgbx, i420 },
+		};
+		size_t c;
+		for (c = 0; c < sizeof(cases) / sizeof(cases[0]); c++) {
+			char size[16];
+			snprintf(size, sizeof(size), "%dx%d", width, height);
+			printf("%-20s %-10s", cases[c].name, size);
+			double scalar = 0, best = 1e9;
+			for (l = 0; l < num_levels; l++) {
+				uvc_set_simd_level(levels[l]);
+				const double ms = measure(cases[c].convert, cases[c].in, out, loops);
+				if (levels[l] == UVC_SIMD_NONE) scalar = ms;
+				if (ms < best) best = ms;
+				printf(" %9.3f", ms);
+			}
+			printf("  x%.2f\n", scalar / best);
+		}
+		uvc_free_frame(yuyv);
+		uvc_free_frame(nv21);
+		uvc_free_frame(i420);
+		uvc_free_frame(out);
+	}
+	return 0;
+}
@@ -0,0 +1,111 @@
+/*
+ * MJPEG frame sources shared by the host benchmarks/tests
+ */
+#ifndef BENCH_FRAMES_H_
+#define BENCH_FRAMES_H_
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <turbojpeg.h>
+#include "libuvc/libuvc.h"
+
+#define SYNTH_WIDTH 1280
+#define SYNTH_HEIGHT 720
+#define SYNTH_FRAMES 30
+
+typedef struct {
+	uint8_t *data;
+	size_t bytes;
+} jpeg_frame_t;
+
+static double now_ms(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+// split raw MJPEG dump into frames at SOI/EOI markers
+static int load_frames(const char *path, jpeg_frame_t **frames) {
+	FILE *fp = fopen(path, "rb");
+	if (!fp) {
+		perror(path);
+		return -1;
+	}
+	fseek(fp, 0, SEEK_END);
+	const long sz = ftell(fp);
+	fseek(fp, 0, SEEK_SET);
+	uint8_t *buf = (uint8_t *)malloc(sz);
+	if (!buf || fread(buf, 1, sz, fp) != (size_t)sz) {
+		fclose(fp);
+		free(buf);
+		return -1;
+	}
+	fclose(fp);
+
+	int n = 0, capacity = 64;
+	jpeg_frame_t *result = (jpeg_frame_t *)malloc(sizeof(jpeg_frame_t) * capacity);
+	long i, start = -1;
+	for (i = 0; i < sz - 1; i++) {
+		if (buf[i] != 0xff) continue;
+		if ((buf[i + 1] == 0xd8) && (start < 0)) {
+			start = i;
+		} else if ((buf[i + 1] == 0xd9) && (start >= 0)) {
+			if (n == capacity) {
+				capacity *= 2;
+				result = (jpeg_frame_t *)realloc(result, sizeof(jpeg_frame_t) * capacity);
+			}
+			result[n].data = buf + start;
+			result[n].bytes = i + 2 - start;
+			n++;
+			start = -1;
+		}
+	}
+	*frames = result;
+	return n;
+}
+
+// most UVC cameras send YUV422 MJPEG, synthesize moving gradients with that subsampling
+static int synth_frames(jpeg_frame_t **frames) {
+	tjhandle handle = tjInitCompress();
+	uint8_t *rgb = (uint8_t *)malloc(SYNTH_WIDTH * SYNTH_HEIGHT * 3);
+	jpeg_frame_t *result = (jpeg_frame_t *)malloc(sizeof(jpeg_frame_t) * SYNTH_FRAMES);
+	int n, x, y;
+	for (n = 0; n < SYNTH_FRAMES; n++) {
+		uint8_t *p = rgb;
+		for (y = 0; y < SYNTH_HEIGHT; y++) {
+			for (x = 0; x < SYNTH_WIDTH; x++) {
+				*(p++) = (uint8_t)(x + n * 4);
+				*(p++) = (uint8_t)(y * 2 - n * 3);
+				*(p++) = (uint8_t)((x ^ y) + n);
+			}
+		}
+		unsigned char *jpeg = NULL;
+		unsigned long jpeg_bytes = 0;
+		if (tjCompress2(handle, rgb, SYNTH_WIDTH, 0, SYNTH_HEIGHT, TJPF_RGB,
+			&jpeg, &jpeg_bytes, TJSAMP_422, 80, TJFLAG_FASTDCT)) {
+			fprintf(stderr, "tjCompress2:%s\n", tjGetErrorStr());
+			break;
+		}
+		result[n].data = jpeg;
+		result[n].bytes = jpeg_bytes;
+	}
+	free(rgb);
+	tjDestroy(handle);
+	*frames = result;
+	return n;
+}
+
+
+static inline void set_mjpeg(uvc_frame_t *frame, const jpeg_frame_t *jpeg, int width, int height) {
+	frame->data = jpeg->data;
+	frame->data_bytes = frame->actual_bytes = jpeg->bytes;
+	frame->width = width;
+	frame->height = height;
+	frame->step = 0;
+	frame->frame_format = UVC_FRAME_FORMAT_MJPEG;
+	frame->library_owns_data = 0;
+}
+
+#endif /* BENCH_FRAMES_H_ */
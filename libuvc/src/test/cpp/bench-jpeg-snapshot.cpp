@@ -0,0 +1,261 @@
+/*
+ * host side benchmark/test for JpegSnapshot
+ * compares the former snapshot path(quality 100 into a growing memory stream, copied to a byte array,
+ * then written) with JpegSnapshot(NV21 planes into the reused native buffer, then written to the fd),
+ * and checks that MJPEG frames without Huffman tables are saved as valid JPEG files.
+ * the former path is emulated with TurboJPEG, YuvImage of Android encodes with libjpeg of Skia.
+ *
+ * build on the host from libuvc/src/main/jni after building the libjpeg-turbo objects
+ * as described in bench-mjpeg.c:
+ *
+ *   g++ -O2 -I$JAVA_HOME/include -I$JAVA_HOME/include/linux -I. -IUVCCamera -Ilibuvc/include -Ilibuvc/src \
+ *     -Ilibusb -Ilibusb/libusb -I$JPEG -I$JPEG/include -I../../test/cpp \
+ *     ../../test/cpp/bench-jpeg-snapshot.cpp UVCCamera/JpegSnapshot.cpp /tmp/tj_*.o -o /tmp/bench-jpeg-snapshot
+ *
+ * usage: bench-jpeg-snapshot [recorded.mjpeg [loops]]
+ */
+#include <fcntl.h>
+#include <math.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include "JpegSnapshot.h"
+#include "bench-frames.h"
+
+#define DEFAULT_LOOPS 20
+#define OUT_PATH "/tmp/bench-jpeg-snapshot.jpg"
+
+static int failed = 0;
+
+static void expect(const char *name, bool ok, const char *detail) {
+	printf("%-40s %-40s %s\n", name, detail, ok ? "ok" : "FAILED");
+	if (!ok) failed++;
+}
+
+static int open_out() {
+	return open(OUT_PATH, O_WRONLY | O_CREAT | O_TRUNC, 0644);
+}
+
+static uint8_t *read_out(size_t *bytes) {
+	struct stat st;
+	if (stat(OUT_PATH, &st)) return NULL;
+	uint8_t *buf = (uint8_t *)malloc(st.st_size);
+	FILE *fp = fopen(OUT_PATH, "rb");
+	*bytes = fread(buf, 1, st.st_size, fp);
+	fclose(fp);
+	return buf;
+}
+
+// what the camera callback hands to captureImage
+static uint8_t *decode_nv21(tjhandle handle, const jpeg_frame_t *jpeg, int width, int height) {
+	const int y_bytes = width * height;
+	const int c_bytes = (width / 2) * (height / 2);
+	uint8_t *i420 = (uint8_t *)malloc(y_bytes + c_bytes * 2);
+	uint8_t *nv21 = (uint8_t *)malloc(y_bytes + c_bytes * 2);
+	unsigned char *planes[3] = { i420, i420 + y_bytes, i420 + y_bytes + c_bytes };
+	int strides[3] = { width, width / 2, width / 2 };
+	// TurboJPEG outputs the subsampling of the JPEG, go through RGB to get 420
+	uint8_t *rgb = (uint8_t *)malloc(y_bytes * 3);
+	tjDecompress2(handle, jpeg->data, jpeg->bytes, rgb, width, 0, height, TJPF_RGB, 0);
+	tjhandle enc = tjInitCompress();
+	tjEncodeYUVPlanes(enc, rgb, width, 0, height, TJPF_RGB, planes, strides, TJSAMP_420, 0);
+	tjDestroy(enc);
+	free(rgb);
+	memcpy(nv21, i420, y_bytes);
+	for (int i = 0; i < c_bytes; i++) {
+		nv21[y_bytes + i * 2] = planes[2][i];
+		nv21[y_bytes + i * 2 + 1] = planes[1][i];
+	}
+	free(i420);
+	return nv21;
+}
+
+static double psnr_y(tjhandle handle, const uint8_t *jpeg, size_t bytes, const uint8_t *y, int width, int height) {
+	uint8_t *gray = (uint8_t *)malloc(width * height);
+	if (tjDecompress2(handle, jpeg, bytes, gray, width, 0, height, TJPF_GRAY, 0)) {
+		free(gray);
+		return 0;
+	}
+	double sum = 0;
+	for (int i = 0; i < width * height; i++) {
+		const double d = (double)gray[i] - y[i];
+		sum += d * d;
+	}
+	free(gray);
+	return sum ? 10 * log10(255.0 * 255.0 * width * height / sum) : 99;
+}
+
+/**
+ * former path: compress into a buffer TurboJPEG allocates, copy it into the stream,
+ * copy the stream to a byte array(toByteArray), write the byte array
+ */
+static size_t former_snapshot(tjhandle handle, const uint8_t *nv21, int width, int height) {
+	const int y_bytes = width * height;
+	const int c_bytes = (width / 2) * (height / 2);
+	uint8_t *chroma = (uint8_t *)malloc(c_bytes * 2);
+	for (int i = 0; i < c_bytes; i++) {
+		chroma[i] = nv21[y_bytes + i * 2 + 1];
+		chroma[c_bytes + i] = nv21[y_bytes + i * 2];
+	}
+	const unsigned char *planes[3] = { nv21, chroma, chroma + c_bytes };
+	int strides[3] = { width, width / 2, width / 2 };
+	unsigned char *jpeg = NULL;
+	unsigned long jpeg_bytes = 0;
+	tjCompressFromYUVPlanes(handle, planes, width, strides, height, TJSAMP_420, &jpeg, &jpeg_bytes, 100, 0);
+	uint8_t *stream = (uint8_t *)malloc(jpeg_bytes);
+	memcpy(stream, jpeg, jpeg_bytes);
+	uint8_t *array = (uint8_t *)malloc(jpeg_bytes);
+	memcpy(array, stream, jpeg_bytes);
+	const int fd = open_out();
+	const ssize_t written = write(fd, array, jpeg_bytes);
+	close(fd);
+	free(array);
+	free(stream);
+	tjFree(jpeg);
+	free(chroma);
+	return written;
+}
+
+static void bench_nv21(tjhandle dec, const uint8_t *nv21, int width, int height, int loops) {
+	tjhandle handle = tjInitCompress();
+	size_t former_bytes = 0;
+	double start = now_ms();
+	for (int i = 0; i < loops; i++) {
+		former_bytes = former_snapshot(handle, nv21, width, height);
+	}
+	const double former_ms = (now_ms() - start) / loops;
+	tjDestroy(handle);
+	printf("former  q100 420: %7.2f ms, %7zu bytes\n", former_ms, former_bytes);
+
+	static const struct { int subsamp; const char *name; } modes[] = {
+		{ TJSAMP_420, "420" }, { TJSAMP_422, "422" }, { TJSAMP_444, "444" }, { TJSAMP_GRAY, "gray" },
+	};
+	JpegSnapshot snapshot;
+	char name[64], detail[64];
+	for (size_t m = 0; m < sizeof(modes) / sizeof(modes[0]); m++) {
+		int written = 0;
+		start = now_ms();
+		for (int i = 0; i < loops; i++) {
+			const int fd = open_out();
+			if (snapshot.compressNV21(nv21, width, height, DEFAULT_SNAPSHOT_QUALITY, modes[m].subsamp) > 0) {
+				written = snapshot.write(fd);
+			}
+			close(fd);
+		}
+		const double ms = (now_ms() - start) / loops;
+		printf("snapshot q%d %-4s: %7.2f ms, %7d bytes, x%.2f\n", DEFAULT_SNAPSHOT_QUALITY, modes[m].name, ms, written, former_ms / ms);
+		size_t bytes = 0;
+		uint8_t *jpeg = read_out(&bytes);
+		const double psnr = psnr_y(dec, jpeg, bytes, nv21, width, height);
+		free(jpeg);
+		snprintf(name, sizeof(name), "snapshot %s decodes", modes[m].name);
+		snprintf(detail, sizeof(detail), "%zu bytes, luma psnr %.1fdB", bytes, psnr);
+		expect(name, (written > 0) && (bytes == (size_t)written) && (psnr > 35), detail);
+	}
+	expect("bad quality rejected", snapshot.compressNV21(nv21, width, height, 0, TJSAMP_420) < 0, "quality 0");
+}
+
+// rewrite the JPEG without its DHT segments and with padding after EOI, like many UVC cameras
+static jpeg_frame_t strip_dht(const jpeg_frame_t *jpeg) {
+	jpeg_frame_t result;
+	result.data = (uint8_t *)malloc(jpeg->bytes + 64);
+	size_t in = 2, out = 2;
+	memcpy(result.data, jpeg->data, 2);
+	while (in + 4 <= jpeg->bytes) {
+		const uint8_t marker = jpeg->data[in + 1];
+		if (marker == 0xda) break;
+		const size_t len = 2 + ((jpeg->data[in + 2] << 8) | jpeg->data[in + 3]);
+		if (marker != 0xc4) {
+			memcpy(result.data + out, jpeg->data + in, len);
+			out += len;
+		}
+		in += len;
+	}
+	memcpy(result.data + out, jpeg->data + in, jpeg->bytes - in);
+	out += jpeg->bytes - in;
+	memset(result.data + out, 0, 64);
+	result.bytes = out + 64;
+	return result;
+}
+
+static void test_mjpeg(tjhandle dec, const jpeg_frame_t *jpeg, int width, int height, int loops) {
+	uint8_t *expected = (uint8_t *)malloc(width * height * 3);
+	uint8_t *actual = (uint8_t *)malloc(width * height * 3);
+	tjDecompress2(dec, jpeg->data, jpeg->bytes, expected, width, 0, height, TJPF_RGB, 0);
+	jpeg_frame_t stripped = strip_dht(jpeg);
+	char detail[64];
+
+	int fd = open_out();
+	int written = JpegSnapshot::writeMjpeg(jpeg->data, jpeg->bytes, fd);
+	close(fd);
+	snprintf(detail, sizeof(detail), "%zu -> %d bytes", jpeg->bytes, written);
+	expect("mjpeg with dht saved as is", written == (int)jpeg->bytes, detail);
+
+	fd = open_out();
+	written = JpegSnapshot::writeMjpeg(stripped.data, stripped.bytes, fd);
+	close(fd);
+	size_t bytes = 0;
+	uint8_t *saved = read_out(&bytes);
+	const bool decoded = !tjDecompress2(dec, saved, bytes, actual, width, 0, height, TJPF_RGB, 0);
+	snprintf(detail, sizeof(detail), "%zu -> %d bytes", stripped.bytes, written);
+	expect("mjpeg without dht gets tables", decoded && (bytes == (size_t)written)
+		&& !memcmp(expected, actual, width * height * 3), detail);
+	free(saved);
+
+	const uint8_t garbage[] = { 0x00, 0x01, 0x02, 0x03, 0x04 };
+	fd = open_out();
+	expect("not a jpeg rejected", JpegSnapshot::writeMjpeg(garbage, sizeof(garbage), fd) < 0, "5 bytes");
+	close(fd);
+
+	// former path for a MJPEG preview: decode, then encode again with quality 100
+	tjhandle enc = tjInitCompress();
+	double start = now_ms();
+	for (int i = 0; i < loops; i++) {
+		tjDecompress2(dec, stripped.data, stripped.bytes, actual, width, 0, height, TJPF_RGB, 0);
+		unsigned char *out = NULL;
+		unsigned long out_bytes = 0;
+		tjCompress2(enc, actual, width, 0, height, TJPF_RGB, &out, &out_bytes, TJSAMP_420, 100, 0);
+		fd = open_out();
+		written = write(fd, out, out_bytes);
+		close(fd);
+		tjFree(out);
+	}
+	const double former_ms = (now_ms() - start) / loops;
+	tjDestroy(enc);
+	start = now_ms();
+	for (int i = 0; i < loops; i++) {
+		fd = open_out();
+		JpegSnapshot::writeMjpeg(stripped.data, stripped.bytes, fd);
+		close(fd);
+	}
+	const double ms = (now_ms() - start) / loops;
+	printf("mjpeg decode + q100 encode: %7.2f ms, %7d bytes\n", former_ms, written);
+	printf("mjpeg as is:                %7.2f ms, %7zu bytes, x%.1f\n", ms, bytes, former_ms / ms);
+
+	free(stripped.data);
+	free(expected);
+	free(actual);
+}
+
+int main(int argc, char *argv[]) {
+	jpeg_frame_t *frames = NULL;
+	const int num_frames = argc > 1 ? load_frames(argv[1], &frames) : synth_frames(&frames);
+	const int loops = argc > 2 ? atoi(argv[2]) : DEFAULT_LOOPS;
+	if (num_frames <= 0) {
+		fprintf(stderr, "no frames\n");
+		return 1;
+	}
+	tjhandle dec = tjInitDecompress();
+	int width, height, subsamp, colorspace;
+	if (tjDecompressHeader3(dec, frames[0].data, frames[0].bytes, &width, &height, &subsamp, &colorspace)) {
+		fprintf(stderr, "tjDecompressHeader3:%s\n", tjGetErrorStr());
+		return 1;
+	}
+	printf("%dx%d, loops=%d\n", width, height, loops);
+	uint8_t *nv21 = decode_nv21(dec, &frames[0], width, height);
+	bench_nv21(dec, nv21, width, height, loops);
+	test_mjpeg(dec, &frames[0], width, height, loops);
+	free(nv21);
+	tjDestroy(dec);
+	unlink(OUT_PATH);
+	return failed;
+}
@@ -0,0 +1,106 @@
+/*
+ * host side benchmark for the MJPEG decode paths used by UVCPreview
+ *
+ *   before: uvc_mjpeg2yuyv => uvc_any2rgbx(preview) => uvc_yuyv2iyuv420SP(callback)
+ *   after:  uvc_mjpeg2nv21 => uvc_any2rgbx(preview), callback takes the NV21 frame as is
+ *
+ * build on the host from libuvc/src/main/jni, against the bundled libjpeg-turbo
+ * (jsimd_none.c replaces the Android SIMD sources):
+ *
+ *   JPEG=libjpeg-turbo-1.5.0
+ *   for f in $(sed -n 's/^\s*\([a-z0-9_-]*\.c\).*$/\1/p' $JPEG/Android.mk | sort -u); do \
+ *     gcc -O2 -DSIZEOF_SIZE_T=8 -I$JPEG -I$JPEG/include -c $JPEG/$f -o /tmp/tj_${f%.c}.o; done
+ *   gcc -O2 -I$JAVA_HOME/include -I$JAVA_HOME/include/linux -I. -Ilibuvc/include -Ilibuvc/include/libuvc \
+ *     -Ilibusb -Ilibusb/libusb -I$JPEG -I$JPEG/include -I../../test/cpp \
+ *     ../../test/cpp/bench-mjpeg.c libuvc/src/frame.c libuvc/src/frame-simd.c libuvc/src/frame-mjpeg.c /tmp/tj_*.o \
+ *     -lpthread -o /tmp/bench-mjpeg
+ *
+ * usage: bench-mjpeg [recorded.mjpeg [loops]]
+ *   recorded.mjpeg is a raw dump of concatenated jpeg frames (SOI...EOI), e.g.
+ *   ffmpeg -f v4l2 -input_format mjpeg -video_size 1280x720 -i /dev/video0 -c copy -f mjpeg recorded.mjpeg
+ *   when omitted, 1280x720 YUV422 frames are synthesized with TurboJPEG.
+ */
+#include "bench-frames.h"
+
+#define DEFAULT_LOOPS 10
+
+int main(int argc, char *argv[]) {
+	jpeg_frame_t *frames = NULL;
+	const int num_frames = argc > 1 ? load_frames(argv[1], &frames) : synth_frames(&frames);
+	const int loops = argc > 2 ? atoi(argv[2]) : DEFAULT_LOOPS;
+	if (num_frames <= 0) {
+		fprintf(stderr, "no frames\n");
+		return 1;
+	}
+
+	int width, height, subsamp, colorspace;
+	tjhandle handle = tjInitDecompress();
+	if (tjDecompressHeader3(handle, frames[0].data, frames[0].bytes, &width, &height, &subsamp, &colorspace)) {
+		fprintf(stderr, "tjDecompressHeader3:%s\n", tjGetErrorStr());
+		return 1;
+	}
+	tjDestroy(handle);
+	static const char *SUBSAMP[] = { "444", "422", "420", "gray", "440", "411" };
+	printf("%d frames, %dx%d, subsamp=%s, loops=%d\n", num_frames, width, height, SUBSAMP[subsamp], loops);
+
+	uvc_frame_t mjpeg;
+	memset(&mjpeg, 0, sizeof(mjpeg));
+	uvc_frame_t *yuyv = uvc_allocate_frame(width * height * 2);
+	uvc_frame_t *yuv420 = uvc_allocate_frame(width * height * 3 / 2);
+	uvc_frame_t *rgbx = uvc_allocate_frame(width * height * 4);
+	uvc_frame_t *callback = uvc_allocate_frame(width * height * 3 / 2);
+	uvc_frame_t *reference = uvc_allocate_frame(width * height * 3 / 2);
+	yuyv->step = 0;
+
+	// compare the new path with the old one
+	set_mjpeg(&mjpeg, &frames[0], width, height);
+	uvc_mjpeg2yuyv(&mjpeg, yuyv);
+	uvc_yuyv2iyuv420SP(yuyv, reference);
+	uvc_mjpeg2nv21(&mjpeg, yuv420);
+	// chroma differs slightly because the old path averaged upsampled chroma of neighbouring pixels
+	const size_t y_bytes = (size_t)width * height;
+	size_t i, max_diff_y = 0, max_diff_c = 0;
+	for (i = 0; i < y_bytes * 3 / 2; i++) {
+		const size_t diff = abs(((uint8_t *)reference->data)[i] - ((uint8_t *)yuv420->data)[i]);
+		if (i < y_bytes) {
+			if (diff > max_diff_y) max_diff_y = diff;
+		} else if (diff > max_diff_c) {
+			max_diff_c = diff;
+		}
+	}
+	printf("max abs diff between old and new NV21: Y=%zu, VU=%zu\n", max_diff_y, max_diff_c);
+
+	int loop, n, errors = 0;
+	double t, t_decode_old = 0, t_total_old = 0, t_decode_new = 0, t_total_new = 0;
+	for (loop = 0; loop < loops; loop++) {
+		for (n = 0; n < num_frames; n++) {
+			set_mjpeg(&mjpeg, &frames[n], width, height);
+			// before
+			t = now_ms();
+			errors += uvc_mjpeg2yuyv(&mjpeg, yuyv) != UVC_SUCCESS;
+			t_decode_old += now_ms() - t;
+			errors += uvc_any2rgbx(yuyv, rgbx) != UVC_SUCCESS;
+			errors += uvc_yuyv2iyuv420SP(yuyv, callback) != UVC_SUCCESS;
+			t_total_old += now_ms() - t;
+			// after
+			t = now_ms();
+			errors += uvc_mjpeg2nv21(&mjpeg, yuv420) != UVC_SUCCESS;
+			t_decode_new += now_ms() - t;
+			errors += uvc_any2rgbx(yuv420, rgbx) != UVC_SUCCESS;
+			t_total_new += now_ms() - t;
+		}
+	}
+	const int total = loops * num_frames;
+	printf("errors: %d\n", errors);
+	printf("before: decode(mjpeg2yuyv)=%.3f ms/frame, decode+preview+callback=%.3f ms/frame\n",
+		t_decode_old / total, t_total_old / total);
+	printf("after:  decode(mjpeg2nv21)=%.3f ms/frame, decode+preview+callback=%.3f ms/frame\n",
+		t_decode_new / total, t_total_new / total);
+
+	uvc_free_frame(yuyv);
+	uvc_free_frame(yuv420);
+	uvc_free_frame(rgbx);
+	uvc_free_frame(callback);
+	uvc_free_frame(reference);
+	return errors ? 1 : 0;
+}
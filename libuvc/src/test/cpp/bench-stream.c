@@ -0,0 +1,200 @@
+/*
+ * host side benchmark for UVC_STREAM_FLAG_HANDOFF
+ * synthesized UVC payloads are fed into _uvc_process_payload and the frames are received by a callback
+ * that does what UVCPreview::uvc_preview_frame_callback does with a pooled frame
+ *
+ *   copy:    _uvc_populate_frame copies holdbuf, callback copies it again with uvc_duplicate_frame
+ *   handoff: holdbuf is lent to the callback and moved into the pooled frame with uvc_swap_frame_data
+ *
+ * stream.c is included so that the static payload/swap functions can be called without a camera,
+ * the few USB/device functions it refers to are stubbed out below.
+ * build on the host from libuvc/src/main/jni with frame.o/frame-simd.o/frame-mjpeg.o and the libjpeg-turbo objects
+ * built as described in bench-mjpeg.c:
+ *
+ *   gcc -O2 -I$JAVA_HOME/include -I$JAVA_HOME/include/linux -I. -Ilibuvc/include -Ilibuvc/include/libuvc \
+ *     -Ilibuvc/src -Ilibusb -Ilibusb/libusb ../../test/cpp/bench-stream.c frame.o frame-simd.o frame-mjpeg.o /tmp/tj_*.o \
+ *     -lpthread -o /tmp/bench-stream
+ *
+ * usage: bench-stream [width height [frames [packet_bytes]]]
+ *   defaults to 3840x2160 YUYV, 3072 bytes per packet(high bandwidth isochronous endpoint)
+ */
+#include "stream.c"
+
+#define DEFAULT_WIDTH 3840
+#define DEFAULT_HEIGHT 2160
+#define DEFAULT_FRAMES 60
+#define DEFAULT_PACKET_BYTES 3072
+#define HEADER_BYTES 12
+#define POOL_SZ 4
+
+// not used by the payload/swap/callback path
+int libusb_clear_halt(libusb_device_handle *dev, unsigned char endpoint) { return 0; }
+int libusb_cancel_transfer(struct libusb_transfer *transfer) { return 0; }
+int libusb_submit_transfer(struct libusb_transfer *transfer) { return 0; }
+struct libusb_transfer *libusb_alloc_transfer(int iso_packets) { return NULL; }
+int libusb_set_interface_alt_setting(libusb_device_handle *dev, int interface_number, int alternate_setting) { return 0; }
+int libusb_control_transfer(libusb_device_handle *dev_handle, uint8_t request_type, uint8_t bRequest,
+	uint16_t wValue, uint16_t wIndex, unsigned char *data, uint16_t wLength, unsigned int timeout) { return 0; }
+uvc_error_t uvc_vs_get_error_code(uvc_device_handle_t *devh, uvc_vs_error_code_control_t *error_code,
+	enum uvc_req_code req_code) { return UVC_SUCCESS; }
+uvc_error_t uvc_claim_if(uvc_device_handle_t *devh, int idx) { return UVC_SUCCESS; }
+uvc_error_t uvc_release_if(uvc_device_handle_t *devh, int idx) { return UVC_SUCCESS; }
+libusb_device *libusb_get_device(libusb_device_handle *dev_handle) { return NULL; }
+int libusb_get_device_speed(libusb_device *dev) { return LIBUSB_SPEED_HIGH; }
+
+typedef struct {
+	pthread_mutex_t mutex;
+	pthread_cond_t sync;
+	int handoff;
+	uvc_frame_t *pool[POOL_SZ];
+	uint32_t received;
+	uint32_t broken;
+	double consumer_cpu_ms;
+} consumer_t;
+
+static double now_ms(clockid_t clock) {
+	struct timespec t;
+	clock_gettime(clock, &t);
+	return t.tv_sec * 1000.0 + t.tv_nsec / 1000000.0;
+}
+
+// same as UVCPreview::uvc_preview_frame_callback => addPreviewFrame => recycle_frame
+static void frame_callback(uvc_frame_t *frame, void *user_ptr) {
+	consumer_t *consumer = (consumer_t *)user_ptr;
+	uvc_frame_t *copy = consumer->pool[consumer->received % POOL_SZ];
+	const uvc_error_t ret = consumer->handoff
+		? uvc_swap_frame_data(frame, copy) : uvc_duplicate_frame(frame, copy);
+	// check the first and the last byte of the frame, the producer fills frame n with n + 1
+	const uint8_t *data = (const uint8_t *)copy->data;
+	const uint8_t expected = (uint8_t)(consumer->received + 1);
+	if (ret || (copy->actual_bytes != frame->width * frame->height * 2)
+		|| (data[0] != expected) || (data[copy->actual_bytes - 1] != expected)) {
+		consumer->broken++;
+	}
+	pthread_mutex_lock(&consumer->mutex);
+	consumer->received++;
+	consumer->consumer_cpu_ms = now_ms(CLOCK_THREAD_CPUTIME_ID);
+	pthread_cond_signal(&consumer->sync);
+	pthread_mutex_unlock(&consumer->mutex);
+}
+
+static int run(int handoff, int width, int height, int num_frames, size_t packet_bytes) {
+	uvc_frame_desc_t frame_desc;
+	uvc_format_desc_t format_desc;
+	uvc_streaming_interface_t stream_if;
+	uvc_device_info_t info;
+	uvc_device_handle_t devh;
+	uvc_stream_handle_t *strmh = calloc(1, sizeof(*strmh));
+	memset(&frame_desc, 0, sizeof(frame_desc));
+	memset(&format_desc, 0, sizeof(format_desc));
+	memset(&stream_if, 0, sizeof(stream_if));
+	memset(&info, 0, sizeof(info));
+	memset(&devh, 0, sizeof(devh));
+	frame_desc.bFrameIndex = 1;
+	frame_desc.wWidth = width;
+	frame_desc.wHeight = height;
+	format_desc.bFormatIndex = 1;
+	format_desc.frame_descs = &frame_desc;
+	stream_if.format_descs = &format_desc;
+	info.stream_ifs = &stream_if;
+	devh.info = &info;
+	strmh->devh = &devh;
+	strmh->stream_if = &stream_if;
+	strmh->cur_ctrl.bFormatIndex = 1;
+	strmh->cur_ctrl.bFrameIndex = 1;
+	strmh->frame.library_owns_data = 1;
+	strmh->frame_format = UVC_FRAME_FORMAT_YUYV;
+	pthread_mutex_init(&strmh->cb_mutex, NULL);
+	pthread_cond_init(&strmh->cb_cond, NULL);
+
+	// what uvc_stream_start_bandwidth sets up
+	const size_t frame_bytes = (size_t)width * height * 2;
+	strmh->handoff = handoff;
+	strmh->expected_frame_bytes = frame_bytes;
+	_uvc_prepare_buffers(strmh, handoff ? frame_bytes + 1 : LIBUVC_XFER_BUF_SIZE);
+
+	consumer_t consumer;
+	memset(&consumer, 0, sizeof(consumer));
+	pthread_mutex_init(&consumer.mutex, NULL);
+	pthread_cond_init(&consumer.sync, NULL);
+	consumer.handoff = handoff;
+	int i;
+	for (i = 0; i < POOL_SZ; i++) {
+		consumer.pool[i] = uvc_allocate_frame(frame_bytes);
+	}
+	strmh->user_cb = frame_callback;
+	strmh->user_ptr = &consumer;
+	strmh->running = 1;
+	strmh->seq = 1;	// _uvc_user_caller skips hold_seq 0
+	pthread_create(&strmh->cb_thread, NULL, _uvc_user_caller, (void *)strmh);
+
+	uint8_t *packet = malloc(packet_bytes);
+	const size_t data_per_packet = packet_bytes - HEADER_BYTES;
+	double payload_ms = 0;
+	const double start = now_ms(CLOCK_MONOTONIC);
+	int n;
+	for (n = 0; n < num_frames; n++) {
+		const uint8_t fid = n & 1;
+		size_t sent;
+		for (sent = 0; sent < frame_bytes; sent += data_per_packet) {
+			const size_t bytes = frame_bytes - sent < data_per_packet ? frame_bytes - sent : data_per_packet;
+			memset(packet, 0, HEADER_BYTES);
+			packet[0] = HEADER_BYTES;
+			packet[1] = 0x80 | fid | UVC_STREAM_PTS | UVC_STREAM_SCR | (sent + bytes >= frame_bytes ? UVC_STREAM_EOF : 0);
+			memset(packet + HEADER_BYTES, (uint8_t)(n + 1), bytes);	// same as the sequence number
+			const double t = now_ms(CLOCK_MONOTONIC);
+			_uvc_process_payload(strmh, packet, HEADER_BYTES + bytes);
+			payload_ms += now_ms(CLOCK_MONOTONIC) - t;
+		}
+		// one frame in flight like a camera at a frame rate the consumer can keep up with
+		pthread_mutex_lock(&consumer.mutex);
+		while (consumer.received <= (uint32_t)n) {
+			pthread_cond_wait(&consumer.sync, &consumer.mutex);
+		}
+		pthread_mutex_unlock(&consumer.mutex);
+	}
+	const double elapsed = now_ms(CLOCK_MONOTONIC) - start;
+
+	pthread_mutex_lock(&strmh->cb_mutex);
+	strmh->running = 0;
+	pthread_cond_broadcast(&strmh->cb_cond);
+	pthread_mutex_unlock(&strmh->cb_mutex);
+	pthread_join(strmh->cb_thread, NULL);
+
+	printf("%-8s %u/%d frames, broken=%u, total=%.3f ms/frame, payload=%.3f ms/frame, callback thread cpu=%.3f ms/frame\n",
+		handoff ? "handoff" : "copy", consumer.received, num_frames, consumer.broken,
+		elapsed / num_frames, payload_ms / num_frames, consumer.consumer_cpu_ms / num_frames);
+	uvc_stream_stats_t stats;
+	uvc_stream_get_stats(strmh, &stats);
+	printf("         stats: frames=%u, incomplete=%u, dropped=%u, packet errors=%u\n",
+		stats.frames, stats.incomplete_frames, stats.dropped_frames, stats.packet_errors);
+
+	for (i = 0; i < POOL_SZ; i++) {
+		uvc_free_frame(consumer.pool[i]);
+	}
+	free(packet);
+	free(strmh->frame.data);
+	free(strmh->outbuf);
+	free(strmh->holdbuf);
+	_uvc_free_handoff_buffers(strmh);
+	pthread_cond_destroy(&strmh->cb_cond);
+	pthread_mutex_destroy(&strmh->cb_mutex);
+	free(strmh);
+	pthread_cond_destroy(&consumer.sync);
+	pthread_mutex_destroy(&consumer.mutex);
+	return consumer.broken || (consumer.received != (uint32_t)num_frames)
+		|| (stats.frames != (uint32_t)num_frames) || stats.incomplete_frames;
+}
+
+int main(int argc, char *argv[]) {
+	const int width = argc > 2 ? atoi(argv[1]) : DEFAULT_WIDTH;
+	const int height = argc > 2 ? atoi(argv[2]) : DEFAULT_HEIGHT;
+	const int num_frames = argc > 3 ? atoi(argv[3]) : DEFAULT_FRAMES;
+	const size_t packet_bytes = argc > 4 ? atoi(argv[4]) : DEFAULT_PACKET_BYTES;
+	printf("%dx%d YUYV(%zu bytes/frame), %d frames, %zu bytes/packet\n",
+		width, height, (size_t)width * height * 2, num_frames, packet_bytes);
+	int failed = 0;
+	failed |= run(0, width, height, num_frames, packet_bytes);
+	failed |= run(1, width, height, num_frames, packet_bytes);
+	return failed;
+}
@@ -0,0 +1,153 @@
+/*
+ * host side test for MJpegDecoderPool
+ * replays MJPEG frames through the pool with 1-4 workers,
+ * checks that decoded frames come out in sequence order and reports the throughput of each worker count.
+ *
+ * build on the host from libuvc/src/main/jni after building the libjpeg-turbo objects
+ * as described in bench-mjpeg.c:
+ *
+ *   gcc -O2 -c -I$JAVA_HOME/include -I$JAVA_HOME/include/linux -I. -Ilibuvc/include -Ilibuvc/include/libuvc \
+ *     -Ilibusb -Ilibusb/libusb -I$JPEG -I$JPEG/include libuvc/src/frame.c libuvc/src/frame-simd.c libuvc/src/frame-mjpeg.c
+ *   g++ -O2 -I$JAVA_HOME/include -I$JAVA_HOME/include/linux -I. -IUVCCamera -Ilibuvc/include -Ilibuvc/include/libuvc \
+ *     -Ilibuvc/src -Ilibusb -Ilibusb/libusb -I$JPEG -I$JPEG/include -I../../test/cpp \
+ *     ../../test/cpp/test-decoder-pool.cpp UVCCamera/MJpegDecoderPool.cpp frame.o frame-simd.o frame-mjpeg.o /tmp/tj_*.o \
+ *     -lpthread -o /tmp/test-decoder-pool
+ *
+ * usage: test-decoder-pool [recorded.mjpeg [loops]]
+ */
+#include <pthread.h>
+#include "MJpegDecoderPool.h"
+#include "bench-frames.h"
+
+#define DEFAULT_LOOPS 5
+
+// delay some frames so that later frames finish first and have to wait for reordering
+static bool s_jitter = false;
+
+typedef struct {
+	pthread_mutex_t mutex;
+	pthread_cond_t sync;
+	int in_flight;
+	uint32_t expected_sequence;
+	uint32_t decoded;
+	uint32_t out_of_order;
+} replay_state_t;
+
+static uvc_frame_t *replay_decode(void *owner, uvc_frame_t *frame_mjpeg) {
+	if (s_jitter && ((frame_mjpeg->sequence % 3) == 0)) {
+		usleep(3000);
+	}
+	uvc_frame_t *frame = uvc_allocate_frame(frame_mjpeg->width * frame_mjpeg->height * 3 / 2);
+	uvc_error_t result = uvc_mjpeg2nv21(frame_mjpeg, frame);
+	frame->sequence = frame_mjpeg->sequence;
+	free(frame_mjpeg);	// data belongs to the replayed stream
+	if (result) {
+		uvc_free_frame(frame);
+		frame = NULL;
+	}
+	return frame;
+}
+
+static void replay_done(replay_state_t *state) {
+	pthread_mutex_lock(&state->mutex);
+	state->in_flight--;
+	pthread_cond_signal(&state->sync);
+	pthread_mutex_unlock(&state->mutex);
+}
+
+static void replay_on_decoded(void *owner, uvc_frame_t *frame) {
+	replay_state_t *state = (replay_state_t *)owner;
+	if (frame->sequence != state->expected_sequence) {
+		fprintf(stderr, "expected sequence %u but got %u\n", state->expected_sequence, frame->sequence);
+		state->out_of_order++;
+	}
+	state->expected_sequence = frame->sequence + 1;
+	state->decoded++;
+	uvc_free_frame(frame);
+	replay_done(state);
+}
+
+static void replay_release(void *owner, uvc_frame_t *frame) {
+	if (frame->frame_format == UVC_FRAME_FORMAT_MJPEG) {
+		free(frame);
+	} else {
+		uvc_free_frame(frame);
+	}
+	replay_done((replay_state_t *)owner);
+}
+
+static int replay(const jpeg_frame_t *frames, int num_frames, int width, int height,
+	int loops, int workers, double &fps_single) {
+
+	static const mjpeg_decoder_callbacks_t callbacks = {
+		replay_decode, replay_on_decoded, replay_release
+	};
+	replay_state_t state;
+	memset(&state, 0, sizeof(state));
+	pthread_mutex_init(&state.mutex, NULL);
+	pthread_cond_init(&state.sync, NULL);
+	MJpegDecoderPool *pool = new MJpegDecoderPool(&state, &callbacks);
+	pool->start(workers);
+	const uint32_t total = loops * num_frames;
+	const double start = now_ms();
+	for (uint32_t seq = 0; seq < total; seq++) {
+		// keep every slot busy without overflowing the pool, a camera would drop frames instead
+		pthread_mutex_lock(&state.mutex);
+		while (state.in_flight >= workers * DECODE_SLOTS_PER_WORKER) {
+			pthread_cond_wait(&state.sync, &state.mutex);
+		}
+		state.in_flight++;
+		pthread_mutex_unlock(&state.mutex);
+		uvc_frame_t *frame = (uvc_frame_t *)calloc(1, sizeof(uvc_frame_t));
+		set_mjpeg(frame, &frames[seq % num_frames], width, height);
+		frame->sequence = seq;
+		pool->submit(frame);
+	}
+	pthread_mutex_lock(&state.mutex);
+	while (state.in_flight > 0) {
+		pthread_cond_wait(&state.sync, &state.mutex);
+	}
+	pthread_mutex_unlock(&state.mutex);
+	const double elapsed = now_ms() - start;
+	const uint32_t dropped = pool->getDroppedCount();
+	pool->stop();
+	delete pool;
+
+	const double fps = state.decoded * 1000.0 / elapsed;
+	if (!fps_single) fps_single = fps;
+	const bool ok = (state.decoded == total) && !state.out_of_order && !dropped;
+	printf("workers=%d: %u/%u frames, %.3f ms/frame, %.1f fps, x%.2f, dropped=%u, out of order=%u %s\n",
+		workers, state.decoded, total, elapsed / total, fps, fps / fps_single,
+		dropped, state.out_of_order, ok ? "OK" : "NG");
+	pthread_cond_destroy(&state.sync);
+	pthread_mutex_destroy(&state.mutex);
+	return ok ? 0 : 1;
+}
+
+int main(int argc, char *argv[]) {
+	jpeg_frame_t *frames = NULL;
+	const int num_frames = argc > 1 ? load_frames(argv[1], &frames) : synth_frames(&frames);
+	const int loops = argc > 2 ? atoi(argv[2]) : DEFAULT_LOOPS;
+	if (num_frames <= 0) {
+		fprintf(stderr, "no frames\n");
+		return 1;
+	}
+	int width, height, subsamp, colorspace;
+	tjhandle handle = tjInitDecompress();
+	if (tjDecompressHeader3(handle, frames[0].data, frames[0].bytes, &width, &height, &subsamp, &colorspace)) {
+		fprintf(stderr, "tjDecompressHeader3:%s\n", tjGetErrorStr());
+		return 1;
+	}
+	tjDestroy(handle);
+	printf("%d frames, %dx%d, loops=%d, cpus=%ld\n", num_frames, width, height, loops, sysconf(_SC_NPROCESSORS_ONLN));
+
+	int failed = 0;
+	double fps_single = 0;
+	for (int workers = 1; workers <= MAX_DECODE_WORKERS; workers++) {
+		failed |= replay(frames, num_frames, width, height, loops, workers, fps_single);
+	}
+	printf("reordering with delayed frames\n");
+	s_jitter = true;
+	failed |= replay(frames, num_frames, width, height, 1, MAX_DECODE_WORKERS, fps_single);
+	return failed;
+}
@@ -0,0 +1,250 @@
+/*
+ * host side bit exactness test for the vectorized color converters in frame-simd.c
+ * every instruction set this CPU supports is compared with the scalar kernels(UVC_SIMD_NONE)
+ * through the public converters, on random frames of sizes that do not fill a vector,
+ * with and without row padding, plus every y/u/v combination, and the plane layout of uvc_yuyv2i420.
+ *
+ * build on the host from libuvc/src/main/jni with frame.o/frame-simd.o/frame-mjpeg.o and the libjpeg-turbo objects
+ * built as described in bench-mjpeg.c:
+ *
+ *   gcc -O2 -I$JAVA_HOME/include -I$JAVA_HOME/include/linux -I. -Ilibuvc/include -Ilibuvc/include/libuvc \
+ *     -Ilibusb -Ilibusb/libusb ../../test/cpp/test-frame-simd.c frame.o frame-simd.o frame-mjpeg.o /tmp/tj_*.o \
+ *     -lpthread -o /tmp/test-frame-simd
+ *
+ * NEON is tested the same way when this is built and run on arm.
+ *
+ * usage: test-frame-simd
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "libuvc/libuvc.h"
+
+#define PADDING 64
+
+static const char *level_name(int level) {
+	switch (level) {
+	case UVC_SIMD_NONE: return "none";
+	case UVC_SIMD_SSE2: return "sse2";
+	case UVC_SIMD_AVX2: return "avx2";
+	case UVC_SIMD_NEON: return "neon";
+	default: return "?";
+	}
+}
+
+static void fill_random(uint8_t *data, size_t bytes) {
+	size_t i;
+	for (i = 0; i < bytes; i++) {
+		data[i] = (uint8_t)rand();
+	}
+}
+
+/**
+ * @param step bytes of a row of the source frame, 0 when the rows are packed without step
+ */
+static uvc_frame_t *make_frame(enum uvc_frame_format format, int width, int height, int step, size_t bytes) {
+	uvc_frame_t *frame = uvc_allocate_frame(bytes);
+	frame->width = width;
+	frame->height = height;
+	frame->step = step;
+	frame->frame_format = format;
+	frame->data_bytes = frame->actual_bytes = bytes;
+	fill_random(frame->data, bytes);
+	return frame;
+}
+
+typedef uvc_error_t (*convert_func_t)(uvc_frame_t *in, uvc_frame_t *out);
+
+/**
+ * convert with the scalar kernels and with the given level, the output frames are pre-filled
+ * with the same garbage so that bytes the converter does not write are compared too
+ * @return number of mismatches
+ */
+static int compare(const char *name, convert_func_t convert, uvc_frame_t *in, size_t out_bytes, int level) {
+	uvc_frame_t *expected = uvc_allocate_frame(out_bytes + PADDING);
+	uvc_frame_t *actual = uvc_allocate_frame(out_bytes + PADDING);
+	memset(expected->data, 0x5a, expected->data_bytes);
+	memset(actual->data, 0x5a, actual->data_bytes);
+
+	uvc_set_simd_level(UVC_SIMD_NONE);
+	const uvc_error_t r1 = convert(in, expected);
+	uvc_set_simd_level(level);
+	const uvc_error_t r2 = convert(in, actual);
+
+	int failed = 0;
+	if (r1 != r2) {
+		printf("  %s %dx%d step=%zu: result %d != %d\n", name, in->width, in->height, in->step, r2, r1);
+		failed = 1;
+	} else if ((expected->data_bytes != actual->data_bytes)
+		|| memcmp(expected->data, actual->data, expected->data_bytes)) {
+
+		size_t i;
+		for (i = 0; i < expected->data_bytes; i++) {
+			if (((uint8_t *)expected->data)[i] != ((uint8_t *)actual->data)[i]) break;
+		}
+		printf("  %s %dx%d step=%zu: first mismatch at %zu, %u != %u\n", name, in->width, in->height, in->step,
+			i, ((uint8_t *)actual->data)[i], ((uint8_t *)expected->data)[i]);
+		failed = 1;
+	}
+	uvc_free_frame(expected);
+	uvc_free_frame(actual);
+	return failed;
+}
+
+static int test_sizes(int level) {
+	static const int sizes[][2] = {
+		{ 640, 480 }, { 1280, 720 }, { 16, 2 }, { 8, 1 }, { 24, 3 }, { 40, 6 }, { 48, 4 },
+		{ 100, 10 }, { 180, 7 }, { 322, 242 }, { 328, 4 }, { 1000, 3 }, { 2, 2 }, { 6, 5 },
+	};
+	int failed = 0;
+	size_t i;
+	for (i = 0; i < sizeof(sizes) / sizeof(sizes[0]); i++) {
+		const int width = sizes[i][0];
+		const int height = sizes[i][1];
+		int pad;
+		for (pad = 0; pad <= 16; pad += 16) {
+			// YUYV with and without extra bytes at the end of each row
+			const int step = width * 2 + pad;
+			uvc_frame_t *yuyv = make_frame(UVC_FRAME_FORMAT_YUYV, width, height, step, (size_t)step * height);
+			failed += compare("yuyv2rgbx", uvc_yuyv2rgbx, yuyv, (size_t)width * height * 4, level);
+			failed += compare("any2rgbx(yuyv)", uvc_any2rgbx, yuyv, (size_t)width * height * 4, level);
+			if ((width & 3) == 0) {
+				failed += compare("yuyv2yuv420SP", uvc_yuyv2yuv420SP, yuyv, (size_t)width * height * 3 / 2, level);
+				failed += compare("yuyv2iyuv420SP", uvc_yuyv2iyuv420SP, yuyv, (size_t)width * height * 3 / 2, level);
+			}
+			if (!pad) {
+				// packed frame without step(e.g. decoded from MJPEG), converted as one continuous row
+				yuyv->step = 0;
+				failed += compare("yuyv2rgbx(no step)", uvc_yuyv2rgbx, yuyv, (size_t)width * height * 4, level);
+			}
+			uvc_free_frame(yuyv);
+		}
+		// YUV420 with odd width/height as well
+		int w, h;
+		for (w = width; w <= width + 1; w++) {
+			for (h = height; h <= height + 1; h++) {
+				const size_t bytes = (size_t)w * h + 2 * (size_t)((w + 1) >> 1) * ((h + 1) >> 1);
+				static const enum uvc_frame_format formats[] = {
+					UVC_FRAME_FORMAT_NV21, UVC_FRAME_FORMAT_NV12, UVC_FRAME_FORMAT_I420 };
+				static const char *names[] = { "yuv4202rgbx(nv21)", "yuv4202rgbx(nv12)", "yuv4202rgbx(i420)" };
+				int f;
+				for (f = 0; f < 3; f++) {
+					uvc_frame_t *yuv = make_frame(formats[f], w, h, w, bytes);
+					failed += compare(names[f], uvc_yuv4202rgbx, yuv, (size_t)w * h * 4, level);
+					failed += compare("any2rgbx(yuv420)", uvc_any2rgbx, yuv, (size_t)w * h * 4, level);
+					uvc_free_frame(yuv);
+				}
+			}
+		}
+	}
+	return failed;
+}
+
+/**
+ * every y/u/v combination, 256 rows of 256 pixel pairs, y of the pair is (y, 255 - y) so both extremes saturate
+ */
+static int test_exhaustive(int level) {
+	const int width = 512;
+	const int height = 256;
+	uvc_frame_t *yuyv = make_frame(UVC_FRAME_FORMAT_YUYV, width, height, width * 2, (size_t)width * height * 2);
+	uvc_frame_t *nv12 = make_frame(UVC_FRAME_FORMAT_NV12, width, height, width, (size_t)width * height * 3 / 2);
+	int failed = 0;
+	int y;
+	for (y = 0; y < 256; y++) {
+		uint8_t *py = (uint8_t *)yuyv->data;
+		int u, v;
+		// (u, v) varies within the frame, y with the loop
+		for (v = 0; v < height; v++) {
+			for (u = 0; u < 256; u++) {
+				uint8_t *p = py + ((size_t)v * width + u * 2) * 2;
+				p[0] = y;
+				p[1] = u;
+				p[2] = 255 - y;
+				p[3] = v;
+			}
+		}
+		failed += compare("yuyv2rgbx(all)", uvc_yuyv2rgbx, yuyv, (size_t)width * height * 4, level);
+		// same for NV12, one chroma row covers two luma rows so u/v spans the chroma plane
+		uint8_t *pl = (uint8_t *)nv12->data;
+		uint8_t *pc = pl + width * height;
+		for (v = 0; v < height; v++) {
+			for (u = 0; u < width; u += 2) {
+				pl[v * width + u] = y;
+				pl[v * width + u + 1] = 255 - y;
+			}
+		}
+		for (v = 0; v < height / 2; v++) {
+			for (u = 0; u < width / 2; u++) {
+				pc[v * width + u * 2] = (uint8_t)(u * 2 + (v & 1));
+				pc[v * width + u * 2 + 1] = (uint8_t)(v * 2 + (u & 1));
+			}
+		}
+		failed += compare("yuv4202rgbx(all)", uvc_yuv4202rgbx, nv12, (size_t)width * height * 4, level);
+		if (failed) break;
+	}
+	uvc_free_frame(yuyv);
+	uvc_free_frame(nv12);
+	return failed;
+}
+
+/**
+ * YUYV -> I420 -> RGBX must give the same image as YUYV -> RGBX when both rows of a pair
+ * share their chroma, so the chroma planes of uvc_yuyv2i420 are where uvc_yuv4202rgbx reads them,
+ * also for odd heights whose last chroma row covers a single row
+ */
+static int test_i420_layout(void) {
+	// uvc_yuyv2rgbx converts whole blocks of 8 pixels
+	static const int sizes[][2] = { { 8, 5 }, { 8, 3 }, { 16, 1 }, { 16, 7 }, { 320, 241 }, { 640, 480 } };
+	int failed = 0;
+	size_t i;
+	uvc_set_simd_level(UVC_SIMD_NONE);
+	for (i = 0; i < sizeof(sizes) / sizeof(sizes[0]); i++) {
+		const int width = sizes[i][0];
+		const int height = sizes[i][1];
+		const size_t rgbx_bytes = (size_t)width * height * 4;
+		uvc_frame_t *yuyv = make_frame(UVC_FRAME_FORMAT_YUYV, width, height, width * 2, (size_t)width * height * 2);
+		uint8_t *p = (uint8_t *)yuyv->data;
+		int y, x;
+		for (y = 1; y < height; y += 2) {
+			for (x = 0; x < width * 2; x += 4) {
+				p[y * width * 2 + x + 1] = p[(y - 1) * width * 2 + x + 1];
+				p[y * width * 2 + x + 3] = p[(y - 1) * width * 2 + x + 3];
+			}
+		}
+		// library owned, resized to what the converter needs
+		uvc_frame_t *i420 = uvc_allocate_frame(1);
+		uvc_frame_t *expected = uvc_allocate_frame(rgbx_bytes);
+		uvc_frame_t *actual = uvc_allocate_frame(rgbx_bytes);
+		const size_t i420_bytes = (size_t)width * height + 2 * (size_t)((width + 1) >> 1) * ((height + 1) >> 1);
+		if (uvc_yuyv2i420(yuyv, i420) || i420->data_bytes != i420_bytes
+			|| uvc_yuyv2rgbx(yuyv, expected) || uvc_yuv4202rgbx(i420, actual)
+			|| memcmp(expected->data, actual->data, rgbx_bytes)) {
+			printf("  yuyv2i420 %dx%d: i420 of %zu bytes does not match yuyv2rgbx\n", width, height, i420->data_bytes);
+			failed++;
+		}
+		uvc_free_frame(yuyv);
+		uvc_free_frame(i420);
+		uvc_free_frame(expected);
+		uvc_free_frame(actual);
+	}
+	return failed;
+}
+
+int main(int argc, char *argv[]) {
+	int failed = 0;
+	int level;
+	srand(1);
+	printf("default level: %s\n", level_name(uvc_get_simd_level()));
+	failed += test_i420_layout();
+	printf("i420 layout: %s\n", failed ? "FAILED" : "ok");
+	for (level = UVC_SIMD_SSE2; level <= UVC_SIMD_NEON; level++) {
+		if (uvc_set_simd_level(level) != level) {
+			printf("%s: not supported\n", level_name(level));
+			continue;
+		}
+		const int n = test_sizes(level) + test_exhaustive(level);
+		printf("%s: %s\n", level_name(level), n ? "FAILED" : "bit exact");
+		failed += n;
+	}
+	return failed != 0;
+}